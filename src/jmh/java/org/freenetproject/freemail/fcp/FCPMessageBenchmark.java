@@ -0,0 +1,89 @@
+/*
+ * FCPMessageBenchmark.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how fast FCP messages are written and parsed, using the kind of
+ * messages that are exchanged while polling a channel. Run with
+ * {@code ./gradlew jmh}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FCPMessageBenchmark {
+	private static final String URI = "SSK@Mp8ZxuCLnBkioGfhs1TuqLdng9UVZ8~n5Q0QtiUY9WI,"
+			+ "PuO0yMON89D~5jUgwh4pmeIxTelC-p2ieTQbfHmXBUU,AQACAAE/i-AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA";
+
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+	private byte[] encoded;
+
+	@Setup
+	public void setup() throws IOException {
+		FCPMessage reply = new FCPMessage(1, "GetFailed");
+		reply.headers.put("Code", "13");
+		reply.headers.put("CodeDescription", "Data not found");
+		reply.headers.put("ShortCodeDescription", "Data not found");
+		reply.headers.put("Fatal", "true");
+		reply.headers.put("Global", "false");
+		reply.headers.put("ExpectedDataLength", "0");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		reply.writeto(bytes);
+		encoded = bytes.toByteArray();
+	}
+
+	@Benchmark
+	public int encode() throws IOException {
+		FCPMessage request = new FCPMessage(1, "ClientGet");
+		request.headers.put("URI", URI);
+		request.headers.put("ReturnType", "direct");
+		request.headers.put("Persistence", "connection");
+		request.headers.put("MaxRetries", "0");
+		request.headers.put("MaxSize", "65536");
+
+		out.reset();
+		request.writeto(out);
+		return out.size();
+	}
+
+	@Benchmark
+	public FCPMessage decode() throws IOException {
+		return new FCPMessage(new ByteArrayInputStream(encoded));
+	}
+}
@@ -202,14 +202,19 @@ public class AccountManager {
 		RSAKeyParameters pub = (RSAKeyParameters) keypair.getPublic();
 		RSAKeyParameters priv = (RSAKeyParameters) keypair.getPrivate();
 
-		accfile.put("asymkey.modulus", pub.getModulus().toString(32));
-		accfile.put("asymkey.pubexponent", pub.getExponent().toString(32));
-		accfile.put("asymkey.privexponent", priv.getExponent().toString(32));
-
 		String privateKey = oid.getInsertURI();
 		privateKey = privateKey.substring(0, privateKey.indexOf("/"));
 		privateKey = privateKey + "/mailsite/";
-		accfile.put("mailsite.privkey", privateKey);
+
+		Map<String, String> keys = new HashMap<String, String>();
+		keys.put("asymkey.modulus", pub.getModulus().toString(32));
+		keys.put("asymkey.pubexponent", pub.getExponent().toString(32));
+		keys.put("asymkey.privexponent", priv.getExponent().toString(32));
+		keys.put("mailsite.privkey", privateKey);
+		if(!accfile.putAll(keys)) {
+			Logger.error(AccountManager.class, "Couldn't store account keys");
+			return false;
+		}
 
 		Logger.normal(AccountManager.class, "Account creation completed.");
 		return true;
@@ -25,6 +25,7 @@ package org.freenetproject.freemail;
 import java.io.File;
 import java.io.IOException;
 import java.security.SecureRandom;
+import java.util.List;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
@@ -33,11 +34,12 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import org.freenetproject.freemail.config.ConfigClient;
 import org.freenetproject.freemail.config.Configurator;
-import org.freenetproject.freemail.fcp.FCPConnection;
+import org.freenetproject.freemail.fcp.FCPConnectionPool;
 import org.freenetproject.freemail.fcp.FCPContext;
 import org.freenetproject.freemail.imap.IMAPListener;
 import org.freenetproject.freemail.smtp.SMTPListener;
 import org.freenetproject.freemail.utils.Logger;
+import org.freenetproject.freemail.utils.PropsFile;
 import org.freenetproject.freemail.utils.Timer;
 import org.freenetproject.freemail.wot.WoTConnection;
 
@@ -45,8 +47,13 @@ import org.freenetproject.freemail.wot.WoTConnection;
 public abstract class Freemail implements ConfigClient {
 	private static final ScheduledThreadPoolExecutor defaultExecutor =
 			new ScheduledThreadPoolExecutor(10, new FreemailThreadFactory("Freemail executor thread"));
-	private static final ScheduledThreadPoolExecutor senderExecutor =
-			new ScheduledThreadPoolExecutor(10, new FreemailThreadFactory("Freemail sender thread"));
+
+	/**
+	 * Runs the inserts and fetches of all the accounts, so the number of
+	 * threads limits how many FCP requests are running at the same time.
+	 */
+	private static final IOScheduler ioScheduler =
+			new IOScheduler(32, new FreemailThreadFactory("Freemail I/O thread"));
 
 	private static final String BASEDIR = "freemail-wot";
 	private static final String TEMPDIRNAME = BASEDIR + "/temp";
@@ -54,11 +61,14 @@ public abstract class Freemail implements ConfigClient {
 	protected static final String CFGFILE = BASEDIR + "/globalconfig";
 	private static final long LATEST_FILE_FORMAT = 1;
 
+	/** The default for {@link Configurator#ACK_BATCH_WINDOW}, in minutes */
+	private static final long DEFAULT_ACK_BATCH_WINDOW = 60;
+
 	private File datadir;
 	private static File tempdir;
-	protected static FCPConnection fcpconn = null;
+	private volatile long ackBatchWindow = TimeUnit.MINUTES.toMillis(DEFAULT_ACK_BATCH_WINDOW);
+	protected static FCPConnectionPool fcpPool = null;
 
-	private Thread fcpThread;
 	private Thread smtpThread;
 	private Thread imapThread;
 
@@ -87,6 +97,8 @@ public abstract class Freemail implements ConfigClient {
 			throw new IOException("Couldn't create data dir");
 		}
 
+		configurator.register(Configurator.ACK_BATCH_WINDOW, this, Long.toString(DEFAULT_ACK_BATCH_WINDOW));
+
 		/*
 		 * We want the executor to vary the pool size even if the queue isn't
 		 * full since the queue is unbounded. We do this by setting
@@ -97,21 +109,19 @@ public abstract class Freemail implements ConfigClient {
 		 * Note: if there are queued tasks at least 1 thread will be alive, but
 		 * unfortunately the timeout still applies to this thread so every time
 		 * the timeout expires the executor creates a new thread. Because of
-		 * this the timeout for the sender executor should be large to avoid
-		 * creating a large amount of threads, and for the default it should be
-		 * > Channel.TASK_RETRY_DELAY (since that makes the thread that runs
-		 * the Fetcher never time out).
+		 * this the timeout should be > Channel.TASK_RETRY_DELAY (since that
+		 * makes the thread that runs the Fetcher never time out).
 		 */
 		defaultExecutor.setKeepAliveTime(10, TimeUnit.MINUTES);
 		defaultExecutor.allowCoreThreadTimeOut(true);
-		senderExecutor.setKeepAliveTime(1, TimeUnit.HOURS);
-		senderExecutor.allowCoreThreadTimeOut(true);
 
 		FCPContext fcpctx = new FCPContext();
 		configurator.register(Configurator.FCP_HOST, fcpctx, "localhost");
 		configurator.register(Configurator.FCP_PORT, fcpctx, "9481");
+		configurator.register(Configurator.FCP_PERSISTENCE, fcpctx, FCPContext.PERSISTENCE_CONNECTION);
+		configurator.register(Configurator.FCP_CONNECTIONS, fcpctx, "2");
 
-		Freemail.fcpconn = new FCPConnection(fcpctx);
+		Freemail.fcpPool = new FCPConnectionPool(fcpctx, fcpctx.getConnectionCount());
 
 		accountManager = new AccountManager(datadir, this);
 
@@ -127,8 +137,8 @@ public abstract class Freemail implements ConfigClient {
 		return Freemail.tempdir;
 	}
 
-	public static FCPConnection getFCPConnection() {
-		return Freemail.fcpconn;
+	public static FCPConnectionPool getFCPConnectionPool() {
+		return Freemail.fcpPool;
 	}
 
 	public AccountManager getAccountManager() {
@@ -141,13 +151,26 @@ public abstract class Freemail implements ConfigClient {
 			datadir = new File(val);
 		} else if(key.equalsIgnoreCase(Configurator.TEMP_DIR)) {
 			tempdir = new File(val);
+		} else if(key.equalsIgnoreCase(Configurator.ACK_BATCH_WINDOW)) {
+			try {
+				ackBatchWindow = TimeUnit.MINUTES.toMillis(Long.parseLong(val));
+			} catch(NumberFormatException e) {
+				Logger.error(this, "Illegal value for " + Configurator.ACK_BATCH_WINDOW + ": " + val);
+			}
 		}
 	}
 
+	/**
+	 * Returns how far apart in time acks can be due and still be sent in the
+	 * same insert.
+	 * @return the ack batch window in milliseconds
+	 */
+	public long getAckBatchWindow() {
+		return ackBatchWindow;
+	}
+
 	protected void startFcp() {
-		fcpThread = new Thread(fcpconn, "Freemail FCP Connection");
-		fcpThread.setDaemon(true);
-		fcpThread.start();
+		fcpPool.start();
 	}
 
 	/** Set once on startup */
@@ -203,7 +226,7 @@ public abstract class Freemail implements ConfigClient {
 		Timer terminateTimer = Timer.start();
 
 		defaultExecutor.shutdownNow();
-		senderExecutor.shutdownNow();
+		ioScheduler.shutdownNow();
 
 		Timer accountManagerTermination = terminateTimer.startSubTimer();
 		accountManager.terminate();
@@ -212,8 +235,8 @@ public abstract class Freemail implements ConfigClient {
 		Timer threadTermination = terminateTimer.startSubTimer();
 		smtpl.kill();
 		imapl.kill();
-		// now kill the FCP thread - that's what all the other threads will be waiting on
-		fcpconn.kill();
+		// now kill the FCP threads - that's what all the other threads will be waiting on
+		fcpPool.kill();
 		threadTermination.log(this, 1, TimeUnit.SECONDS, "Time spent killing other threads");
 
 		// now clean up all the threads
@@ -235,11 +258,8 @@ public abstract class Freemail implements ConfigClient {
 			imapThreadJoin.log(this, 1, TimeUnit.SECONDS, "Time spent joining IMAP thread");
 
 			Timer fcpThreadJoin = terminateTimer.startSubTimer();
-			if(fcpThread != null) {
-				fcpThread.join();
-				fcpThread = null;
-			}
-			fcpThreadJoin.log(this, 1, TimeUnit.SECONDS, "Time spent joining FCP thread");
+			fcpPool.join();
+			fcpThreadJoin.log(this, 1, TimeUnit.SECONDS, "Time spent joining FCP threads");
 		} catch (InterruptedException ie) {
 
 		}
@@ -247,24 +267,43 @@ public abstract class Freemail implements ConfigClient {
 		Timer executorTermination = terminateTimer.startSubTimer();
 		try {
 			defaultExecutor.awaitTermination(1, TimeUnit.HOURS);
-			senderExecutor.awaitTermination(1, TimeUnit.HOURS);
+			ioScheduler.awaitTermination(1, TimeUnit.HOURS);
 		} catch(InterruptedException e) {
 			Logger.minor(this, "Thread was interrupted while waiting for excutors to terminate.");
 		}
 		executorTermination.log(this, 1, TimeUnit.SECONDS, "Time spent waiting for executor termination");
 
+		//Write the changes that are still waiting to be written
+		PropsFile.flushAll();
+
 		terminateTimer.log(this, 1, TimeUnit.SECONDS, "Time spent in Freemail.terminate()");
 	}
 
 	public ScheduledExecutorService getExecutor(TaskType type) {
-		switch (type) {
-		case UNSPECIFIED:
+		return getExecutor(type, null);
+	}
+
+	/**
+	 * Returns the executor for tasks of the given type that are run on
+	 * behalf of the given account. Tasks that use FCP are shared fairly
+	 * between the accounts.
+	 * @param type the type of the tasks
+	 * @param account the account the tasks are run for, or {@code null}
+	 * @return the executor for tasks of the given type
+	 */
+	public ScheduledExecutorService getExecutor(TaskType type, FreemailAccount account) {
+		if(type == TaskType.UNSPECIFIED) {
 			return defaultExecutor;
-		case SENDER:
-			return senderExecutor;
-		default:
-			throw new AssertionError("Missing case " + type);
 		}
+		return ioScheduler.getExecutor(type, (account == null) ? null : account.getIdentity());
+	}
+
+	/**
+	 * Returns the queue depth and wait times of the FCP tasks.
+	 * @return the statistics for each task type
+	 */
+	public List<IOScheduler.QueueStatistics> getIOStatistics() {
+		return ioScheduler.getStatistics();
 	}
 
 	private static class FreemailThreadFactory implements ThreadFactory {
@@ -283,9 +322,29 @@ public abstract class Freemail implements ConfigClient {
 		}
 	}
 
+	/**
+	 * The types of tasks. All types except {@code UNSPECIFIED} use FCP and are
+	 * listed in the order they are run when they have to wait for a thread.
+	 */
 	public static enum TaskType {
+		/**
+		 * Tasks that don't use FCP themselves. The channel fetchers are run
+		 * as these: they wait for the results of the slot fetches they have
+		 * started, which don't hold a thread while the node works on them.
+		 */
 		UNSPECIFIED,
-		SENDER
+
+		/** Sending messages submitted by the user */
+		SENDER,
+
+		/** Inserting acks and CTS messages */
+		ACK,
+
+		/** Inserting RTS messages */
+		RTS,
+
+		/** Starting fetches of channel slots */
+		FETCHER
 	}
 }
 
@@ -0,0 +1,549 @@
+/*
+ * IOScheduler.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.freenetproject.freemail.Freemail.TaskType;
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * Runs the tasks that insert or fetch data over FCP, for all accounts, on a
+ * single set of threads. Waiting tasks are run in the order of their
+ * {@link TaskType} (so acks don't wait behind large message inserts), and
+ * tasks of the same type are shared fairly between the accounts: an account
+ * that queues many tasks at once only gets every n-th turn when n accounts
+ * are waiting.
+ *
+ * Tasks are submitted through the executor returned by
+ * {@link #getExecutor(TaskType, String)}. Delayed tasks wait on a separate
+ * timer thread and only join the queue when they are due.
+ */
+public class IOScheduler {
+	/** How long idle threads are kept around */
+	private static final long KEEP_ALIVE = TimeUnit.MINUTES.toNanos(10);
+
+	private static final Comparator<QueuedTask<?>> ORDER = new Comparator<QueuedTask<?>>() {
+		@Override
+		public int compare(QueuedTask<?> a, QueuedTask<?> b) {
+			int c = a.lane.type.compareTo(b.lane.type);
+			if(c != 0) {
+				return c;
+			}
+			c = Long.compare(a.tag, b.tag);
+			if(c != 0) {
+				return c;
+			}
+			return Long.compare(a.seq, b.seq);
+		}
+	};
+
+	private final int maxThreads;
+	private final ThreadFactory threadFactory;
+	private final ScheduledThreadPoolExecutor timer;
+	private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<String, Lane>();
+
+	//All below are guarded by lock
+	private final Object lock = new Object();
+	private final PriorityQueue<QueuedTask<?>> queue = new PriorityQueue<QueuedTask<?>>(16, ORDER);
+	private final Set<Thread> workers = new HashSet<Thread>();
+	private final long[] virtualTime = new long[TaskType.values().length];
+	private final Statistics[] statistics = new Statistics[TaskType.values().length];
+	private long nextSeq = 0;
+	private int idleThreads = 0;
+	private boolean shutdown = false;
+
+	public IOScheduler(int maxThreads, ThreadFactory threadFactory) {
+		this.maxThreads = maxThreads;
+		this.threadFactory = threadFactory;
+
+		timer = new ScheduledThreadPoolExecutor(1, threadFactory);
+		timer.setKeepAliveTime(10, TimeUnit.MINUTES);
+		timer.allowCoreThreadTimeOut(true);
+
+		for(TaskType type : TaskType.values()) {
+			statistics[type.ordinal()] = new Statistics();
+		}
+	}
+
+	/**
+	 * Returns an executor that queues tasks of the given type on behalf of
+	 * the given account. Tasks that are not run for a specific account share
+	 * the {@code null} account.
+	 * @param type the type of the tasks
+	 * @param account the identity of the account, or {@code null}
+	 * @return an executor that queues tasks of the given type
+	 */
+	public ScheduledExecutorService getExecutor(TaskType type, String account) {
+		String key = type + "/" + account;
+		Lane lane = lanes.get(key);
+		if(lane == null) {
+			lane = new Lane(type, account);
+			Lane old = lanes.putIfAbsent(key, lane);
+			if(old != null) {
+				lane = old;
+			}
+		}
+		return lane;
+	}
+
+	/**
+	 * Returns the queue depth and wait times for each task type.
+	 * @return the statistics for each task type
+	 */
+	public List<QueueStatistics> getStatistics() {
+		List<QueueStatistics> result = new ArrayList<QueueStatistics>();
+		synchronized(lock) {
+			for(TaskType type : TaskType.values()) {
+				Statistics s = statistics[type.ordinal()];
+				long average = (s.started == 0) ? 0 : s.totalWait / s.started;
+				result.add(new QueueStatistics(type, s.queued, s.started,
+						TimeUnit.NANOSECONDS.toMillis(average), TimeUnit.NANOSECONDS.toMillis(s.maxWait)));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the number of threads that are waiting for a task.
+	 */
+	int getIdleThreads() {
+		synchronized(lock) {
+			return idleThreads;
+		}
+	}
+
+	/**
+	 * Stops all running tasks and drops the queued ones.
+	 */
+	public void shutdownNow() {
+		synchronized(lock) {
+			shutdown = true;
+			List<QueuedTask<?>> dropped = new ArrayList<QueuedTask<?>>(queue);
+			queue.clear();
+			for(QueuedTask<?> task : dropped) {
+				dequeued(task);
+				task.cancel(false);
+			}
+			for(Thread worker : workers) {
+				worker.interrupt();
+			}
+			lock.notifyAll();
+		}
+		timer.shutdownNow();
+	}
+
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized(lock) {
+			while(!workers.isEmpty()) {
+				long remaining = deadline - System.nanoTime();
+				if(remaining <= 0) {
+					return false;
+				}
+				TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+			}
+		}
+		return timer.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+	}
+
+	private void enqueue(QueuedTask<?> task) {
+		synchronized(lock) {
+			if(shutdown) {
+				throw new RejectedExecutionException("IOScheduler has been shut down");
+			}
+			if(task.isDone()) {
+				return;
+			}
+
+			//Start time fair queueing: the account gets the turn after its
+			//previous task, but can't save up turns while it has nothing queued
+			int type = task.lane.type.ordinal();
+			task.tag = Math.max(virtualTime[type], task.lane.lastTag) + 1;
+			task.lane.lastTag = task.tag;
+			task.seq = nextSeq++;
+			task.queuedAt = System.nanoTime();
+			queue.add(task);
+			statistics[type].queued++;
+
+			//A woken thread only counts as busy once it has the lock again, so
+			//idleThreads can include threads that have already been woken
+			if(idleThreads > 0) {
+				lock.notify();
+			}
+			if(queue.size() > idleThreads && workers.size() < maxThreads) {
+				Thread worker = threadFactory.newThread(new Worker());
+				workers.add(worker);
+				worker.start();
+			}
+		}
+	}
+
+	private void dequeued(QueuedTask<?> task) {
+		int type = task.lane.type.ordinal();
+		statistics[type].queued--;
+		virtualTime[type] = Math.max(virtualTime[type], task.tag);
+	}
+
+	private void cancelled(QueuedTask<?> task) {
+		synchronized(lock) {
+			if(queue.remove(task)) {
+				dequeued(task);
+			}
+		}
+	}
+
+	private class Worker implements Runnable {
+		@Override
+		public void run() {
+			try {
+				while(true) {
+					QueuedTask<?> task = next();
+					if(task == null) {
+						return;
+					}
+
+					task.run();
+
+					//Don't let an interrupt meant for the task hit the next one
+					Thread.interrupted();
+				}
+			} finally {
+				synchronized(lock) {
+					workers.remove(Thread.currentThread());
+					lock.notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Returns the next task to run, or {@code null} if the thread should
+		 * exit.
+		 */
+		private QueuedTask<?> next() {
+			synchronized(lock) {
+				long idleSince = System.nanoTime();
+				while(queue.isEmpty()) {
+					long remaining = idleSince + KEEP_ALIVE - System.nanoTime();
+					if(shutdown || remaining <= 0) {
+						return null;
+					}
+
+					idleThreads++;
+					try {
+						TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+					} catch(InterruptedException e) {
+						//Checked by the loop
+					} finally {
+						idleThreads--;
+					}
+				}
+
+				QueuedTask<?> task = queue.poll();
+				dequeued(task);
+
+				long wait = System.nanoTime() - task.queuedAt;
+				Statistics s = statistics[task.lane.type.ordinal()];
+				s.started++;
+				s.totalWait += wait;
+				s.maxWait = Math.max(s.maxWait, wait);
+				return task;
+			}
+		}
+	}
+
+	private class QueuedTask<V> extends FutureTask<V> implements ScheduledFuture<V> {
+		private final Lane lane;
+		private volatile long dueAt;
+		private volatile Future<?> timerTask;
+
+		/**
+		 * Like in ScheduledThreadPoolExecutor: positive for a fixed rate,
+		 * negative for a fixed delay and 0 for tasks that run once.
+		 */
+		private final long period;
+
+		//Guarded by lock
+		private long tag;
+		private long seq;
+		private long queuedAt;
+
+		private QueuedTask(Lane lane, Callable<V> callable, long delay) {
+			super(callable);
+			this.lane = lane;
+			this.dueAt = System.nanoTime() + delay;
+			this.period = 0;
+		}
+
+		private QueuedTask(Lane lane, Runnable runnable, V result, long delay) {
+			this(lane, runnable, result, delay, 0);
+		}
+
+		private QueuedTask(Lane lane, Runnable runnable, V result, long delay, long period) {
+			super(runnable, result);
+			this.lane = lane;
+			this.dueAt = System.nanoTime() + delay;
+			this.period = period;
+		}
+
+		@Override
+		public void run() {
+			if(period == 0) {
+				super.run();
+				return;
+			}
+
+			//Periodic tasks queue up again, and join the back of their lane
+			if(runAndReset()) {
+				dueAt = (period > 0) ? dueAt + period : System.nanoTime() - period;
+				try {
+					lane.schedule(this, dueAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+				} catch(RejectedExecutionException e) {
+					Logger.debug(this, "Not repeating " + this + " since the scheduler has been shut down");
+				}
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			if(cancelled) {
+				Future<?> t = timerTask;
+				if(t != null) {
+					t.cancel(false);
+				}
+				cancelled(this);
+			}
+			return cancelled;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(dueAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed o) {
+			return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+		}
+
+		@Override
+		public String toString() {
+			return lane + " task " + super.toString();
+		}
+	}
+
+	/**
+	 * The tasks of one type for one account.
+	 */
+	private class Lane extends AbstractExecutorService implements ScheduledExecutorService {
+		private final TaskType type;
+		private final String account;
+
+		/** Guarded by lock */
+		private long lastTag = 0;
+
+		private Lane(TaskType type, String account) {
+			this.type = type;
+			this.account = account;
+		}
+
+		@Override
+		public void execute(Runnable command) {
+			if(command instanceof QueuedTask<?> && ((QueuedTask<?>)command).lane == this) {
+				enqueue((QueuedTask<?>)command);
+			} else {
+				enqueue(new QueuedTask<Void>(this, command, null, 0));
+			}
+		}
+
+		@Override
+		protected <T> QueuedTask<T> newTaskFor(Runnable runnable, T value) {
+			return new QueuedTask<T>(this, runnable, value, 0);
+		}
+
+		@Override
+		protected <T> QueuedTask<T> newTaskFor(Callable<T> callable) {
+			return new QueuedTask<T>(this, callable, 0);
+		}
+
+		@Override
+		public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+			return schedule(new QueuedTask<Void>(this, command, null, unit.toNanos(delay)), delay, unit);
+		}
+
+		@Override
+		public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+			return schedule(new QueuedTask<V>(this, callable, unit.toNanos(delay)), delay, unit);
+		}
+
+		private <V> QueuedTask<V> schedule(final QueuedTask<V> task, long delay, TimeUnit unit) {
+			if(delay <= 0) {
+				enqueue(task);
+				return task;
+			}
+
+			synchronized(lock) {
+				if(shutdown) {
+					throw new RejectedExecutionException("IOScheduler has been shut down");
+				}
+			}
+			task.timerTask = timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						enqueue(task);
+					} catch(RejectedExecutionException e) {
+						Logger.debug(this, "Dropping " + task + " since the scheduler has been shut down");
+					}
+				}
+			}, delay, unit);
+			return task;
+		}
+
+		/**
+		 * Each run is queued like any other task of the lane, so a run can
+		 * start late if the threads are busy. Runs never overlap.
+		 */
+		@Override
+		public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period,
+				TimeUnit unit) {
+			if(period <= 0) {
+				throw new IllegalArgumentException("Period must be positive, was " + period);
+			}
+			return schedule(new QueuedTask<Void>(this, command, null, unit.toNanos(initialDelay), unit.toNanos(period)),
+					initialDelay, unit);
+		}
+
+		/**
+		 * @see #scheduleAtFixedRate(Runnable, long, long, TimeUnit)
+		 */
+		@Override
+		public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay,
+				TimeUnit unit) {
+			if(delay <= 0) {
+				throw new IllegalArgumentException("Delay must be positive, was " + delay);
+			}
+			return schedule(new QueuedTask<Void>(this, command, null, unit.toNanos(initialDelay), -unit.toNanos(delay)),
+					initialDelay, unit);
+		}
+
+		/**
+		 * Does nothing. All the executors share the threads of the scheduler,
+		 * so they are shut down together through
+		 * {@link IOScheduler#shutdownNow()}.
+		 */
+		@Override
+		public void shutdown() {
+			//See above
+		}
+
+		/**
+		 * Does nothing and returns an empty list, see {@link #shutdown()}.
+		 */
+		@Override
+		public List<Runnable> shutdownNow() {
+			return new ArrayList<Runnable>(0);
+		}
+
+		@Override
+		public boolean isShutdown() {
+			synchronized(lock) {
+				return shutdown;
+			}
+		}
+
+		@Override
+		public boolean isTerminated() {
+			synchronized(lock) {
+				return shutdown && workers.isEmpty();
+			}
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+			return IOScheduler.this.awaitTermination(timeout, unit);
+		}
+
+		@Override
+		public String toString() {
+			return type + " (" + account + ")";
+		}
+	}
+
+	/** Guarded by lock */
+	private static class Statistics {
+		private int queued = 0;
+		private long started = 0;
+		private long totalWait = 0;
+		private long maxWait = 0;
+	}
+
+	/**
+	 * A snapshot of the queue of one task type.
+	 */
+	public static class QueueStatistics {
+		public final TaskType type;
+
+		/** The number of tasks waiting to run */
+		public final int queued;
+
+		/** The number of tasks that have been started */
+		public final long started;
+
+		/** The average time the started tasks waited in the queue, in milliseconds */
+		public final long averageWait;
+
+		/** The longest time a task waited in the queue, in milliseconds */
+		public final long maxWait;
+
+		private QueueStatistics(TaskType type, int queued, long started, long averageWait, long maxWait) {
+			this.type = type;
+			this.queued = queued;
+			this.started = started;
+			this.averageWait = averageWait;
+			this.maxWait = maxWait;
+		}
+
+		@Override
+		public String toString() {
+			return type + ": " + queued + " queued, " + started + " started, waited "
+					+ averageWait + "ms on average and at most " + maxWait + "ms";
+		}
+	}
+}
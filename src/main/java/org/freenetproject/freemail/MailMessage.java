@@ -23,11 +23,13 @@ package org.freenetproject.freemail;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
@@ -36,6 +38,9 @@ import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.UnsupportedCharsetException;
@@ -66,6 +71,28 @@ public class MailMessage {
 		dateFormats = Collections.unmodifiableSet(backing);
 	}
 
+	/**
+	 * The (lower case) names of the headers that are kept in the header cache
+	 * of the folder and made available by {@link #readSummaryHeaders()}. This
+	 * is what is needed to list, sort and search messages and to build the
+	 * IMAP envelope.
+	 */
+	public static final Set<String> SUMMARY_HEADERS;
+	static {
+		Set<String> backing = new HashSet<String>();
+		backing.add("from");
+		backing.add("to");
+		backing.add("cc");
+		backing.add("bcc");
+		backing.add("subject");
+		backing.add("date");
+		backing.add("message-id");
+		backing.add("in-reply-to");
+		backing.add("reply-to");
+		backing.add("x-freemail-sender");
+		SUMMARY_HEADERS = Collections.unmodifiableSet(backing);
+	}
+
 	private File file;
 	private OutputStream os;
 	private PrintStream ps;
@@ -75,8 +102,37 @@ public class MailMessage {
 	public IMAPMessageFlags flags;
 	private static final Random messageIdRandom = new Random();
 
+	/** The index of the folder this message belongs to, or {@code null} */
+	private final MessageIndex index;
+
+	/** The size of the message as given by the index, or -1 if unknown */
+	private long size;
+
+	/** The modification time of the file as given by the index, or -1 if unknown */
+	private long modified;
+
+	/** The modification sequence as given by the index, or 0 if unknown */
+	private long modSeq;
+
+	/** True if only the summary headers have been read */
+	private boolean summaryOnly = false;
+
+	/** The IMAP envelope from the header cache, or {@code null} */
+	private String envelope = null;
+
+	/** Counts the size of the message while it is written */
+	private MessageSizeCounter sizeCounter = null;
+
 	public MailMessage(File f, int msg_seqnum) {
+		this(f, msg_seqnum, null, null);
+	}
+
+	MailMessage(File f, int msg_seqnum, MessageIndex index, MessageIndex.Entry entry) {
 		this.file = f;
+		this.index = index;
+		this.size = (entry == null) ? -1 : entry.size;
+		this.modified = (entry == null) ? -1 : entry.internalDate;
+		this.modSeq = (entry == null) ? 0 : entry.modSeq;
 		this.headers = new Vector<MailMessageHeader>();
 		this.msg_seqnum=msg_seqnum;
 
@@ -194,8 +250,7 @@ public class MailMessage {
 	}
 
 	public PrintStream writeHeadersAndGetStream() throws FileNotFoundException {
-		this.os = new FileOutputStream(this.file);
-		this.ps = new PrintStream(this.os);
+		openStream();
 
 		for(MailMessageHeader header : headers) {
 			this.ps.println(header.name + ": " + header.val);
@@ -214,12 +269,19 @@ public class MailMessage {
 	 * @throws FileNotFoundException if the backing file doesn't exist
 	 */
 	public PrintStream getRawStream() throws FileNotFoundException {
-		this.os = new FileOutputStream(this.file);
-		this.ps = new PrintStream(this.os);
+		openStream();
 
 		return this.ps;
 	}
 
+	private void openStream() throws FileNotFoundException {
+		this.size = -1;
+		this.modified = -1;
+		this.sizeCounter = new MessageSizeCounter();
+		this.os = new CRLFOutputStream(new BufferedOutputStream(new FileOutputStream(this.file)), sizeCounter);
+		this.ps = new PrintStream(this.os);
+	}
+
 	public void commit() {
 		try {
 			this.os.close();
@@ -228,6 +290,25 @@ public class MailMessage {
 		} catch (IOException ioe) {
 
 		}
+
+		if(sizeCounter != null) {
+			this.size = sizeCounter.getSize();
+		}
+
+		if(index != null && this.file.exists()) {
+			MessageIndex.Entry entry;
+			if(sizeCounter != null) {
+				entry = index.put(this.file, sizeCounter);
+			} else {
+				entry = index.put(this.file);
+			}
+			this.size = entry.size;
+			this.modified = entry.internalDate;
+			this.modSeq = entry.modSeq;
+			index.getSearchIndex().messageStored(entry);
+			MailboxEventBus.publish(file.getParentFile(), MailboxEventBus.ChangeType.ADDED, getUID());
+		}
+		sizeCounter = null;
 	}
 
 	public void cancel() {
@@ -235,7 +316,7 @@ public class MailMessage {
 			this.os.close();
 		} catch (IOException ioe) {
 		}
-		this.file.delete();
+		this.delete();
 	}
 
 	public void readHeaders() throws IOException {
@@ -246,6 +327,10 @@ public class MailMessage {
 	}
 
 	public void readHeaders(BufferedReader bufrdr) throws IOException {
+		if(summaryOnly) {
+			this.headers.clear();
+			summaryOnly = false;
+		}
 		if(this.headers.size() > 0) return;
 
 		String line;
@@ -277,6 +362,81 @@ public class MailMessage {
 		}
 	}
 
+	/**
+	 * Reads the headers listed in {@link #SUMMARY_HEADERS}, using the header
+	 * cache of the folder if possible. After this has been called the summary
+	 * headers can be retrieved using e.g. {@link #getFirstHeader(String)}. If
+	 * any other headers are needed {@link #readHeaders()} must be called.
+	 *
+	 * @throws IOException if the message file couldn't be read
+	 */
+	public void readSummaryHeaders() throws IOException {
+		if(this.headers.size() > 0) return;
+
+		if(index == null || modified < 0) {
+			readHeaders();
+			return;
+		}
+
+		MessageHeaderCache.Entry cached = index.getHeaderCache().get(getUID(), modified);
+		if(cached != null) {
+			for(String[] header : cached.headers) {
+				this.addHeader(header[0], header[1]);
+			}
+			this.envelope = cached.envelope;
+			this.summaryOnly = true;
+			return;
+		}
+
+		readHeaders();
+		updateHeaderCache();
+	}
+
+	/**
+	 * Returns the IMAP envelope of this message if it was found in the header
+	 * cache by {@link #readSummaryHeaders()} or stored with
+	 * {@link #cacheEnvelope(String)}, or {@code null} otherwise.
+	 *
+	 * @return the cached IMAP envelope, or {@code null}
+	 */
+	public String getCachedEnvelope() {
+		return envelope;
+	}
+
+	/**
+	 * Stores the given IMAP envelope in the header cache of the folder. The
+	 * summary headers must have been read before calling this.
+	 *
+	 * @param imapEnvelope the IMAP envelope of this message
+	 */
+	public void cacheEnvelope(String imapEnvelope) {
+		this.envelope = imapEnvelope;
+		updateHeaderCache();
+	}
+
+	/**
+	 * Returns {@code true} if the given header is kept in the header cache.
+	 * @param name the name of the header
+	 * @return {@code true} if the given header is kept in the header cache
+	 */
+	public static boolean isSummaryHeader(String name) {
+		return SUMMARY_HEADERS.contains(name.toLowerCase(Locale.ROOT));
+	}
+
+	private void updateHeaderCache() {
+		if(index == null || modified < 0) {
+			return;
+		}
+
+		List<String[]> summary = new LinkedList<String[]>();
+		for(MailMessageHeader header : headers) {
+			if(isSummaryHeader(header.name)) {
+				summary.add(new String[] {header.name, header.val});
+			}
+		}
+		index.getHeaderCache().put(new MessageHeaderCache.Entry(getUID(), modified, envelope, summary));
+	}
+
 	public int getUID() {
 		String[] parts = this.file.getName().split(",");
 
@@ -287,7 +447,20 @@ public class MailMessage {
 		return msg_seqnum;
 	}
 
+	/**
+	 * Returns the modification sequence of the last change to this message,
+	 * or 0 if the message isn't in a folder.
+	 * @return the modification sequence of this message
+	 */
+	public long getModSeq() {
+		return modSeq;
+	}
+
 	public long getSize() throws IOException {
+		if(this.size >= 0) {
+			return this.size;
+		}
+
 		// this is quite arduous since we have to send the message
 		// with \r\n's, and hence it may not be the size it is on disk
 		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), "UTF-8"));
@@ -306,6 +479,62 @@ public class MailMessage {
 		}
 	}
 
+	/**
+	 * Writes {@code length} bytes of the message, starting at {@code offset},
+	 * to the given stream. Offsets are in the message as returned by IMAP,
+	 * i.e. with CRLF line endings. The message is copied as bytes without
+	 * being decoded, and if it is stored with CRLF line endings (which is
+	 * the case for all messages written by this version of Freemail) the
+	 * requested range is transferred directly from the file.
+	 *
+	 * @param out the stream to write to
+	 * @param offset the offset of the first byte to write
+	 * @param length the number of bytes to write
+	 * @throws IOException if the message couldn't be read or written, or if
+	 *             it is shorter than offset + length
+	 */
+	public void writeTo(OutputStream out, long offset, long length) throws IOException {
+		if(length <= 0) {
+			return;
+		}
+
+		FileInputStream fis = new FileInputStream(this.file);
+		try {
+			FileChannel channel = fis.getChannel();
+			if(channel.size() == getSize()) {
+				WritableByteChannel target = Channels.newChannel(out);
+				long position = offset;
+				long remaining = length;
+				while(remaining > 0) {
+					long sent = channel.transferTo(position, remaining, target);
+					if(sent <= 0) {
+						throw new IOException("Message file ended early: " + this.file);
+					}
+					position += sent;
+					remaining -= sent;
+				}
+				return;
+			}
+
+			//Stored with other line endings (by an older version of Freemail),
+			//so convert it while copying
+			RangeOutputStream range = new RangeOutputStream(out, offset, length);
+			CRLFOutputStream crlf = new CRLFOutputStream(range, new MessageSizeCounter());
+			byte[] buf = new byte[8192];
+			int read;
+			while(!range.isDone() && (read = fis.read(buf)) != -1) {
+				crlf.write(buf, 0, read);
+			}
+			crlf.close();
+
+			if(!range.isDone()) {
+				throw new IOException("Message file ended early: " + this.file);
+			}
+		} finally {
+			fis.close();
+		}
+	}
+
 	public void closeStream() {
 		try {
 			if(this.brdr != null) this.brdr.close();
@@ -352,7 +581,18 @@ public class MailMessage {
 	// or suchlike after calling this method is responsible for the
 	// torrent of exceptions they'll get thrown at them!
 	public void delete() {
+		if(index != null) {
+			index.prepare();
+		}
+
 		this.file.delete();
+
+		if(index != null) {
+			index.remove(getUID());
+			index.getHeaderCache().remove(getUID());
+			index.getSearchIndex().messageRemoved(getUID());
+			MailboxEventBus.publish(file.getParentFile(), MailboxEventBus.ChangeType.REMOVED, getUID());
+		}
 	}
 
 	public void storeFlags() {
@@ -362,9 +602,18 @@ public class MailMessage {
 		File newfile = new File(this.file.getParentFile(), newname);
 
 		if(!file.getName().equals(newfile.getName())) {
+			if(index != null) {
+				index.prepare();
+			}
+
 			if(this.file.renameTo(newfile)) {
 				Logger.debug(this, "Message moved from " + file + " to " + newfile);
 				this.file = newfile;
+
+				if(index != null) {
+					modSeq = index.rename(getUID(), newfile).modSeq;
+					MailboxEventBus.publish(file.getParentFile(), MailboxEventBus.ChangeType.FLAGS_CHANGED, getUID());
+				}
 			} else {
 				Logger.error(this, "Rename failed (from " + file + " to " + newfile + ")");
 			}
@@ -584,12 +833,51 @@ public class MailMessage {
 		return result.toString();
 	}
 
+	/**
+	 * Returns true if the decoded body of the message contains the given
+	 * string, ignoring case.
+	 * @param searchString the string to look for
+	 * @return true if the body contains the string
+	 * @throws IOException if the message couldn't be read
+	 */
+	public boolean bodyContains(String searchString) throws IOException {
+		String lowerSearchString = searchString.toLowerCase(Locale.ROOT);
+
+		BufferedReader body = getBodyReader();
+		try {
+			String line;
+			while((line = body.readLine()) != null) {
+				if(line.toLowerCase(Locale.ROOT).contains(lowerSearchString)) {
+					return true;
+				}
+			}
+		} finally {
+			body.close();
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if any of the headers or the decoded body of the message
+	 * contains the given string, ignoring case.
+	 * @param searchString the string to look for
+	 * @return true if the message contains the string
+	 * @throws IOException if the message couldn't be read
+	 */
+	public boolean textContains(String searchString) throws IOException {
+		readHeaders();
+		if(getAllHeadersAsString().toLowerCase(Locale.ROOT).contains(searchString.toLowerCase(Locale.ROOT))) {
+			return true;
+		}
+		return bodyContains(searchString);
+	}
+
 	public BufferedReader getBodyReader() throws IOException {
 		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
 
 		//Read past the headers and store them if they haven't been read
-		//already
-		if(headers.size() > 0) {
+		//already. The summary headers aren't enough to decode the body.
+		if(headers.size() > 0 && !summaryOnly) {
 			String line = reader.readLine();
 			while(line != null && !line.equals("")) {
 				line = reader.readLine();
@@ -815,6 +1103,129 @@ public class MailMessage {
 		}
 	}
 
+	/**
+	 * Converts all line endings (CR, LF or CRLF) to CRLF and passes the
+	 * result through a {@link MessageSizeCounter}, so messages are stored in
+	 * the form they are sent over IMAP and the size is known once the
+	 * message has been written. An unterminated last line is terminated when
+	 * the stream is closed.
+	 */
+	private static class CRLFOutputStream extends FilterOutputStream {
+		private static final byte[] CRLF = {'\r', '\n'};
+
+		private final MessageSizeCounter counter;
+		private boolean lastWasCR = false;
+		private boolean inLine = false;
+
+		private CRLFOutputStream(OutputStream out, MessageSizeCounter counter) {
+			super(out);
+			this.counter = counter;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if(b == '\n' && lastWasCR) {
+				//Second half of a CRLF, which has already been written
+				lastWasCR = false;
+				return;
+			}
+			lastWasCR = false;
+
+			if(b == '\r' || b == '\n') {
+				emit(CRLF, 0, CRLF.length);
+				lastWasCR = (b == '\r');
+				inLine = false;
+			} else {
+				counter.update(b);
+				out.write(b);
+				inLine = true;
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			//Write everything between line breaks in one go
+			int runStart = off;
+			for(int i = off; i < off + len; i++) {
+				if(b[i] == '\r' || b[i] == '\n') {
+					if(i > runStart) {
+						emit(b, runStart, i - runStart);
+						lastWasCR = false;
+						inLine = true;
+					}
+					write(b[i]);
+					runStart = i + 1;
+				}
+			}
+			if(off + len > runStart) {
+				emit(b, runStart, off + len - runStart);
+				lastWasCR = false;
+				inLine = true;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(inLine) {
+				emit(CRLF, 0, CRLF.length);
+				inLine = false;
+			}
+			super.close();
+		}
+
+		private void emit(byte[] b, int off, int len) throws IOException {
+			counter.update(b, off, len);
+			out.write(b, off, len);
+		}
+	}
+
+	/**
+	 * Passes on the bytes in the range [offset, offset + length) of what is
+	 * written to it and discards everything else. Closing this stream doesn't
+	 * close the underlying stream.
+	 */
+	private static class RangeOutputStream extends FilterOutputStream {
+		private long skip;
+		private long remaining;
+
+		private RangeOutputStream(OutputStream out, long offset, long length) {
+			super(out);
+			this.skip = offset;
+			this.remaining = length;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte)b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if(skip >= len) {
+				skip -= len;
+				return;
+			}
+			off += (int)skip;
+			len -= (int)skip;
+			skip = 0;
+
+			int count = (int)Math.min(len, remaining);
+			if(count > 0) {
+				out.write(b, off, count);
+				remaining -= count;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+
+		private boolean isDone() {
+			return remaining == 0;
+		}
+	}
+
 	public static class EncodingOutputStream extends OutputStream {
 		private final OutputStream out;
 
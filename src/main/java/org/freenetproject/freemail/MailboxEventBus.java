@@ -0,0 +1,109 @@
+/*
+ * MailboxEventBus.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * Delivers notifications about changes to the messages of a folder to the
+ * interested parties in the same process, e.g. IMAP clients that are idling
+ * on the folder. Events are published by {@link MailMessage} when a message
+ * is stored, its flags are changed or it is deleted, so all the paths that
+ * change a folder through {@link MessageBank} are covered.
+ *
+ * Listeners are called on the thread that changed the folder, so they
+ * should return quickly.
+ */
+public class MailboxEventBus {
+	public enum ChangeType {
+		/** A new message has been stored in the folder */
+		ADDED,
+
+		/** The flags of a message have changed */
+		FLAGS_CHANGED,
+
+		/** A message has been removed from the folder */
+		REMOVED
+	}
+
+	public interface Listener {
+		/**
+		 * Called after a message in the folder has changed.
+		 * @param type the type of change
+		 * @param uid the UID of the message that changed
+		 */
+		void mailboxChanged(ChangeType type, int uid);
+	}
+
+	private static final Map<String, List<Listener>> listeners = new HashMap<String, List<Listener>>();
+
+	private MailboxEventBus() {
+	}
+
+	static void subscribe(File dir, Listener listener) {
+		synchronized(listeners) {
+			String key = dir.getAbsolutePath();
+			List<Listener> folderListeners = listeners.get(key);
+			if(folderListeners == null) {
+				folderListeners = new CopyOnWriteArrayList<Listener>();
+				listeners.put(key, folderListeners);
+			}
+			folderListeners.add(listener);
+		}
+	}
+
+	static void unsubscribe(File dir, Listener listener) {
+		synchronized(listeners) {
+			String key = dir.getAbsolutePath();
+			List<Listener> folderListeners = listeners.get(key);
+			if(folderListeners == null) {
+				return;
+			}
+			folderListeners.remove(listener);
+			if(folderListeners.isEmpty()) {
+				listeners.remove(key);
+			}
+		}
+	}
+
+	static void publish(File dir, ChangeType type, int uid) {
+		List<Listener> folderListeners;
+		synchronized(listeners) {
+			folderListeners = listeners.get(dir.getAbsolutePath());
+		}
+		if(folderListeners == null) {
+			return;
+		}
+
+		for(Listener listener : folderListeners) {
+			try {
+				listener.mailboxChanged(type, uid);
+			} catch(RuntimeException e) {
+				Logger.error(MailboxEventBus.class, "Listener threw exception while handling " + type + " for " + uid, e);
+			}
+		}
+	}
+}
@@ -25,23 +25,41 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.BufferedReader;
 import java.io.FileOutputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.util.Iterator;
 import java.util.TreeMap;
 import java.util.SortedMap;
+import java.util.SortedSet;
 import java.util.Vector;
 import java.util.Enumeration;
-import java.util.Comparator;
-import java.util.Arrays;
+import java.util.List;
 
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.utils.PropsFile;
 
 
 public class MessageBank {
+	/** The parts of a message that can be searched, see {@link #findSearchCandidates(SearchField, String)} */
+	public enum SearchField {
+		FROM,
+		TO,
+		CC,
+		BCC,
+		SUBJECT,
+
+		/** Any header, including the header names */
+		HEADER,
+
+		/** The decoded body */
+		BODY,
+
+		/** Any header or the body */
+		TEXT
+	}
+
 	private static final String MESSAGES_DIR = "inbox";
 	private static final String NIDFILE = ".nextid";
 	private static final String NIDTMPFILE = ".nextid-tmp";
@@ -51,6 +69,7 @@ public class MessageBank {
 	private final File dir;
 	private final MessageBank topLevel;
 	private final long uidValidity;
+	private final MessageIndex index;
 
 	public MessageBank(FreemailAccount account) {
 		this.dir = new File(account.getAccountDir(), MESSAGES_DIR);
@@ -58,6 +77,7 @@ public class MessageBank {
 		if(!this.dir.exists()) {
 			this.dir.mkdir();
 		}
+		this.index = MessageIndex.forFolder(dir);
 
 		//This is the top level message bank
 		topLevel = null;
@@ -67,6 +87,7 @@ public class MessageBank {
 	private MessageBank(File d, MessageBank topLevel) {
 		this.dir = d;
 		this.topLevel = topLevel;
+		this.index = MessageIndex.forFolder(dir);
 
 		//Read uidvalidity from propsfile or assign a new value
 		PropsFile props = PropsFile.createPropsFile(new File(dir, PROPSFILE));
@@ -123,10 +144,13 @@ public class MessageBank {
 			if(!files[i].delete()) return false;
 		}
 
+		MessageIndex.forget(dir);
 		return this.dir.delete();
 	}
 
 	public synchronized MailMessage createMessage() {
+		index.prepare();
+
 		long newid = this.nextId();
 		File newfile;
 		try {
@@ -141,7 +165,8 @@ public class MessageBank {
 		this.writeNextId(newid);
 
 		if(newfile != null) {
-			MailMessage newmsg = new MailMessage(newfile, 0);
+			MessageIndex.Entry entry = index.put(newfile);
+			MailMessage newmsg = new MailMessage(newfile, 0, index, entry);
 			return newmsg;
 		}
 
@@ -149,40 +174,180 @@ public class MessageBank {
 	}
 
 	public synchronized SortedMap<Integer, MailMessage> listMessages() {
-		File[] files = this.dir.listFiles(new MessageFileNameFilter());
-
-		Arrays.sort(files, new UIDComparator());
+		List<MessageIndex.Entry> entries = index.list();
 
 		TreeMap<Integer, MailMessage> msgs = new TreeMap<Integer, MailMessage>();
 
 		int seq=1;
-		for(int i = 0; i < files.length; i++) {
-			if(files[i].isDirectory()) continue;
+		for(MessageIndex.Entry entry : entries) {
+			MailMessage msg = new MailMessage(new File(this.dir, entry.fileName), seq++, index, entry);
 
-			MailMessage msg = new MailMessage(files[i], seq++);
+			msgs.put(Integer.valueOf(entry.uid), msg);
+		}
 
-			msgs.put(new Integer(msg.getUID()), msg);
+		return msgs;
+	}
+
+	/**
+	 * Returns the messages in this folder with a UID, or a sequence number if
+	 * {@code uid} is false, from {@code first} to {@code last} inclusive.
+	 * Only the messages in the range are looked up, so this is much cheaper
+	 * than {@link #listMessages()} for a few messages of a large folder.
+	 *
+	 * @param first the first UID or sequence number
+	 * @param last the last UID or sequence number
+	 * @param uid {@code true} if the range is of UIDs
+	 * @return the messages in the range, keyed by UID
+	 */
+	public synchronized SortedMap<Integer, MailMessage> listMessages(int first, int last, boolean uid) {
+		TreeMap<Integer, MailMessage> msgs = new TreeMap<Integer, MailMessage>();
+
+		//The index is shared with other objects for this folder, so hold
+		//it while the range is resolved and read
+		synchronized(index) {
+			int from;
+			int to;
+			if(uid) {
+				from = index.position(first);
+				to = last == Integer.MAX_VALUE ? index.size() : index.position(last + 1);
+			} else {
+				from = first - 1;
+				to = last;
+			}
+
+			int seq = Math.max(from, 0) + 1;
+			for(MessageIndex.Entry entry : index.list(from, to)) {
+				MailMessage msg = new MailMessage(new File(this.dir, entry.fileName), seq++, index, entry);
+
+				msgs.put(Integer.valueOf(entry.uid), msg);
+			}
 		}
 
 		return msgs;
 	}
 
+	/**
+	 * Returns the number of messages in this folder, which is also the
+	 * sequence number of the last one.
+	 *
+	 * @return the number of messages in this folder
+	 */
+	public int getMessageCount() {
+		return index.size();
+	}
+
+	/**
+	 * Returns the UID of the last message in this folder, or 0 if the folder
+	 * is empty.
+	 *
+	 * @return the UID of the last message in this folder
+	 */
+	public int getLastUid() {
+		return index.lastUid();
+	}
+
 	public synchronized MailMessage[] listMessagesArray() {
-		File[] files = this.dir.listFiles(new MessageFileNameFilter());
+		List<MessageIndex.Entry> entries = index.list();
 
-		Arrays.sort(files, new UIDComparator());
+		MailMessage[] msgs = new MailMessage[entries.size()];
 
-		MailMessage[] msgs = new MailMessage[files.length];
+		for(int i = 0; i < msgs.length; i++) {
+			MessageIndex.Entry entry = entries.get(i);
+			msgs[i] = new MailMessage(new File(this.dir, entry.fileName), i+1, index, entry);
+		}
 
-		for(int i = 0; i < files.length; i++) {
-			//if(files[i].getName().startsWith(".")) continue;
+		return msgs;
+	}
 
-			MailMessage msg = new MailMessage(files[i], i+1);
+	/**
+	 * Returns the UIDs of the messages in this folder that might contain the
+	 * given string (ignoring case) in the given part, using the search index
+	 * of the folder. Every message that contains the string is included, but
+	 * some that don't might be as well, so the caller must check them.
+	 * Returns {@code null} if the index can't narrow down the search, which
+	 * is the case for search strings shorter than three characters.
+	 *
+	 * @param field the part of the messages to search
+	 * @param searchString the string to search for
+	 * @return the UIDs of the messages that might match, or {@code null}
+	 */
+	public SortedSet<Integer> findSearchCandidates(SearchField field, String searchString) {
+		return index.getSearchIndex().findCandidates(field, searchString, index.list());
+	}
 
-			msgs[i] = msg;
+	/**
+	 * Returns the messages in this folder that contain the given string,
+	 * ignoring case, in any of the headers or in the body.
+	 *
+	 * @param searchString the string to search for
+	 * @return the matching messages, keyed by UID
+	 * @throws IOException if a message couldn't be read
+	 */
+	public SortedMap<Integer, MailMessage> search(String searchString) throws IOException {
+		SortedMap<Integer, MailMessage> messages = listMessages();
+
+		SortedSet<Integer> candidates = findSearchCandidates(SearchField.TEXT, searchString);
+		if(candidates != null) {
+			messages.keySet().retainAll(candidates);
 		}
 
-		return msgs;
+		Iterator<MailMessage> it = messages.values().iterator();
+		while(it.hasNext()) {
+			if(!it.next().textContains(searchString)) {
+				it.remove();
+			}
+		}
+
+		return messages;
+	}
+
+	/**
+	 * Returns the highest modification sequence of this folder. It changes
+	 * whenever a message is added, removed or has its flags changed.
+	 *
+	 * @return the highest modification sequence of this folder
+	 */
+	public long getHighestModSeq() {
+		return index.getHighestModSeq();
+	}
+
+	/**
+	 * Returns the UIDs of the messages that were added or had their flags
+	 * changed after the given modification sequence.
+	 *
+	 * @param modSeq the modification sequence
+	 * @return the UIDs of the changed messages
+	 */
+	public SortedSet<Integer> getChangedSince(long modSeq) {
+		return index.changedSince(modSeq);
+	}
+
+	/**
+	 * Returns the UIDs of the messages that were removed after the given
+	 * modification sequence. Only a limited number of removals are
+	 * remembered, so this returns {@code null} if the modification sequence
+	 * is too old.
+	 *
+	 * @param modSeq the modification sequence
+	 * @return the UIDs of the removed messages, or {@code null}
+	 */
+	public SortedSet<Integer> getExpungedSince(long modSeq) {
+		return index.expungedSince(modSeq);
+	}
+
+	/**
+	 * Registers a listener that is told about messages that are added to or
+	 * removed from this folder, or that have their flags changed. Changes
+	 * made through any {@code MessageBank} object for this folder are seen.
+	 *
+	 * @param listener the listener to register
+	 */
+	public void addListener(MailboxEventBus.Listener listener) {
+		MailboxEventBus.subscribe(dir, listener);
+	}
+
+	public void removeListener(MailboxEventBus.Listener listener) {
+		MailboxEventBus.unsubscribe(dir, listener);
 	}
 
 	/**
@@ -355,26 +520,4 @@ public class MessageBank {
 
 		return uid % 0x100000000l;
 	}
-
-	private static class MessageFileNameFilter implements FilenameFilter {
-		@Override
-		public boolean accept(File dir, String name) {
-			if(name.startsWith(".")) return false;
-			if(!name.matches("[0-9]+(,.*)?")) return false;
-			return true;
-		}
-	}
-
-	// compare to filenames by number leading up to ","
-	private static class UIDComparator implements Comparator<File> {
-		@Override
-		public final int compare (File a, File b) {
-			int ia=Integer.parseInt(a.getName().split(",", 2)[0]);
-			int ib=Integer.parseInt(b.getName().split(",", 2)[0]);
-
-			return(ia-ib);
-		}
-	}
-
-
 }
@@ -0,0 +1,295 @@
+/*
+ * MessageHeaderCache.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * Cache of the parsed summary headers (see {@link MailMessage#SUMMARY_HEADERS})
+ * and the IMAP envelope of the messages in a single folder, so listing,
+ * sorting and searching a folder doesn't have to read every message file.
+ *
+ * Entries are keyed by UID and the modification time of the message file
+ * as recorded by the {@link MessageIndex}, so an entry is ignored if the
+ * message has been replaced. Like the index, the cache file is a journal
+ * that is compacted once it grows too long. If it can't be read it is
+ * simply discarded and refilled as messages are read.
+ */
+class MessageHeaderCache {
+	private static final String CACHEFILE = ".headers";
+	private static final String HEADER = "FreemailHeaders 1";
+
+	/** Journal lines beyond this (plus twice the number of entries) trigger a compaction */
+	private static final int JOURNAL_SLACK = 100;
+
+	/** Written in place of {@code null} values, can't be the result of escaping a string */
+	private static final String NULL_VALUE = "\\0";
+
+	private final File cacheFile;
+
+	private Map<Integer, Entry> entries = null;
+	private int journalLines;
+
+	MessageHeaderCache(File dir) {
+		this.cacheFile = new File(dir, CACHEFILE);
+	}
+
+	/**
+	 * Returns the cached entry for the given message, or {@code null} if
+	 * there is no entry or the entry is for an older version of the file.
+	 * @param uid the UID of the message
+	 * @param modified the modification time of the message file
+	 * @return the cached entry, or {@code null}
+	 */
+	synchronized Entry get(int uid, long modified) {
+		ensureLoaded();
+
+		Entry entry = entries.get(Integer.valueOf(uid));
+		if(entry == null || entry.modified != modified) {
+			return null;
+		}
+		return entry;
+	}
+
+	synchronized void put(Entry entry) {
+		ensureLoaded();
+
+		entries.put(Integer.valueOf(entry.uid), entry);
+		append(entry.toLine());
+	}
+
+	synchronized void remove(int uid) {
+		ensureLoaded();
+
+		if(entries.remove(Integer.valueOf(uid)) != null) {
+			append("D\t" + uid);
+		}
+	}
+
+	private void ensureLoaded() {
+		if(entries != null && cacheFile.exists()) {
+			return;
+		}
+
+		entries = new HashMap<Integer, Entry>();
+		journalLines = 0;
+		if(!load()) {
+			entries.clear();
+			writeSnapshot();
+		}
+	}
+
+	private boolean load() {
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile), "UTF-8"));
+			try {
+				if(!HEADER.equals(reader.readLine())) {
+					Logger.normal(this, "Unknown header cache format in " + cacheFile + ", discarding");
+					return false;
+				}
+
+				String line;
+				while((line = reader.readLine()) != null) {
+					String[] parts = line.split("\t", -1);
+					if(parts[0].equals("M") && parts.length >= 4 && parts.length % 2 == 0) {
+						Entry entry = Entry.fromLine(parts);
+						entries.put(Integer.valueOf(entry.uid), entry);
+					} else if(parts[0].equals("D") && parts.length == 2) {
+						entries.remove(Integer.valueOf(parts[1]));
+					} else {
+						Logger.error(this, "Illegal line in " + cacheFile + ", discarding");
+						return false;
+					}
+					journalLines++;
+				}
+			} finally {
+				reader.close();
+			}
+		} catch(FileNotFoundException e) {
+			return false;
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't read " + cacheFile + ": " + e.getMessage());
+			return false;
+		} catch(NumberFormatException e) {
+			Logger.error(this, "Illegal number in " + cacheFile + ": " + e.getMessage());
+			return false;
+		}
+
+		return true;
+	}
+
+	private void append(String line) {
+		if(journalLines > JOURNAL_SLACK + 2 * entries.size()) {
+			writeSnapshot();
+			return;
+		}
+
+		try {
+			PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(cacheFile, true), "UTF-8"));
+			pw.print(line + "\n");
+			pw.close();
+			if(pw.checkError()) {
+				throw new IOException("Write failed");
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't update " + cacheFile + ": " + e.getMessage());
+			cacheFile.delete();
+			return;
+		}
+
+		journalLines++;
+	}
+
+	/*
+	 * The snapshot is written in place instead of using a temporary file
+	 * since renaming would change the modification time of the directory,
+	 * which makes the message index think it is stale. If the write is
+	 * interrupted the cache is discarded the next time it is read.
+	 */
+	private void writeSnapshot() {
+		try {
+			PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(cacheFile), "UTF-8"));
+			pw.print(HEADER + "\n");
+			for(Entry entry : entries.values()) {
+				pw.print(entry.toLine() + "\n");
+			}
+			pw.close();
+			if(pw.checkError()) {
+				throw new IOException("Write failed");
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't write " + cacheFile + ": " + e.getMessage());
+			cacheFile.delete();
+			return;
+		}
+
+		journalLines = entries.size();
+	}
+
+	static String escape(String s) {
+		if(s == null) {
+			return NULL_VALUE;
+		}
+
+		StringBuilder buf = new StringBuilder(s.length());
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch(c) {
+			case '\\':
+				buf.append("\\\\");
+				break;
+			case '\t':
+				buf.append("\\t");
+				break;
+			case '\n':
+				buf.append("\\n");
+				break;
+			case '\r':
+				buf.append("\\r");
+				break;
+			default:
+				buf.append(c);
+			}
+		}
+		return buf.toString();
+	}
+
+	static String unescape(String s) {
+		if(s.equals(NULL_VALUE)) {
+			return null;
+		}
+
+		StringBuilder buf = new StringBuilder(s.length());
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c != '\\' || i + 1 == s.length()) {
+				buf.append(c);
+				continue;
+			}
+
+			c = s.charAt(++i);
+			switch(c) {
+			case 't':
+				buf.append('\t');
+				break;
+			case 'n':
+				buf.append('\n');
+				break;
+			case 'r':
+				buf.append('\r');
+				break;
+			default:
+				buf.append(c);
+			}
+		}
+		return buf.toString();
+	}
+
+	static class Entry {
+		final int uid;
+		final long modified;
+
+		/** The envelope as sent by the IMAP server, or {@code null} if it hasn't been computed */
+		final String envelope;
+
+		/** The summary headers of the message as name/value pairs, in the order they appear */
+		final List<String[]> headers;
+
+		Entry(int uid, long modified, String envelope, List<String[]> headers) {
+			this.uid = uid;
+			this.modified = modified;
+			this.envelope = envelope;
+			this.headers = Collections.unmodifiableList(new ArrayList<String[]>(headers));
+		}
+
+		private String toLine() {
+			StringBuilder buf = new StringBuilder("M\t");
+			buf.append(uid).append('\t').append(modified).append('\t').append(escape(envelope));
+			for(String[] header : headers) {
+				buf.append('\t').append(escape(header[0]));
+				buf.append('\t').append(escape(header[1]));
+			}
+			return buf.toString();
+		}
+
+		private static Entry fromLine(String[] parts) {
+			List<String[]> headers = new ArrayList<String[]>((parts.length - 4) / 2);
+			for(int i = 4; i < parts.length; i += 2) {
+				headers.add(new String[] {unescape(parts[i]), unescape(parts[i + 1])});
+			}
+			return new Entry(Integer.parseInt(parts[1]), Long.parseLong(parts[2]), unescape(parts[3]), headers);
+		}
+	}
+}
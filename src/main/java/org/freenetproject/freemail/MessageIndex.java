@@ -0,0 +1,685 @@
+/*
+ * MessageIndex.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * On-disk index of the messages in a single {@link MessageBank} folder. For
+ * each message the index holds the file name (which carries the UID and the
+ * flags), the size of the message with CRLF line endings, the internal date
+ * and the offset of the first byte of the body, so listing a folder doesn't
+ * require scanning and sorting the directory.
+ *
+ * The index also assigns modification sequences (as used by the IMAP
+ * CONDSTORE and QRESYNC extensions). Every change to a message, and every
+ * removal, gets the next number from a per-folder counter, so the changes
+ * since a given point can be looked up without going through all the
+ * messages. Removals are remembered for a while so clients can be told
+ * which messages have gone away.
+ *
+ * The index file is a journal: a full snapshot of the entries followed by
+ * one line per change. It is rewritten from the in-memory entries once the
+ * journal grows too long. If the folder directory has been modified after
+ * the index was last written (e.g. by an older version of Freemail or by
+ * hand), or the index can't be parsed, it is rebuilt from the directory.
+ *
+ * There is one instance per folder, shared by all {@code MessageBank}
+ * objects for that folder. Use {@link #forFolder(File)} to get it.
+ */
+class MessageIndex {
+	private static final String INDEXFILE = ".index";
+	private static final String INDEXTMPFILE = ".index-tmp";
+	private static final String HEADER = "FreemailIndex 2";
+
+	/** Journal lines beyond this (plus twice the number of entries) trigger a compaction */
+	private static final int JOURNAL_SLACK = 100;
+
+	/** Number of removed messages that are remembered */
+	private static final int MAX_EXPUNGED = 1000;
+
+	private static final Map<String, MessageIndex> indexes = new HashMap<String, MessageIndex>();
+
+	private final File dir;
+	private final File indexFile;
+
+	private MessageHeaderCache headerCache = null;
+	private MessageSearchIndex searchIndex = null;
+
+	private TreeMap<Integer, Entry> entries = null;
+
+	/** UIDs of the entries in ascending order, or {@code null} if entries have been added or removed since */
+	private int[] uids = null;
+
+	/** UIDs of the entries, keyed by their modification sequence */
+	private TreeMap<Long, Integer> byModSeq = null;
+
+	/** UIDs of removed messages, keyed by the modification sequence of the removal */
+	private TreeMap<Long, Integer> expunged = new TreeMap<Long, Integer>();
+
+	/** Removals with a modification sequence above this are all in {@link #expunged} */
+	private long expungedFloor = 0;
+
+	/** The last modification sequence that was handed out, 0 if unknown */
+	private long highestModSeq = 0;
+
+	private long loadedModified;
+	private long loadedLength;
+	private int journalLines;
+
+	static MessageIndex forFolder(File dir) {
+		synchronized(indexes) {
+			String key = dir.getAbsolutePath();
+			MessageIndex index = indexes.get(key);
+			if(index == null) {
+				index = new MessageIndex(dir);
+				indexes.put(key, index);
+			}
+			return index;
+		}
+	}
+
+	static void forget(File dir) {
+		synchronized(indexes) {
+			indexes.remove(dir.getAbsolutePath());
+		}
+	}
+
+	private MessageIndex(File dir) {
+		this.dir = dir;
+		this.indexFile = new File(dir, INDEXFILE);
+	}
+
+	/**
+	 * Returns the header cache of this folder.
+	 * @return the header cache of this folder
+	 */
+	synchronized MessageHeaderCache getHeaderCache() {
+		if(headerCache == null) {
+			headerCache = new MessageHeaderCache(dir);
+		}
+		return headerCache;
+	}
+
+	/**
+	 * Returns the search index of this folder.
+	 * @return the search index of this folder
+	 */
+	synchronized MessageSearchIndex getSearchIndex() {
+		if(searchIndex == null) {
+			searchIndex = new MessageSearchIndex(dir);
+		}
+		return searchIndex;
+	}
+
+	/**
+	 * Returns the entries of this folder sorted by UID.
+	 * @return the entries of this folder sorted by UID
+	 */
+	synchronized List<Entry> list() {
+		ensureCurrent();
+		return new ArrayList<Entry>(entries.values());
+	}
+
+	/**
+	 * Returns the number of entries in this folder.
+	 * @return the number of entries in this folder
+	 */
+	synchronized int size() {
+		ensureCurrent();
+		return entries.size();
+	}
+
+	/**
+	 * Returns the highest UID in this folder, or 0 if the folder is empty.
+	 * @return the highest UID in this folder
+	 */
+	synchronized int lastUid() {
+		ensureCurrent();
+		return entries.isEmpty() ? 0 : entries.lastKey().intValue();
+	}
+
+	/**
+	 * Returns the number of entries with a UID below the given one, which is
+	 * the index in the list from {@link #list()} of the entry with that UID
+	 * or of the first entry after it.
+	 * @param uid the UID
+	 * @return the number of entries with a lower UID
+	 */
+	synchronized int position(int uid) {
+		ensureCurrent();
+		int pos = Arrays.binarySearch(getUids(), uid);
+		return pos >= 0 ? pos : -(pos + 1);
+	}
+
+	/**
+	 * Returns the entries from index {@code from}, inclusive, to index
+	 * {@code to}, exclusive, of the list that {@link #list()} returns,
+	 * without copying the rest of the entries.
+	 * @param from the index of the first entry
+	 * @param to the index after the last entry
+	 * @return the entries in the range sorted by UID
+	 */
+	synchronized List<Entry> list(int from, int to) {
+		ensureCurrent();
+		int[] sorted = getUids();
+		from = Math.max(from, 0);
+		to = Math.min(to, sorted.length);
+
+		List<Entry> range = new ArrayList<Entry>(Math.max(to - from, 0));
+		for(int i = from; i < to; i++) {
+			range.add(entries.get(Integer.valueOf(sorted[i])));
+		}
+		return range;
+	}
+
+	private int[] getUids() {
+		if(uids == null) {
+			uids = new int[entries.size()];
+			int i = 0;
+			for(Integer uid : entries.keySet()) {
+				uids[i++] = uid.intValue();
+			}
+		}
+		return uids;
+	}
+
+	/**
+	 * Returns the highest modification sequence of this folder, i.e. that of
+	 * the latest change.
+	 * @return the highest modification sequence of this folder
+	 */
+	synchronized long getHighestModSeq() {
+		ensureCurrent();
+		return highestModSeq;
+	}
+
+	/**
+	 * Returns the UIDs of the messages that were added or had their flags
+	 * changed after the given modification sequence.
+	 * @param modSeq the modification sequence
+	 * @return the UIDs of the changed messages
+	 */
+	synchronized SortedSet<Integer> changedSince(long modSeq) {
+		ensureCurrent();
+		return new TreeSet<Integer>(byModSeq.tailMap(Long.valueOf(modSeq), false).values());
+	}
+
+	/**
+	 * Returns the UIDs of the messages that were removed after the given
+	 * modification sequence, or {@code null} if the removals from that far
+	 * back have been forgotten.
+	 * @param modSeq the modification sequence
+	 * @return the UIDs of the removed messages, or {@code null}
+	 */
+	synchronized SortedSet<Integer> expungedSince(long modSeq) {
+		ensureCurrent();
+		if(modSeq < expungedFloor) {
+			return null;
+		}
+		return new TreeSet<Integer>(expunged.tailMap(Long.valueOf(modSeq), false).values());
+	}
+
+	/**
+	 * Checks that the index is up to date. This must be called before
+	 * changing the directory and calling one of {@link #put(File)},
+	 * {@link #rename(int, File)} or {@link #remove(int)}, since those assume
+	 * that any changes to the directory were made by the caller.
+	 */
+	synchronized void prepare() {
+		ensureCurrent();
+	}
+
+	/**
+	 * Indexes the given message file, replacing any existing entry with the
+	 * same UID.
+	 * @param file the message file
+	 * @return the new entry
+	 */
+	synchronized Entry put(File file) {
+		ensureLoaded();
+
+		Entry entry;
+		try {
+			entry = scan(file);
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't index " + file + ": " + e.getMessage());
+			entry = new Entry(file.getName(), -1, file.lastModified(), -1, -1, 0);
+		}
+		return put(entry);
+	}
+
+	/**
+	 * Indexes the given message file using the size and body offset that
+	 * were computed while the file was written, so the file doesn't have to
+	 * be read again.
+	 * @param file the message file
+	 * @param counter the counter the contents of the file was written through
+	 * @return the new entry
+	 */
+	synchronized Entry put(File file, MessageSizeCounter counter) {
+		ensureLoaded();
+
+		return put(new Entry(file.getName(), counter.getSize(), file.lastModified(), counter.getBodyOffset(), file.length(), 0));
+	}
+
+	private Entry put(Entry entry) {
+		entry = entry.withModSeq(++highestModSeq);
+		setEntry(entry);
+		append("M " + entry.toLine());
+		return entry;
+	}
+
+	private void setEntry(Entry entry) {
+		Entry old = entries.put(Integer.valueOf(entry.uid), entry);
+		if(old != null) {
+			byModSeq.remove(Long.valueOf(old.modSeq));
+		} else {
+			uids = null;
+		}
+		byModSeq.put(Long.valueOf(entry.modSeq), Integer.valueOf(entry.uid));
+	}
+
+	/**
+	 * Records that the message with the given UID has been renamed, which
+	 * happens when its flags are changed.
+	 * @param uid the UID of the message
+	 * @param newFile the new name of the message file
+	 * @return the new entry
+	 */
+	synchronized Entry rename(int uid, File newFile) {
+		ensureLoaded();
+
+		Entry old = entries.get(Integer.valueOf(uid));
+		if(old == null) {
+			return put(newFile);
+		}
+
+		Entry entry = new Entry(newFile.getName(), old.size, old.internalDate, old.bodyOffset, old.fileLength, ++highestModSeq);
+		setEntry(entry);
+		append("R " + uid + " " + entry.fileName + " " + entry.modSeq);
+		return entry;
+	}
+
+	synchronized void remove(int uid) {
+		ensureLoaded();
+
+		Entry old = entries.remove(Integer.valueOf(uid));
+		if(old != null) {
+			uids = null;
+			byModSeq.remove(Long.valueOf(old.modSeq));
+			long modSeq = ++highestModSeq;
+			addExpunged(modSeq, uid);
+			append("D " + uid + " " + modSeq);
+		}
+	}
+
+	private void addExpunged(long modSeq, int uid) {
+		expunged.put(Long.valueOf(modSeq), Integer.valueOf(uid));
+		while(expunged.size() > MAX_EXPUNGED) {
+			expungedFloor = expunged.pollFirstEntry().getKey().longValue();
+		}
+	}
+
+	/**
+	 * Makes sure the in-memory entries match the index file, and that the
+	 * index file matches the directory.
+	 */
+	private void ensureCurrent() {
+		ensureLoaded();
+
+		//Anything that adds, removes or renames a message changes the
+		//modification time of the directory, so if the directory is newer
+		//than the index something changed behind our back
+		if(dir.lastModified() > indexFile.lastModified()) {
+			rebuild();
+		}
+	}
+
+	private void ensureLoaded() {
+		if(!indexFile.exists()) {
+			entries = null;
+			rebuild();
+			return;
+		}
+
+		if(entries == null || indexFile.lastModified() != loadedModified || indexFile.length() != loadedLength) {
+			if(!load()) {
+				rebuild();
+			}
+		}
+	}
+
+	private boolean load() {
+		TreeMap<Integer, Entry> loaded = new TreeMap<Integer, Entry>();
+		TreeMap<Long, Integer> loadedExpunged = new TreeMap<Long, Integer>();
+		long highest = -1;
+		long floor = 0;
+		int lines = 0;
+
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+			try {
+				if(!HEADER.equals(reader.readLine())) {
+					Logger.normal(this, "Unknown index format in " + indexFile + ", rebuilding");
+					return false;
+				}
+
+				//The snapshot starts with the modification sequence state
+				String[] state = String.valueOf(reader.readLine()).split(" ");
+				if(!state[0].equals("S") || state.length != 3) {
+					Logger.error(this, "Missing modification sequence in " + indexFile);
+					return false;
+				}
+				highest = Long.parseLong(state[1]);
+				floor = Long.parseLong(state[2]);
+
+				String line;
+				while((line = reader.readLine()) != null) {
+					String[] parts = line.split(" ");
+					if(parts[0].equals("M") && parts.length == 7) {
+						Entry entry = Entry.fromLine(parts);
+						loaded.put(Integer.valueOf(entry.uid), entry);
+						highest = Math.max(highest, entry.modSeq);
+					} else if(parts[0].equals("R") && parts.length == 4) {
+						Integer uid = Integer.valueOf(parts[1]);
+						Entry old = loaded.get(uid);
+						if(old == null) {
+							return false;
+						}
+						long modSeq = Long.parseLong(parts[3]);
+						loaded.put(uid, new Entry(parts[2], old.size, old.internalDate, old.bodyOffset, old.fileLength, modSeq));
+						highest = Math.max(highest, modSeq);
+					} else if(parts[0].equals("D") && parts.length == 3) {
+						long modSeq = Long.parseLong(parts[2]);
+						loaded.remove(Integer.valueOf(parts[1]));
+						loadedExpunged.put(Long.valueOf(modSeq), Integer.valueOf(parts[1]));
+						highest = Math.max(highest, modSeq);
+					} else {
+						Logger.error(this, "Illegal line in " + indexFile + ": " + line);
+						return false;
+					}
+					lines++;
+				}
+			} finally {
+				reader.close();
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't read " + indexFile + ": " + e.getMessage());
+			return false;
+		} catch(NumberFormatException e) {
+			Logger.error(this, "Illegal number in " + indexFile + ": " + e.getMessage());
+			return false;
+		}
+
+		entries = loaded;
+		uids = null;
+		expunged = loadedExpunged;
+		expungedFloor = floor;
+		highestModSeq = highest;
+		indexModSeqs();
+		while(expunged.size() > MAX_EXPUNGED) {
+			expungedFloor = expunged.pollFirstEntry().getKey().longValue();
+		}
+		journalLines = lines;
+		loadedModified = indexFile.lastModified();
+		loadedLength = indexFile.length();
+		return true;
+	}
+
+	/**
+	 * Rebuilds the index from the directory. Entries that are still valid
+	 * (i.e. the file has the same name, length and modification time) are
+	 * reused so the message files don't have to be read again.
+	 */
+	private void rebuild() {
+		Logger.minor(this, "Rebuilding message index for " + dir);
+
+		TreeMap<Integer, Entry> old = entries;
+		TreeMap<Integer, Entry> rebuilt = new TreeMap<Integer, Entry>();
+
+		File[] files = dir.listFiles(new MessageFileNameFilter());
+		if(files == null) {
+			files = new File[0];
+		}
+
+		if(highestModSeq == 0) {
+			//Nothing is known about earlier modification sequences, and a
+			//client might remember some from before the index was lost. Start
+			//from the current time so the new ones are (almost certainly)
+			//higher, unless the folder is new.
+			highestModSeq = (files.length == 0) ? 1 : System.currentTimeMillis();
+			expungedFloor = highestModSeq;
+			expunged.clear();
+		}
+
+		for(File file : files) {
+			if(file.isDirectory()) continue;
+
+			Entry entry = null;
+			if(old != null) {
+				entry = old.get(Integer.valueOf(Entry.parseUid(file.getName())));
+				if(entry != null && !entry.matches(file)) {
+					entry = null;
+				}
+			}
+
+			if(entry == null) {
+				try {
+					entry = scan(file);
+				} catch(IOException e) {
+					Logger.error(this, "Couldn't index " + file + ": " + e.getMessage());
+					entry = new Entry(file.getName(), -1, file.lastModified(), -1, -1, 0);
+				}
+				entry = entry.withModSeq(++highestModSeq);
+			}
+
+			rebuilt.put(Integer.valueOf(entry.uid), entry);
+		}
+
+		if(old != null) {
+			for(Integer uid : old.keySet()) {
+				if(!rebuilt.containsKey(uid)) {
+					addExpunged(++highestModSeq, uid.intValue());
+				}
+			}
+		}
+
+		entries = rebuilt;
+		uids = null;
+		indexModSeqs();
+		writeSnapshot();
+	}
+
+	private void indexModSeqs() {
+		byModSeq = new TreeMap<Long, Integer>();
+		for(Entry entry : entries.values()) {
+			byModSeq.put(Long.valueOf(entry.modSeq), Integer.valueOf(entry.uid));
+		}
+	}
+
+	private void append(String line) {
+		if(journalLines > JOURNAL_SLACK + 2 * entries.size()) {
+			writeSnapshot();
+			return;
+		}
+
+		try {
+			PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(indexFile, true), "UTF-8"));
+			pw.print(line + "\n");
+			pw.close();
+			if(pw.checkError()) {
+				throw new IOException("Write failed");
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't update " + indexFile + ": " + e.getMessage());
+			indexFile.delete();
+			return;
+		}
+
+		journalLines++;
+		updateLoaded();
+	}
+
+	private void writeSnapshot() {
+		File tmp = new File(dir, INDEXTMPFILE);
+		try {
+			PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+			pw.print(HEADER + "\n");
+			pw.print("S " + highestModSeq + " " + expungedFloor + "\n");
+			for(Entry entry : entries.values()) {
+				pw.print("M " + entry.toLine() + "\n");
+			}
+			for(Map.Entry<Long, Integer> removed : expunged.entrySet()) {
+				pw.print("D " + removed.getValue() + " " + removed.getKey() + "\n");
+			}
+			pw.close();
+			if(pw.checkError()) {
+				throw new IOException("Write failed");
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't write " + tmp + ": " + e.getMessage());
+			tmp.delete();
+			return;
+		}
+
+		indexFile.delete();
+		if(!tmp.renameTo(indexFile)) {
+			Logger.error(this, "Couldn't move " + tmp + " to " + indexFile);
+			tmp.delete();
+			return;
+		}
+
+		//The rename updated the modification time of the directory, so make
+		//sure the index isn't considered stale because of it
+		indexFile.setLastModified(Math.max(System.currentTimeMillis(), dir.lastModified()));
+
+		journalLines = entries.size() + expunged.size();
+		updateLoaded();
+	}
+
+	private void updateLoaded() {
+		loadedModified = indexFile.lastModified();
+		loadedLength = indexFile.length();
+	}
+
+	/**
+	 * Reads the given message file and creates an index entry for it.
+	 */
+	static Entry scan(File file) throws IOException {
+		long fileLength = file.length();
+		long internalDate = file.lastModified();
+
+		MessageSizeCounter counter = new MessageSizeCounter();
+		InputStream is = new FileInputStream(file);
+		try {
+			byte[] buf = new byte[8192];
+			int read;
+			while((read = is.read(buf)) != -1) {
+				counter.update(buf, 0, read);
+			}
+		} finally {
+			is.close();
+		}
+
+		return new Entry(file.getName(), counter.getSize(), internalDate, counter.getBodyOffset(), fileLength, 0);
+	}
+
+	static class MessageFileNameFilter implements FilenameFilter {
+		@Override
+		public boolean accept(File dir, String name) {
+			if(name.startsWith(".")) return false;
+			if(!name.matches("[0-9]+(,.*)?")) return false;
+			return true;
+		}
+	}
+
+	static class Entry {
+		final String fileName;
+		final int uid;
+
+		/** Size of the message with CRLF line endings, or -1 if unknown */
+		final long size;
+
+		/** Time the message was stored, in milliseconds since the epoch */
+		final long internalDate;
+
+		/** Offset of the first byte of the body in the message file */
+		final long bodyOffset;
+
+		/** Length of the message file on disk, used to detect stale entries */
+		final long fileLength;
+
+		/** Modification sequence of the last change to the message */
+		final long modSeq;
+
+		Entry(String fileName, long size, long internalDate, long bodyOffset, long fileLength, long modSeq) {
+			this.fileName = fileName;
+			this.uid = parseUid(fileName);
+			this.size = size;
+			this.internalDate = internalDate;
+			this.bodyOffset = bodyOffset;
+			this.fileLength = fileLength;
+			this.modSeq = modSeq;
+		}
+
+		private Entry withModSeq(long newModSeq) {
+			return new Entry(fileName, size, internalDate, bodyOffset, fileLength, newModSeq);
+		}
+
+		private boolean matches(File file) {
+			return fileName.equals(file.getName())
+					&& fileLength == file.length()
+					&& internalDate == file.lastModified();
+		}
+
+		private String toLine() {
+			return fileName + " " + size + " " + internalDate + " " + bodyOffset + " " + fileLength + " " + modSeq;
+		}
+
+		private static Entry fromLine(String[] parts) {
+			return new Entry(parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]),
+					Long.parseLong(parts[4]), Long.parseLong(parts[5]), Long.parseLong(parts[6]));
+		}
+
+		private static int parseUid(String fileName) {
+			return Integer.parseInt(fileName.split(",", 2)[0]);
+		}
+	}
+}
@@ -0,0 +1,552 @@
+/*
+ * MessageSearchIndex.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * Inverted index over the text of the messages in a single folder, used to
+ * find the messages that can match a search without reading all of them.
+ *
+ * The index maps every substring of {@value #GRAM_LENGTH} characters
+ * (lower cased and tagged with the part of the message it was found in) to
+ * the UIDs of the messages that contain it. A message can only contain the
+ * search string if it contains all the substrings of the search string, so
+ * intersecting their postings gives a small set of candidates that has to
+ * be checked by the caller. Indexing substrings instead of words keeps the
+ * substring semantics of IMAP SEARCH.
+ *
+ * The index is brought up to date with the {@link MessageIndex} of the
+ * folder when it is searched, so only messages that are new or have changed
+ * since the last search are read. Like the other folder indexes it is stored
+ * as a journal that is compacted once it grows too long, and is rebuilt if
+ * it can't be read. A snapshot that wasn't finished, e.g. because of a crash
+ * or a full disk, has no end marker and is also rebuilt, since it would
+ * otherwise list messages as indexed without their postings.
+ */
+class MessageSearchIndex {
+	private static final String INDEXFILE = ".search";
+	private static final String HEADER = "FreemailSearch 2";
+
+	/** Ends the snapshot, the journal follows it */
+	private static final String END_OF_SNAPSHOT = "E";
+
+	/** Journal lines beyond this (plus the number of messages) trigger a compaction */
+	private static final int JOURNAL_SLACK = 100;
+
+	/** Bodies longer than this are only partially indexed and always have to be read */
+	private static final int MAX_BODY_CHARS = 64 * 1024;
+
+	/** Length of the substrings that are indexed */
+	static final int GRAM_LENGTH = 3;
+
+	private static final char FROM = 'f';
+	private static final char TO = 't';
+	private static final char CC = 'c';
+	private static final char BCC = 'b';
+	private static final char SUBJECT = 's';
+	private static final char HEADERS = 'h';
+	private static final char BODY = 'x';
+
+	private final File dir;
+	private final File indexFile;
+
+	/** Postings for each key, sorted by UID. Can contain UIDs of messages that have been removed */
+	private Map<String, Postings> postings = null;
+
+	/** The version of each message that has been indexed */
+	private TreeMap<Integer, Version> indexed;
+
+	/** Messages that were only partially indexed, these are candidates for every search */
+	private TreeSet<Integer> partial;
+
+	private int journalLines;
+
+	MessageSearchIndex(File dir) {
+		this.dir = dir;
+		this.indexFile = new File(dir, INDEXFILE);
+	}
+
+	/**
+	 * Returns the UIDs of the messages that might contain the search string
+	 * in the given part of the message. All messages that contain it are
+	 * included, but so might some that don't. Returns {@code null} if the
+	 * search string is too short to narrow down the search.
+	 * @param field the part of the message to search
+	 * @param searchString the string to search for
+	 * @param current the messages that are currently in the folder
+	 * @return the UIDs of the messages that might match, or {@code null}
+	 */
+	synchronized SortedSet<Integer> findCandidates(MessageBank.SearchField field, String searchString,
+	                                              List<MessageIndex.Entry> current) {
+		Collection<String> grams = new LinkedHashSet<String>();
+		addGrams(grams, "", searchString);
+		if(grams.isEmpty()) {
+			return null;
+		}
+
+		ensureLoaded();
+		update(current);
+
+		switch(field) {
+		case FROM:
+			return lookup(FROM, grams);
+		case TO:
+			return lookup(TO, grams);
+		case CC:
+			return lookup(CC, grams);
+		case BCC:
+			return lookup(BCC, grams);
+		case SUBJECT:
+			return lookup(SUBJECT, grams);
+		case HEADER:
+			return lookup(HEADERS, grams);
+		case BODY:
+			return lookup(BODY, grams);
+		case TEXT:
+			SortedSet<Integer> result = lookup(HEADERS, grams);
+			result.addAll(lookup(BODY, grams));
+			return result;
+		default:
+			throw new AssertionError("Missing case " + field);
+		}
+	}
+
+	/**
+	 * Indexes a message that has just been stored, if the index is in use.
+	 * Otherwise the message is indexed the next time the folder is searched.
+	 * @param entry the message index entry of the message
+	 */
+	synchronized void messageStored(MessageIndex.Entry entry) {
+		if(postings == null) {
+			return;
+		}
+		index(entry);
+	}
+
+	synchronized void messageRemoved(int uid) {
+		if(postings == null) {
+			return;
+		}
+		remove(uid);
+	}
+
+	private void update(List<MessageIndex.Entry> current) {
+		Set<Integer> present = new HashSet<Integer>();
+		for(MessageIndex.Entry entry : current) {
+			present.add(Integer.valueOf(entry.uid));
+
+			Version version = indexed.get(Integer.valueOf(entry.uid));
+			if(version == null || !version.matches(entry)) {
+				index(entry);
+			}
+		}
+
+		List<Integer> removed = new ArrayList<Integer>();
+		for(Integer uid : indexed.keySet()) {
+			if(!present.contains(uid)) {
+				removed.add(uid);
+			}
+		}
+		for(Integer uid : removed) {
+			remove(uid.intValue());
+		}
+	}
+
+	private SortedSet<Integer> lookup(char field, Collection<String> grams) {
+		Postings result = null;
+		for(String gram : grams) {
+			Postings p = postings.get(field + gram);
+			if(p == null) {
+				result = new Postings();
+				break;
+			}
+			result = (result == null) ? p : result.intersect(p);
+		}
+
+		SortedSet<Integer> uids = new TreeSet<Integer>(partial);
+		for(int i = 0; i < result.size; i++) {
+			Integer uid = Integer.valueOf(result.uids[i]);
+			if(indexed.containsKey(uid)) {
+				uids.add(uid);
+			}
+		}
+		return uids;
+	}
+
+	private void index(MessageIndex.Entry entry) {
+		File file = new File(dir, entry.fileName);
+		Set<String> keys = new HashSet<String>();
+		boolean complete;
+		try {
+			complete = extractKeys(file, keys);
+		} catch(FileNotFoundException e) {
+			//Removed since the entry was read, the next update will drop it
+			complete = false;
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't index " + file + ": " + e.getMessage());
+			complete = false;
+		}
+
+		Version version = new Version(entry.internalDate, entry.fileLength);
+		add(entry.uid, version, !complete, keys);
+
+		StringBuilder line = new StringBuilder("A\t");
+		line.append(entry.uid).append('\t').append(version.modified).append('\t').append(version.length);
+		line.append('\t').append(complete ? '0' : '1');
+		for(String key : keys) {
+			line.append('\t').append(MessageHeaderCache.escape(key));
+		}
+		append(line.toString());
+	}
+
+	private void add(int uid, Version version, boolean isPartial, Collection<String> keys) {
+		indexed.put(Integer.valueOf(uid), version);
+		if(isPartial) {
+			partial.add(Integer.valueOf(uid));
+		} else {
+			partial.remove(Integer.valueOf(uid));
+		}
+
+		for(String key : keys) {
+			Postings p = postings.get(key);
+			if(p == null) {
+				p = new Postings();
+				postings.put(key, p);
+			}
+			p.add(uid);
+		}
+	}
+
+	private void remove(int uid) {
+		//The postings are cleaned up when the index is compacted
+		if(indexed.remove(Integer.valueOf(uid)) != null) {
+			partial.remove(Integer.valueOf(uid));
+			append("D\t" + uid);
+		}
+	}
+
+	/**
+	 * Adds the keys for the text of the given message to the set.
+	 * @return {@code true} if all of the message was indexed
+	 */
+	private static boolean extractKeys(File file, Set<String> keys) throws IOException {
+		MailMessage message = new MailMessage(file, 0);
+		message.readHeaders();
+
+		addHeaderGrams(keys, FROM, message, "From");
+		addHeaderGrams(keys, TO, message, "To");
+		addHeaderGrams(keys, CC, message, "CC");
+		addHeaderGrams(keys, BCC, message, "BCC");
+		addHeaderGrams(keys, SUBJECT, message, "Subject");
+		addGrams(keys, Character.toString(HEADERS), message.getAllHeadersAsString());
+
+		BufferedReader body = message.getBodyReader();
+		try {
+			int chars = 0;
+			String line;
+			while((line = body.readLine()) != null) {
+				chars += line.length();
+				if(chars > MAX_BODY_CHARS) {
+					return false;
+				}
+				addGrams(keys, Character.toString(BODY), line);
+			}
+		} finally {
+			body.close();
+		}
+
+		return true;
+	}
+
+	private static void addHeaderGrams(Set<String> keys, char field, MailMessage message, String name) {
+		for(String value : message.getHeadersByName(name)) {
+			addGrams(keys, Character.toString(field), value);
+		}
+	}
+
+	/**
+	 * Adds all the substrings of length {@value #GRAM_LENGTH} of the lower
+	 * cased text to the collection, with the given prefix. Substrings with
+	 * surrogate characters are skipped since a lone surrogate doesn't
+	 * survive being written to the index file.
+	 */
+	private static void addGrams(Collection<String> grams, String prefix, String text) {
+		String lower = text.toLowerCase(Locale.ROOT);
+		for(int i = 0; i + GRAM_LENGTH <= lower.length(); i++) {
+			String gram = lower.substring(i, i + GRAM_LENGTH);
+
+			boolean hasSurrogate = false;
+			for(int j = 0; j < gram.length(); j++) {
+				if(Character.isSurrogate(gram.charAt(j))) {
+					hasSurrogate = true;
+					break;
+				}
+			}
+
+			if(!hasSurrogate) {
+				grams.add(prefix + gram);
+			}
+		}
+	}
+
+	private void ensureLoaded() {
+		if(postings != null && indexFile.exists()) {
+			return;
+		}
+
+		postings = new HashMap<String, Postings>();
+		indexed = new TreeMap<Integer, Version>();
+		partial = new TreeSet<Integer>();
+		journalLines = 0;
+		if(!load()) {
+			postings.clear();
+			indexed.clear();
+			partial.clear();
+			writeSnapshot();
+		}
+	}
+
+	private boolean load() {
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+			try {
+				if(!HEADER.equals(reader.readLine())) {
+					Logger.normal(this, "Unknown search index format in " + indexFile + ", discarding");
+					return false;
+				}
+
+				boolean snapshotComplete = false;
+				String line;
+				while((line = reader.readLine()) != null) {
+					String[] parts = line.split("\t", -1);
+					if(line.equals(END_OF_SNAPSHOT) && !snapshotComplete) {
+						snapshotComplete = true;
+					} else if(!snapshotComplete && parts[0].equals("V") && parts.length == 5) {
+						int uid = Integer.parseInt(parts[1]);
+						add(uid, new Version(Long.parseLong(parts[2]), Long.parseLong(parts[3])),
+								parts[4].equals("1"), new ArrayList<String>(0));
+					} else if(!snapshotComplete && parts[0].equals("K") && parts.length >= 3) {
+						Postings p = new Postings();
+						int uid = 0;
+						for(int i = 2; i < parts.length; i++) {
+							uid += Integer.parseInt(parts[i]);
+							p.add(uid);
+						}
+						postings.put(MessageHeaderCache.unescape(parts[1]), p);
+					} else if(snapshotComplete && parts[0].equals("A") && parts.length >= 5) {
+						List<String> keys = new ArrayList<String>(parts.length - 5);
+						for(int i = 5; i < parts.length; i++) {
+							keys.add(MessageHeaderCache.unescape(parts[i]));
+						}
+						add(Integer.parseInt(parts[1]), new Version(Long.parseLong(parts[2]), Long.parseLong(parts[3])),
+								parts[4].equals("1"), keys);
+						journalLines++;
+					} else if(snapshotComplete && parts[0].equals("D") && parts.length == 2) {
+						Integer uid = Integer.valueOf(parts[1]);
+						indexed.remove(uid);
+						partial.remove(uid);
+						journalLines++;
+					} else {
+						Logger.error(this, "Illegal line in " + indexFile + ", discarding");
+						return false;
+					}
+				}
+
+				if(!snapshotComplete) {
+					Logger.error(this, "Unfinished snapshot in " + indexFile + ", discarding");
+					return false;
+				}
+			} finally {
+				reader.close();
+			}
+		} catch(FileNotFoundException e) {
+			return false;
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't read " + indexFile + ": " + e.getMessage());
+			return false;
+		} catch(NumberFormatException e) {
+			Logger.error(this, "Illegal number in " + indexFile + ": " + e.getMessage());
+			return false;
+		}
+
+		return true;
+	}
+
+	private void append(String line) {
+		if(journalLines > JOURNAL_SLACK + indexed.size()) {
+			writeSnapshot();
+			return;
+		}
+
+		try {
+			PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(indexFile, true), "UTF-8"));
+			pw.print(line + "\n");
+			pw.close();
+			if(pw.checkError()) {
+				throw new IOException("Write failed");
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't update " + indexFile + ": " + e.getMessage());
+			indexFile.delete();
+			return;
+		}
+
+		journalLines++;
+	}
+
+	/*
+	 * Written in place for the same reason as the header cache, see
+	 * MessageHeaderCache.writeSnapshot(). Postings of removed messages are
+	 * dropped here. The messages are listed after the postings and the end
+	 * marker last, so a partly written snapshot is never taken for one that
+	 * lists messages without their postings.
+	 */
+	private void writeSnapshot() {
+		Map<String, Postings> compacted = new HashMap<String, Postings>();
+		try {
+			PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(indexFile), "UTF-8"));
+			pw.print(HEADER + "\n");
+			for(Map.Entry<String, Postings> entry : postings.entrySet()) {
+				Postings live = new Postings();
+				Postings p = entry.getValue();
+				for(int i = 0; i < p.size; i++) {
+					if(indexed.containsKey(Integer.valueOf(p.uids[i]))) {
+						live.add(p.uids[i]);
+					}
+				}
+				if(live.size == 0) {
+					continue;
+				}
+				compacted.put(entry.getKey(), live);
+
+				StringBuilder line = new StringBuilder("K\t");
+				line.append(MessageHeaderCache.escape(entry.getKey()));
+				int previous = 0;
+				for(int i = 0; i < live.size; i++) {
+					line.append('\t').append(live.uids[i] - previous);
+					previous = live.uids[i];
+				}
+				pw.print(line.append('\n').toString());
+			}
+
+			for(Map.Entry<Integer, Version> entry : indexed.entrySet()) {
+				Version version = entry.getValue();
+				pw.print("V\t" + entry.getKey() + "\t" + version.modified + "\t" + version.length + "\t"
+						+ (partial.contains(entry.getKey()) ? "1" : "0") + "\n");
+			}
+			pw.print(END_OF_SNAPSHOT + "\n");
+			pw.close();
+			if(pw.checkError()) {
+				throw new IOException("Write failed");
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't write " + indexFile + ": " + e.getMessage());
+			indexFile.delete();
+			return;
+		}
+
+		postings = compacted;
+		journalLines = 0;
+	}
+
+	/** The modification time and length of a message file when it was indexed */
+	private static class Version {
+		final long modified;
+		final long length;
+
+		Version(long modified, long length) {
+			this.modified = modified;
+			this.length = length;
+		}
+
+		boolean matches(MessageIndex.Entry entry) {
+			return entry.internalDate == modified && entry.fileLength == length;
+		}
+	}
+
+	/** Sorted list of UIDs without boxing */
+	private static class Postings {
+		private int[] uids = new int[4];
+		private int size = 0;
+
+		void add(int uid) {
+			if(size > 0 && uids[size - 1] >= uid) {
+				int pos = Arrays.binarySearch(uids, 0, size, uid);
+				if(pos >= 0) {
+					return;
+				}
+				insert(-pos - 1, uid);
+				return;
+			}
+			insert(size, uid);
+		}
+
+		private void insert(int pos, int uid) {
+			if(size == uids.length) {
+				uids = Arrays.copyOf(uids, size * 2);
+			}
+			System.arraycopy(uids, pos, uids, pos + 1, size - pos);
+			uids[pos] = uid;
+			size++;
+		}
+
+		Postings intersect(Postings other) {
+			Postings result = new Postings();
+			int i = 0;
+			int j = 0;
+			while(i < size && j < other.size) {
+				if(uids[i] < other.uids[j]) {
+					i++;
+				} else if(uids[i] > other.uids[j]) {
+					j++;
+				} else {
+					result.insert(result.size, uids[i]);
+					i++;
+					j++;
+				}
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * MessageSizeCounter.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+/**
+ * Computes the size a message has when sent with CRLF line endings (which
+ * is what IMAP reports as RFC822.SIZE) and the offset of the body, from the
+ * bytes of the message as they are written or read. A line ends at CR, LF
+ * or CRLF, matching {@link java.io.BufferedReader#readLine()}.
+ */
+class MessageSizeCounter {
+	private long size = 0;
+	private long bodyOffset = -1;
+	private long position = 0;
+	private long lineLength = 0;
+	private boolean lastWasCR = false;
+
+	void update(int b) {
+		position++;
+
+		if(lastWasCR) {
+			lastWasCR = false;
+			if(b == '\n') {
+				//Second half of a CRLF
+				if(bodyOffset == position - 1) {
+					bodyOffset = position;
+				}
+				return;
+			}
+		}
+
+		if(b == '\r' || b == '\n') {
+			size += lineLength + 2;
+			if(lineLength == 0 && bodyOffset == -1) {
+				bodyOffset = position;
+			}
+			lineLength = 0;
+			lastWasCR = (b == '\r');
+		} else {
+			lineLength++;
+		}
+	}
+
+	void update(byte[] b, int off, int len) {
+		for(int i = off; i < off + len; i++) {
+			update(b[i]);
+		}
+	}
+
+	/**
+	 * Returns the size of the message with CRLF line endings. An unterminated
+	 * last line is counted as if it had a line ending.
+	 * @return the size of the message with CRLF line endings
+	 */
+	long getSize() {
+		if(lineLength > 0) {
+			return size + lineLength + 2;
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the offset of the first byte after the blank line that ends
+	 * the header, or the number of bytes seen if there is no such line.
+	 * @return the offset of the body
+	 */
+	long getBodyOffset() {
+		if(bodyOffset == -1) {
+			return position;
+		}
+		return bodyOffset;
+	}
+}
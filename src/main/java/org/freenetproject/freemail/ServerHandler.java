@@ -22,7 +22,7 @@ package org.freenetproject.freemail;
 import java.net.Socket;
 import java.io.IOException;
 
-public abstract class ServerHandler {
+public abstract class ServerHandler implements Runnable {
 	protected final Socket client;
 	protected volatile boolean stopping = false;
 
@@ -34,6 +34,15 @@ public abstract class ServerHandler {
 		return !client.isClosed();
 	}
 
+	/**
+	 * Closes the connection of a client that can't be served because too
+	 * many clients are connected. Handlers can override this to tell the
+	 * client why before the connection is closed.
+	 */
+	public void refuse() {
+		kill();
+	}
+
 	public void kill() {
 		stopping = true;
 		try {
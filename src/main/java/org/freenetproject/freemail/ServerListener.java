@@ -20,18 +20,53 @@
 package org.freenetproject.freemail;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.net.ServerSocket;
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.freenetproject.freemail.utils.Logger;
 
 public abstract class ServerListener {
+	/** Default length of the queue of connections waiting to be accepted */
+	public static final int DEFAULT_BACKLOG = 50;
+
+	/** Default maximum number of clients connected at the same time */
+	public static final int DEFAULT_MAX_CONNECTIONS = 256;
+
 	protected ServerSocket sock;
-	private final ArrayList<ServerHandler> handlers;
-	private final ArrayList<Thread> handlerThreads;
+	protected volatile int backlog = DEFAULT_BACKLOG;
+	protected volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
+	private final Set<ServerHandler> handlers;
+	private final ExecutorService executor;
 
-	protected ServerListener() {
-		handlers = new ArrayList<ServerHandler>();
-		handlerThreads = new ArrayList<Thread>();
+	/**
+	 * Creates a listener that runs its handlers using the default engine,
+	 * see {@link #createDefaultExecutor(String)}.
+	 * @param name the name handler threads are given
+	 */
+	protected ServerListener(String name) {
+		this(createDefaultExecutor(name));
+	}
+
+	/**
+	 * Creates a listener that runs its handlers on the given executor. The
+	 * executor must be able to run as many handlers at the same time as the
+	 * connection limit allows, since each handler runs until its client
+	 * disconnects.
+	 * @param executor the executor handlers are run on
+	 */
+	protected ServerListener(ExecutorService executor) {
+		this.handlers = Collections.newSetFromMap(new ConcurrentHashMap<ServerHandler, Boolean>());
+		this.executor = executor;
 	}
 
 	/**
@@ -44,11 +79,8 @@ public abstract class ServerListener {
 
 		}
 		// kill all our handlers too
-		synchronized(handlers) {
-			for(Iterator<ServerHandler> i = handlers.iterator(); i.hasNext(); ) {
-				ServerHandler handler = i.next();
-				handler.kill();
-			}
+		for(ServerHandler handler : handlers) {
+			handler.kill();
 		}
 	}
 
@@ -56,43 +88,105 @@ public abstract class ServerListener {
 	 * Wait for all our client threads to terminate
 	 */
 	public void joinClientThreads() {
-		for(Iterator<Thread> i = handlerThreads.iterator(); i.hasNext(); ) {
-			Thread t = i.next();
-			while(t != null) {
-				try {
-					t.join();
-					t = null;
-				} catch (InterruptedException ie) {
-
+		executor.shutdown();
+		while(true) {
+			try {
+				if(executor.awaitTermination(1, TimeUnit.MINUTES)) {
+					return;
 				}
+				Logger.debug(this, "Still waiting for " + handlers.size() + " handlers to terminate");
+			} catch (InterruptedException ie) {
+
 			}
 		}
 	}
 
-	protected void addHandler(ServerHandler hdlr, Thread thrd) {
-		synchronized(handlers) {
-			handlers.add(hdlr);
-		}
-		handlerThreads.add(thrd);
+	/**
+	 * Returns the number of handlers that are currently running.
+	 * @return the number of handlers that are currently running
+	 */
+	public int getConnectionCount() {
+		return handlers.size();
 	}
 
-	protected void reapHandlers() {
-		// clean up dead handlers...
-		synchronized(handlers) {
-			for(Iterator<ServerHandler> i = handlers.iterator(); i.hasNext(); ) {
-				ServerHandler handler = i.next();
-				if(!handler.isAlive()) {
-					i.remove();
+	/**
+	 * Runs the handler for a newly accepted connection. If the connection
+	 * limit has been reached the handler is told to refuse the client
+	 * instead.
+	 * @param hdlr the handler for the connection
+	 * @param name the name of the thread while it is running the handler
+	 * @return {@code true} if the handler was started
+	 */
+	protected boolean startHandler(final ServerHandler hdlr, final String name) {
+		if(handlers.size() >= maxConnections) {
+			Logger.normal(this, "Refusing connection, " + maxConnections + " clients are already connected");
+			hdlr.refuse();
+			return false;
+		}
+
+		handlers.add(hdlr);
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					Thread current = Thread.currentThread();
+					String oldName = current.getName();
+					current.setName(name);
+					try {
+						hdlr.run();
+					} finally {
+						handlers.remove(hdlr);
+						current.setName(oldName);
+					}
 				}
-			}
+			});
+		} catch (RuntimeException e) {
+			//Most likely rejected because we are shutting down
+			Logger.error(this, "Couldn't start handler: " + e);
+			handlers.remove(hdlr);
+			hdlr.kill();
+			return false;
 		}
+		return true;
+	}
 
-		// ...and threads...
-		for(Iterator<Thread> i = handlerThreads.iterator(); i.hasNext(); ) {
-			Thread t = i.next();
-			if(!t.isAlive()) {
-				i.remove();
-			}
+	/**
+	 * Creates the executor handlers are run on by default. If the runtime
+	 * supports virtual threads each handler gets one, so idle connections
+	 * only cost a small amount of heap. Otherwise handlers are run on a
+	 * pool of daemon threads that are reused between connections and time
+	 * out when idle.
+	 * @param name the name of the threads that are created
+	 * @return an executor for running handlers
+	 */
+	static ExecutorService createDefaultExecutor(String name) {
+		try {
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (NoSuchMethodException e) {
+			//Not available, use platform threads
+		} catch (IllegalAccessException e) {
+			Logger.error(ServerListener.class, "Couldn't create virtual thread executor: " + e);
+		} catch (InvocationTargetException e) {
+			Logger.error(ServerListener.class, "Couldn't create virtual thread executor: " + e.getCause());
+		}
+
+		return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new DaemonThreadFactory(name));
+	}
+
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		DaemonThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread t = new Thread(runnable, prefix + " " + threadCount.getAndIncrement());
+			t.setDaemon(true);
+			return t;
 		}
 	}
 }
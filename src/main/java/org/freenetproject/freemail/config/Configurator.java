@@ -33,15 +33,22 @@ import org.freenetproject.freemail.utils.PropsFile;
  */
 
 public class Configurator {
+	public static final String ACK_BATCH_WINDOW = "ack_batch_window";
 	public static final String DATA_DIR = "datadir";
 	public static final String FCP_HOST = "fcp_host";
 	public static final String FCP_PORT = "fcp_port";
+	public static final String FCP_PERSISTENCE = "fcp_persistence";
+	public static final String FCP_CONNECTIONS = "fcp_connections";
 	public static final String GLOBAL_DATA_DIR = "globaldatadir";
 	public static final String IMAP_BIND_ADDRESS = "imap_bind_address";
 	public static final String IMAP_BIND_PORT = "imap_bind_port";
+	public static final String IMAP_BACKLOG = "imap_backlog";
+	public static final String IMAP_MAX_CONNECTIONS = "imap_max_connections";
 	public static final String LOG_LEVEL = "loglevel";
 	public static final String SMTP_BIND_ADDRESS = "smtp_bind_address";
 	public static final String SMTP_BIND_PORT = "smtp_bind_port";
+	public static final String SMTP_BACKLOG = "smtp_backlog";
+	public static final String SMTP_MAX_CONNECTIONS = "smtp_max_connections";
 	public static final String TEMP_DIR = "tempdir";
 	public static final String FILE_FORMAT = "fileformat";
 
@@ -24,63 +24,149 @@ package org.freenetproject.freemail.fcp;
 import java.io.OutputStream;
 import java.io.InputStream;
 import java.net.Socket;
+import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.freenetproject.freemail.utils.Logger;
 
 
 public class FCPConnection implements Runnable {
+	/**
+	 * The prefix of the identifiers of persistent requests. The node keeps
+	 * these across connections, so this is how the ones left over from an
+	 * earlier run are recognised.
+	 */
+	static final String PERSISTENT_PREFIX = "Freemail-";
+
+	/** The name we give the node in the ClientHello */
+	static final String CLIENT_NAME = "freemail-wot";
+
 	/**
 	 * Whether the thread this service runs in should stop.
 	 */
 	protected volatile boolean stopping = false;
 
+	/** How long to wait before reconnecting after the connection is lost */
+	volatile long reconnectDelay = 10000;
+
 	private final FCPContext fcpctx;
-	private OutputStream os;
-	private InputStream is;
-	private Socket conn;
-	private int nextMsgId;
-	private final HashMap<String, FCPClient> clients;
+	private final String clientName;
+	private volatile OutputStream os;
+	private volatile InputStream is;
+	private volatile Socket conn;
+	private final AtomicInteger nextMsgId;
+	private final String persistentIdBase = PERSISTENT_PREFIX + System.currentTimeMillis() + "-";
+
+	/**
+	 * The client of each request that hasn't finished yet, by identifier.
+	 * Whoever removes the entry of a request is the one that tells the
+	 * client it has finished, so each client hears about it exactly once.
+	 */
+	private final ConcurrentMap<String, FCPClient> clients;
+
+	/**
+	 * Persistent requests that were running when the connection was lost,
+	 * and that the node hasn't listed since. Only used by the thread reading
+	 * from the node.
+	 */
+	private final Set<String> unlisted = new HashSet<String>();
+
+	/**
+	 * Messages waiting to be written by the writer thread. Messages without
+	 * data go first, so a request like GenerateSSK doesn't have to wait for
+	 * all the uploads that were queued before it. Since a RemoveRequest could
+	 * then overtake the ClientPut it is meant for, a request that is
+	 * cancelled while still queued is taken out of the queue instead.
+	 */
+	private final BlockingQueue<QueuedMessage> writeQueue;
+	private final AtomicLong nextQueueNumber = new AtomicLong();
+	private final Thread writer;
 
 	public FCPConnection(FCPContext ctx) {
+		this(ctx, CLIENT_NAME, new AtomicInteger(1));
+	}
+
+	/**
+	 * Creates a connection that gives the node the given name. The node keeps
+	 * persistent requests by name, so every connection needs its own. The
+	 * identifiers are taken from {@code ids}, which connections share when
+	 * their requests can end up in the same client.
+	 */
+	FCPConnection(FCPContext ctx, String clientName, AtomicInteger ids) {
 		this.fcpctx = ctx;
-		this.clients = new HashMap<String, FCPClient>();
+		this.clientName = clientName;
+		this.nextMsgId = ids;
+		this.clients = new ConcurrentHashMap<String, FCPClient>();
+		this.writeQueue = new PriorityBlockingQueue<QueuedMessage>(11, new Comparator<QueuedMessage>() {
+			@Override
+			public int compare(QueuedMessage o1, QueuedMessage o2) {
+				if(o1.msg.hasData() != o2.msg.hasData()) {
+					return o1.msg.hasData() ? 1 : -1;
+				}
+				return Long.compare(o1.number, o2.number);
+			}
+		});
 
 		this.tryConnect();
+
+		writer = new Thread(new Writer(), "Freemail FCP writer (" + clientName + ")");
+		writer.setDaemon(true);
+		writer.start();
 	}
 
 	private void tryConnect() {
 		if(this.conn != null || stopping) return;
 
+		Socket newConn = null;
 		try {
-			this.nextMsgId = 1;
-			this.conn = this.fcpctx.getConn();
-			this.is = this.conn.getInputStream();
-			this.os = this.conn.getOutputStream();
-
-			FCPMessage hello = new FCPMessage(this.nextMsgId, "ClientHello");
-			this.nextMsgId++;
-			hello.writeto(this.os);
-			FCPMessage reply = this.getMessage();
+			//Published before saying hello so that kill() can close it
+			newConn = this.fcpctx.getConn();
+			this.conn = newConn;
+			if(stopping) throw new IOException("Stopping");
+			//FCPMessage reads a byte at a time
+			InputStream newIs = new BufferedInputStream(newConn.getInputStream());
+			OutputStream newOs = newConn.getOutputStream();
+
+			//Say hello before anyone else can use the connection
+			FCPMessage hello = this.getMessage("ClientHello");
+			hello.headers.put("Name", clientName);
+			hello.headers.put("ExpectedVersion", "2.0");
+			hello.writeto(newOs);
+			FCPMessage reply = new FCPMessage(newIs);
 			if(reply.getType() == null) {
 				Logger.error(this, "Connection closed");
-				this.conn = null;
-				return;
+				throw new IOException("Connection closed");
 			}
-			if(!reply.getType().equals("NodeHello")) {
+			if(reply.getMessageType() != FCPMessage.Type.NODE_HELLO) {
 				Logger.error(this, "Warning - got '"+reply.getType()+"' from node, expecting 'NodeHello'");
 			}
+
+			//Find out which of our persistent requests the node still has
+			if(!unlisted.isEmpty() || !fcpctx.getPersistence().equals(FCPContext.PERSISTENCE_CONNECTION)) {
+				this.getMessage("ListPersistentRequests").writeto(newOs);
+			}
+
+			this.is = newIs;
+			this.os = newOs;
 		} catch (IOException ioe) {
 			this.conn = null;
-			this.is = null;
-			this.os = null;
+			if(newConn != null) {
+				try {
+					newConn.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
 			return;
-		} catch (FCPBadFileException bfe) {
-			// won't be thrown from a hello, so should really
-			// never get here!
-			throw new AssertionError();
 		}
 	}
 
@@ -95,20 +181,13 @@ public class FCPConnection implements Runnable {
 				if(msg.getType() == null) throw new IOException("Connection closed");
 				this.dispatch(msg);
 			} catch (IOException ioe) {
-				this.conn = null;
-				this.os = null;
-				this.is = null;
+				closeConnection();
 				// tell all our clients it's all over
-				Iterator<FCPClient> i = this.clients.values().iterator();
-				while(i.hasNext()) {
-					FCPClient cli = i.next();
-					cli.requestFinished(new FCPMessage(1, "ConnectionClosed"));
-				}
-				this.clients.clear();
+				failAll();
 				// wait a bit
 				if(!stopping) {
 					try {
-						Thread.sleep(10000);
+						Thread.sleep(reconnectDelay);
 					} catch (InterruptedException ie) {
 						Logger.debug(this, "FCPConnection interrupted, stopping");
 						kill();
@@ -124,14 +203,37 @@ public class FCPConnection implements Runnable {
 	 */
 	public void kill() {
 		stopping = true;
-		try {
-			// we can safely close the socket from this thread: any read operations other threads are in will throw a SocketException
-			if(conn != null) {
-				conn.close();
-				conn = null;
+		writer.interrupt();
+		// we can safely close the socket from this thread: any read operations other threads are in will throw a SocketException
+		closeConnection();
+	}
+
+	private void closeConnection() {
+		Socket oldConn = conn;
+		this.conn = null;
+		this.os = null;
+		this.is = null;
+		if(oldConn != null) {
+			try {
+				oldConn.close();
+			} catch (IOException ioe) {
+				// ignore
+			}
+		}
+	}
+
+	private void failAll() {
+		for(String id : clients.keySet()) {
+			if(isPersistent(id) && !stopping) {
+				//The node keeps these, we find out if it still has them once reconnected
+				unlisted.add(id);
+				continue;
+			}
+
+			FCPClient cli = clients.remove(id);
+			if(cli != null) {
+				cli.requestFinished(new FCPMessage(id, "ConnectionClosed"));
 			}
-		} catch (IOException ioe) {
-			// ignore
 		}
 	}
 
@@ -147,16 +249,34 @@ public class FCPConnection implements Runnable {
 		}
 	}
 
-	public synchronized void doRequest(FCPClient cli, FCPMessage msg) throws NoNodeConnectionException,
-	                                                                         ConnectionTerminatedException, FCPBadFileException {
+	/**
+	 * Queues the message for sending and returns without waiting for it to
+	 * be written. The reply, or a ConnectionClosed message if the connection
+	 * is lost first, is passed to {@link FCPClient#requestFinished(FCPMessage)}
+	 * from the thread that reads from the node.
+	 */
+	public void doRequest(FCPClient cli, FCPMessage msg) throws NoNodeConnectionException,
+	                                                            ConnectionTerminatedException, FCPBadFileException {
 		if(stopping) throw new ConnectionTerminatedException("This FCP Connection has been terminated");
-		if(this.os == null) throw new NoNodeConnectionException("No Connection");
+		OutputStream out = this.os;
+		if(out == null) throw new NoNodeConnectionException("No Connection");
+
+		byte[] header = msg.getHeader();
 		this.clients.put(msg.getId(), cli);
-		try {
-			msg.writeto(this.os);
-		} catch (IOException ioe) {
-			throw new NoNodeConnectionException(ioe.getMessage());
+		writeQueue.add(new QueuedMessage(msg, header, out, true, nextQueueNumber.getAndIncrement()));
+	}
+
+	/**
+	 * Queues a message that no client is waiting for a reply to.
+	 */
+	private void send(FCPMessage msg) {
+		OutputStream out = this.os;
+		if(out == null) {
+			//Persistent requests are cleaned up after the next ListPersistentRequests
+			return;
 		}
+
+		writeQueue.add(new QueuedMessage(msg, msg.getHeader(), out, false, nextQueueNumber.getAndIncrement()));
 	}
 
 	/**
@@ -164,14 +284,71 @@ public class FCPConnection implements Runnable {
 	 * This doesn't actually send a cancel command to the node
 	 * (I don't think such a thing exists) but it does remove our
 	 * request/client map entry. We need this for requests that never
-	 * complete, so we don't leak memory.
+	 * complete, so we don't leak memory. Persistent requests are removed
+	 * from the node, since they would otherwise stay there.
 	 */
-	public synchronized void cancelRequest(FCPMessage msg) {
-		this.clients.remove(msg.getId());
+	public void cancelRequest(FCPMessage msg) {
+		if(this.clients.remove(msg.getId()) == null) {
+			return;
+		}
+
+		//If the request hasn't been written yet the node never hears of it
+		for(QueuedMessage queued : writeQueue) {
+			if(queued.request && queued.msg.getId().equals(msg.getId())) {
+				if(writeQueue.remove(queued)) {
+					queued.msg.discardData();
+					return;
+				}
+				break;
+			}
+		}
+
+		if(isPersistent(msg.getId())) {
+			//Unlike other requests, this one would keep running
+			send(removeRequest(msg.getId()));
+		}
 	}
 
 	private void dispatch(FCPMessage msg) {
-		FCPClient cli = this.clients.get(msg.getId());
+		String id = msg.getId();
+		FCPMessage.Type type = msg.getMessageType();
+		if(type == FCPMessage.Type.END_LIST_PERSISTENT_REQUESTS) {
+			//The node has lost the rest, e.g. because it was restarted
+			for(String lost : unlisted) {
+				FCPClient cli = clients.remove(lost);
+				if(cli != null) {
+					cli.requestFinished(new FCPMessage(lost, "ConnectionClosed"));
+				}
+			}
+			unlisted.clear();
+			return;
+		}
+		if(id == null) {
+			msg.release();
+			return;
+		}
+		if(type == FCPMessage.Type.PERSISTENT_GET || type == FCPMessage.Type.PERSISTENT_PUT) {
+			unlisted.remove(id);
+			if(isPersistent(id) && !clients.containsKey(id)) {
+				//Left over from an earlier run or cancelled, nobody is waiting for it
+				send(removeRequest(id));
+			}
+			return;
+		}
+		if(type == FCPMessage.Type.DATA_FOUND && isPersistent(id) && clients.containsKey(id)) {
+			//The node only sends the data of persistent fetches when asked
+			FCPMessage status = new FCPMessage(id, "GetRequestStatus");
+			status.headers.put("OnlyData", "true");
+			send(status);
+			return;
+		}
+
+		FCPClient cli;
+		if(msg.isCompletionMessage()) {
+			cli = this.clients.remove(msg.getId());
+		} else {
+			cli = this.clients.get(msg.getId());
+		}
 		if(cli == null) {
 			// normally we'd leave it up to the client
 			// to delete any data, but it looks like
@@ -180,20 +357,127 @@ public class FCPConnection implements Runnable {
 			return;
 		}
 		if(msg.isCompletionMessage()) {
-			this.clients.remove(msg.getId());
+			if(isPersistent(id)) {
+				send(removeRequest(id));
+			}
 			cli.requestFinished(msg);
 		} else {
 			cli.requestStatus(msg);
 		}
 	}
 
-	public synchronized FCPMessage getMessage(String type) {
-		FCPMessage m = new FCPMessage(this.nextMsgId, type);
-		this.nextMsgId++;
-		return m;
+	public FCPMessage getMessage(String type) {
+		return new FCPMessage(this.nextMsgId.getAndIncrement(), type);
+	}
+
+	/**
+	 * Returns a new ClientGet or ClientPut message with the configured
+	 * persistence. Persistent requests get an identifier in Freemail's
+	 * namespace, and survive a lost connection to the node.
+	 */
+	public FCPMessage getRequestMessage(String type) {
+		String persistence = fcpctx.getPersistence();
+		FCPMessage msg;
+		if(persistence.equals(FCPContext.PERSISTENCE_CONNECTION)) {
+			msg = getMessage(type);
+		} else {
+			msg = new FCPMessage(persistentIdBase + this.nextMsgId.getAndIncrement(), type);
+		}
+		msg.headers.put("Persistence", persistence);
+		return msg;
+	}
+
+	private static boolean isPersistent(String id) {
+		return id.startsWith(PERSISTENT_PREFIX);
+	}
+
+	private static FCPMessage removeRequest(String id) {
+		FCPMessage msg = new FCPMessage(id, "RemoveRequest");
+		msg.headers.put("Global", "false");
+		return msg;
 	}
 
 	private FCPMessage getMessage() throws IOException {
 		return new FCPMessage(this.is);
 	}
+
+	private static class QueuedMessage {
+		private final FCPMessage msg;
+		private final byte[] header;
+		private final OutputStream os;
+		/** {@code true} if a client is waiting for the reply */
+		private final boolean request;
+		private final long number;
+
+		private QueuedMessage(FCPMessage msg, byte[] header, OutputStream os, boolean request, long number) {
+			this.msg = msg;
+			this.header = header;
+			this.os = os;
+			this.request = request;
+			this.number = number;
+		}
+	}
+
+	/**
+	 * Writes the queued messages to the node, one at a time. If a write fails
+	 * the connection is closed, and the thread reading from the node then
+	 * fails all the outstanding requests.
+	 */
+	private class Writer implements Runnable {
+		@Override
+		public void run() {
+			while(!stopping) {
+				QueuedMessage queued;
+				try {
+					queued = writeQueue.take();
+				} catch (InterruptedException e) {
+					Logger.debug(this, "FCP writer interrupted, stopping");
+					break;
+				}
+
+				if(queued.os != os) {
+					//Queued for a connection that has since been closed. The
+					//client has been told already unless it registered after
+					//the connection failed, or the request is persistent.
+					if(queued.request) {
+						FCPClient cli = clients.remove(queued.msg.getId());
+						if(cli != null) {
+							cli.requestFinished(new FCPMessage(queued.msg.getId(), "ConnectionClosed"));
+						}
+					}
+					queued.msg.discardData();
+					continue;
+				}
+
+				if(queued.request && !clients.containsKey(queued.msg.getId())) {
+					//Cancelled while the writer was taking it from the queue
+					queued.msg.discardData();
+					continue;
+				}
+
+				try {
+					queued.os.write(queued.header);
+					queued.msg.writeData(queued.os);
+					queued.os.flush();
+				} catch (IOException ioe) {
+					Logger.error(this, "Error writing to node: " + ioe.getMessage());
+					queued.msg.discardData();
+					Socket oldConn = conn;
+					if(oldConn != null && queued.os == os) {
+						try {
+							oldConn.close();
+						} catch (IOException e) {
+							// ignore
+						}
+					}
+				}
+			}
+
+			//Nothing will be written any more
+			QueuedMessage queued;
+			while((queued = writeQueue.poll()) != null) {
+				queued.msg.discardData();
+			}
+		}
+	}
 }
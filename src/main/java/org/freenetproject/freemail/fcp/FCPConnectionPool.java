@@ -0,0 +1,124 @@
+/*
+ * FCPConnectionPool.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed number of connections to the node, each with its own socket and
+ * reader thread. Requests without data, like GenerateSSK and fetches, use
+ * the first connection, and inserts use the others. An upload can then never
+ * hold up the small requests behind it.
+ *
+ * Inserts are spread over the insert connections by the key they go to, so
+ * the inserts to the keys of one channel or account always share a
+ * connection. With a single connection everything uses it, like before there
+ * was a pool.
+ */
+public class FCPConnectionPool {
+	private final FCPConnection[] connections;
+	private Thread[] threads;
+
+	public FCPConnectionPool(FCPContext ctx, int size) {
+		if(size < 1) {
+			throw new IllegalArgumentException("Pool size must be positive, was " + size);
+		}
+
+		//Shared so that identifiers are unique across the pool
+		AtomicInteger ids = new AtomicInteger(1);
+		connections = new FCPConnection[size];
+		for(int i = 0; i < size; i++) {
+			String name = (i == 0) ? FCPConnection.CLIENT_NAME : FCPConnection.CLIENT_NAME + "-" + i;
+			connections[i] = new FCPConnection(ctx, name, ids);
+		}
+	}
+
+	/**
+	 * Creates a pool of the given connection, for callers that manage the
+	 * connection themselves.
+	 */
+	FCPConnectionPool(FCPConnection connection) {
+		connections = new FCPConnection[] {connection};
+	}
+
+	/**
+	 * Starts the reader thread of each connection.
+	 */
+	public synchronized void start() {
+		threads = new Thread[connections.length];
+		for(int i = 0; i < connections.length; i++) {
+			String name = "Freemail FCP Connection" + ((i == 0) ? "" : " " + i);
+			threads[i] = new Thread(connections[i], name);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+	}
+
+	public void kill() {
+		for(FCPConnection connection : connections) {
+			connection.kill();
+		}
+	}
+
+	/**
+	 * Waits for the threads started by {@link #start()} to finish.
+	 */
+	public void join() throws InterruptedException {
+		Thread[] started;
+		synchronized(this) {
+			started = threads;
+		}
+		if(started == null) {
+			return;
+		}
+		for(Thread thread : started) {
+			thread.join();
+		}
+	}
+
+	public FCPMessage getMessage(String type) {
+		return connections[0].getMessage(type);
+	}
+
+	/**
+	 * @see FCPConnection#getRequestMessage(String)
+	 */
+	public FCPMessage getRequestMessage(String type) {
+		return connections[0].getRequestMessage(type);
+	}
+
+	/**
+	 * Returns the connection the message should be sent on.
+	 */
+	FCPConnection getConnection(FCPMessage msg) {
+		if(connections.length == 1 || !msg.hasData()) {
+			return connections[0];
+		}
+
+		//Route by the key space, i.e. the part of the URI before the path
+		String uri = msg.headers.get("URI");
+		int hash = 0;
+		if(uri != null) {
+			int slash = uri.indexOf('/');
+			hash = ((slash == -1) ? uri : uri.substring(0, slash)).hashCode();
+		}
+		return connections[1 + (hash & Integer.MAX_VALUE) % (connections.length - 1)];
+	}
+}
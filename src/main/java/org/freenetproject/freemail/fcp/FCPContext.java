@@ -24,16 +24,42 @@ import java.net.Socket;
 
 import org.freenetproject.freemail.config.ConfigClient;
 import org.freenetproject.freemail.config.Configurator;
+import org.freenetproject.freemail.utils.Logger;
 
 
 public class FCPContext implements ConfigClient {
+	/** Requests are dropped by the node when the connection is lost */
+	public static final String PERSISTENCE_CONNECTION = "connection";
+	/** Requests survive a lost connection, but not a restart of the node */
+	public static final String PERSISTENCE_REBOOT = "reboot";
+	/** Requests survive a restart of the node */
+	public static final String PERSISTENCE_FOREVER = "forever";
+
 	private String hostname;
 	private int port;
+	private volatile String persistence = PERSISTENCE_CONNECTION;
+	private volatile int connectionCount = 1;
 
 	public Socket getConn() throws IOException {
 		return new Socket(this.hostname, this.port);
 	}
 
+	/**
+	 * Returns the persistence used for inserts and fetches, one of the
+	 * PERSISTENCE_ constants.
+	 */
+	public String getPersistence() {
+		return persistence;
+	}
+
+	/**
+	 * Returns how many connections to open to the node. Only read when the
+	 * connections are created.
+	 */
+	public int getConnectionCount() {
+		return connectionCount;
+	}
+
 	@Override
 	public void setConfigProp(String key, String val) {
 		if(key.equalsIgnoreCase(Configurator.FCP_HOST)) {
@@ -44,6 +70,23 @@ public class FCPContext implements ConfigClient {
 			} catch (NumberFormatException nfe) {
 				// just leave it as it was
 			}
+		} else if(key.equalsIgnoreCase(Configurator.FCP_PERSISTENCE)) {
+			if(val.equals(PERSISTENCE_CONNECTION) || val.equals(PERSISTENCE_REBOOT) || val.equals(PERSISTENCE_FOREVER)) {
+				persistence = val;
+			} else {
+				Logger.error(this, "Illegal value for " + Configurator.FCP_PERSISTENCE + ": " + val);
+			}
+		} else if(key.equalsIgnoreCase(Configurator.FCP_CONNECTIONS)) {
+			try {
+				int count = Integer.parseInt(val);
+				if(count >= 1) {
+					connectionCount = count;
+					return;
+				}
+			} catch (NumberFormatException nfe) {
+				//Logged below
+			}
+			Logger.error(this, "Illegal value for " + Configurator.FCP_CONNECTIONS + ": " + val);
 		}
 	}
 }
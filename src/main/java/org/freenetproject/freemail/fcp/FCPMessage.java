@@ -26,65 +26,193 @@ import java.io.InputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Enumeration;
-import java.util.Collections;
+import java.util.Map;
 
 import org.freenetproject.freemail.Freemail;
-import org.freenetproject.freemail.support.io.LineReader;
-import org.freenetproject.freemail.support.io.LineReadingInputStream;
+import org.freenetproject.freemail.utils.Logger;
+
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.FileBucket;
 
 
 
 public class FCPMessage {
+	/**
+	 * Data up to this size is kept in memory instead of in a temporary file.
+	 * SSK and KSK data is at most a few KiB, so this covers all the messages
+	 * that are sent between Freemail users.
+	 */
+	static final int MAX_IN_MEMORY_DATA = 32 * 1024;
+
+	/** Longer lines are taken to mean that the stream isn't FCP */
+	static final int MAX_LINE_LENGTH = 64 * 1024;
+
+	private static final byte[] END = {'E', 'n', 'd'};
+	private static final byte[] DATA = {'D', 'a', 't', 'a'};
+
+	/**
+	 * The message types that Freemail treats differently from the rest. All
+	 * other types are {@code OTHER}.
+	 */
+	public enum Type {
+		NODE_HELLO("NodeHello", false),
+		SSK_KEYPAIR("SSKKeypair", true),
+		DATA_FOUND("DataFound", false),
+		ALL_DATA("AllData", true),
+		GET_FAILED("GetFailed", true),
+		PUT_SUCCESSFUL("PutSuccessful", true),
+		PUT_FAILED("PutFailed", true),
+		PROTOCOL_ERROR("ProtocolError", true),
+		IDENTIFIER_COLLISION("IdentifierCollision", true),
+		PERSISTENT_GET("PersistentGet", false),
+		PERSISTENT_PUT("PersistentPut", false),
+		END_LIST_PERSISTENT_REQUESTS("EndListPersistentRequests", false),
+		OTHER(null, false);
+
+		private static final Map<String, Type> byName = new HashMap<String, Type>();
+		static {
+			for(Type type : values()) {
+				if(type.wireName != null) {
+					byName.put(type.wireName, type);
+				}
+			}
+		}
+
+		private final String wireName;
+		private final boolean completion;
+
+		private Type(String wireName, boolean completion) {
+			this.wireName = wireName;
+			this.completion = completion;
+		}
+
+		/**
+		 * Returns {@code true} if a message of this type finishes the request
+		 * it belongs to.
+		 */
+		public boolean isCompletion() {
+			return completion;
+		}
+
+		static Type of(String name) {
+			if(name == null) {
+				return OTHER;
+			}
+			Type type = byName.get(name);
+			if(type != null) {
+				return type;
+			}
+
+			//The node uses the exact names, but we have never relied on that
+			for(Type t : values()) {
+				if(name.equalsIgnoreCase(t.wireName)) {
+					return t;
+				}
+			}
+			return OTHER;
+		}
+	}
+
 	private String messagetype;
+	private Type type;
 	private String identifier;
 	public final HashMap<String, String> headers;
 	private File data;
+	private byte[] dataBytes;
 	private InputStream outData;
+	private long outDataLength;
 
 
 	public FCPMessage(int id, String type) {
-		this.identifier = Integer.toString(id);
+		this(Integer.toString(id), type);
+	}
+
+	FCPMessage(String id, String type) {
+		this.identifier = id;
 		this.headers = new HashMap<String, String>();
 		this.messagetype = type;
+		this.type = Type.of(type);
 		this.data = null;
 		this.outData = null;
 	}
 
+	/**
+	 * Reads a message from the stream. The stream is read one byte at a time
+	 * so that nothing after the message is consumed, so it should be
+	 * buffered. If the stream ends before the message type the type is
+	 * {@code null}.
+	 */
 	public FCPMessage(InputStream is) throws IOException {
 		this.headers = new HashMap<String, String>();
 		this.outData = null;
-
 		this.messagetype = null;
+		this.type = Type.OTHER;
 
-		//r isn't closed since LineReadingInputStream would close is
-		@SuppressWarnings("resource")
-		LineReader r = new LineReadingInputStream(is);
+		byte[] line = new byte[128];
+		while(true) {
+			int len = 0;
+			int b;
+			while((b = is.read()) != '\n') {
+				if(b == -1) {
+					return;
+				}
+				if(len == line.length) {
+					if(len >= MAX_LINE_LENGTH) {
+						throw new IOException("Line longer than " + MAX_LINE_LENGTH + " bytes");
+					}
+					line = Arrays.copyOf(line, len * 2);
+				}
+				line[len++] = (byte)b;
+			}
+			if(len > 0 && line[len - 1] == '\r') {
+				len--;
+			}
 
-		String line;
-		while((line = r.readLine(200, 200, false)) != null) {
-			/***************************************/
-			//Logger.normal(this,line);
 			if(this.messagetype == null) {
-				this.messagetype = line;
-			} else if(line.startsWith("End")) {
+				if(len > 0) {
+					this.messagetype = new String(line, 0, len, StandardCharsets.UTF_8);
+					this.type = Type.of(this.messagetype);
+				}
+			} else if(startsWith(line, len, END)) {
 				return;
-			} else if(line.equals("Data")) {
+			} else if(len == DATA.length && startsWith(line, len, DATA)) {
+				String length = this.headers.get("DataLength");
 				try {
-					int len = Integer.decode(this.headers.get("DataLength")).intValue();
-					this.readData(is, len);
+					this.readData(is, Integer.parseInt(length));
 				} catch (NumberFormatException nfe) {
+					//We can't find the next message without the length
+					throw new IOException("Bad DataLength: " + length);
 				}
 				return;
 			} else {
-				String[] parts = line.split("=");
-				if(parts.length == 2)
-					this.addHeader(parts[0], parts[1]);
+				//Split at the first '=' only, values may contain more
+				for(int i = 0; i < len; i++) {
+					if(line[i] == '=') {
+						this.addHeader(new String(line, 0, i, StandardCharsets.UTF_8),
+						               new String(line, i + 1, len - i - 1, StandardCharsets.UTF_8));
+						break;
+					}
+				}
 			}
 		}
 	}
 
+	private static boolean startsWith(byte[] line, int len, byte[] prefix) {
+		if(len < prefix.length) {
+			return false;
+		}
+		for(int i = 0; i < prefix.length; i++) {
+			if(line[i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	private void addHeader(String name, String val) {
 		if(name.equalsIgnoreCase("Identifier")) {
 			this.identifier = val;
@@ -97,110 +225,219 @@ public class FCPMessage {
 		return this.messagetype;
 	}
 
+	public Type getMessageType() {
+		return this.type;
+	}
+
 	public String getId() {
 		return this.identifier;
 	}
 
+	/**
+	 * Returns the data of the message as a file. Data that was kept in memory
+	 * is written to a temporary file first, so use {@link #getDataBucket()}
+	 * unless a file is needed.
+	 */
 	public File getData() {
+		if(this.data == null && this.dataBytes != null) {
+			try {
+				File file = File.createTempFile("freemail-fcp", null, Freemail.getTempDir());
+				FileOutputStream fos = new FileOutputStream(file);
+				try {
+					fos.write(this.dataBytes);
+				} finally {
+					fos.close();
+				}
+				this.data = file;
+				this.dataBytes = null;
+			} catch (IOException ioe) {
+				return null;
+			}
+		}
 		return this.data;
 	}
 
-	public void setData(InputStream d) {
+	/**
+	 * Returns the data of the message, which is in memory if it is small. The
+	 * caller must free the bucket once it is done with it.
+	 */
+	public Bucket getDataBucket() {
+		if(this.dataBytes != null) {
+			return new ArrayBucket(this.dataBytes);
+		}
+		if(this.data != null) {
+			return new FileBucket(this.data, false, false, false, true);
+		}
+		return null;
+	}
+
+	/**
+	 * Sets the data to send with the message. Exactly {@code length} bytes
+	 * are read from the stream, which is closed once they have been sent.
+	 */
+	public void setData(InputStream d, long length) {
+		if(length < 0) {
+			throw new IllegalArgumentException("Negative data length " + length);
+		}
 		this.outData = d;
+		this.outDataLength = length;
 	}
 
-	private void readData(InputStream is, int len) {
-		try {
-			this.data = File.createTempFile("freemail-fcp", null, Freemail.getTempDir());
-		} catch (Exception e) {
-			this.data = null;
+	/**
+	 * Closes the data given to {@link #setData(InputStream, long)} without
+	 * sending it, for a message that won't be written after all.
+	 */
+	void discardData() {
+		if(this.outData == null) {
 			return;
 		}
+
 		try {
-			FileOutputStream fos = new FileOutputStream(this.data);
-
-			byte[] buf = new byte[1024];
-			while(len > 0) {
-				int toRead = len;
-				if(toRead > buf.length)
-					toRead = buf.length;
-				int read = is.read(buf, 0, toRead);
-				fos.write(buf, 0, read);
-				len -= read;
+			this.outData.close();
+		} catch (IOException ioe) {
+			Logger.error(this, "Couldn't close data of discarded message: " + ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Reads the data that follows the header. Unless exactly {@code len}
+	 * bytes can be read the next message can't be found, so anything else
+	 * throws IOException.
+	 */
+	private void readData(InputStream is, int len) throws IOException {
+		if(len < 0) {
+			throw new IOException("Negative DataLength: " + len);
+		}
+
+		if(len <= MAX_IN_MEMORY_DATA) {
+			byte[] buf = new byte[len];
+			int offset = 0;
+			while(offset < len) {
+				int read = is.read(buf, offset, len - offset);
+				if(read == -1) {
+					throw new IOException("Connection closed while reading data");
+				}
+				offset += read;
 			}
-			fos.close();
+			this.dataBytes = buf;
+			return;
+		}
+
+		File file;
+		try {
+			file = File.createTempFile("freemail-fcp", null, Freemail.getTempDir());
 		} catch (IOException ioe) {
-			this.data = null;
+			//The connection is fine, so skip the data to stay in step with it
+			Logger.error(this, "Couldn't create temporary file for data: " + ioe.getMessage());
+			skipFully(is, len);
 			return;
 		}
+
+		boolean complete = false;
+		try {
+			FileOutputStream fos = new FileOutputStream(file);
+
+			byte[] buf = new byte[4096];
+			try {
+				while(len > 0) {
+					int toRead = len;
+					if(toRead > buf.length)
+						toRead = buf.length;
+					int read = is.read(buf, 0, toRead);
+					if(read == -1)
+						throw new IOException("Connection closed while reading data");
+					fos.write(buf, 0, read);
+					len -= read;
+				}
+			} finally {
+				fos.close();
+			}
+			complete = true;
+		} finally {
+			if(complete) {
+				this.data = file;
+			} else {
+				file.delete();
+			}
+		}
+	}
+
+	private static void skipFully(InputStream is, long len) throws IOException {
+		byte[] buf = new byte[4096];
+		while(len > 0) {
+			int read = is.read(buf, 0, (int)Math.min(len, buf.length));
+			if(read == -1) {
+				throw new IOException("Connection closed while reading data");
+			}
+			len -= read;
+		}
 	}
 
 	public boolean isCompletionMessage() {
-		if(this.messagetype.equalsIgnoreCase("PutFailed"))
-			return true;
-		if(this.messagetype.equalsIgnoreCase("PutSuccessful"))
-			return true;
-		if(this.messagetype.equalsIgnoreCase("AllData"))
-			return true;
-		if(this.messagetype.equalsIgnoreCase("GetFailed"))
-			return true;
-		if(this.messagetype.equalsIgnoreCase("ProtocolError"))
-			return true;
-		if(this.messagetype.equalsIgnoreCase("SSKKeypair"))
-			return true;
-		if(this.messagetype.equalsIgnoreCase("IdentifierCollision"))
-			return true;
-		return false;
+		return this.type.isCompletion();
 	}
 
 	public void release() {
 		if(this.data != null) {
 			this.data.delete();
 		}
+		this.dataBytes = null;
 	}
 
-	public void writeto(OutputStream os) throws IOException, FCPBadFileException {
-		StringBuffer buf = new StringBuffer();
-
-		buf.append(this.messagetype);
-		buf.append("\r\n");
-
-		if(this.messagetype.equalsIgnoreCase("ClientHello")) {
-			buf.append("Name=freemail-wot\r\n");
-			buf.append("ExpectedVersion=2.0\r\n");
-		}
+	boolean hasData() {
+		return this.outData != null;
+	}
 
-		buf.append("Identifier="+this.identifier+"\r\n");
+	public void writeto(OutputStream os) throws IOException {
+		byte[] header = getHeader();
+		os.write(header);
+		writeData(os);
+	}
 
-		for(Enumeration<String> e = Collections.enumeration(this.headers.keySet()); e.hasMoreElements(); ) {
-			String hdr = e.nextElement();
-			String val = this.headers.get(hdr);
+	/**
+	 * Returns everything that is sent before the data.
+	 */
+	byte[] getHeader() {
+		StringBuilder buf = new StringBuilder(64 + 48 * this.headers.size());
 
-			buf.append(hdr+"="+val+"\r\n");
+		buf.append(this.messagetype).append("\r\n");
+		buf.append("Identifier=").append(this.identifier).append("\r\n");
+		for(Map.Entry<String, String> header : this.headers.entrySet()) {
+			buf.append(header.getKey()).append('=').append(header.getValue()).append("\r\n");
 		}
 
 		if(this.outData != null) {
 			buf.append("UploadFrom=direct\r\n");
-			try {
-				buf.append("DataLength="+this.outData.available()+"\r\n");
-			} catch (IOException ioe) {
-				throw new FCPBadFileException();
-			}
+			buf.append("DataLength=").append(this.outDataLength).append("\r\n");
 			buf.append("Data\r\n");
 		} else {
 			buf.append("EndMessage\r\n");
 		}
-		if(buf.length() > 0) {
-			//Logger.normal(this,buf.toString());
-			os.write(buf.toString().getBytes("UTF-8"));
+		return buf.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes the data that was given to {@link #setData(InputStream, long)}.
+	 * If the stream ends early the message can't be finished, so the
+	 * connection has to be dropped.
+	 */
+	void writeData(OutputStream os) throws IOException {
+		if(this.outData == null) {
+			return;
 		}
-		if(this.outData != null) {
-			byte[] bytebuf = new byte[1024];
 
-			int read;
-			while((read = this.outData.read(bytebuf)) > 0) {
+		try {
+			byte[] bytebuf = new byte[8192];
+			long remaining = this.outDataLength;
+			while(remaining > 0) {
+				int read = this.outData.read(bytebuf, 0, (int)Math.min(bytebuf.length, remaining));
+				if(read == -1) {
+					throw new IOException("Data ended " + remaining + " bytes early");
+				}
 				os.write(bytebuf, 0, read);
+				remaining -= read;
 			}
+		} finally {
 			this.outData.close();
 		}
 	}
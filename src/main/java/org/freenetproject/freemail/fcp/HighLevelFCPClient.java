@@ -26,40 +26,136 @@ import java.io.InputStream;
 import java.io.FileInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 
 import org.freenetproject.freemail.Freemail;
 import org.freenetproject.freemail.utils.Logger;
 
+import freenet.support.api.Bucket;
+
 
 public class HighLevelFCPClient implements FCPClient {
 	private static final int FCP_TOO_MANY_PATH_COMPONENTS = 11;
 	private static final int FCP_PERMANANT_REDIRECT = 27;
 
-	private FCPConnection conn;
+	private final FCPConnectionPool pool;
 
-	// FIXME use a map?
-	private final List<FCPMessage> doneMsgs = new LinkedList<FCPMessage>();
+	/** The replies to the requests that haven't finished yet, by identifier */
+	private final ConcurrentMap<String, CompletableFuture<FCPMessage>> replies =
+			new ConcurrentHashMap<String, CompletableFuture<FCPMessage>>();
 
 	public HighLevelFCPClient() {
-		this.conn = Freemail.getFCPConnection();
+		this(Freemail.getFCPConnectionPool());
+	}
+
+	HighLevelFCPClient(FCPConnection conn) {
+		this(new FCPConnectionPool(conn));
+	}
+
+	HighLevelFCPClient(FCPConnectionPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Sends the message to the node without waiting for the reply. The
+	 * returned future is completed with the message that finishes the
+	 * request, which is ConnectionClosed if the connection to the node is lost
+	 * first. Cancelling the future gives up on the request.
+	 */
+	public CompletableFuture<FCPMessage> submit(final FCPMessage msg) throws NoNodeConnectionException,
+	                                                                         ConnectionTerminatedException,
+	                                                                         FCPBadFileException {
+		final FCPConnection conn = pool.getConnection(msg);
+		final CompletableFuture<FCPMessage> reply = new CompletableFuture<FCPMessage>() {
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				replies.remove(msg.getId(), this);
+				conn.cancelRequest(msg);
+				return super.cancel(mayInterruptIfRunning);
+			}
+		};
+		replies.put(msg.getId(), reply);
+		try {
+			conn.doRequest(this, msg);
+		} catch (NoNodeConnectionException e) {
+			replies.remove(msg.getId());
+			throw e;
+		} catch (ConnectionTerminatedException e) {
+			replies.remove(msg.getId());
+			throw e;
+		} catch (FCPBadFileException e) {
+			replies.remove(msg.getId());
+			throw e;
+		}
+		return reply;
 	}
 
 	// It's up to the client to delete this File once they're
 	// done with it
 	public File fetch(String key) throws ConnectionTerminatedException, FCPFetchException, FCPException,
 	                                     InterruptedException {
-		FCPMessage msg = this.conn.getMessage("ClientGet");
+		FCPMessage reply = fetchData(key);
+		return (reply == null) ? null : reply.getData();
+	}
+
+	/**
+	 * Like {@link #fetch(String)}, but small data is returned in memory
+	 * instead of in a temporary file. The caller must free the bucket once
+	 * it is done with it.
+	 */
+	public Bucket fetchBucket(String key) throws ConnectionTerminatedException, FCPFetchException, FCPException,
+	                                             InterruptedException {
+		FCPMessage reply = fetchData(key);
+		return (reply == null) ? null : reply.getDataBucket();
+	}
+
+	/**
+	 * Starts fetching the key and returns without waiting for the node. The
+	 * returned future is completed with what {@link #fetchBucket(String)}
+	 * would return, or exceptionally with the exception it would throw.
+	 * Cancelling the future gives up on the fetch. This only blocks while
+	 * there is no connection to the node.
+	 */
+	public CompletableFuture<Bucket> submitFetch(String key) throws ConnectionTerminatedException,
+	                                                                InterruptedException {
+		PendingFetch fetch = new PendingFetch();
+		fetch.start(submitGet(key));
+		return fetch;
+	}
+
+	private FCPMessage fetchData(String key) throws ConnectionTerminatedException, FCPFetchException, FCPException,
+	                                                InterruptedException {
+		CompletableFuture<FCPMessage> pending = submitGet(key);
+
+		FCPMessage reply;
+		try {
+			reply = getReply(pending);
+		} catch(InterruptedException e) {
+			Logger.debug(this, "HighLevelFCPClient interrupted in fetch, stopping");
+			pending.cancel(false);
+			throw e;
+		}
+
+		String redirect = getRedirect(reply);
+		if(redirect != null) {
+			return this.fetchData(redirect);
+		}
+		return checkFetchReply(reply);
+	}
+
+	private CompletableFuture<FCPMessage> submitGet(String key) throws ConnectionTerminatedException,
+	                                                                   InterruptedException {
+		FCPMessage msg = this.pool.getRequestMessage("ClientGet");
 		msg.headers.put("URI", key);
 		msg.headers.put("ReturnType", "direct");
-		msg.headers.put("Persistence", "connection");
 
 		while(true) {
 			try {
-				this.conn.doRequest(this, msg);
-				break;
+				return submit(msg);
 			} catch (NoNodeConnectionException nnce) {
 				Logger.error(this, "Warning - no connection to node. Waiting...");
 				Thread.sleep(10000);
@@ -68,26 +164,40 @@ public class HighLevelFCPClient implements FCPClient {
 				// but keep the compiler happy
 			}
 		}
+	}
 
-		FCPMessage reply;
-		try {
-			reply = getReply(msg.getId());
-		} catch(InterruptedException e) {
-			Logger.debug(this, "HighLevelFCPClient interrupted in fetch, stopping");
-			conn.cancelRequest(msg);
-			throw e;
+	/**
+	 * Returns the URI the reply to a ClientGet redirects to, or {@code null}
+	 * if it isn't a redirect.
+	 */
+	private static String getRedirect(FCPMessage reply) {
+		if(reply.getMessageType() != FCPMessage.Type.GET_FAILED) {
+			return null;
 		}
 
-		if(reply.getType().equalsIgnoreCase("AllData")) {
-			return reply.getData();
-		} else if(reply.getType().equalsIgnoreCase("GetFailed")) {
+		String s_code = reply.headers.get("Code");
+		if(s_code == null) return null;
+		int code = Integer.parseInt(s_code);
+		if(code == FCP_PERMANANT_REDIRECT || code == FCP_TOO_MANY_PATH_COMPONENTS) {
+			return reply.headers.get("RedirectURI");
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the reply to a ClientGet if it has the data, {@code null} if
+	 * the fetch failed without saying why, and throws the failure otherwise.
+	 */
+	private static FCPMessage checkFetchReply(FCPMessage reply) throws FCPFetchException, FCPException {
+		if(reply.getMessageType() == FCPMessage.Type.ALL_DATA) {
+			return reply;
+		} else if(reply.getMessageType() == FCPMessage.Type.GET_FAILED) {
 			String s_code = reply.headers.get("Code");
 			if(s_code == null) return null;
 			int code = Integer.parseInt(s_code);
 			if(code == FCP_PERMANANT_REDIRECT || code == FCP_TOO_MANY_PATH_COMPONENTS) {
-				String newuri = reply.headers.get("RedirectURI");
-				if(newuri == null) return null;
-				return this.fetch(newuri);
+				//A redirect without a new URI
+				return null;
 			}
 			throw new FCPFetchException(reply);
 		} else {
@@ -95,29 +205,22 @@ public class HighLevelFCPClient implements FCPClient {
 		}
 	}
 
-	private FCPMessage getReply(String identifier) throws InterruptedException {
-		synchronized (doneMsgs) {
-			while(true) {
-				Iterator<FCPMessage> it = doneMsgs.iterator();
-				while(it.hasNext()) {
-					FCPMessage msg = it.next();
-					if(identifier.equals(msg.getId())) {
-						it.remove();
-						return msg;
-					}
-				}
-
-				doneMsgs.wait();
-			}
+	private FCPMessage getReply(CompletableFuture<FCPMessage> pending) throws InterruptedException {
+		try {
+			return pending.get();
+		} catch (ExecutionException e) {
+			//Replies are never completed exceptionally
+			throw new AssertionError(e);
 		}
 	}
 
 	public SSKKeyPair makeSSK() throws ConnectionTerminatedException, InterruptedException {
-		FCPMessage msg = this.conn.getMessage("GenerateSSK");
+		FCPMessage msg = this.pool.getMessage("GenerateSSK");
 
+		CompletableFuture<FCPMessage> pending;
 		while(true) {
 			try {
-				this.conn.doRequest(this, msg);
+				pending = submit(msg);
 				break;
 			} catch (NoNodeConnectionException nnce) {
 				Logger.error(this, "Warning - no connection to node. Waiting...");
@@ -129,14 +232,14 @@ public class HighLevelFCPClient implements FCPClient {
 
 		FCPMessage reply;
 		try {
-			reply = getReply(msg.getId());
+			reply = getReply(pending);
 		} catch(InterruptedException e) {
 			Logger.debug(this, "HighLevelFCPClient interrupted in makeSSK, stopping");
-			conn.cancelRequest(msg);
+			pending.cancel(false);
 			throw e;
 		}
 
-		if(reply.getType().equalsIgnoreCase("SSKKeypair")) {
+		if(reply.getMessageType() == FCPMessage.Type.SSK_KEYPAIR) {
 			SSKKeyPair retval = new SSKKeyPair();
 
 			retval.privkey = reply.headers.get("InsertURI");
@@ -147,17 +250,17 @@ public class HighLevelFCPClient implements FCPClient {
 		}
 	}
 
-	public FCPPutFailedException put(InputStream data, String key) throws FCPBadFileException,
-	                                                                      ConnectionTerminatedException,
-	                                                                      FCPException, InterruptedException {
-		FCPMessage msg = this.conn.getMessage("ClientPut");
+	public FCPPutFailedException put(InputStream data, long length, String key) throws FCPBadFileException,
+	                                                                                   ConnectionTerminatedException,
+	                                                                                   FCPException, InterruptedException {
+		FCPMessage msg = this.pool.getRequestMessage("ClientPut");
 		msg.headers.put("URI", key);
-		msg.headers.put("Persistence", "connection");
-		msg.setData(data);
+		msg.setData(data, length);
 
+		CompletableFuture<FCPMessage> pending;
 		while(true) {
 			try {
-				this.conn.doRequest(this, msg);
+				pending = submit(msg);
 				break;
 			} catch (NoNodeConnectionException nnce) {
 				Logger.error(this, "Warning - no connection to node. Waiting...");
@@ -167,16 +270,16 @@ public class HighLevelFCPClient implements FCPClient {
 
 		FCPMessage reply;
 		try {
-			reply = getReply(msg.getId());
+			reply = getReply(pending);
 		} catch(InterruptedException e) {
 			Logger.debug(this, "HighLevelFCPClient interrupted in put, stopping");
-			conn.cancelRequest(msg);
+			pending.cancel(false);
 			throw e;
 		}
 
-		if(reply.getType().equalsIgnoreCase("PutSuccessful")) {
+		if(reply.getMessageType() == FCPMessage.Type.PUT_SUCCESSFUL) {
 			return null;
-		} else if(reply.getType().equalsIgnoreCase("PutFailed")) {
+		} else if(reply.getMessageType() == FCPMessage.Type.PUT_FAILED) {
 			return new FCPPutFailedException(reply);
 		} else {
 			throw FCPException.create(reply);
@@ -206,7 +309,7 @@ public class HighLevelFCPClient implements FCPClient {
 
 			FCPPutFailedException emsg;
 			try {
-				emsg = this.put(fis, basekey+"-"+slot+suffix);
+				emsg = this.put(fis, data.length(), basekey+"-"+slot+suffix);
 			} catch (FCPBadFileException bfe) {
 				return -1;
 			} catch (FCPException e) {
@@ -247,7 +350,7 @@ public class HighLevelFCPClient implements FCPClient {
 
 			FCPPutFailedException emsg;
 			try {
-				emsg = this.put(bis, basekey+"-"+slot+suffix);
+				emsg = this.put(bis, data.length, basekey+"-"+slot+suffix);
 			} catch (FCPBadFileException bfe) {
 				return -1;
 			} catch (FCPException e) {
@@ -269,6 +372,85 @@ public class HighLevelFCPClient implements FCPClient {
 		return -1;
 	}
 
+	/**
+	 * A fetch started by {@link #submitFetch(String)}. The reply is handled
+	 * on the thread that reads from the node, which also submits the fetch
+	 * of the new URI if the key redirects.
+	 */
+	private class PendingFetch extends CompletableFuture<Bucket> {
+		private volatile CompletableFuture<FCPMessage> request;
+
+		private void start(CompletableFuture<FCPMessage> pending) {
+			request = pending;
+			if(isCancelled()) {
+				pending.cancel(false);
+				return;
+			}
+
+			pending.thenAccept(new Consumer<FCPMessage>() {
+				@Override
+				public void accept(FCPMessage reply) {
+					replyReceived(reply);
+				}
+			});
+		}
+
+		private void replyReceived(FCPMessage reply) {
+			String redirect = getRedirect(reply);
+			if(redirect != null) {
+				reply.release();
+				redirect(redirect);
+				return;
+			}
+
+			Bucket data;
+			try {
+				FCPMessage result = checkFetchReply(reply);
+				data = (result == null) ? null : result.getDataBucket();
+			} catch(FCPException e) {
+				completeExceptionally(e);
+				return;
+			}
+
+			if(!complete(data) && data != null) {
+				//Cancelled while the data was on its way
+				data.free();
+			}
+		}
+
+		private void redirect(String key) {
+			if(isDone()) {
+				return;
+			}
+
+			//Waiting for a connection would hold up the thread reading from
+			//the node, so give up instead
+			FCPMessage msg = pool.getRequestMessage("ClientGet");
+			msg.headers.put("URI", key);
+			msg.headers.put("ReturnType", "direct");
+			try {
+				start(submit(msg));
+			} catch(NoNodeConnectionException e) {
+				completeExceptionally(new ConnectionTerminatedException("No connection to node while following redirect"));
+			} catch(ConnectionTerminatedException e) {
+				completeExceptionally(e);
+			} catch(FCPBadFileException e) {
+				// won't be thrown since this is a get
+				throw new AssertionError(e);
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			CompletableFuture<FCPMessage> current = request;
+			if(current != null) {
+				current.cancel(false);
+			}
+			return cancelled;
+		}
+	}
+
 	@Override
 	public void requestStatus(FCPMessage msg) {
 
@@ -276,9 +458,10 @@ public class HighLevelFCPClient implements FCPClient {
 
 	@Override
 	public void requestFinished(FCPMessage msg) {
-		synchronized(doneMsgs) {
-			doneMsgs.add(msg);
-			doneMsgs.notifyAll();
+		CompletableFuture<FCPMessage> reply = replies.remove(msg.getId());
+		if(reply == null || !reply.complete(msg)) {
+			//Nobody is waiting for it any more
+			msg.release();
 		}
 	}
 }
@@ -26,6 +26,7 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.nio.CharBuffer;
 import java.io.PrintStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.IOException;
@@ -34,21 +35,25 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.TreeMap;
 import java.lang.NumberFormatException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.freenetproject.freemail.AccountManager;
 import org.freenetproject.freemail.FreemailAccount;
 import org.freenetproject.freemail.MailMessage;
+import org.freenetproject.freemail.MailboxEventBus;
 import org.freenetproject.freemail.MessageBank;
 import org.freenetproject.freemail.ServerHandler;
 import org.freenetproject.freemail.utils.Base32;
@@ -58,28 +63,68 @@ import org.freenetproject.freemail.utils.Logger;
 import freenet.support.Base64;
 
 public class IMAPHandler extends ServerHandler implements Runnable {
-	private static final String CAPABILITY = "IMAP4rev1 CHILDREN NAMESPACE";
+	private static final String CAPABILITY = "IMAP4rev1 CHILDREN NAMESPACE IDLE ESEARCH ENABLE CONDSTORE QRESYNC";
+
+	/** The QRESYNC select parameter: uidvalidity, modseq, known UIDs and the ignored sequence match data */
+	private static final Pattern QRESYNC_PARAMETER = Pattern.compile(
+			"\\(QRESYNC \\(([0-9]+) ([0-9]+)(?: ([0-9:,]+))?(?: \\([0-9:,]+ [0-9:,]+\\))?\\)\\)",
+			Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * Size of the buffer responses are collected in. The buffer is flushed
+	 * when there are no further commands waiting to be read, when the client
+	 * must send a literal, and when it fills up.
+	 */
+	private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+
+	/** Clients that send nothing for this long are disconnected */
+	private static final long CLIENT_TIMEOUT = TimeUnit.MINUTES.toMillis(30);
 
 	private final PrintStream ps;
 	private final BufferedReader bufrdr;
 	private MessageBank mb;
+
+	/**
+	 * The UIDs and flags of the messages in the selected folder as the client
+	 * knows them, used to tell an idling client what has changed.
+	 */
+	private SortedMap<Integer, String> knownMessages = null;
+
+	/**
+	 * Set while the client is idling, when changes to the folder are sent
+	 * by the listener. Guarded by the lock on {@link #ps}.
+	 */
+	private boolean idling = false;
+
+	/** Set once the client has used the CONDSTORE extension, see RFC 7162 */
+	private boolean condstore = false;
+
+	/** Set once the client has enabled the QRESYNC extension, see RFC 7162 */
+	private boolean qresync = false;
 	private MessageBank inbox;
 	private final AccountManager accountManager;
 
 	IMAPHandler(AccountManager accMgr, Socket client) throws IOException {
 		super(client);
 		accountManager = accMgr;
-		this.ps = new PrintStream(client.getOutputStream());
+		this.ps = new PrintStream(new BufferedOutputStream(client.getOutputStream(), OUTPUT_BUFFER_SIZE));
 		this.bufrdr = new BufferedReader(new InputStreamReader(client.getInputStream()));
 		this.mb = null;
 	}
 
+	@Override
+	public void refuse() {
+		this.sendState("BYE Too many connections");
+		this.ps.flush();
+		kill();
+	}
+
 	@Override
 	public void run() {
 		this.sendWelcome();
 
 		try {
-			client.setSoTimeout((int) TimeUnit.MINUTES.toMillis(30));
+			client.setSoTimeout((int) CLIENT_TIMEOUT);
 		} catch (SocketException se1) {
 			Logger.warning(this, "Could not set timeout on client socket!", se1);
 		}
@@ -87,6 +132,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		String line;
 		try {
 			while (!stopping && !this.client.isClosed()) {
+				flushUnlessPipelined();
 				try {
 					line = this.bufrdr.readLine();
 					if (line == null) {
@@ -103,6 +149,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 					continue;
 				}
 			}
+			this.ps.flush();
 			this.client.close();
 		} catch (IOException ioe) {
 			//If we are stopping and get a SocketException it is probable that
@@ -115,6 +162,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 
 	private void sendWelcome() {
 		this.ps.print("* OK [CAPABILITY "+CAPABILITY+"] Freemail ready - hit me with your rhythm stick.\r\n");
+		this.ps.flush();
 	}
 
 	private void dispatch(IMAPMessage msg) {
@@ -159,6 +207,10 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			this.handleAppend(msg);
 		} else if(msg.type.equals("search")) {
 			handleSearch(msg);
+		} else if(msg.type.equals("idle")) {
+			handleIdle(msg);
+		} else if(msg.type.equals("enable")) {
+			handleEnable(msg);
 		} else {
 			Logger.error(this, "Unknown IMAP command: " + msg.type);
 			this.reply(msg, "NO Sorry - not implemented");
@@ -199,6 +251,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 	private void handleLogout(IMAPMessage msg) {
 		this.sendState("BYE");
 		this.reply(msg, "OK Bye");
+		this.ps.flush();
 		try {
 			this.client.close();
 		} catch (IOException ioe) {
@@ -317,26 +370,65 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 
 		mbname = trimQuotes(msg.args[0]);
 
+		//Select parameters from RFC 7162, checked before anything changes
+		boolean condstoreParameter = false;
+		String qresyncUidValidity = null;
+		long qresyncModSeq = 0;
+		SequenceSet qresyncKnownUids = null;
+		if(msg.args.length > 1) {
+			String parameters = String.join(" ", Arrays.asList(msg.args).subList(1, msg.args.length));
+			if(parameters.equalsIgnoreCase("(CONDSTORE)")) {
+				condstoreParameter = true;
+			} else {
+				Matcher qresyncParameter = QRESYNC_PARAMETER.matcher(parameters);
+				if(!qresyncParameter.matches()) {
+					this.reply(msg, "BAD Unknown select parameters");
+					return;
+				}
+				if(!qresync) {
+					this.reply(msg, "BAD QRESYNC must be enabled first");
+					return;
+				}
+				try {
+					qresyncUidValidity = qresyncParameter.group(1);
+					qresyncModSeq = Long.parseLong(qresyncParameter.group(2));
+					if(qresyncParameter.group(3) != null) {
+						qresyncKnownUids = parseSequenceSet(qresyncParameter.group(3), Integer.MAX_VALUE);
+					}
+				} catch(NumberFormatException e) {
+					this.reply(msg, "BAD Illegal QRESYNC parameters");
+					return;
+				} catch(IllegalSequenceNumberException e) {
+					this.reply(msg, "BAD Illegal QRESYNC parameters");
+					return;
+				}
+			}
+		}
+
 		MessageBank tempmb = this.getMailboxFromPath(mbname);
 
 		if(tempmb == null) {
 			this.reply(msg, "NO No such mailbox");
 			return;
 		} else {
+			if(qresync && this.mb != null) {
+				this.sendState("OK [CLOSED] Previous mailbox closed");
+			}
 			this.mb = tempmb;
 		}
 
+		if(condstoreParameter) {
+			condstore = true;
+		}
+
 		this.sendState("FLAGS ("+IMAPMessageFlags.getAllFlagsAsString()+")");
 		this.sendState("OK [PERMANENTFLAGS ("+IMAPMessageFlags.getPermanentFlagsAsString()+")] Limited");
 
 		SortedMap<Integer, MailMessage> msgs = this.mb.listMessages();
 
 		int numrecent = 0;
-		int numexists = msgs.size();
-		while(msgs.size() > 0) {
-			Integer current = msgs.firstKey();
-			MailMessage m =msgs.get(msgs.firstKey());
-
+		this.knownMessages = new TreeMap<Integer, String>();
+		for(MailMessage m : msgs.values()) {
 			// if it's recent, add to the tally
 			if(m.flags.isRecent()) {
 				numrecent++;
@@ -346,17 +438,122 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 				m.storeFlags();
 			}
 
-			msgs = msgs.tailMap(new Integer(current.intValue()+1));
+			this.knownMessages.put(Integer.valueOf(m.getUID()), m.flags.getFlags());
 		}
 
-		this.sendState(numexists+" EXISTS");
+		this.sendState(msgs.size()+" EXISTS");
 		this.sendState(numrecent+" RECENT");
 
 		this.sendState("OK [UIDVALIDITY " + mb.getUidValidity() + "] Ok");
 
+		//Required for every select since mod-sequences are stored, RFC 7162 section 3.1.2.1
+		this.sendState("OK [HIGHESTMODSEQ " + mb.getHighestModSeq() + "] Ok");
+
+		//Tell the client what changed since it last saw the folder, unless
+		//the folder has been recreated since then
+		if(qresyncUidValidity != null && qresyncUidValidity.equals(Long.toString(mb.getUidValidity()))) {
+			sendChangesSince(qresyncModSeq, qresyncKnownUids, msgs);
+		}
+
 		this.reply(msg, "OK [READ-WRITE] Done");
 	}
 
+	/**
+	 * Sends the UIDs of the messages that were removed after the given
+	 * modification sequence, and the flags of the messages that changed,
+	 * limited to the UIDs the client knows about if given.
+	 */
+	private void sendChangesSince(long modSeq, SequenceSet knownUids, SortedMap<Integer, MailMessage> messages) {
+		SequenceSet vanished = getVanishedSince(modSeq, knownUids, messages);
+		if(!vanished.isEmpty()) {
+			this.sendState("VANISHED (EARLIER) " + vanished);
+		}
+
+		for(Integer uid : mb.getChangedSince(modSeq)) {
+			MailMessage m = messages.get(uid);
+			if(m == null || (knownUids != null && !knownUids.contains(uid.intValue()))) {
+				continue;
+			}
+			this.sendState(m.getSeqNum() + " FETCH (UID " + uid + " FLAGS (" + m.flags.getFlags() + ") "
+					+ "MODSEQ (" + m.getModSeq() + "))");
+		}
+	}
+
+	/**
+	 * Returns the UIDs of the messages that were removed after the given
+	 * modification sequence, limited to the given UIDs if not {@code null}.
+	 * If the folder doesn't remember removals that far back, all the UIDs
+	 * that aren't in use are returned instead, which RFC 7162 allows. The
+	 * messages of the folder are listed for that if {@code messages} is
+	 * {@code null}.
+	 */
+	private SequenceSet getVanishedSince(long modSeq, SequenceSet knownUids, SortedMap<Integer, MailMessage> messages) {
+		SequenceSet vanished = new SequenceSet();
+
+		SortedSet<Integer> expunged = mb.getExpungedSince(modSeq);
+		if(expunged != null) {
+			for(Integer uid : expunged) {
+				if(knownUids == null || knownUids.contains(uid.intValue())) {
+					vanished.add(uid.intValue());
+				}
+			}
+			return vanished;
+		}
+
+		if(messages == null) {
+			messages = mb.listMessages();
+		}
+		int last = messages.isEmpty() ? 0 : messages.lastKey().intValue();
+		if(knownUids != null && !knownUids.isEmpty()) {
+			last = knownUids.last();
+		}
+		int previous = 0;
+		for(Integer uid : messages.keySet()) {
+			int end = Math.min(uid.intValue() - 1, last);
+			if(end > previous) {
+				vanished.add(previous + 1, end);
+			}
+			previous = uid.intValue();
+		}
+		if(last > previous) {
+			vanished.add(previous + 1, last);
+		}
+		return vanished;
+	}
+
+	private void handleEnable(IMAPMessage msg) {
+		if(!this.verifyAuth(msg)) {
+			return;
+		}
+
+		if(msg.args == null || msg.args.length < 1) {
+			this.reply(msg, "BAD Not enough arguments");
+			return;
+		}
+
+		if(this.mb != null) {
+			this.reply(msg, "BAD ENABLE must be used before selecting a mailbox");
+			return;
+		}
+
+		//Extensions we don't know about are ignored, as are those that are
+		//already enabled
+		StringBuilder enabled = new StringBuilder("ENABLED");
+		for(String extension : msg.args) {
+			if(extension.equalsIgnoreCase("CONDSTORE") && !condstore) {
+				condstore = true;
+				enabled.append(" CONDSTORE");
+			} else if(extension.equalsIgnoreCase("QRESYNC") && !qresync) {
+				qresync = true;
+				condstore = true;
+				enabled.append(" QRESYNC");
+			}
+		}
+
+		this.sendState(enabled.toString());
+		this.reply(msg, "OK Enabled");
+	}
+
 	private void handleNoop(IMAPMessage msg) {
 		this.reply(msg, "OK NOOP completed");
 	}
@@ -388,9 +585,9 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		SortedMap<Integer, MailMessage> msgs = this.mb.listMessages();
+		int messageCount = this.mb.getMessageCount();
 
-		if(msgs.size() == 0) {
+		if(messageCount == 0) {
 			this.reply(msg, "OK Fetch completed");
 			return;
 		}
@@ -400,11 +597,49 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		MailMessage lastMessage = msgs.get(msgs.lastKey());
-		SortedSet<Integer> sequenceNumbers;
+		//Fetch modifiers from RFC 7162 follow the attributes
+		String[] args = msg.args;
+		long changedSince = -1;
+		boolean vanished = false;
+		for(int i = 2; i < args.length; i++) {
+			String arg = args[i].toUpperCase(Locale.ROOT);
+			if(!arg.startsWith("(CHANGEDSINCE") && !arg.startsWith("(VANISHED")) {
+				continue;
+			}
+
+			String modifiers = String.join(" ", Arrays.asList(args).subList(i, args.length));
+			String[] parts = modifiers.replace("(", "").replace(")", "").split(" ");
+			for(int j = 0; j < parts.length; j++) {
+				if(parts[j].equalsIgnoreCase("CHANGEDSINCE") && j + 1 < parts.length) {
+					try {
+						changedSince = Long.parseLong(parts[++j]);
+					} catch(NumberFormatException e) {
+						this.reply(msg, "BAD Illegal CHANGEDSINCE value");
+						return;
+					}
+				} else if(parts[j].equalsIgnoreCase("VANISHED")) {
+					vanished = true;
+				} else {
+					this.reply(msg, "BAD Unknown fetch modifier " + parts[j]);
+					return;
+				}
+			}
+			args = Arrays.copyOf(args, i);
+			break;
+		}
+
+		if(vanished && (!uid || !qresync || changedSince < 0)) {
+			this.reply(msg, "BAD VANISHED needs UID FETCH with CHANGEDSINCE and QRESYNC enabled");
+			return;
+		}
+		if(changedSince >= 0) {
+			condstore = true;
+		}
+
+		SequenceSet sequenceNumbers;
 		try {
 			sequenceNumbers = parseSequenceSet(msg.args[0],
-					uid ? lastMessage.getUID() : lastMessage.getSeqNum());
+					uid ? this.mb.getLastUid() : messageCount);
 		} catch(NumberFormatException e) {
 			this.reply(msg, "BAD Illegal sequence number set");
 			return;
@@ -414,25 +649,34 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		}
 
 		if(!uid) {
-			if(sequenceNumbers.first() < 1 || sequenceNumbers.last() > lastMessage.getSeqNum()) {
+			if(sequenceNumbers.first() < 1 || sequenceNumbers.last() > messageCount) {
 				reply(msg, "NO Invalid message ID");
 				return;
 			}
 		}
 
-		//Return the messages in the range
-		for(MailMessage message : msgs.values()) {
-			if(uid) {
-				if(!sequenceNumbers.contains(message.getUID())) {
-					continue;
+		SortedMap<Integer, MailMessage> msgs = listMessages(sequenceNumbers, uid);
+		Collection<MailMessage> candidates = msgs.values();
+		if(changedSince >= 0) {
+			if(vanished) {
+				SequenceSet vanishedUids = getVanishedSince(changedSince, sequenceNumbers, null);
+				if(!vanishedUids.isEmpty()) {
+					this.sendState("VANISHED (EARLIER) " + vanishedUids);
 				}
-			} else {
-				if(!sequenceNumbers.contains(message.getSeqNum())) {
-					continue;
+			}
+
+			candidates = new LinkedList<MailMessage>();
+			for(Integer changed : mb.getChangedSince(changedSince)) {
+				MailMessage message = msgs.get(changed);
+				if(message != null) {
+					candidates.add(message);
 				}
 			}
+		}
 
-			if(!this.fetchSingle(message, msg.args, 1, uid)) {
+		//Return the messages in the range
+		for(MailMessage message : candidates) {
+			if(!this.fetchSingle(message, args, 1, uid, changedSince >= 0)) {
 				this.reply(msg, "BAD Unknown attribute in list or unterminated list");
 				return;
 			}
@@ -493,16 +737,15 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		SortedMap<Integer, MailMessage> msgs = this.mb.listMessages();
-		if(msgs.size() == 0) {
+		int lastUid = this.mb.getLastUid();
+		if(lastUid == 0) {
 			this.reply(msg, "NO No such message");
 			return;
 		}
 
-		Set<Integer> ts;
+		SequenceSet ts;
 		try {
-			MailMessage lastMessage = msgs.get(msgs.lastKey());
-			ts = parseSequenceSet(msg.args[1], lastMessage.getUID());
+			ts = parseSequenceSet(msg.args[1], lastUid);
 		} catch(NumberFormatException e) {
 			this.reply(msg, "BAD Illegal sequence number set");
 			return;
@@ -511,40 +754,29 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		Iterator<MailMessage> msgIt = msgs.values().iterator();
-		while(msgIt.hasNext()) {
-			if(!ts.contains(msgIt.next().getUID())) {
-				msgIt.remove();
-			}
-		}
-
-		if(!this.doStore(msg.args, 2, msgs.values(), msg, true)) {
-			return;
-		}
-
-		this.reply(msg, "OK Store completed");
+		conditionalStore(msg, 2, listMessages(ts, true).values(), true);
 	}
 
-	private boolean fetchSingle(MailMessage msg, String[] args, int firstarg, boolean send_uid_too) {
+	private boolean fetchSingle(MailMessage msg, String[] args, int firstarg, boolean send_uid_too, boolean send_modseq_too) {
 		String[] imap_args = args.clone();
 		this.ps.print("* "+msg.getSeqNum()+" FETCH (");
 
 		// do the first attribute, if it's a loner.
 		if(!imap_args[firstarg].startsWith("(")) {
 			// It's a loner
-			this.ps.flush();
 			if(!this.sendAttr(msg, imap_args[firstarg])){
 				// send fake end delimiter, so we do not break the protocol
 				this.ps.print(")\r\n");
-				this.ps.flush();
 				return false;
 			}
 			if(send_uid_too && !imap_args[firstarg].equalsIgnoreCase("uid")) {
 				this.ps.print(" UID "+msg.getUID());
 			}
+			if(send_modseq_too && !imap_args[firstarg].equalsIgnoreCase("modseq")) {
+				this.ps.print(" MODSEQ ("+msg.getModSeq()+")");
+			}
 
 			this.ps.print(")\r\n");
-			this.ps.flush();
 
 			return true;
 		} else {
@@ -563,26 +795,28 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 				attr = imap_args[i];
 			}
 
-			//this.ps.print(attr+" ");
-			this.ps.flush();
 			if(!this.sendAttr(msg, attr)) {
 				// send fake end delimiter, so we do not break the protocol
 				this.ps.print(")\r\n");
-				this.ps.flush();
 				return false;
 			}
 
 			if(attr.equalsIgnoreCase("uid")) {
 				send_uid_too = false;
 			}
+			if(attr.equalsIgnoreCase("modseq")) {
+				send_modseq_too = false;
+			}
 
 			if(finish) {
 				if(send_uid_too) {
 					this.ps.print(" UID "+msg.getUID());
 				}
+				if(send_modseq_too) {
+					this.ps.print(" MODSEQ ("+msg.getModSeq()+")");
+				}
 
 				this.ps.print(")\r\n");
-				this.ps.flush();
 				return true;
 			} else if((i + 1) < imap_args.length) {
 				//Only print a space if there are more arguments to deal with
@@ -595,7 +829,6 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			this.ps.print(" UID "+msg.getUID());
 		}
 		this.ps.print(")\r\n");
-		this.ps.flush();
 
 		return false;
 	}
@@ -606,6 +839,9 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 
 		if(attr.equals("uid")) {
 			val = Integer.toString(mmsg.getUID());
+		} else if(attr.equals("modseq")) {
+			condstore = true;
+			val = "(" + mmsg.getModSeq() + ")";
 		} else if(attr.equals("flags")) {
 			val = "(" + mmsg.flags.getFlags() + ")";
 		} else if(attr.equals("rfc822.size")) {
@@ -618,7 +854,6 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			val = this.getEnvelope(mmsg);
 		} else if(attr.startsWith("body.peek")) {
 			this.ps.print(a.substring(0, "body".length()));
-			this.ps.flush();
 			a = a.substring("body.peek".length());
 			return this.sendBody(mmsg, a, false);
 		} else if(attr.startsWith("bodystructure")) {
@@ -631,7 +866,6 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			mmsg.flags.setSeen();
 
 			this.ps.print(a.substring(0, "body".length()));
-			this.ps.flush();
 			a = a.substring("body".length());
 			if(this.sendBody(mmsg, a, false)) {
 				mmsg.flags.setSeen();
@@ -641,7 +875,6 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return false;
 		} else if(attr.startsWith("rfc822.header")) {
 			this.ps.print(a.substring(0, "rfc822.header".length()));
-			this.ps.flush();
 			return this.sendBody(mmsg, "header", true);
 		} else if(attr.startsWith("internaldate")) {
 			/*
@@ -704,48 +937,16 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 					this.ps.print("<"+range_start+">");
 				}
 
-				long partsize=0;
-				if(range_start==-1) {
-					partsize=mmsg.getSize();
-				} else {
-					partsize=range_len;
-					if(mmsg.getSize()-range_start<partsize) {
-						partsize=mmsg.getSize()-range_start;
-					}
+				long size = mmsg.getSize();
+				long start = 0;
+				long partsize = size;
+				if(range_start != -1) {
+					start = Math.min(range_start, size);
+					partsize = Math.max(0, Math.min(range_len, size - start));
 				}
 
 				this.ps.print(" {"+partsize+"}\r\n");
-
-				String line;
-				while((line = mmsg.readLine()) != null) {
-					line=line+"\r\n";
-					if(range_start>0) {
-						if(range_start>=line.length()) {
-							range_start-=line.length();
-							line="";
-						} else {
-							line=line.substring(range_start);
-							range_start=0;
-						}
-					}
-					if(range_start==0 || range_start==-1) {
-						if(range_len==-1) {
-							this.ps.print(line);
-						} else {
-							if(range_len>0) {
-								if(range_len<line.length()) {
-									line=line.substring(0, range_len);
-									range_len=line.length();
-								}
-								this.ps.print(line);
-								range_len-=line.length();
-								if(range_len<0) {
-									range_len=0;
-								}
-							}
-						}
-					}
-				}
+				mmsg.writeTo(this.ps, start, partsize);
 			} catch (IOException ioe) {
 				return false;
 			} finally {
@@ -839,12 +1040,9 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		SortedMap<Integer, MailMessage> msgs = this.mb.listMessages();
-
-		Set<Integer> ts;
+		SequenceSet ts;
 		try {
-			MailMessage lastMessage = msgs.get(msgs.lastKey());
-			ts = parseSequenceSet(msg.args[0], lastMessage.getUID());
+			ts = parseSequenceSet(msg.args[0], this.mb.getMessageCount());
 		} catch(NumberFormatException e) {
 			this.reply(msg, "BAD Illegal sequence number set");
 			return;
@@ -853,18 +1051,51 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		Iterator<MailMessage> msgIt = msgs.values().iterator();
-		while(msgIt.hasNext()) {
-			if(!ts.contains(msgIt.next().getSeqNum())) {
-				msgIt.remove();
+		conditionalStore(msg, 1, listMessages(ts, false).values(), false);
+	}
+
+	/**
+	 * Handles the UNCHANGEDSINCE store modifier from RFC 7162, if present,
+	 * before storing the flags. Messages that have changed since the given
+	 * modification sequence are left alone and listed in the reply.
+	 */
+	private void conditionalStore(IMAPMessage msg, int offset, Collection<MailMessage> mmsgs, boolean uid) {
+		SequenceSet modified = new SequenceSet();
+		if(msg.args.length > offset + 1 && msg.args[offset].toUpperCase(Locale.ROOT).startsWith("(UNCHANGEDSINCE")) {
+			long unchangedSince;
+			try {
+				unchangedSince = Long.parseLong(msg.args[offset + 1].replace(")", ""));
+			} catch(NumberFormatException e) {
+				this.reply(msg, "BAD Illegal UNCHANGEDSINCE value");
+				return;
+			}
+			condstore = true;
+			offset += 2;
+
+			Iterator<MailMessage> it = mmsgs.iterator();
+			while(it.hasNext()) {
+				MailMessage message = it.next();
+				if(message.getModSeq() > unchangedSince) {
+					modified.add(uid ? message.getUID() : message.getSeqNum());
+					it.remove();
+				}
 			}
 		}
 
-		if(!doStore(msg.args, 1, msgs.values(), msg, false)) {
+		if(msg.args.length <= offset) {
+			this.reply(msg, "BAD Not enough arguments");
+			return;
+		}
+
+		if(!doStore(msg.args, offset, mmsgs, msg, uid)) {
 			return;
 		}
 
-		this.reply(msg, "OK Store completed");
+		if(modified.isEmpty()) {
+			this.reply(msg, "OK Store completed");
+		} else {
+			this.reply(msg, "OK [MODIFIED " + modified + "] Conditional STORE failed");
+		}
 	}
 
 	private boolean doStore(String[] args, int offset, Collection<MailMessage> mmsgs, IMAPMessage msg, boolean senduid) {
@@ -908,17 +1139,35 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			}
 		}
 
+		//The client is told about the new flags below, or asked not to be
+		for(MailMessage message : mmsgs) {
+			Integer uid = Integer.valueOf(message.getUID());
+			if(knownMessages != null && knownMessages.containsKey(uid)) {
+				knownMessages.put(uid, message.flags.getFlags());
+			}
+		}
+
 		if(msg.args[offset].toLowerCase(Locale.ROOT).indexOf("silent") < 0) {
 			for(MailMessage message : mmsgs) {
 				StringBuffer buf = new StringBuffer("");
 
 				buf.append(message.getSeqNum());
-				if(senduid) {
-					buf.append(" FETCH (UID ");
-					buf.append(message.getUID());
-					buf.append(" FLAGS (");
+				if(senduid || condstore) {
+					buf.append(" FETCH (");
+					if(senduid) {
+						buf.append("UID ");
+						buf.append(message.getUID());
+						buf.append(" ");
+					}
+					buf.append("FLAGS (");
 					buf.append(message.flags.getFlags());
-					buf.append("))");
+					buf.append(")");
+					if(condstore) {
+						buf.append(" MODSEQ (");
+						buf.append(message.getModSeq());
+						buf.append(")");
+					}
+					buf.append(")");
 				} else {
 
 					buf.append(" FETCH FLAGS (");
@@ -959,6 +1208,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 
 		this.expunge(false);
 		this.mb = null;
+		this.knownMessages = null;
 
 		this.reply(msg, "OK Mailbox closed");
 	}
@@ -966,14 +1216,160 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 	private void expunge(boolean verbose) {
 		MailMessage[] mmsgs = this.mb.listMessagesArray();
 
+		//With QRESYNC the removed messages are sent as one VANISHED response
+		SequenceSet vanished = new SequenceSet();
 		int count_correction=0;
 		for(int i = 0; i < mmsgs.length; i++) {
 			if(mmsgs[i].flags.isDeleted()) {
 				mmsgs[i].delete();
-				if(verbose) this.sendState((i+1-count_correction)+" EXPUNGE");
+				if(verbose && !qresync) this.sendState((i+1-count_correction)+" EXPUNGE");
+				vanished.add(mmsgs[i].getUID());
 				count_correction++;
+
+				if(knownMessages != null) {
+					knownMessages.remove(Integer.valueOf(mmsgs[i].getUID()));
+				}
+			}
+		}
+
+		if(verbose && qresync && !vanished.isEmpty()) {
+			this.sendState("VANISHED " + vanished);
+		}
+	}
+
+	private void handleIdle(IMAPMessage msg) {
+		if(!this.verifyAuth(msg)) {
+			return;
+		}
+
+		if(this.mb == null) {
+			this.reply(msg, "NO No mailbox selected");
+			return;
+		}
+
+		//The listener writes the updates itself while this thread waits for
+		//the client's DONE, so an idling client only holds one thread. The
+		//updates are small and go through the buffered stream, so the
+		//thread that changed the folder is only held up briefly
+		MessageBank folder = this.mb;
+		MailboxEventBus.Listener listener = new MailboxEventBus.Listener() {
+			@Override
+			public void mailboxChanged(MailboxEventBus.ChangeType type, int uid) {
+				synchronized(ps) {
+					if(idling) {
+						sendMailboxUpdates();
+						ps.flush();
+					}
+				}
+			}
+		};
+
+		String line;
+		folder.addListener(listener);
+		try {
+			synchronized(ps) {
+				sendMailboxUpdates();
+				this.ps.print("+ idling\r\n");
+				this.ps.flush();
+				idling = true;
+			}
+
+			line = this.bufrdr.readLine();
+		} catch (SocketTimeoutException ste) {
+			synchronized(ps) {
+				idling = false;
+				sendState("BYE Automatically disconnected, too much idleness");
+				ps.flush();
+			}
+			stopping = true;
+			return;
+		} catch (IOException ioe) {
+			//The connection is broken, so the session is over
+			Logger.debug(this, "Connection lost while idling: " + ioe.getMessage());
+			stopping = true;
+			return;
+		} finally {
+			synchronized(ps) {
+				idling = false;
+			}
+			folder.removeListener(listener);
+		}
+
+		if(line == null) {
+			//The client has closed the connection
+			stopping = true;
+			return;
+		}
+
+		if(!line.trim().equalsIgnoreCase("DONE")) {
+			this.reply(msg, "BAD Expected DONE");
+			return;
+		}
+
+		this.reply(msg, "OK IDLE terminated");
+	}
+
+	/**
+	 * Sends untagged responses for the changes to the selected folder since
+	 * the client last learned about its contents: EXPUNGE for messages that
+	 * are gone, FETCH for messages with new flags and EXISTS if messages
+	 * have been added.
+	 */
+	private void sendMailboxUpdates() {
+		SortedMap<Integer, MailMessage> current = this.mb.listMessages();
+
+		//With QRESYNC all the removed messages are sent as one VANISHED
+		//response, before the sequence numbers below are worked out
+		if(qresync) {
+			SequenceSet vanished = new SequenceSet();
+			Iterator<Integer> uids = knownMessages.keySet().iterator();
+			while(uids.hasNext()) {
+				Integer uid = uids.next();
+				if(!current.containsKey(uid)) {
+					vanished.add(uid.intValue());
+					uids.remove();
+				}
+			}
+			if(!vanished.isEmpty()) {
+				this.sendState("VANISHED " + vanished);
+			}
+		}
+
+		int seqNum = 1;
+		Iterator<Map.Entry<Integer, String>> it = knownMessages.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<Integer, String> known = it.next();
+			MailMessage m = current.get(known.getKey());
+			if(m == null) {
+				this.sendState(seqNum + " EXPUNGE");
+				it.remove();
+				continue;
+			}
+
+			String flags = m.flags.getFlags();
+			if(!flags.equals(known.getValue())) {
+				if(condstore) {
+					this.sendState(seqNum + " FETCH (FLAGS (" + flags + ") UID " + m.getUID()
+							+ " MODSEQ (" + m.getModSeq() + "))");
+				} else {
+					this.sendState(seqNum + " FETCH (FLAGS (" + flags + ") UID " + m.getUID() + ")");
+				}
+				known.setValue(flags);
+			}
+			seqNum++;
+		}
+
+		boolean added = false;
+		for(MailMessage m : current.values()) {
+			Integer uid = Integer.valueOf(m.getUID());
+			if(!knownMessages.containsKey(uid)) {
+				knownMessages.put(uid, m.flags.getFlags());
+				added = true;
 			}
 		}
+		if(added) {
+			this.sendState(knownMessages.size() + " EXISTS");
+		}
 	}
 
 	private void handleNamespace(IMAPMessage msg) {
@@ -1055,6 +1451,9 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 				buf.append(Integer.toString(lastuid + 1));
 			} else if(arg.equalsIgnoreCase("uidvalidity")) {
 				buf.append("1");
+			} else if(arg.equalsIgnoreCase("highestmodseq")) {
+				condstore = true;
+				buf.append(Long.toString(statmb.getHighestModSeq()));
 			}
 		}
 
@@ -1157,12 +1556,11 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		SortedMap<Integer, MailMessage> msgs = this.mb.listMessages();
-		MailMessage lastMessage = msgs.get(msgs.lastKey());
+		int messageCount = this.mb.getMessageCount();
 
-		SortedSet<Integer> ts;
+		SequenceSet ts;
 		try {
-			ts = parseSequenceSet(msg.args[0], uid ? lastMessage.getUID() : lastMessage.getSeqNum());
+			ts = parseSequenceSet(msg.args[0], uid ? this.mb.getLastUid() : messageCount);
 		} catch(NumberFormatException e) {
 			this.reply(msg, "BAD Illegal sequence number set");
 			return;
@@ -1172,25 +1570,13 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		}
 
 		if(!uid) {
-			if(ts.first() < 1 || ts.last() > lastMessage.getSeqNum()) {
+			if(ts.first() < 1 || ts.last() > messageCount) {
 				reply(msg, "NO Invalid message ID");
 				return;
 			}
 		}
 
-		Iterator<MailMessage> msgIt = msgs.values().iterator();
-		while(msgIt.hasNext()) {
-			MailMessage message = msgIt.next();
-			if(uid) {
-				if(!ts.contains(message.getUID())) {
-					msgIt.remove();
-				}
-			} else {
-				if(!ts.contains(message.getSeqNum())) {
-					msgIt.remove();
-				}
-			}
-		}
+		SortedMap<Integer, MailMessage> msgs = listMessages(ts, uid);
 
 		MessageBank target = getMailboxFromPath(trimQuotes(msg.args[1]));
 		if(target == null) {
@@ -1261,6 +1647,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 
 		MailMessage newmsg = destmb.createMessage();
 		this.ps.print("+ OK\r\n");
+		this.ps.flush();
 		try {
 			PrintStream msgps = newmsg.getRawStream();
 
@@ -1316,15 +1703,54 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
+		//Result options from RFC 4731 (ESEARCH), null for a normal SEARCH response
+		Set<String> returnOptions = null;
+		if(msg.args[0].equalsIgnoreCase("RETURN")) {
+			returnOptions = new HashSet<String>();
+			int offset = 1;
+			while(offset < msg.args.length) {
+				String option = msg.args[offset++];
+				boolean last = option.endsWith(")");
+				option = option.replace("(", "").replace(")", "");
+				if(!option.isEmpty()) {
+					returnOptions.add(option.toUpperCase(Locale.ROOT));
+				}
+				if(last) {
+					break;
+				}
+			}
+
+			if(offset >= msg.args.length) {
+				reply(msg, "BAD Missing search criteria");
+				return;
+			}
+
+			for(String option : returnOptions) {
+				if(!Arrays.asList("MIN", "MAX", "ALL", "COUNT").contains(option)) {
+					reply(msg, "BAD Unknown search result option " + option);
+					return;
+				}
+			}
+			if(returnOptions.isEmpty()) {
+				returnOptions.add("ALL");
+			}
+
+			String[] criteria = new String[msg.args.length - offset];
+			System.arraycopy(msg.args, offset, criteria, 0, criteria.length);
+			msg = new IMAPMessage(msg.tag, msg.type, criteria);
+		}
+
 		if(msg.args[0].equalsIgnoreCase("CHARSET")) {
 			reply(msg, "NO [BADCHARSET] Freemail doesn't support specifying CHARSET");
 			return;
 		}
 
-		Map<Integer, MailMessage> messages = mb.listMessages();
+		SortedMap<Integer, MailMessage> messages = mb.listMessages();
+		int lastUid = messages.isEmpty() ? 0 : messages.lastKey();
+		int lastSeqNum = messages.size();
 		try {
 			for(MailMessage message : messages.values()) {
-				message.readHeaders();
+				message.readSummaryHeaders();
 			}
 		} catch(IOException e) {
 			sendState("BAD Internal server error while searching messages");
@@ -1366,6 +1792,10 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			}
 		}
 
+		//Set if the MODSEQ key was used, in which case the highest
+		//modification sequence of the results is included in the response
+		boolean modSeqSearch = false;
+
 		//Index of the next search key
 		int offset = 0;
 		while(offset < msg.args.length) {
@@ -1381,6 +1811,60 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 				continue;
 			}
 
+			//Sequence number and UID sets
+			boolean uidSet = msg.args[offset].equalsIgnoreCase("UID") && offset + 1 < msg.args.length;
+			if(uidSet || msg.args[offset].matches("[0-9*:,]+")) {
+				String set = uidSet ? msg.args[offset + 1] : msg.args[offset];
+				SequenceSet numbers;
+				try {
+					numbers = parseSequenceSet(set, uidSet ? lastUid : lastSeqNum);
+				} catch(NumberFormatException e) {
+					reply(msg, "BAD Illegal sequence number set");
+					return;
+				} catch(IllegalSequenceNumberException e) {
+					reply(msg, "BAD Illegal sequence number set");
+					return;
+				}
+
+				Iterator<MailMessage> it = messages.values().iterator();
+				while(it.hasNext()) {
+					MailMessage message = it.next();
+					if(!numbers.contains(uidSet ? message.getUID() : message.getSeqNum())) {
+						it.remove();
+					}
+				}
+				offset += uidSet ? 2 : 1;
+				continue;
+			}
+
+			if(msg.args[offset].equalsIgnoreCase("MODSEQ") && offset + 1 < msg.args.length) {
+				//Flags don't have modification sequences of their own, so
+				//the optional entry name and type are ignored
+				int valueOffset = offset + 1;
+				if(msg.args[valueOffset].startsWith("\"") && valueOffset + 2 < msg.args.length) {
+					valueOffset += 2;
+				}
+
+				long modSeq;
+				try {
+					modSeq = Long.parseLong(msg.args[valueOffset]);
+				} catch(NumberFormatException e) {
+					reply(msg, "BAD Illegal modification sequence");
+					return;
+				}
+				condstore = true;
+				modSeqSearch = true;
+
+				Iterator<MailMessage> it = messages.values().iterator();
+				while(it.hasNext()) {
+					if(it.next().getModSeq() < modSeq) {
+						it.remove();
+					}
+				}
+				offset = valueOffset + 1;
+				continue;
+			}
+
 			//Check the various flag state filters
 			if(msg.args[offset].equalsIgnoreCase("ANSWERED")) {
 				filterMessagesOnFlag(messages.values(), IMAPMessageFlags.FLAG_ANSWERED, true);
@@ -1462,66 +1946,158 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 
 			//Header searches
 			if(msg.args[offset].equalsIgnoreCase("BCC")) {
-				String searchString = msg.args[offset + 2];
+				String searchString = trimQuotes(msg.args[offset + 1]);
+				retainSearchCandidates(messages, MessageBank.SearchField.BCC, searchString);
 				filterMessagesOnHeader(messages.values(), "BCC", searchString);
 				offset += 2;
 				continue;
 			}
 
 			if(msg.args[offset].equalsIgnoreCase("CC")) {
-				String searchString = msg.args[offset + 1];
+				String searchString = trimQuotes(msg.args[offset + 1]);
+				retainSearchCandidates(messages, MessageBank.SearchField.CC, searchString);
 				filterMessagesOnHeader(messages.values(), "CC", searchString);
 				offset += 2;
 				continue;
 			}
 
 			if(msg.args[offset].equalsIgnoreCase("FROM")) {
-				String searchString = msg.args[offset + 1];
+				String searchString = trimQuotes(msg.args[offset + 1]);
+				retainSearchCandidates(messages, MessageBank.SearchField.FROM, searchString);
 				filterMessagesOnHeader(messages.values(), "FROM", searchString);
 				offset += 2;
 				continue;
 			}
 
 			if(msg.args[offset].equalsIgnoreCase("SUBJECT")) {
-				String searchString = msg.args[offset + 1];
+				String searchString = trimQuotes(msg.args[offset + 1]);
+				retainSearchCandidates(messages, MessageBank.SearchField.SUBJECT, searchString);
 				filterMessagesOnHeader(messages.values(), "SUBJECT", searchString);
 				offset += 2;
 				continue;
 			}
 
 			if(msg.args[offset].equalsIgnoreCase("TO")) {
-				String searchString = msg.args[offset + 1];
+				String searchString = trimQuotes(msg.args[offset + 1]);
+				retainSearchCandidates(messages, MessageBank.SearchField.TO, searchString);
 				filterMessagesOnHeader(messages.values(), "TO", searchString);
 				offset += 2;
 				continue;
 			}
 
 			if(msg.args[offset].equalsIgnoreCase("HEADER")) {
-				String headerName = msg.args[offset + 1];
-				String searchString = msg.args[offset + 2];
+				String headerName = trimQuotes(msg.args[offset + 1]);
+				String searchString = trimQuotes(msg.args[offset + 2]);
+				retainSearchCandidates(messages, MessageBank.SearchField.HEADER, searchString);
+				if(!MailMessage.isSummaryHeader(headerName)) {
+					//Not in the header cache, so read the full headers
+					try {
+						for(MailMessage message : messages.values()) {
+							message.readHeaders();
+						}
+					} catch(IOException e) {
+						reply(msg, "NO Internal server error while searching messages");
+						return;
+					}
+				}
 				filterMessagesOnHeader(messages.values(), headerName, searchString);
 				offset += 3;
 				continue;
 			}
 
+			//Body and full text searches
+			if(msg.args[offset].equalsIgnoreCase("BODY") || msg.args[offset].equalsIgnoreCase("TEXT")) {
+				boolean body = msg.args[offset].equalsIgnoreCase("BODY");
+				String searchString = trimQuotes(msg.args[offset + 1]);
+				retainSearchCandidates(messages, body ? MessageBank.SearchField.BODY : MessageBank.SearchField.TEXT,
+						searchString);
+				try {
+					Iterator<MailMessage> it = messages.values().iterator();
+					while(it.hasNext()) {
+						MailMessage message = it.next();
+						if(!(body ? message.bodyContains(searchString) : message.textContains(searchString))) {
+							it.remove();
+						}
+					}
+				} catch(IOException e) {
+					reply(msg, "NO Internal server error while searching messages");
+					return;
+				}
+				offset += 2;
+				continue;
+			}
+
 			//For now we don't support any of the rest
 			reply(msg, "NO Criteria " + msg.args[offset] + " hasn't been implemented");
 			return;
 		}
 
 		//Handled all the criteria, so lets send the results back
-		StringBuilder reply = new StringBuilder("SEARCH");
+		long highestModSeq = 0;
 		for(MailMessage message : messages.values()) {
-			if(uid) {
-				reply.append(" " + message.getUID());
-			} else {
-				reply.append(" " + message.getSeqNum());
+			highestModSeq = Math.max(highestModSeq, message.getModSeq());
+		}
+
+		if(returnOptions == null) {
+			StringBuilder reply = new StringBuilder("SEARCH");
+			for(MailMessage message : messages.values()) {
+				reply.append(' ').append(uid ? message.getUID() : message.getSeqNum());
+			}
+			if(modSeqSearch && !messages.isEmpty()) {
+				reply.append(" (MODSEQ ").append(highestModSeq).append(')');
+			}
+			sendState(reply.toString());
+		} else {
+			SequenceSet result = new SequenceSet();
+			for(MailMessage message : messages.values()) {
+				result.add(uid ? message.getUID() : message.getSeqNum());
+			}
+			String reply = formatESearchResponse(msg.tag, uid, returnOptions, result);
+			if(modSeqSearch && !messages.isEmpty()) {
+				reply += " MODSEQ " + highestModSeq;
 			}
+			sendState(reply);
 		}
-		sendState(reply.toString());
 		reply(msg, "OK Search completed");
 	}
 
+	/**
+	 * Formats an ESEARCH response as defined by RFC 4731. MIN, MAX and ALL
+	 * are left out if nothing matched.
+	 */
+	private static String formatESearchResponse(String tag, boolean uid, Set<String> returnOptions, SequenceSet result) {
+		StringBuilder reply = new StringBuilder("ESEARCH (TAG \"").append(tag).append("\")");
+		if(uid) {
+			reply.append(" UID");
+		}
+		if(returnOptions.contains("MIN") && !result.isEmpty()) {
+			reply.append(" MIN ").append(result.first());
+		}
+		if(returnOptions.contains("MAX") && !result.isEmpty()) {
+			reply.append(" MAX ").append(result.last());
+		}
+		if(returnOptions.contains("COUNT")) {
+			reply.append(" COUNT ").append(result.size());
+		}
+		if(returnOptions.contains("ALL") && !result.isEmpty()) {
+			reply.append(" ALL ").append(result);
+		}
+		return reply.toString();
+	}
+
+	/**
+	 * Removes the messages that the search index of the selected folder says
+	 * can't contain the search string. The remaining messages must still be
+	 * checked.
+	 */
+	private void retainSearchCandidates(Map<Integer, MailMessage> messages, MessageBank.SearchField field,
+			String searchString) {
+		Set<Integer> candidates = mb.findSearchCandidates(field, searchString);
+		if(candidates != null) {
+			messages.keySet().retainAll(candidates);
+		}
+	}
+
 	private void filterMessagesOnFlag(Collection<MailMessage> messages, String flag, boolean state) {
 		Iterator<MailMessage> it = messages.iterator();
 		while(it.hasNext()) {
@@ -1551,12 +2127,17 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		StringBuffer buf = new StringBuffer("(");
 
 		try {
-			mmsg.readHeaders();
+			mmsg.readSummaryHeaders();
 		} catch (IOException ioe) {
 			//FIXME: Handle IOException properly
 			Logger.error(this, "Caught IOException while reading message headers: " + ioe.getMessage(), ioe);
 		}
 
+		String cached = mmsg.getCachedEnvelope();
+		if(cached != null) {
+			return cached;
+		}
+
 		buf.append(IMAPifyString(mmsg.getFirstHeader("Date"))+" ");
 		buf.append(IMAPifyString(mmsg.getFirstHeader("Subject"))+" ");
 		// from
@@ -1574,6 +2155,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		buf.append(IMAPifyString(mmsg.getFirstHeader("Message-ID")));
 		buf.append(")");
 
+		mmsg.cacheEnvelope(buf.toString());
 		return buf.toString();
 	}
 
@@ -1603,6 +2185,24 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		this.ps.print(msg.tag + " " + reply + "\r\n");
 	}
 
+	/**
+	 * Flushes the buffered responses unless the client has already sent
+	 * another command, in which case the responses are sent together with
+	 * the responses to that command. This is called before reading each
+	 * command, so clients that pipeline commands don't cause one write to
+	 * the socket per command.
+	 */
+	private void flushUnlessPipelined() {
+		try {
+			if(this.bufrdr.ready()) {
+				return;
+			}
+		} catch (IOException ioe) {
+			//Flush anyway, the read will fail later
+		}
+		this.ps.flush();
+	}
+
 	private void sendState(String txt) {
 		Logger.debug(this, "Reply: * " + txt);
 		this.ps.print("* "+txt+"\r\n");
@@ -1619,6 +2219,19 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		return in;
 	}
 
+	/**
+	 * Returns the messages in the selected folder with the UIDs, or the
+	 * sequence numbers if {@code uid} is false, in the given set. Only the
+	 * ranges of the set are looked up in the folder.
+	 */
+	private SortedMap<Integer, MailMessage> listMessages(SequenceSet numbers, boolean uid) {
+		SortedMap<Integer, MailMessage> msgs = new TreeMap<Integer, MailMessage>();
+		for(int i = 0; i < numbers.rangeCount(); i++) {
+			msgs.putAll(this.mb.listMessages(numbers.start(i), numbers.end(i), uid));
+		}
+		return msgs;
+	}
+
 	private boolean verifyAuth(IMAPMessage msg) {
 		if(this.inbox == null) {
 			this.reply(msg, "NO Must be authenticated");
@@ -1627,8 +2240,8 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		return true;
 	}
 
-	private SortedSet<Integer> parseSequenceSet(String seqNum, int maxSeqNum) throws IllegalSequenceNumberException {
-		SortedSet<Integer> result = new TreeSet<Integer>();
+	private SequenceSet parseSequenceSet(String seqNum, int maxSeqNum) throws IllegalSequenceNumberException {
+		SequenceSet result = new SequenceSet();
 
 		//Split on , to get the ranges
 		for(String range : seqNum.split(",")) {
@@ -1654,15 +2267,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 				throw new IllegalSequenceNumberException("Sequence number must be greater than zero");
 			}
 
-			if(from > to) {
-				int temp = from;
-				from = to;
-				to = temp;
-			}
-
-			for(int i = from; i <= to; i++) {
-				result.add(i);
-			}
+			result.add(from, to);
 		}
 
 		return result;
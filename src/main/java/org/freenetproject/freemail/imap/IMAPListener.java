@@ -41,9 +41,12 @@ public class IMAPListener extends ServerListener implements Runnable, ConfigClie
 	private final AccountManager accountManager;
 
 	public IMAPListener(AccountManager accMgr, Configurator cfg) {
+		super("Freemail IMAP Handler");
 		accountManager = accMgr;
 		cfg.register(Configurator.IMAP_BIND_ADDRESS, this, "127.0.0.1");
 		cfg.register(Configurator.IMAP_BIND_PORT, this, Integer.toString(LISTENPORT));
+		cfg.register(Configurator.IMAP_BACKLOG, this, Integer.toString(DEFAULT_BACKLOG));
+		cfg.register(Configurator.IMAP_MAX_CONNECTIONS, this, Integer.toString(DEFAULT_MAX_CONNECTIONS));
 	}
 
 	@Override
@@ -52,6 +55,10 @@ public class IMAPListener extends ServerListener implements Runnable, ConfigClie
 			this.bindaddress = val;
 		} else if(key.equalsIgnoreCase(Configurator.IMAP_BIND_PORT)) {
 			this.bindport = Integer.parseInt(val);
+		} else if(key.equalsIgnoreCase(Configurator.IMAP_BACKLOG)) {
+			this.backlog = Integer.parseInt(val);
+		} else if(key.equalsIgnoreCase(Configurator.IMAP_MAX_CONNECTIONS)) {
+			this.maxConnections = Integer.parseInt(val);
 		}
 	}
 
@@ -65,23 +72,18 @@ public class IMAPListener extends ServerListener implements Runnable, ConfigClie
 	}
 
 	public void realrun() throws IOException {
-		sock = new ServerSocket(this.bindport, 10, InetAddress.getByName(this.bindaddress));
+		sock = new ServerSocket(this.bindport, this.backlog, InetAddress.getByName(this.bindaddress));
 		sock.setSoTimeout(60000);
 		while(!sock.isClosed()) {
 			try {
 				Socket clientSocket = sock.accept();
 				IMAPHandler newcli = new IMAPHandler(accountManager, clientSocket);
-				Thread newthread = new Thread(newcli, "Freemail IMAP Handler for " + clientSocket.getInetAddress());
-				newthread.setDaemon(true);
-				newthread.start();
-				addHandler(newcli, newthread);
+				startHandler(newcli, "Freemail IMAP Handler for " + clientSocket.getInetAddress());
 			} catch (SocketTimeoutException ste) {
 
 			} catch (IOException ioe) {
 
 			}
-
-			reapHandlers();
 		}
 	}
 }
@@ -0,0 +1,161 @@
+/*
+ * SequenceSet.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A set of message sequence numbers or UIDs, stored as sorted ranges that
+ * don't overlap or touch. A set like {@code 1:*} takes the same space no
+ * matter how many messages there are in the folder, and numbers added in
+ * ascending order (as when collecting search results) are appended to the
+ * last range.
+ */
+class SequenceSet {
+	/** The first and last number of each range, in ascending order */
+	private int[] ranges = new int[8];
+	private int rangeCount = 0;
+
+	void add(int number) {
+		add(number, number);
+	}
+
+	/**
+	 * Adds all the numbers from {@code from} to {@code to}, inclusive. The
+	 * order of the arguments doesn't matter.
+	 */
+	void add(int from, int to) {
+		if(from > to) {
+			int temp = from;
+			from = to;
+			to = temp;
+		}
+
+		//Find the ranges that overlap or touch the new one and merge them
+		int first = 0;
+		while(first < rangeCount && (long)end(first) + 1 < from) {
+			first++;
+		}
+
+		int last = first;
+		while(last < rangeCount && start(last) <= (long)to + 1) {
+			from = Math.min(from, start(last));
+			to = Math.max(to, end(last));
+			last++;
+		}
+
+		int newCount = rangeCount - (last - first) + 1;
+		if(newCount * 2 > ranges.length) {
+			ranges = Arrays.copyOf(ranges, Math.max(ranges.length * 2, newCount * 2));
+		}
+		System.arraycopy(ranges, last * 2, ranges, (first + 1) * 2, (rangeCount - last) * 2);
+		ranges[first * 2] = from;
+		ranges[first * 2 + 1] = to;
+		rangeCount = newCount;
+	}
+
+	boolean contains(int number) {
+		int low = 0;
+		int high = rangeCount - 1;
+		while(low <= high) {
+			int mid = (low + high) >>> 1;
+			if(number < start(mid)) {
+				high = mid - 1;
+			} else if(number > end(mid)) {
+				low = mid + 1;
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	boolean isEmpty() {
+		return rangeCount == 0;
+	}
+
+	int first() {
+		if(rangeCount == 0) {
+			throw new NoSuchElementException();
+		}
+		return start(0);
+	}
+
+	int last() {
+		if(rangeCount == 0) {
+			throw new NoSuchElementException();
+		}
+		return end(rangeCount - 1);
+	}
+
+	/**
+	 * Returns the number of numbers in the set.
+	 * @return the number of numbers in the set
+	 */
+	long size() {
+		long size = 0;
+		for(int i = 0; i < rangeCount; i++) {
+			size += (long)end(i) - start(i) + 1;
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the number of ranges in the set. The ranges are numbered from
+	 * 0 in ascending order.
+	 * @return the number of ranges in the set
+	 */
+	int rangeCount() {
+		return rangeCount;
+	}
+
+	/**
+	 * Returns the first number of the given range.
+	 */
+	int start(int range) {
+		return ranges[range * 2];
+	}
+
+	/**
+	 * Returns the last number of the given range.
+	 */
+	int end(int range) {
+		return ranges[range * 2 + 1];
+	}
+
+	/**
+	 * Returns the set in IMAP sequence set syntax, e.g. {@code 1:4,6,8:9}.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder buf = new StringBuilder();
+		for(int i = 0; i < rangeCount; i++) {
+			if(i > 0) {
+				buf.append(',');
+			}
+			buf.append(start(i));
+			if(end(i) != start(i)) {
+				buf.append(':').append(end(i));
+			}
+		}
+		return buf.toString();
+	}
+}
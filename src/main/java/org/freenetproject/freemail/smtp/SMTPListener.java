@@ -43,10 +43,13 @@ public class SMTPListener extends ServerListener implements Runnable, ConfigClie
 	private final Freemail freemail;
 
 	public SMTPListener(AccountManager accMgr, Configurator cfg, Freemail freemail) {
+		super("Freemail SMTP Handler");
 		this.accountManager = accMgr;
 		this.freemail = freemail;
 		cfg.register(Configurator.SMTP_BIND_ADDRESS, this, "127.0.0.1");
 		cfg.register(Configurator.SMTP_BIND_PORT, this, Integer.toString(LISTENPORT));
+		cfg.register(Configurator.SMTP_BACKLOG, this, Integer.toString(DEFAULT_BACKLOG));
+		cfg.register(Configurator.SMTP_MAX_CONNECTIONS, this, Integer.toString(DEFAULT_MAX_CONNECTIONS));
 	}
 
 	@Override
@@ -64,25 +67,24 @@ public class SMTPListener extends ServerListener implements Runnable, ConfigClie
 			this.bindaddress = val;
 		} else if(key.equalsIgnoreCase(Configurator.SMTP_BIND_PORT)) {
 			this.bindport = Integer.parseInt(val);
+		} else if(key.equalsIgnoreCase(Configurator.SMTP_BACKLOG)) {
+			this.backlog = Integer.parseInt(val);
+		} else if(key.equalsIgnoreCase(Configurator.SMTP_MAX_CONNECTIONS)) {
+			this.maxConnections = Integer.parseInt(val);
 		}
 	}
 
 	public void realrun() throws IOException {
-		sock = new ServerSocket(this.bindport, 10, InetAddress.getByName(this.bindaddress));
+		sock = new ServerSocket(this.bindport, this.backlog, InetAddress.getByName(this.bindaddress));
 		while(!sock.isClosed()) {
 			try {
 				IdentityMatcher matcher = new IdentityMatcher(freemail.getWotConnection());
 				Socket clientSocket = sock.accept();
 				SMTPHandler newcli = new SMTPHandler(accountManager, clientSocket, matcher);
-				Thread newthread = new Thread(newcli, "Freemail SMTP Handler for " + clientSocket.getInetAddress());
-				newthread.setDaemon(true);
-				newthread.start();
-				addHandler(newcli, newthread);
+				startHandler(newcli, "Freemail SMTP Handler for " + clientSocket.getInetAddress());
 			} catch (IOException ioe) {
 
 			}
-
-			reapHandlers();
 		}
 	}
 }
@@ -22,22 +22,41 @@
 
 package org.freenetproject.freemail.transport;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.Vector;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
 
 import org.bouncycastle.crypto.AsymmetricBlockCipher;
 import org.bouncycastle.crypto.InvalidCipherTextException;
@@ -81,6 +100,7 @@ import freenet.support.api.Bucket;
 import freenet.support.io.ArrayBucket;
 import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
+import freenet.support.io.FileBucket;
 
 //FIXME: The message id gives away how many messages has been sent over the channel.
 //       Could it be replaced by a different solution that gives away less information?
@@ -90,6 +110,38 @@ class Channel {
 	private static final String ACK_LOG = "acklog";
 	private static final long MAX_ACK_DELAY = 12 * 60 * 60 * 1000; //12 hours
 
+	/**
+	 * The maximum number of acks sent in one insert. Each id takes at most 20
+	 * bytes, so this keeps the ack within a single SSK block.
+	 */
+	private static final int MAX_ACKS_PER_INSERT = 40;
+
+	/**
+	 * The optional features this version supports, sent in the RTS and CTS
+	 * so that each side knows what the other can handle.
+	 */
+	private static final String FEATURE_BUNDLE = "bundle";
+	private static final String FEATURE_DEFLATE = "deflate";
+	private static final String SUPPORTED_FEATURES = FEATURE_BUNDLE + "," + FEATURE_DEFLATE;
+
+	/** The maximum size of the messages sent together in one bundle */
+	static final long MAX_BUNDLE_SIZE = 64 * 1024;
+
+	/**
+	 * The largest message body that is accepted after decompression, so that
+	 * a small insert can't fill the disk of the receiver.
+	 */
+	static final int MAX_INFLATED_SIZE = 16 * 1024 * 1024;
+
+	/** The maximum number of slots of a channel that are fetched at the same time */
+	private static final int MAX_CONCURRENT_FETCHES = 8;
+
+	/** The maximum number of slots of all channels that are fetched at the same time */
+	private static final int MAX_TOTAL_FETCHES = 32;
+
+	/** Permits for slot fetches, shared by the fetchers of all channels */
+	private static final Semaphore fetchPermits = new Semaphore(MAX_TOTAL_FETCHES);
+
 	/**
 	 * The amount of time before the channel times out, in milliseconds. If the channel is created
 	 * at t=0, then messages won't be queued after t=CHANNEL_TIMEOUT, and the fetcher will stop
@@ -114,6 +166,7 @@ class Channel {
 		private static final String FETCH_CODE = "fetchCode";
 		private static final String REMOTE_ID = "remoteID";
 		private static final String TIMEOUT = "timeout";
+		private static final String REMOTE_FEATURES = "remote-features";
 		private static final String MSG_SLOT = ".slot";
 	}
 
@@ -124,22 +177,24 @@ class Channel {
 		private static final String INITIATOR_SLOT = "initiatorSlot";
 		private static final String RESPONDER_SLOT = "responderSlot";
 		private static final String TIMEOUT = "timeout";
+		private static final String FEATURES = "features";
 	}
 
 	private final File channelDir;
 	private final PropsFile channelProps;
-	private final ScheduledExecutorService executor;
+	private final PollScheduler pollScheduler;
 	private final HighLevelFCPClient fcpClient;
 	private final Freemail freemail;
 	private final FreemailAccount account;
 	private final Fetcher fetcher = new Fetcher();
 	private final RTSSender rtsSender = new RTSSender();
+	private final AckInserter ackInserter = new AckInserter();
 	private final AtomicReference<ChannelEventCallback> channelEventCallback = new AtomicReference<ChannelEventCallback>();
 	private final MessageLog ackLog;
 
-	Channel(File channelDir, ScheduledExecutorService executor, HighLevelFCPClient fcpClient, Freemail freemail, FreemailAccount account, String remoteId) throws ChannelTimedOutException {
-		if(executor == null) throw new NullPointerException();
-		this.executor = executor;
+	Channel(File channelDir, PollScheduler pollScheduler, HighLevelFCPClient fcpClient, Freemail freemail, FreemailAccount account, String remoteId) throws ChannelTimedOutException {
+		if(pollScheduler == null) throw new NullPointerException();
+		this.pollScheduler = pollScheduler;
 
 		this.fcpClient = fcpClient;
 		this.account = account;
@@ -164,6 +219,9 @@ class Channel {
 		}
 		channelProps = PropsFile.createPropsFile(channelPropsFile);
 
+		//The slots and keys must be on disk before they are used
+		channelProps.setSync(true);
+
 		//Check if the channel has timed out
 		synchronized(channelProps) {
 			String rawTimeout = channelProps.get(PropsKeys.TIMEOUT);
@@ -243,28 +301,33 @@ class Channel {
 				return;
 			}
 
+			Map<String, String> values = new HashMap<String, String>();
 			if(channelProps.get(PropsKeys.PRIVATE_KEY) == null) {
-				channelProps.put(PropsKeys.PRIVATE_KEY, privateKey);
-				channelProps.put(PropsKeys.PUBLIC_KEY, publicKey);
+				values.put(PropsKeys.PRIVATE_KEY, privateKey);
+				values.put(PropsKeys.PUBLIC_KEY, publicKey);
 			}
 
-			channelProps.put(PropsKeys.FETCH_SLOT, rtsProps.get(RTSKeys.INITIATOR_SLOT));
-			channelProps.put(PropsKeys.FETCH_CODE, "i");
+			values.put(PropsKeys.FETCH_SLOT, rtsProps.get(RTSKeys.INITIATOR_SLOT));
+			values.put(PropsKeys.FETCH_CODE, "i");
 
 			if(channelProps.get(PropsKeys.SEND_CODE) == null) {
-				channelProps.put(PropsKeys.SEND_CODE, "r");
+				values.put(PropsKeys.SEND_CODE, "r");
 			}
 
 			if(channelProps.get(PropsKeys.SEND_SLOT) == null) {
-				channelProps.put(PropsKeys.SEND_SLOT, rtsProps.get(RTSKeys.RESPONDER_SLOT));
+				values.put(PropsKeys.SEND_SLOT, rtsProps.get(RTSKeys.RESPONDER_SLOT));
 			}
 
-			channelProps.put(PropsKeys.TIMEOUT, rtsProps.get(RTSKeys.TIMEOUT));
-			channelProps.put(PropsKeys.RECIPIENT_STATE, "rts-received");
+			values.put(PropsKeys.TIMEOUT, rtsProps.get(RTSKeys.TIMEOUT));
+			if(rtsProps.get(RTSKeys.FEATURES) != null) {
+				values.put(PropsKeys.REMOTE_FEATURES, rtsProps.get(RTSKeys.FEATURES));
+			}
+			values.put(PropsKeys.RECIPIENT_STATE, "rts-received");
+			channelProps.putAll(values);
 		}
 
 		//Queue the CTS insert
-		execute(new CTSInserter());
+		execute(TaskType.ACK, new CTSInserter());
 		startFetcher();
 	}
 
@@ -280,9 +343,9 @@ class Channel {
 	public static boolean deleteChannel(File channelDir) {
 		File channelPropsFile = new File(channelDir, CHANNEL_PROPS_NAME);
 		channelPropsFile.delete();
+		new File(channelDir, CHANNEL_PROPS_NAME + ".tmp").delete();
 
-		File ackLog = new File(channelDir, ACK_LOG);
-		ackLog.delete();
+		MessageLog.delete(new File(channelDir, ACK_LOG));
 
 		return channelDir.delete();
 	}
@@ -295,7 +358,11 @@ class Channel {
 			//Build the header of the inserted message
 			Bucket bucket;
 			try {
-				bucket = new ArrayBucket("messagetype=cts\r\n\r\n".getBytes("UTF-8"));
+				String cts =
+					"messagetype=cts\r\n"
+					+ RTSKeys.FEATURES + "=" + SUPPORTED_FEATURES + "\r\n"
+					+ "\r\n";
+				bucket = new ArrayBucket(cts.getBytes("UTF-8"));
 			} catch (UnsupportedEncodingException e) {
 				//JVMs are required to support UTF-8, so we can assume it is always available
 				throw new AssertionError("JVM doesn't support UTF-8 charset");
@@ -317,7 +384,7 @@ class Channel {
 					channelProps.put(PropsKeys.RECIPIENT_STATE, "cts-sent");
 				}
 			} else {
-				schedule(this, TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
+				schedule(TaskType.ACK, this, TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
 			}
 		}
 	}
@@ -326,39 +393,27 @@ class Channel {
 		startFetcher();
 		startRTSSender();
 
-		//Start insert of acks that were written to disk but not inserted
+		//Start insert of acks that were written to disk but not inserted. The
+		//inserter sends all the acks that are due and reschedules itself for
+		//the rest, so one run is enough
+		boolean pendingAcks;
 		try {
 			synchronized(ackLog) {
-				Iterator<Entry<Long, String>> it = ackLog.iterator();
-				while(it.hasNext()) {
-					Entry<Long, String> entry = it.next();
-					long insertAfter = 0;
-					if(entry.getValue() != null) {
-						try {
-							insertAfter = Long.parseLong(entry.getValue());
-						} catch(NumberFormatException e) {
-							//Assume no delay
-							insertAfter = 0;
-						}
-					}
-
-					ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER);
-					senderExecutor.execute(new AckInserter(entry.getKey(), insertAfter));
-				}
+				pendingAcks = ackLog.iterator().hasNext();
 			}
 		} catch(IOException e) {
 			Logger.error(this, "Caugth IOException while checking acklog: " + e.getMessage(), e);
-		} catch(RejectedExecutionException e) {
-			// Catch it here instead of inside the loop since there is no point
-			// in trying to schedule the rest as we are shutting down.
-			Logger.debug(this, "Caught RejectedExecutionException while scheduling AckInserter (shutting down?)");
+			pendingAcks = false;
+		}
+		if(pendingAcks) {
+			ackInserter.scheduleAt(System.currentTimeMillis());
 		}
 
 		//Start the CTS sender if needed
 		synchronized(channelProps) {
 			String recipientState = channelProps.get(PropsKeys.RECIPIENT_STATE);
 			if("rts-received".equals(recipientState)) {
-				execute(new CTSInserter());
+				execute(TaskType.ACK, new CTSInserter());
 			}
 		}
 	}
@@ -407,41 +462,312 @@ class Channel {
 	boolean sendMessage(Bucket message, long messageId) throws ChannelTimedOutException, IOException, InterruptedException {
 		if(message == null) throw new NullPointerException("Parameter message was null");
 
+		checkSendTimeout();
+
+		//The message is inserted straight from the bucket it is stored in
+		List<Bucket> parts = new ArrayList<Bucket>();
+		List<Bucket> temporary = new ArrayList<Bucket>();
+		try {
+			addMessageParts(message, messageId, parts, temporary);
+			return insertMessage(parts, "msg" + messageId);
+		} finally {
+			freeAll(temporary);
+		}
+	}
+
+	/**
+	 * Returns {@code true} if the remote side can unpack bundles, so that
+	 * {@link #sendMessages(SortedMap, long)} can be used.
+	 * @return {@code true} if messages can be sent in bundles
+	 */
+	boolean canSendBundles() {
+		return remoteSupports(FEATURE_BUNDLE);
+	}
+
+	private boolean remoteSupports(String feature) {
+		String features;
 		synchronized(channelProps) {
-			String rawTimeout = channelProps.get(PropsKeys.TIMEOUT);
-			if(rawTimeout != null) {
-				long timeout;
-				try {
-					timeout = Long.parseLong(rawTimeout);
-				} catch(NumberFormatException e) {
-					timeout = 0;
+			features = channelProps.get(PropsKeys.REMOTE_FEATURES);
+		}
+		if(features == null) {
+			return false;
+		}
+		return Arrays.asList(features.split(",")).contains(feature);
+	}
+
+	/**
+	 * Sends the given messages together in a single insert, returning
+	 * {@code true} if they were inserted. The remote side must support
+	 * bundles (see {@link #canSendBundles()}), and the caller should keep
+	 * the total size below {@link #MAX_BUNDLE_SIZE}. The caller is
+	 * responsible for freeing the buckets.
+	 *
+	 * The bundle is inserted to the slot of the message {@code messageId},
+	 * which is the slot {@link #sendMessage(Bucket, long)} uses for that
+	 * message. If the insert fails the retry uses the same slot, even if it
+	 * carries a different set of messages or only that message, so no slot
+	 * is left assigned and skipped.
+	 * @param messages the data to be sent, by message id
+	 * @param messageId the id of the message whose slot the bundle is inserted to
+	 * @return {@code true} if the messages were sent, {@code false} otherwise
+	 * @throws ChannelTimedOutException if the channel has timed out and can't be used for sending
+	 *             messages
+	 * @throws IOException if any operations on the messages throws IOException
+	 * @throws InterruptedException if the current thread was interrupted while sending the messages
+	 */
+	boolean sendMessages(SortedMap<Long, Bucket> messages, long messageId)
+			throws ChannelTimedOutException, IOException, InterruptedException {
+		if(!messages.containsKey(Long.valueOf(messageId))) {
+			throw new IllegalArgumentException("Message " + messageId + " isn't in the bundle");
+		}
+		if(messages.size() == 1) {
+			return sendMessage(messages.get(Long.valueOf(messageId)), messageId);
+		}
+
+		checkSendTimeout();
+
+		//Each message is included as it would be sent on its own, and the
+		//header lists their lengths so the receiver can split them again
+		List<Bucket> parts = new ArrayList<Bucket>();
+		List<Bucket> temporary = new ArrayList<Bucket>();
+		try {
+			parts.add(null);
+			StringBuilder lengths = new StringBuilder();
+			long bundleSize = 0;
+			for(Entry<Long, Bucket> message : messages.entrySet()) {
+				int first = parts.size();
+				addMessageParts(message.getValue(), message.getKey().longValue(), parts, temporary);
+
+				long size = 0;
+				for(Bucket part : parts.subList(first, parts.size())) {
+					size += part.size();
 				}
+				bundleSize += size;
 
-				if(timeout < System.currentTimeMillis()) {
-					throw new ChannelTimedOutException();
+				if(lengths.length() > 0) {
+					lengths.append(',');
 				}
+				lengths.append(size);
+			}
+
+			String header =
+				"messagetype=bundle\r\n"
+				+ "lengths=" + lengths + "\r\n"
+				+ "\r\n";
+			parts.set(0, new ArrayBucket(header.getBytes("UTF-8")));
+
+			Logger.debug(this, "Sending " + messages.size() + " messages in a bundle of " + bundleSize + " bytes");
+			return insertMessage(parts, "msg" + messageId);
+		} finally {
+			freeAll(temporary);
+		}
+	}
+
+	/**
+	 * Adds the channel header and the body of the message to {@code parts},
+	 * as it is sent on its own. The body is compressed to a temporary file if
+	 * the remote side supports it and that makes it smaller, and that file is
+	 * added to {@code temporary} so that the caller can free it. Bodies larger
+	 * than {@link #MAX_INFLATED_SIZE} are always sent as is, since the remote
+	 * side would reject them after decompression.
+	 */
+	private void addMessageParts(Bucket message, long messageId, List<Bucket> parts, List<Bucket> temporary)
+			throws IOException {
+		Bucket body = message;
+		if(remoteSupports(FEATURE_DEFLATE) && message.size() <= MAX_INFLATED_SIZE) {
+			Bucket compressed = deflate(message);
+			if(compressed.size() < message.size()) {
+				temporary.add(compressed);
+				body = compressed;
+			} else {
+				compressed.free();
 			}
 		}
 
-		//Build the header of the inserted message
 		String header =
 			"messagetype=message\r\n"
 			+ "id=" + messageId + "\r\n"
+			+ (body != message ? "encoding=" + FEATURE_DEFLATE + "\r\n" : "")
 			+ "\r\n";
-		Bucket messageHeader = new ArrayBucket(header.getBytes("UTF-8"));
+		parts.add(new ArrayBucket(header.getBytes("UTF-8")));
+		parts.add(body);
+	}
 
-		//Now combine them in a single bucket
-		ArrayBucket fullMessage = new ArrayBucket();
-		OutputStream messageOutputStream = null;
+	private static Bucket deflate(Bucket data) throws IOException {
+		File file = File.createTempFile("freemail-deflate", null, Freemail.getTempDir());
+		Bucket compressed = new FileBucket(file, false, false, false, true);
+
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		OutputStream os = null;
 		try {
-			messageOutputStream = fullMessage.getOutputStream();
-			BucketTools.copyTo(messageHeader, messageOutputStream, -1);
-			BucketTools.copyTo(message, messageOutputStream, -1);
+			os = new DeflaterOutputStream(compressed.getOutputStream(), deflater);
+			BucketTools.copyTo(data, os, -1);
+			os.close();
+			os = null;
+		} catch(IOException e) {
+			compressed.free();
+			throw e;
 		} finally {
-			Closer.close(messageOutputStream);
+			Closer.close(os);
+			deflater.end();
 		}
+		return compressed;
+	}
+
+	/**
+	 * Assigns the slot to the message and moves the send slot on, in a single
+	 * write. The caller must hold the lock on channelProps.
+	 */
+	private void assignSlot(String prefix, String sendSlot) {
+		Map<String, String> values = new HashMap<String, String>();
+		values.put(PropsKeys.SEND_SLOT, calculateNextSlot(sendSlot));
+		values.put(prefix + PropsKeys.MSG_SLOT, sendSlot);
+		channelProps.putAll(values);
+	}
+
+	static InputStream openConcatenated(List<Bucket> parts) throws IOException {
+		Vector<InputStream> streams = new Vector<InputStream>(parts.size());
+		try {
+			for(Bucket part : parts) {
+				streams.add(part.getInputStream());
+			}
+		} catch(IOException e) {
+			for(InputStream is : streams) {
+				Closer.close(is);
+			}
+			throw e;
+		}
+		return new SequenceInputStream(streams.elements());
+	}
+
+	private static long totalSize(List<Bucket> buckets) {
+		long size = 0;
+		for(Bucket bucket : buckets) {
+			size += bucket.size();
+		}
+		return size;
+	}
 
-		return insertMessage(fullMessage, "msg" + messageId);
+	private static void freeAll(List<Bucket> buckets) {
+		for(Bucket bucket : buckets) {
+			bucket.free();
+		}
+	}
+
+	/**
+	 * Reads the {@code name=value} lines at the start of the data into
+	 * {@code props}, the way PropsFile reads a file. If {@code stopAtBlank}
+	 * is {@code true} reading stops at the first blank line, and the reader
+	 * is returned positioned at the body. Otherwise, or if there is no blank
+	 * line, the reader is closed and {@code null} is returned.
+	 */
+	private static BufferedReader readProps(Bucket data, Map<String, String> props, boolean stopAtBlank)
+			throws IOException {
+		BufferedReader br = new BufferedReader(new InputStreamReader(data.getInputStream(), "UTF-8"));
+		boolean atBody = false;
+		try {
+			String line;
+			while((line = br.readLine()) != null) {
+				if(stopAtBlank && line.length() == 0) {
+					atBody = true;
+					return br;
+				}
+				String[] parts = line.split("=", 2);
+				if(parts.length < 2) continue;
+				props.put(parts[0], parts[1]);
+			}
+			return null;
+		} finally {
+			if(!atBody) {
+				Closer.close(br);
+			}
+		}
+	}
+
+	/**
+	 * Skips the header of the message that is read from {@code is}, returning
+	 * {@code false} if the header doesn't end. The header is ASCII, so it ends
+	 * at the first empty line.
+	 */
+	private static boolean skipHeader(InputStream is) throws IOException {
+		int matched = 0;
+		int b;
+		while((b = is.read()) != -1) {
+			if(b == (matched % 2 == 0 ? '\r' : '\n')) {
+				matched++;
+				if(matched == 4) {
+					return true;
+				}
+			} else {
+				matched = (b == '\r') ? 1 : 0;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Decompresses the body of the message to a temporary file, returning
+	 * {@code null} if the body isn't valid. The caller must free the bucket.
+	 */
+	private Bucket inflateBody(Bucket msg) throws IOException {
+		InputStream is = new BufferedInputStream(msg.getInputStream());
+		File body = File.createTempFile("freemail-inflate", null, Freemail.getTempDir());
+		boolean valid = false;
+		try {
+			if(!skipHeader(is)) {
+				return null;
+			}
+
+			InputStream inflated = new InflaterInputStream(is);
+			OutputStream os = new FileOutputStream(body);
+			try {
+				byte[] buffer = new byte[4096];
+				long size = 0;
+				int read;
+				while((read = inflated.read(buffer)) != -1) {
+					size += read;
+					if(size > MAX_INFLATED_SIZE) {
+						Logger.error(this, "Compressed message body is too large");
+						return null;
+					}
+					os.write(buffer, 0, read);
+				}
+			} catch(ZipException e) {
+				Logger.error(this, "Compressed message body is invalid: " + e.getMessage());
+				return null;
+			} catch(EOFException e) {
+				Logger.error(this, "Compressed message body is truncated");
+				return null;
+			} finally {
+				Closer.close(os);
+			}
+
+			valid = true;
+			return new FileBucket(body, false, false, false, true);
+		} finally {
+			Closer.close(is);
+			if(!valid && !body.delete()) {
+				Logger.error(this, "Deletion of " + body + " failed");
+			}
+		}
+	}
+
+	private void checkSendTimeout() throws ChannelTimedOutException {
+		synchronized(channelProps) {
+			String rawTimeout = channelProps.get(PropsKeys.TIMEOUT);
+			if(rawTimeout != null) {
+				long timeout;
+				try {
+					timeout = Long.parseLong(rawTimeout);
+				} catch(NumberFormatException e) {
+					timeout = 0;
+				}
+
+				if(timeout < System.currentTimeMillis()) {
+					throw new ChannelTimedOutException();
+				}
+			}
+		}
 	}
 
 	/**
@@ -453,6 +779,19 @@ class Channel {
 	 * @throws InterruptedException if the current thread was interrupted while inserting the message
 	 */
 	private boolean insertMessage(Bucket message, String prefix) throws IOException, InterruptedException {
+		return insertMessage(Collections.singletonList(message), prefix);
+	}
+
+	/**
+	 * Inserts the concatenation of the given buckets to the next available
+	 * slot, returning {@code true} if the message was inserted. The buckets
+	 * are read in turn while inserting, so the message is never copied.
+	 * @param parts the buckets that make up the message, in order
+	 * @return {@code true} if the message was inserted, {@code false} otherwise
+	 * @throws IOException if the getInputStream() method of one of the buckets throws IOException
+	 * @throws InterruptedException if the current thread was interrupted while inserting the message
+	 */
+	private boolean insertMessage(List<Bucket> parts, String prefix) throws IOException, InterruptedException {
 		String privateKey;
 		String sendCode;
 		synchronized (channelProps) {
@@ -482,9 +821,7 @@ class Channel {
 				if(sendSlot == null) {
 					/* If not, assign the next free slot */
 					sendSlot = channelProps.get(PropsKeys.SEND_SLOT);
-					String nextSlot = calculateNextSlot(sendSlot);
-					channelProps.put(PropsKeys.SEND_SLOT, nextSlot);
-					channelProps.put(prefix + PropsKeys.MSG_SLOT, sendSlot);
+					assignSlot(prefix, sendSlot);
 
 					Logger.debug(this, "Assigned slot " + sendSlot + " to message " + prefix);
 				}
@@ -494,13 +831,13 @@ class Channel {
 
 			InputStream messageStream = null;
 			try {
-				messageStream = message.getInputStream();
+				messageStream = openConcatenated(parts);
 				Logger.minor(this, "Inserting data");
 				Logger.debug(this, "Insert key is " + insertKey);
 				FCPPutFailedException fcpMessage;
 				try {
 					Timer messageInsert = Timer.start();
-					fcpMessage = fcpClient.put(messageStream, insertKey);
+					fcpMessage = fcpClient.put(messageStream, totalSize(parts), insertKey);
 					messageInsert.log(this, 1, TimeUnit.HOURS, "Time spent inserting message");
 				} catch(FCPBadFileException e) {
 					Logger.error(this, "Caugth FCPBadFileException while inserting message", e);
@@ -537,9 +874,7 @@ class Channel {
 				if(fcpMessage.errorcode == FCPPutFailedException.COLLISION) {
 					synchronized(channelProps) {
 						sendSlot = channelProps.get(PropsKeys.SEND_SLOT);
-						String nextSlot = calculateNextSlot(sendSlot);
-						channelProps.put(PropsKeys.SEND_SLOT, nextSlot);
-						channelProps.put(prefix + PropsKeys.MSG_SLOT, sendSlot);
+						assignSlot(prefix, sendSlot);
 					}
 
 					Logger.debug(this, "Insert collided, assigned new slot " + sendSlot + " to message " + prefix);
@@ -645,6 +980,7 @@ class Channel {
 				//later than we stop sending. See JavaDoc for CHANNEL_TIMEOUT for details
 				if(timeout < (System.currentTimeMillis() - CHANNEL_TIMEOUT)) {
 					Logger.debug(this, "Channel has timed out, won't fetch");
+					pollScheduler.remove(this);
 					return;
 				}
 			}
@@ -684,89 +1020,143 @@ class Channel {
 			}
 			basekey += fetchCode + "-";
 
-			String slot;
-			while((slot = slotManager.getNextSlot()) != null) {
-				String key = basekey + slot;
-
-				Logger.debug(this, "Attempting to fetch mail on key " + key);
-				File result;
-				try {
-					result = fcpClient.fetch(key);
-				} catch(ConnectionTerminatedException e) {
-					Logger.debug(this, "Connection terminated");
-					return;
-				} catch(FCPFetchException e) {
-					if(e.getCode() == FCPFetchException.INVALID_URI) {
-						//Could be a local bug or we could have gotten a bad key in the RTS
-						//TODO: This won't fix itself, so make sure the user notices
-						Logger.error(this, "Fetch failed because the URI was invalid");
-						return;
-					}
-
-					if(e.isFatal()) {
-						Logger.normal(this, "Fatal fetch failure, marking slot as used");
-						slotManager.slotUsed();
+			//Start fetching the whole window at once, the results are
+			//handled in slot order below
+			SlotPrefetcher prefetcher = new SlotPrefetcher(freemail.getExecutor(TaskType.FETCHER, account), fcpClient,
+					MAX_CONCURRENT_FETCHES, fetchPermits);
+			prefetchWindow(prefetcher, basekey, slots);
+			int received = 0;
+			try {
+				String slot;
+				while((slot = slotManager.getNextSlot()) != null) {
+					String key = basekey + slot;
+
+					//Slots that were used above move the window forward, so
+					//start fetching the new part of it
+					if(!prefetcher.contains(key)) {
+						String currentSlots;
+						synchronized(channelProps) {
+							currentSlots = channelProps.get(PropsKeys.FETCH_SLOT);
+						}
+						prefetchWindow(prefetcher, basekey, currentSlots);
 					}
 
-					Logger.minor(this, "No mail in slot (fetch returned " + e.getMessage() + ")");
-					continue;
-				} catch (FCPException e) {
-					Logger.error(this, "Unexpected error while trying to fetch message: " + e.getMessage());
-					return;
-				}
-				Logger.debug(this, "Fetch successful");
-
-				PropsFile messageProps = PropsFile.createPropsFile(result, true);
-				String messageType = messageProps.get("messagetype");
+					Bucket result;
+					try {
+						result = prefetcher.take(key);
+					} catch(ConnectionTerminatedException e) {
+						Logger.debug(this, "Connection terminated");
+						return;
+					} catch(FCPFetchException e) {
+						if(e.getCode() == FCPFetchException.INVALID_URI) {
+							//Could be a local bug or we could have gotten a bad key in the RTS
+							//TODO: This won't fix itself, so make sure the user notices
+							Logger.error(this, "Fetch failed because the URI was invalid");
+							return;
+						}
 
-				if(messageType == null) {
-					Logger.error(this, "Got message without messagetype, discarding");
-					slotManager.slotUsed();
-					result.delete();
-					continue;
-				}
+						if(e.isFatal()) {
+							Logger.normal(this, "Fatal fetch failure, marking slot as used");
+							slotManager.slotUsed();
+						}
 
-				if(messageType.equals("message")) {
-					if(handleMessage(result)) {
-						slotManager.slotUsed();
+						Logger.minor(this, "No mail in slot (fetch returned " + e.getMessage() + ")");
+						continue;
+					} catch (FCPException e) {
+						Logger.error(this, "Unexpected error while trying to fetch message: " + e.getMessage());
+						return;
+					}
+					if(result == null) {
+						Logger.minor(this, "Fetch returned no data");
+						continue;
 					}
-				} else if(messageType.equals("cts")) {
-					Logger.minor(this, "Successfully received CTS");
+					Logger.debug(this, "Fetch successful");
+					received++;
 
-					boolean success;
-					synchronized(channelProps) {
-						success = channelProps.put(PropsKeys.SENDER_STATE, "cts-received");
+					Map<String, String> messageProps = new HashMap<String, String>();
+					try {
+						Closer.close(readProps(result, messageProps, true));
+					} catch(IOException e) {
+						Logger.error(this, "Caugth IOException while reading message: " + e.getMessage(), e);
+						result.free();
+						continue;
 					}
+					String messageType = messageProps.get("messagetype");
 
-					if(success) {
+					if(messageType == null) {
+						Logger.error(this, "Got message without messagetype, discarding");
 						slotManager.slotUsed();
+						result.free();
+						continue;
 					}
-				} else if(messageType.equals("ack")) {
-					if(handleAck(result)) {
+
+					if(messageType.equals("message")) {
+						if(handleMessage(result)) {
+							slotManager.slotUsed();
+						}
+					} else if(messageType.equals("bundle")) {
+						if(handleBundle(result)) {
+							slotManager.slotUsed();
+						}
+					} else if(messageType.equals("cts")) {
+						Logger.minor(this, "Successfully received CTS");
+
+						boolean success;
+						synchronized(channelProps) {
+							Map<String, String> values = new HashMap<String, String>();
+							String features = messageProps.get(RTSKeys.FEATURES);
+							if(features != null) {
+								values.put(PropsKeys.REMOTE_FEATURES, features);
+							}
+							values.put(PropsKeys.SENDER_STATE, "cts-received");
+							success = channelProps.putAll(values);
+						}
+
+						if(success) {
+							slotManager.slotUsed();
+						}
+					} else if(messageType.equals("ack")) {
+						if(handleAck(result)) {
+							slotManager.slotUsed();
+						}
+					} else {
+						Logger.error(this, "Got message of unknown type: " + messageType);
 						slotManager.slotUsed();
 					}
-				} else {
-					Logger.error(this, "Got message of unknown type: " + messageType);
-					slotManager.slotUsed();
-				}
 
-				if(!result.delete()) {
-					Logger.error(this, "Deletion of " + result + " failed");
+					result.free();
 				}
+			} finally {
+				//Stops the fetches of slots beyond the end of the loop, if any
+				prefetcher.cancel();
 			}
 
-			//Reschedule
-			schedule(TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
+			//Reschedule, the scheduler picks the interval from what we received
+			pollScheduler.pollCompleted(this, received);
 		}
 
-		public void execute() {
-			Logger.debug(this, "Scheduling Fetcher for execution");
-			Channel.this.execute(fetcher);
+		/**
+		 * Adds the keys of all the slots in the window given by the slot
+		 * list to the prefetcher. Slots that have been added already are
+		 * skipped by the prefetcher.
+		 */
+		private void prefetchWindow(SlotPrefetcher prefetcher, String basekey, String slots) {
+			if(slots == null) {
+				return;
+			}
+
+			HashSlotManager window = new HashSlotManager(new ChannelSlotSaveImpl(channelProps, PropsKeys.FETCH_SLOT), null, slots);
+			window.setPollAhead(POLL_AHEAD);
+
+			String slot;
+			while((slot = window.getNextSlot()) != null) {
+				prefetcher.add(basekey + slot);
+			}
 		}
 
-		public void schedule(long delay, TimeUnit unit) {
-			Logger.debug(this, "Scheduling Fetcher for execution in " + delay + " " + unit.toString().toLowerCase(Locale.ROOT));
-			Channel.this.schedule(fetcher, delay, unit);
+		public void execute() {
+			Logger.debug(this, "Scheduling Fetcher for execution");
+			pollScheduler.pollNow(this);
 		}
 
 		@Override
@@ -846,13 +1236,15 @@ class Channel {
 					timeout = System.currentTimeMillis() + CHANNEL_TIMEOUT;
 				}
 
-				channelProps.put(PropsKeys.PUBLIC_KEY, publicKey);
-				channelProps.put(PropsKeys.PRIVATE_KEY, privateKey);
-				channelProps.put(PropsKeys.SEND_SLOT, initiatorSlot);
-				channelProps.put(PropsKeys.FETCH_SLOT, responderSlot);
-				channelProps.put(PropsKeys.SEND_CODE, "i");
-				channelProps.put(PropsKeys.FETCH_CODE, "r");
-				channelProps.put(PropsKeys.TIMEOUT, "" + timeout);
+				Map<String, String> values = new HashMap<String, String>();
+				values.put(PropsKeys.PUBLIC_KEY, publicKey);
+				values.put(PropsKeys.PRIVATE_KEY, privateKey);
+				values.put(PropsKeys.SEND_SLOT, initiatorSlot);
+				values.put(PropsKeys.FETCH_SLOT, responderSlot);
+				values.put(PropsKeys.SEND_CODE, "i");
+				values.put(PropsKeys.FETCH_CODE, "r");
+				values.put(PropsKeys.TIMEOUT, "" + timeout);
+				channelProps.putAll(values);
 			}
 
 			//Check the timeout. If the channel is already in
@@ -920,10 +1312,10 @@ class Channel {
 			mailsiteKey = mailsiteKey + "/mailsite/-" + mailisteEdition + "/mailpage";
 
 			//Fetch the mailsite
-			File mailsite;
+			Bucket mailsite;
 			try {
 				Logger.debug(this, "Fetching mailsite from " + mailsiteKey);
-				mailsite = fcpClient.fetch(mailsiteKey);
+				mailsite = fcpClient.fetchBucket(mailsiteKey);
 			} catch(ConnectionTerminatedException e) {
 				Logger.debug(this, "FCP connection has been terminated");
 				return;
@@ -936,8 +1328,24 @@ class Channel {
 				return;
 			}
 
+			if(mailsite == null) {
+				Logger.debug(this, "Mailsite fetch returned no data, trying again in 5 minutes");
+				schedule(TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
+				return;
+			}
+
+			Map<String, String> mailsiteProps = new HashMap<String, String>();
+			try {
+				readProps(mailsite, mailsiteProps, false);
+			} catch(IOException e) {
+				Logger.error(this, "Caugth IOException while reading mailsite: " + e.getMessage(), e);
+				schedule(TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
+				return;
+			} finally {
+				mailsite.free();
+			}
+
 			//Get RTS KSK
-			PropsFile mailsiteProps = PropsFile.createPropsFile(mailsite, false);
 			String rtsKey = mailsiteProps.get("rtsksk");
 			if(rtsKey == null) {
 				Logger.error(this, "Mailsite is missing RTS KSK");
@@ -1010,12 +1418,6 @@ class Channel {
 
 			byte[] rtsMessage = encryptMessage(signedMessage, keyModulus, keyExponent);
 
-			//Clean up the fetched mailsite
-			mailsiteProps = null;
-			if(!mailsite.delete()) {
-				Logger.error(this, "Couldn't delete " + mailsite);
-			}
-
 			//Insert
 			int slot;
 			try {
@@ -1034,10 +1436,12 @@ class Channel {
 			//Update channel props file
 			synchronized(channelProps) {
 				//Check if we've gotten the CTS while inserting the RTS
+				Map<String, String> values = new HashMap<String, String>();
 				if(!"cts-received".equals(channelProps.get(PropsKeys.SENDER_STATE))) {
-					channelProps.put(PropsKeys.SENDER_STATE, "rts-sent");
+					values.put(PropsKeys.SENDER_STATE, "rts-sent");
 				}
-				channelProps.put(PropsKeys.RTS_SENT_AT, Long.toString(System.currentTimeMillis()));
+				values.put(PropsKeys.RTS_SENT_AT, Long.toString(System.currentTimeMillis()));
+				channelProps.putAll(values);
 			}
 
 			long delay = sendRTSIn();
@@ -1053,12 +1457,12 @@ class Channel {
 
 		public void execute() {
 			Logger.debug(this, "Scheduling RTSSender for execution");
-			Channel.this.execute(this);
+			Channel.this.execute(TaskType.RTS, this);
 		}
 
 		public void schedule(long delay, TimeUnit unit) {
 			Logger.debug(this, "Scheduling RTSSender for execution in " + delay + " " + unit.toString().toLowerCase(Locale.ROOT));
-			Channel.this.schedule(this, delay, unit);
+			Channel.this.schedule(TaskType.RTS, this, delay, unit);
 		}
 
 		/**
@@ -1132,6 +1536,7 @@ class Channel {
 			rtsMessage.append(RTSKeys.INITIATOR_SLOT + "=" + initiatorSlot + "\r\n");
 			rtsMessage.append(RTSKeys.RESPONDER_SLOT + "=" + responderSlot + "\r\n");
 			rtsMessage.append(RTSKeys.TIMEOUT + "=" + timeout + "\r\n");
+			rtsMessage.append(RTSKeys.FEATURES + "=" + SUPPORTED_FEATURES + "\r\n");
 			rtsMessage.append("\r\n");
 
 			byte[] rtsMessageBytes;
@@ -1216,13 +1621,125 @@ class Channel {
 		}
 	}
 
-	private boolean handleMessage(File msg) {
+	/**
+	 * Splits a bundle into its messages and handles each of them, returning
+	 * {@code true} if the slot can be marked as used. If one of the messages
+	 * can't be handled yet the whole bundle is fetched again later, and the
+	 * messages that were handled are then discarded as duplicates.
+	 */
+	private boolean handleBundle(Bucket bundle) {
+		Map<String, String> bundleProps = new HashMap<String, String>();
+		try {
+			Closer.close(readProps(bundle, bundleProps, true));
+		} catch(IOException e) {
+			Logger.error(this, "Caugth IOException while unpacking bundle: " + e.getMessage(), e);
+			return false;
+		}
+		String rawLengths = bundleProps.get("lengths");
+		if(rawLengths == null) {
+			Logger.error(this, "Got bundle without lengths, discarding");
+			return true;
+		}
+
+		long[] lengths;
+		try {
+			String[] parts = rawLengths.split(",");
+			lengths = new long[parts.length];
+			for(int i = 0; i < parts.length; i++) {
+				lengths[i] = Long.parseLong(parts[i]);
+				if(lengths[i] < 0) {
+					throw new NumberFormatException("Negative length " + lengths[i]);
+				}
+			}
+		} catch(NumberFormatException e) {
+			Logger.error(this, "Got bundle with invalid lengths, discarding: " + rawLengths);
+			return true;
+		}
+
+		InputStream is = null;
+		boolean allHandled = true;
+		try {
+			is = new BufferedInputStream(bundle.getInputStream());
+			if(!skipHeader(is)) {
+				Logger.error(this, "Got bundle without body, discarding");
+				return true;
+			}
+
+			for(long length : lengths) {
+				//Parts of bundles that fit in memory are small enough themselves
+				Bucket part;
+				if(length <= MAX_BUNDLE_SIZE) {
+					part = new ArrayBucket();
+				} else {
+					File file = File.createTempFile("freemail-bundle", null, Freemail.getTempDir());
+					part = new FileBucket(file, false, false, false, true);
+				}
+				try {
+					OutputStream os = part.getOutputStream();
+					try {
+						if(!copy(is, os, length)) {
+							Logger.error(this, "Bundle is shorter than its lengths, discarding the rest");
+							return allHandled;
+						}
+					} finally {
+						Closer.close(os);
+					}
+
+					if(!handleMessage(part)) {
+						allHandled = false;
+					}
+				} finally {
+					part.free();
+				}
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Caugth IOException while unpacking bundle: " + e.getMessage(), e);
+			return false;
+		} finally {
+			Closer.close(is);
+		}
+
+		return allHandled;
+	}
+
+	/**
+	 * Copies exactly {@code length} bytes, returning {@code false} if the
+	 * input ends first.
+	 */
+	private static boolean copy(InputStream is, OutputStream os, long length) throws IOException {
+		byte[] buffer = new byte[4096];
+		while(length > 0) {
+			int read = is.read(buffer, 0, (int)Math.min(buffer.length, length));
+			if(read == -1) {
+				return false;
+			}
+			os.write(buffer, 0, read);
+			length -= read;
+		}
+		return true;
+	}
+
+	private boolean handleMessage(Bucket msg) {
 		// parse the Freemail header(s) out.
-		PropsFile msgprops = PropsFile.createPropsFile(msg, true);
+		Map<String, String> msgprops = new HashMap<String, String>();
+		BufferedReader body;
+		try {
+			body = readProps(msg, msgprops, true);
+		} catch(IOException e) {
+			Logger.error(this, "Caugth IOException while reading message: " + e.getMessage(), e);
+			return false;
+		}
+		try {
+			return handleMessage(msg, msgprops, body);
+		} finally {
+			Closer.close(body);
+		}
+	}
+
+	private boolean handleMessage(Bucket msg, Map<String, String> msgprops, BufferedReader body) {
 		String s_id = msgprops.get("id");
 		if(s_id == null) {
 			Logger.error(this, "Message is missing id. Discarding.");
-			msgprops.closeReader();
 			return true;
 		}
 
@@ -1234,7 +1751,6 @@ class Channel {
 			// This seems very dubious, this is internal to Freemail isn't it?
 			// It's certainly safer and cleaner if we limit to to a long...
 			Logger.error(this, "Got a message with an invalid (non-integer) id. Discarding.");
-			msgprops.closeReader();
 			return true;
 		}
 
@@ -1248,58 +1764,165 @@ class Channel {
 			}
 		}
 
-		BufferedReader br = msgprops.getReader();
-		if(br == null) {
-			Logger.error(this, "Got an invalid message. Discarding.");
-			msgprops.closeReader();
-			return true;
-		}
+		String encoding = msgprops.get("encoding");
+		if(encoding != null) {
+			if(!encoding.equals(FEATURE_DEFLATE)) {
+				Logger.error(this, "Got a message with unknown encoding " + encoding + ". Discarding.");
+				return true;
+			}
 
-		if(!channelEventCallback.get().handleMessage(this, br, id)) {
-			return false;
+			Bucket inflated;
+			try {
+				inflated = inflateBody(msg);
+			} catch(IOException e) {
+				Logger.error(this, "Caugth IOException while reading message: " + e.getMessage(), e);
+				return false;
+			}
+			if(inflated == null) {
+				Logger.error(this, "Got an invalid message. Discarding.");
+				return true;
+			}
+
+			BufferedReader br = null;
+			try {
+				br = new BufferedReader(new InputStreamReader(inflated.getInputStream(), "UTF-8"));
+				if(!channelEventCallback.get().handleMessage(this, br, id)) {
+					return false;
+				}
+			} catch(IOException e) {
+				Logger.error(this, "Caugth IOException while reading message: " + e.getMessage(), e);
+				return false;
+			} finally {
+				Closer.close(br);
+				inflated.free();
+			}
+		} else {
+			if(body == null) {
+				Logger.error(this, "Got an invalid message. Discarding.");
+				return true;
+			}
+
+			if(!channelEventCallback.get().handleMessage(this, body, id)) {
+				return false;
+			}
 		}
 
-		executeSender(new AckInserter(id, ackDelay));
+		ackInserter.scheduleAt(ackDelay);
 
 		return true;
 	}
 
+	/**
+	 * Inserts the acks in the ack log once they are due. Acks that are due
+	 * within {@link Freemail#getAckBatchWindow()} of the first one are sent
+	 * along with it, as a comma separated list in a single ack message.
+	 * Receivers have always split the id of an ack on commas, so this works
+	 * with every version.
+	 *
+	 * There is at most one scheduled run at a time, see
+	 * {@link #scheduleAt(long)}.
+	 */
 	private class AckInserter implements Runnable {
-		private final long ackId;
-		private final long insertAfter;
+		private final Object scheduleLock = new Object();
+
+		//Guarded by scheduleLock
+		private ScheduledFuture<?> next = null;
+		private long nextAt;
 
-		private AckInserter(long ackId, long insertAfter) {
-			this.ackId = ackId;
-			this.insertAfter = insertAfter;
+		/**
+		 * Makes sure that the inserter runs at the given time or earlier. If
+		 * a later run is scheduled it is replaced, and if an earlier one is
+		 * it is kept.
+		 */
+		void scheduleAt(long time) {
+			synchronized(scheduleLock) {
+				if(next != null && !next.isDone()) {
+					if(nextAt <= time) {
+						return;
+					}
+					next.cancel(false);
+				}
+
+				try {
+					next = freemail.getExecutor(TaskType.ACK, account).schedule(this,
+							Math.max(0, time - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+					nextAt = time;
+				} catch(RejectedExecutionException e) {
+					// Executor is probably shutting down.
+					Logger.debug(this, "Caught RejectedExecutionException while scheduling " + this + ": Shutting down?");
+					next = null;
+				}
+			}
 		}
 
 		@Override
-		public void run() {
-			Logger.debug(this, "AckInserter(" + ackId + ") for " + Channel.this.toString() + " running");
+		public synchronized void run() {
+			Logger.debug(this, "AckInserter for " + Channel.this.toString() + " running");
 
-			if(System.currentTimeMillis() < insertAfter) {
-				long remaining = insertAfter - System.currentTimeMillis();
-				Logger.debug(this, "Rescheduling in " + remaining + "ms when inserting is allowed");
-				scheduleSender(this, remaining, TimeUnit.MILLISECONDS);
-				return;
+			//Acks that are added from now on aren't seen by this run, so they
+			//have to schedule another one
+			synchronized(scheduleLock) {
+				next = null;
+			}
+
+			long now = System.currentTimeMillis();
+			List<Long> batch = new ArrayList<Long>();
+			long nextDue;
+			synchronized(ackLog) {
+				SortedMap<Long, List<Long>> pending;
+				try {
+					pending = getPendingAcks();
+				} catch(IOException e) {
+					Logger.error(this, "Caugth IOException while reading ack log: " + e.getMessage(), e);
+					return;
+				}
+				if(pending.isEmpty()) {
+					return;
+				}
+
+				long firstDue = pending.firstKey().longValue();
+				if(firstDue > now) {
+					Logger.debug(this, "Rescheduling in " + (firstDue - now) + "ms when inserting is allowed");
+					scheduleAt(firstDue);
+					return;
+				}
+
+				long batchEnd = now + freemail.getAckBatchWindow();
+				nextDue = -1;
+				for(Entry<Long, List<Long>> entry : pending.entrySet()) {
+					for(Long id : entry.getValue()) {
+						if(entry.getKey().longValue() <= batchEnd && batch.size() < MAX_ACKS_PER_INSERT) {
+							batch.add(id);
+						} else if(nextDue < 0) {
+							nextDue = entry.getKey().longValue();
+						}
+					}
+				}
 			}
 
 			//Build the header of the inserted message
-			String header =
-				"messagetype=ack\r\n"
-				+ "id=" + ackId + "\r\n"
-				+ "\r\n";
+			StringBuilder header = new StringBuilder("messagetype=ack\r\nid=");
+			for(int i = 0; i < batch.size(); i++) {
+				if(i > 0) {
+					header.append(',');
+				}
+				header.append(batch.get(i));
+			}
+			header.append("\r\n\r\n");
+
 			Bucket bucket;
 			try {
-				bucket = new ArrayBucket(header.getBytes("UTF-8"));
+				bucket = new ArrayBucket(header.toString().getBytes("UTF-8"));
 			} catch (UnsupportedEncodingException e) {
 				//JVMs are required to support UTF-8, so we can assume it is always available
 				throw new AssertionError("JVM doesn't support UTF-8 charset");
 			}
 
+			Logger.debug(this, "Inserting ack for " + batch.size() + " messages");
 			boolean inserted;
 			try {
-				inserted = insertMessage(bucket, "ack" + ackId);
+				//Only one batch is inserted at a time, so they can share the prefix
+				inserted = insertMessage(bucket, "ack");
 			} catch(IOException e) {
 				//The getInputStream() method of ArrayBucket doesn't throw
 				throw new AssertionError("getInputStream() method of ArrayBucket threw IOException");
@@ -1308,23 +1931,67 @@ class Channel {
 				return;
 			}
 
-			if(inserted) {
-				synchronized(ackLog) {
+			if(!inserted) {
+				scheduleAt(System.currentTimeMillis() + TASK_RETRY_DELAY);
+				return;
+			}
+
+			synchronized(ackLog) {
+				try {
+					ackLog.removeAll(batch);
+				} catch(IOException e) {
+					Logger.error(this, "Caugth IOException while writing to ack log: " + e.getMessage(), e);
+				}
+			}
+
+			if(nextDue >= 0) {
+				scheduleAt(nextDue);
+			}
+		}
+
+		/**
+		 * Returns the ids in the ack log, grouped by the time they should be
+		 * inserted after. The caller must hold the lock on the ack log.
+		 */
+		private SortedMap<Long, List<Long>> getPendingAcks() throws IOException {
+			SortedMap<Long, List<Long>> pending = new TreeMap<Long, List<Long>>();
+			Iterator<Entry<Long, String>> it = ackLog.iterator();
+			while(it.hasNext()) {
+				Entry<Long, String> entry = it.next();
+				long insertAfter = 0;
+				if(entry.getValue() != null) {
 					try {
-						ackLog.remove(ackId);
-					} catch(IOException e) {
-						Logger.error(this, "Caugth IOException while writing to ack log: " + e.getMessage(), e);
+						insertAfter = Long.parseLong(entry.getValue());
+					} catch(NumberFormatException e) {
+						//Assume no delay
+						insertAfter = 0;
 					}
 				}
-			} else {
-				scheduleSender(this, TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
+
+				List<Long> ids = pending.get(Long.valueOf(insertAfter));
+				if(ids == null) {
+					ids = new ArrayList<Long>(1);
+					pending.put(Long.valueOf(insertAfter), ids);
+				}
+				ids.add(entry.getKey());
 			}
+			return pending;
 		}
 
+		@Override
+		public String toString() {
+			return "AckInserter [" + channelDir + "]";
+		}
 	}
-	
-	private boolean handleAck(File result) {
-		PropsFile ackProps = PropsFile.createPropsFile(result);
+
+	private boolean handleAck(Bucket result) {
+		Map<String, String> ackProps = new HashMap<String, String>();
+		try {
+			readProps(result, ackProps, false);
+		} catch(IOException e) {
+			Logger.error(this, "Caugth IOException while reading ack: " + e.getMessage(), e);
+			return false;
+		}
 		String ackString = ackProps.get("id");
 		if(ackString == null) {
 			Logger.error(this, "Received ack without id, discarding");
@@ -1375,38 +2042,18 @@ class Channel {
 		public boolean handleMessage(Channel channel, BufferedReader message, long id);
 	}
 	
-	// FIXME centralise.
-	
-	private void scheduleSender(Runnable command, long remaining, TimeUnit milliseconds) {
-		ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER);
-		try {
-			senderExecutor.schedule(command, remaining, TimeUnit.MILLISECONDS);
-		} catch(RejectedExecutionException e) {
-			Logger.debug(this, "Caught RejectedExecutionException while scheduling sender "+command+" - shutting down?");
-		}
-	}
-
-	private void executeSender(Runnable command) {
-		ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER);
-		try {
-			senderExecutor.execute(command);
-		} catch(RejectedExecutionException e) {
-			Logger.debug(this, "Caught RejectedExecutionException while scheduling sender "+command+" - shutting down?");
-		}
-	}
-	
-	private final void execute(Runnable command) {
+	private final void execute(TaskType type, Runnable command) {
 		try {
-			executor.execute(command);
+			freemail.getExecutor(type, account).execute(command);
 		} catch(RejectedExecutionException e) {
 			// Executor is probably shutting down.
 			Logger.debug(this, "Caught RejectedExecutionException while scheduling "+command+": Shutting down?");
 		}
 	}
 	
-	private final void schedule(Runnable command, long delay, TimeUnit unit) {
+	private final void schedule(TaskType type, Runnable command, long delay, TimeUnit unit) {
 		try {
-			executor.schedule(fetcher, delay, unit);
+			freemail.getExecutor(type, account).schedule(command, delay, unit);
 		} catch(RejectedExecutionException e) {
 			// Executor is probably shutting down.
 			Logger.debug(this, "Caught RejectedExecutionException while scheduling "+command+": Shutting down?");
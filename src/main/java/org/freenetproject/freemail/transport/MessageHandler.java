@@ -29,10 +29,18 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
@@ -70,7 +78,10 @@ import freenet.support.io.FileBucket;
 public class MessageHandler {
 	private static final String INDEX_NAME = "index";
 	private static final long RESEND_TIME = 24 * 60 * 60 * 1000;
+	/** How long to wait before trying again if a message couldn't be sent */
+	private static final long RETRY_TIME = 5 * 60 * 1000;
 	private static final String MSG_LOG_NAME = "log";
+	private static final String SHARED_DIR_NAME = "shared";
 
 	/**
 	 * Holds the static portions of the keys used in the index file. The values that are stored per
@@ -87,6 +98,8 @@ public class MessageHandler {
 		private static final String LAST_SEND_TIME = ".lastSendTime";
 		/** The message number used by the Channel for this message */
 		private static final String MSG_NUM = ".msgNum";
+		/** The name of the body in the shared store, missing if the body is in the recipient outbox */
+		private static final String BODY = ".body";
 	}
 
 	private final File outbox;
@@ -100,6 +113,15 @@ public class MessageHandler {
 	private final AtomicInteger nextChannelNum = new AtomicInteger();
 	private final ConcurrentHashMap<String, Future<?>> tasks = new ConcurrentHashMap<String, Future<?>>();
 	private final HighLevelFCPClientFactory hlFcpClientFactory;
+	private final PollScheduler pollScheduler;
+	private final SharedBodyStore sharedBodies;
+
+	/**
+	 * Messages that are part of an insert that is running, by recipient
+	 * outbox. LOCKING: Only used with the lock on the index of the recipient
+	 * outbox held.
+	 */
+	private final ConcurrentHashMap<File, Set<Long>> inFlight = new ConcurrentHashMap<File, Set<Long>>();
 
 	public MessageHandler(File outbox, Freemail freemail, File channelDir,
 	                      FreemailAccount freemailAccount, HighLevelFCPClientFactory hlFcpClientFactory) {
@@ -108,6 +130,8 @@ public class MessageHandler {
 		this.channelDir = channelDir;
 		this.freemailAccount = freemailAccount;
 		this.hlFcpClientFactory = hlFcpClientFactory;
+		this.pollScheduler = new PollScheduler(freemail);
+		this.sharedBodies = new SharedBodyStore(new File(outbox, SHARED_DIR_NAME));
 
 		//Create and start all the channels
 		if(!channelDir.exists()) {
@@ -134,7 +158,7 @@ public class MessageHandler {
 
 			Logger.debug(this, "Initializing channel from directory " + f);
 			try {
-				Channel channel = new Channel(f, freemail.getExecutor(TaskType.UNSPECIFIED), hlFcpClientFactory.newInstance(), freemail, freemailAccount, null);
+				Channel channel = new Channel(f, pollScheduler, hlFcpClientFactory.newInstance(), freemail, freemailAccount, null);
 				channel.setCallback(new AckCallback(channel.getRemoteIdentity()));
 				channels.add(channel);
 			} catch(ChannelTimedOutException e) {
@@ -160,20 +184,11 @@ public class MessageHandler {
 					Logger.error(this, "Spurious file in outbox: " + rcptOutbox);
 					continue;
 				}
+				if(rcptOutbox.getName().equals(SHARED_DIR_NAME)) {
+					continue;
+				}
 
-				for(File f : rcptOutbox.listFiles()) {
-					if(!f.isFile()) {
-						Logger.error(this, "Spurious file in contact outbox: " + f);
-						continue;
-					}
-
-					String identifier = f.getName();
-
-					//Skip log and index
-					if(identifier.equals(INDEX_NAME) || identifier.equals(MSG_LOG_NAME)) {
-						continue;
-					}
-
+				for(String identifier : listMessages(rcptOutbox)) {
 					String rawMsgNum;
 					PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
 					synchronized (props) {
@@ -183,10 +198,10 @@ public class MessageHandler {
 					try {
 						long num = Long.parseLong(rawMsgNum);
 						Logger.debug(this, "Scheduling SenderTask for " + num);
-						ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER);
+						ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER, freemailAccount);
 						tasks.put(Long.toString(num), senderExecutor.schedule(new SenderTask(rcptOutbox, num), 0, TimeUnit.NANOSECONDS));
 					} catch(NumberFormatException e) {
-						Logger.error(this, "Found file without valid message number: " + f);
+						Logger.error(this, "Found message without valid message number: " + identifier);
 						continue;
 					}
 				}
@@ -209,58 +224,80 @@ public class MessageHandler {
 			}
 		}
 
-		for(Identity recipient : recipients) {
-			File rcptOutbox = new File(outbox, recipient.getBase32IdentityID());
-			if(!rcptOutbox.exists()) {
-				if(!rcptOutbox.mkdir()) {
-					Logger.error(this, "Couldn't create recipient outbox directory: " + rcptOutbox);
-					return false;
-				}
+		//The filtered message is the same for every recipient, so it is only
+		//stored once and the recipient outboxes refer to it
+		File body = sharedBodies.createBody();
+		OutputStream os = new FileOutputStream(body);
+		PrintWriter pw = new PrintWriter(os);
+		InputStream messageStream = message.getInputStream();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(messageStream));
+		MailHeaderFilter filter = new MailHeaderFilter(reader, freemailAccount);
+		try {
+			//Copy headers
+			String header = filter.readHeader();
+			while(header != null) {
+				pw.write(header + "\r\n");
+				header = filter.readHeader();
+			}
+			pw.write("\r\n");
+
+			//Then the rest of the message
+			char[] buffer = new char[1024];
+			while(true) {
+				int read = reader.read(buffer, 0, buffer.length);
+				if(read == -1) break;
+				pw.write(buffer, 0, read);
 			}
+		} finally {
+			Closer.close(pw);
+			Closer.close(reader);
+		}
 
-			long msgNum = getMessageNumber(rcptOutbox);
-			String identifier = Long.toString(msgNum);
-			File messageFile = new File(rcptOutbox, "" + identifier);
-
-			if(!messageFile.createNewFile()) {
-				Logger.error(this, "Message file " + messageFile + " already exists");
-				return false;
+		int unreferenced = recipients.size();
+		if(!sharedBodies.addReferences(body, unreferenced)) {
+			Logger.error(this, "Couldn't store the references to " + body);
+			if(!body.delete()) {
+				Logger.error(this, "Couldn't delete " + body);
 			}
+			return false;
+		}
 
-			OutputStream os = new FileOutputStream(messageFile);
-			PrintWriter pw = new PrintWriter(os);
-			InputStream messageStream = message.getInputStream();
-			BufferedReader reader = new BufferedReader(new InputStreamReader(messageStream));
-			MailHeaderFilter filter = new MailHeaderFilter(reader, freemailAccount);
-			try {
-				//Copy headers
-				String header = filter.readHeader();
-				while(header != null) {
-					pw.write(header + "\r\n");
-					header = filter.readHeader();
+		try {
+			for(Identity recipient : recipients) {
+				File rcptOutbox = new File(outbox, recipient.getBase32IdentityID());
+				if(!rcptOutbox.exists()) {
+					if(!rcptOutbox.mkdir()) {
+						Logger.error(this, "Couldn't create recipient outbox directory: " + rcptOutbox);
+						return false;
+					}
 				}
-				pw.write("\r\n");
-
-				//Then the rest of the message
-				char[] buffer = new char[1024];
-				while(true) {
-					int read = reader.read(buffer, 0, buffer.length);
-					if(read == -1) break;
-					pw.write(buffer, 0, read);
+
+				//All the index entries of the message are written at once
+				long msgNum;
+				PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
+				synchronized(props) {
+					msgNum = getMessageNumber(props);
+					String identifier = Long.toString(msgNum);
+
+					Map<String, String> entries = new HashMap<String, String>();
+					entries.put(IndexKeys.NEXT_MESSAGE_NUMBER, Long.toString(msgNum + 1));
+					entries.put(identifier + IndexKeys.RECIPIENT, recipient.getIdentityID());
+					entries.put(identifier + IndexKeys.MSG_NUM, identifier);
+					entries.put(identifier + IndexKeys.BODY, body.getName());
+					if(!props.putAll(entries)) {
+						Logger.error(this, "Couldn't write index of " + rcptOutbox);
+						return false;
+					}
 				}
-			} finally {
-				Closer.close(pw);
-				Closer.close(reader);
-			}
+				unreferenced--;
 
-			PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
-			synchronized(props) {
-				props.put(identifier + IndexKeys.RECIPIENT, recipient.getIdentityID());
-				props.put(identifier + IndexKeys.MSG_NUM, Long.toString(msgNum));
+				ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER, freemailAccount);
+				tasks.put(Long.toString(msgNum), senderExecutor.submit(new SenderTask(rcptOutbox, msgNum)));
+			}
+		} finally {
+			if(unreferenced > 0) {
+				sharedBodies.release(body.getName(), unreferenced);
 			}
-
-			ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER);
-			tasks.put(identifier, senderExecutor.submit(new SenderTask(rcptOutbox, msgNum)));
 		}
 
 		return true;
@@ -283,7 +320,7 @@ public class MessageHandler {
 
 			Channel channel;
 			try {
-				channel = new Channel(newChannelDir, freemail.getExecutor(TaskType.UNSPECIFIED), hlFcpClientFactory.newInstance(), freemail, freemailAccount, remoteIdentity);
+				channel = new Channel(newChannelDir, pollScheduler, hlFcpClientFactory.newInstance(), freemail, freemailAccount, remoteIdentity);
 				channel.setCallback(new AckCallback(remoteIdentity));
 			} catch(ChannelTimedOutException e) {
 				//Can't happen since we're creating a new channel
@@ -321,7 +358,7 @@ public class MessageHandler {
 
 			Channel channel;
 			try {
-				channel = new Channel(newChannelDir, freemail.getExecutor(TaskType.UNSPECIFIED), hlFcpClientFactory.newInstance(), freemail, freemailAccount, remoteIdentity);
+				channel = new Channel(newChannelDir, pollScheduler, hlFcpClientFactory.newInstance(), freemail, freemailAccount, remoteIdentity);
 				channel.setCallback(new AckCallback(remoteIdentity));
 			} catch(ChannelTimedOutException e) {
 				//Can't happen since we're creating a new channel
@@ -342,13 +379,13 @@ public class MessageHandler {
 		}
 
 		for(File rcptOutbox : outboxFiles) {
-			if(!rcptOutbox.isDirectory()) {
+			if(!rcptOutbox.isDirectory() || rcptOutbox.getName().equals(SHARED_DIR_NAME)) {
 				continue;
 			}
 
 			PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
-			for(File message : rcptOutbox.listFiles()) {
-				String identifier = message.getName();
+			for(String identifier : listMessages(rcptOutbox)) {
+				File message = getMessageFile(rcptOutbox, identifier);
 
 				String recipient;
 				String firstSendTime;
@@ -372,6 +409,14 @@ public class MessageHandler {
 		return messages;
 	}
 
+	/**
+	 * Returns when the channels of this account will be polled next.
+	 * @return the polls that are scheduled, ordered by when they will run
+	 */
+	public List<PollScheduler.ScheduledPoll> getPollSchedule() {
+		return pollScheduler.getSchedule();
+	}
+
 	public class OutboxMessage {
 		public final String recipient;
 		public final String subject;
@@ -421,24 +466,61 @@ public class MessageHandler {
 		}
 	}
 
-	private long getMessageNumber(File rcptOutbox) {
+	/**
+	 * Returns the next message number from the index. The caller must hold
+	 * the lock on {@code props} and store the next number along with the
+	 * message.
+	 */
+	private long getMessageNumber(PropsFile props) {
+		String rawNumber = props.get(IndexKeys.NEXT_MESSAGE_NUMBER);
+		long number;
+		try {
+			number = Long.parseLong(rawNumber);
+		} catch(NumberFormatException e) {
+			number = 0;
+
+			/* Ignore null since it will always be missing the first time */
+			if(rawNumber != null) {
+				Logger.error(this, "Parsing of next message number failed, was " + rawNumber);
+			}
+		}
+		return number;
+	}
+
+	/**
+	 * Returns the identifiers of the messages in the outbox of a recipient.
+	 */
+	private List<String> listMessages(File rcptOutbox) {
+		List<String> identifiers = new ArrayList<String>();
 		PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
 		synchronized(props) {
-			String rawNumber = props.get(IndexKeys.NEXT_MESSAGE_NUMBER);
-			long number;
-			try {
-				number = Long.parseLong(rawNumber);
-			} catch(NumberFormatException e) {
-				number = 0;
-
-				/* Ignore null since it will always be missing the first time */
-				if(rawNumber != null) {
-					Logger.error(this, "Parsing of next message number failed, was " + rawNumber);
+			if(!props.exists()) {
+				return identifiers;
+			}
+			for(String key : props.listProps()) {
+				if(key.endsWith(IndexKeys.MSG_NUM)) {
+					identifiers.add(key.substring(0, key.length() - IndexKeys.MSG_NUM.length()));
 				}
 			}
-			props.put(IndexKeys.NEXT_MESSAGE_NUMBER, "" + (number + 1));
-			return number;
 		}
+		return identifiers;
+	}
+
+	/**
+	 * Returns the file that holds the body of the message, which is either in
+	 * the shared store or, for messages stored by older versions, in the
+	 * outbox of the recipient.
+	 */
+	private File getMessageFile(File rcptOutbox, String identifier) {
+		String body;
+		PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
+		synchronized(props) {
+			body = props.get(identifier + IndexKeys.BODY);
+		}
+		if(body == null) {
+			return new File(rcptOutbox, identifier);
+		}
+		return sharedBodies.getBody(body);
 	}
 
 	private class SenderTask implements Runnable {
@@ -457,54 +539,81 @@ public class MessageHandler {
 			Logger.minor(this, "SenderTask for message " + identifier + " on account " + freemailAccount.getIdentity() + " running");
 
 			long retryIn;
-			long lastSendTime;
 			PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
-			try {
-				String time;
-				synchronized(props) {
-					time = props.get(identifier + IndexKeys.LAST_SEND_TIME);
+			Set<Long> claimed = new HashSet<Long>();
+			synchronized(props) {
+				long lastSendTime;
+				try {
+					lastSendTime = Long.parseLong(props.get(identifier + IndexKeys.LAST_SEND_TIME));
+				} catch(NumberFormatException e) {
+					lastSendTime = 0;
+				}
+
+				retryIn = (lastSendTime + RESEND_TIME) - System.currentTimeMillis();
+				if(retryIn <= 0) {
+					if(getInFlight().add(msgNum)) {
+						claimed.add(msgNum);
+					} else {
+						//Sent in the bundle of another task, so check again once that is done
+						Logger.debug(this, "Message " + identifier + " is already being sent");
+						retryIn = RETRY_TIME;
+					}
 				}
-				lastSendTime = Long.parseLong(time);
-			} catch(NumberFormatException e) {
-				lastSendTime = 0;
 			}
 
-			retryIn = (lastSendTime + RESEND_TIME) - System.currentTimeMillis();
-			if(retryIn <= 0) {
-				boolean inserted;
+			if(!claimed.isEmpty()) {
 				try {
-					Timer insertTimer = Timer.start();
-					inserted = sendMessage();
-					insertTimer.log(this, 1, TimeUnit.HOURS, "Total time spent sending message");
-				} catch (InterruptedException e) {
-					Logger.debug(this, "SenderTask interrupted, quitting");
-					return;
-				}
-				if(!inserted) {
-					//In most cases this is because the RTS hasn't been sent yet (so keys etc.
-					//haven't been generated yet), or because the insert failed
-					retryIn = 5 * 60 * 1000; //5 minutes
-				} else {
-					synchronized(props) {
-						long curTime = System.currentTimeMillis();
-						String firstSentTime = props.get(identifier + IndexKeys.FIRST_SEND_TIME);
-						if(firstSentTime == null) {
-							props.put(identifier + IndexKeys.FIRST_SEND_TIME, "" + curTime);
-						}
-						props.put(identifier + IndexKeys.LAST_SEND_TIME, "" + curTime);
+					List<Long> sent;
+					try {
+						Timer insertTimer = Timer.start();
+						sent = sendMessage(claimed);
+						insertTimer.log(this, 1, TimeUnit.HOURS, "Total time spent sending message");
+					} catch (InterruptedException e) {
+						Logger.debug(this, "SenderTask interrupted, quitting");
+						return;
 					}
+					if(sent == null) {
+						//In most cases this is because the RTS hasn't been sent yet (so keys etc.
+						//haven't been generated yet), or because the insert failed
+						retryIn = RETRY_TIME;
+					} else {
+						synchronized(props) {
+							long curTime = System.currentTimeMillis();
+							Map<String, String> times = new HashMap<String, String>();
+							for(Long num : sent) {
+								String id = num.toString();
+								String firstSentTime = props.get(id + IndexKeys.FIRST_SEND_TIME);
+								if(firstSentTime == null) {
+									times.put(id + IndexKeys.FIRST_SEND_TIME, "" + curTime);
+								}
+								times.put(id + IndexKeys.LAST_SEND_TIME, "" + curTime);
+							}
+							props.putAll(times);
+						}
 
-					retryIn = RESEND_TIME;
+						retryIn = RESEND_TIME;
+					}
+				} finally {
+					synchronized(props) {
+						getInFlight().removeAll(claimed);
+					}
 				}
 			}
 
 			//Schedule again when the resend is due
 			Logger.minor(this, "Rescheduling sender task in " + retryIn + "ms");
-			ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER);
+			ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER, freemailAccount);
 			tasks.put(identifier, senderExecutor.schedule(this, retryIn, TimeUnit.MILLISECONDS));
 		}
 
-		private boolean sendMessage() throws InterruptedException {
+		/**
+		 * Sends this message, together with any other messages to the same
+		 * recipient that are due if the channel supports bundles. Returns the
+		 * numbers of the messages that were sent, or {@code null} if the
+		 * insert failed. The messages that are added to the bundle are
+		 * marked as in flight and added to {@code claimed}.
+		 */
+		private List<Long> sendMessage(Set<Long> claimed) throws InterruptedException {
 			String recipient;
 			PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
 			synchronized(props) {
@@ -512,14 +621,21 @@ public class MessageHandler {
 			}
 
 			Channel c;
+			SortedMap<Long, Bucket> messages;
 			boolean inserted;
 			while(true) {
 				c = getChannel(recipient);
-				Bucket message = new FileBucket(new File(rcptOutbox, identifier), false, false, false, false);
+				messages = new TreeMap<Long, Bucket>();
+				messages.put(msgNum, new FileBucket(getMessageFile(rcptOutbox, identifier), false, false, false, false));
+				if(c.canSendBundles()) {
+					addDueMessages(messages, claimed);
+				}
+
 				try {
-					inserted = c.sendMessage(message, msgNum);
+					inserted = c.sendMessages(messages, msgNum);
 				} catch(ChannelTimedOutException e) {
-					//Try again with a new channel
+					//Try again with a new channel, which might not take bundles
+					releaseBundled(claimed);
 					continue;
 				} catch(IOException e) {
 					Logger.error(this, "Caugth IOException while sending message: " + e.getMessage(), e);
@@ -529,17 +645,107 @@ public class MessageHandler {
 				break;
 			}
 
-			return inserted;
+			if(!inserted) {
+				return null;
+			}
+			return new ArrayList<Long>(messages.keySet());
+		}
+
+		/**
+		 * Adds the other messages in the outbox that are due to be sent, as
+		 * long as the bundle stays below {@link Channel#MAX_BUNDLE_SIZE}.
+		 * Messages that another task is sending are skipped, and the ones that
+		 * are added are marked as in flight until the insert is done. The
+		 * tasks of these messages will find that they have been sent and wait
+		 * for the next resend.
+		 */
+		private void addDueMessages(SortedMap<Long, Bucket> messages, Set<Long> claimed) {
+			long size = getMessageFile(rcptOutbox, identifier).length();
+			long now = System.currentTimeMillis();
+			PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
+
+			for(String name : listMessages(rcptOutbox)) {
+				if(name.equals(identifier)) {
+					continue;
+				}
+				File f = getMessageFile(rcptOutbox, name);
+				if(!f.isFile()) {
+					continue;
+				}
+
+				if(size + f.length() > Channel.MAX_BUNDLE_SIZE) {
+					continue;
+				}
+
+				long num;
+				synchronized(props) {
+					try {
+						num = Long.parseLong(props.get(name + IndexKeys.MSG_NUM));
+					} catch(NumberFormatException e) {
+						continue;
+					}
+
+					long lastSendTime;
+					try {
+						lastSendTime = Long.parseLong(props.get(name + IndexKeys.LAST_SEND_TIME));
+					} catch(NumberFormatException e) {
+						lastSendTime = 0;
+					}
+					if(lastSendTime + RESEND_TIME > now) {
+						continue;
+					}
+
+					if(!getInFlight().add(num)) {
+						continue;
+					}
+					claimed.add(num);
+				}
+
+				size += f.length();
+				messages.put(num, new FileBucket(f, false, false, false, false));
+			}
+		}
+
+		/**
+		 * Clears the in flight mark of the messages that were added to the
+		 * bundle, leaving only the message of this task.
+		 */
+		private void releaseBundled(Set<Long> claimed) {
+			PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
+			synchronized(props) {
+				claimed.remove(msgNum);
+				getInFlight().removeAll(claimed);
+				claimed.clear();
+				claimed.add(msgNum);
+			}
+		}
+
+		/**
+		 * Returns the messages of this recipient that are in flight. The caller
+		 * must hold the lock on the index of the recipient outbox.
+		 */
+		private Set<Long> getInFlight() {
+			Set<Long> messages = inFlight.get(rcptOutbox);
+			if(messages == null) {
+				messages = new HashSet<Long>();
+				Set<Long> existing = inFlight.putIfAbsent(rcptOutbox, messages);
+				if(existing != null) {
+					messages = existing;
+				}
+			}
+			return messages;
 		}
 	}
 
 	private void deleteIndexEntries(File rcptOutbox, String identifier) {
 		PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
 		synchronized(props) {
-			props.remove(identifier + IndexKeys.FIRST_SEND_TIME);
-			props.remove(identifier + IndexKeys.LAST_SEND_TIME);
-			props.remove(identifier + IndexKeys.RECIPIENT);
-			props.remove(identifier + IndexKeys.MSG_NUM);
+			props.removeAll(Arrays.asList(
+					identifier + IndexKeys.FIRST_SEND_TIME,
+					identifier + IndexKeys.LAST_SEND_TIME,
+					identifier + IndexKeys.RECIPIENT,
+					identifier + IndexKeys.MSG_NUM,
+					identifier + IndexKeys.BODY));
 		}
 	}
 
@@ -571,17 +777,29 @@ public class MessageHandler {
 		public void onAckReceived(long id) {
 			File rcptOutbox = new File(outbox, remoteId);
 
-			File message = new File(rcptOutbox, "" + id);
-			if(message.exists()) {
-				Logger.minor(this, "Received ack, deleting message file: " + message);
-				if(!message.delete()) {
-					Logger.error(this, "Couldn't delete " + message);
-				}
-			} else {
-				Logger.minor(this, "Received ack but message file doesn't exits: " + message);
+			//Look up the body and forget the message together, so that a
+			//duplicate ack can't release the shared body twice
+			String body;
+			PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
+			synchronized(props) {
+				body = props.get(id + IndexKeys.BODY);
+				deleteIndexEntries(rcptOutbox, Long.toString(id));
 			}
 
-			deleteIndexEntries(rcptOutbox, Long.toString(id));
+			if(body != null) {
+				Logger.minor(this, "Received ack, releasing shared body " + body);
+				sharedBodies.release(body, 1);
+			} else {
+				File message = new File(rcptOutbox, "" + id);
+				if(message.exists()) {
+					Logger.minor(this, "Received ack, deleting message file: " + message);
+					if(!message.delete()) {
+						Logger.error(this, "Couldn't delete " + message);
+					}
+				} else {
+					Logger.minor(this, "Received ack but message file doesn't exits: " + message);
+				}
+			}
 
 			Future<?> task = tasks.remove(Long.toString(id));
 			if(task != null) {
@@ -26,29 +26,70 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import org.freenetproject.freemail.utils.LongHashSet;
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * A set of message ids, each with an optional string, that is kept on disk.
+ * Changes are appended to the log file, so adding or removing an id doesn't
+ * rewrite the whole file. Each line is either {@code <id>, <data>} for an id
+ * that was added or {@code remove, <id>} for one that was removed, and a
+ * file without removals is a plain list of the ids. Once the removed lines
+ * outnumber the live ones the file is compacted by writing the current ids
+ * to a new file and renaming it over the log.
+ */
 class MessageLog {
 	private static final String SEPARATOR = ", ";
+	private static final String REMOVE_PREFIX = "remove" + SEPARATOR;
+	private static final String TMP_SUFFIX = ".tmp";
+
+	/** How many lines the log may have beyond twice the number of ids before it is compacted */
+	private static final int JOURNAL_SLACK = 64;
 
 	private final File logfile;
 
-	private Map<Long, String> presentIds = null;
+	/** The ids in the log, or {@code null} if the log hasn't been read yet */
+	private LongHashSet presentIds = null;
+	/** The data of the ids that have any */
+	private final Map<Long, String> idData = new HashMap<Long, String>();
+	/** The number of lines in the log file */
+	private int journalLines = 0;
 
 	public MessageLog(File logFile) {
 		this.logfile = logFile;
 	}
 
+	/**
+	 * Deletes the log file of a message log that is no longer used.
+	 * @return {@code true} if there are no files left
+	 */
+	static boolean delete(File logFile) {
+		File tmp = new File(logFile.getPath() + TMP_SUFFIX);
+		tmp.delete();
+		logFile.delete();
+		return !logFile.exists() && !tmp.exists();
+	}
+
 	public boolean isPresent(long targetid) throws IOException {
 		if(presentIds == null) {
 			readIds();
 		}
 
-		return presentIds.containsKey(Long.valueOf(targetid));
+		return presentIds.contains(targetid);
 	}
 
 	public void add(long id, String data) throws IOException {
@@ -59,75 +100,203 @@ class MessageLog {
 			throw new IllegalArgumentException("Argument data contained newline");
 		}
 
-		presentIds.put(Long.valueOf(id), data);
-		writeIds();
+		presentIds.add(id);
+		if(data != null) {
+			idData.put(Long.valueOf(id), data);
+		} else {
+			idData.remove(Long.valueOf(id));
+		}
+		append(Collections.singletonList(toLine(id, data)));
 	}
 
 	public void remove(long id) throws IOException {
+		removeAll(Collections.singletonList(Long.valueOf(id)));
+	}
+
+	public void removeAll(Collection<Long> ids) throws IOException {
 		if(presentIds == null) {
 			readIds();
 		}
 
-		presentIds.remove(Long.valueOf(id));
-		writeIds();
+		List<String> lines = new ArrayList<String>(ids.size());
+		for(Long id : ids) {
+			if(presentIds.remove(id.longValue())) {
+				idData.remove(id);
+				lines.add(REMOVE_PREFIX + id);
+			}
+		}
+		append(lines);
 	}
 
+	/**
+	 * Returns the ids in the log with their data, in ascending order of id. The
+	 * iterator works on a copy, so the log can be changed while iterating.
+	 */
 	public Iterator<Entry<Long, String>> iterator() throws IOException {
 		if(presentIds == null) {
 			readIds();
 		}
 
-		return presentIds.entrySet().iterator();
+		List<Entry<Long, String>> entries = new ArrayList<Entry<Long, String>>(presentIds.size());
+		for(long id : sortedIds()) {
+			entries.add(new SimpleImmutableEntry<Long, String>(Long.valueOf(id), idData.get(Long.valueOf(id))));
+		}
+		return entries.iterator();
 	}
 
+	/**
+	 * Returns the ids in the log in ascending order. The iterator works on a
+	 * copy, so the log can be changed while iterating.
+	 */
 	public Iterator<Long> keyIterator() throws IOException {
 		if(presentIds == null) {
 			readIds();
 		}
 
-		return presentIds.keySet().iterator();
+		List<Long> ids = new ArrayList<Long>(presentIds.size());
+		for(long id : sortedIds()) {
+			ids.add(Long.valueOf(id));
+		}
+		return ids.iterator();
+	}
+
+	private long[] sortedIds() {
+		long[] ids = presentIds.toArray();
+		Arrays.sort(ids);
+		return ids;
 	}
 
 	private void readIds() throws IOException {
-		presentIds = new HashMap<Long, String>();
+		presentIds = new LongHashSet();
+		idData.clear();
+		journalLines = 0;
 
 		if(!logfile.exists()) {
 			logfile.createNewFile();
 		}
+		//A last line without a newline was cut short by a crash, and might
+		//still parse, e.g. "remove, 1" instead of "remove, 12"
+		boolean complete = endsWithNewline();
 		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(this.logfile), "UTF-8"));
 
-		String line;
-		while((line = br.readLine()) != null) {
-			int sepIndex = line.indexOf(SEPARATOR);
-			long curid = Long.parseLong(line.substring(0, sepIndex));
+		boolean damaged = !complete;
+		try {
+			String line;
+			String next = br.readLine();
+			while((line = next) != null) {
+				next = br.readLine();
+				if(next == null && !complete) {
+					Logger.error(this, "Skipping unfinished last line in " + logfile + ": " + line);
+					break;
+				}
 
-			String data;
-			if(sepIndex + SEPARATOR.length() > line.length()) {
-				data = null;
-			} else {
-				data = line.substring(sepIndex + SEPARATOR.length());
+				journalLines++;
+				try {
+					if(line.startsWith(REMOVE_PREFIX)) {
+						long curid = Long.parseLong(line.substring(REMOVE_PREFIX.length()));
+						presentIds.remove(curid);
+						idData.remove(Long.valueOf(curid));
+						continue;
+					}
+
+					int sepIndex = line.indexOf(SEPARATOR);
+					long curid = Long.parseLong(line.substring(0, sepIndex));
+
+					String data;
+					if(sepIndex + SEPARATOR.length() > line.length()) {
+						data = null;
+					} else {
+						data = line.substring(sepIndex + SEPARATOR.length());
+					}
+
+					presentIds.add(curid);
+					if(data != null) {
+						idData.put(Long.valueOf(curid), data);
+					} else {
+						idData.remove(Long.valueOf(curid));
+					}
+				} catch(RuntimeException e) {
+					//Most likely a line that was only partly written before a crash
+					Logger.error(this, "Skipping invalid line in " + logfile + ": " + line);
+					damaged = true;
+				}
 			}
+		} finally {
+			br.close();
+		}
 
-			presentIds.put(Long.valueOf(curid), data);
+		//Appending to a line that was cut short would corrupt the next one,
+		//so start from a clean file
+		if(damaged) {
+			writeSnapshot();
+		}
+	}
+
+	private boolean endsWithNewline() throws IOException {
+		if(logfile.length() == 0) {
+			return true;
 		}
 
-		br.close();
+		RandomAccessFile raf = new RandomAccessFile(logfile, "r");
+		try {
+			raf.seek(raf.length() - 1);
+			return raf.read() == '\n';
+		} finally {
+			raf.close();
+		}
 	}
 
-	private void writeIds() throws IOException {
-		if(!logfile.exists()) {
-			logfile.createNewFile();
+	private void append(List<String> lines) throws IOException {
+		if(lines.isEmpty()) {
+			return;
+		}
+
+		if(journalLines + lines.size() > JOURNAL_SLACK + 2 * presentIds.size()) {
+			writeSnapshot();
+			return;
+		}
+
+		PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(logfile, true), "UTF-8"));
+		for(String line : lines) {
+			pw.print(line + "\n");
+		}
+		pw.close();
+		if(pw.checkError()) {
+			throw new IOException("Couldn't write to " + logfile);
 		}
-		FileOutputStream fos = new FileOutputStream(this.logfile, false);
+		journalLines += lines.size();
+	}
 
-		PrintStream ps = new PrintStream(fos);
-		for(Entry<Long, String> entry : presentIds.entrySet()) {
-			String line = entry.getKey() + SEPARATOR;
-			if(entry.getValue() != null) {
-				line += entry.getValue();
+	/**
+	 * Replaces the log file with one that only lists the current ids.
+	 */
+	private void writeSnapshot() throws IOException {
+		File tmp = new File(logfile.getPath() + TMP_SUFFIX);
+		PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+		for(long id : sortedIds()) {
+			pw.print(toLine(id, idData.get(Long.valueOf(id))) + "\n");
+		}
+		pw.close();
+		if(pw.checkError()) {
+			tmp.delete();
+			throw new IOException("Couldn't write " + tmp);
+		}
+
+		//Some platforms can't rename over an existing file
+		if(!tmp.renameTo(logfile)) {
+			logfile.delete();
+			if(!tmp.renameTo(logfile)) {
+				throw new IOException("Couldn't move " + tmp + " to " + logfile);
 			}
-			ps.println(line);
 		}
-		ps.close();
+		journalLines = presentIds.size();
+	}
+
+	private static String toLine(long id, String data) {
+		String line = id + SEPARATOR;
+		if(data != null) {
+			line += data;
+		}
+		return line;
 	}
 }
@@ -0,0 +1,324 @@
+/*
+ * PollScheduler.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.freenetproject.freemail.Freemail;
+import org.freenetproject.freemail.Freemail.TaskType;
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * Decides when the channels of an account are polled for new messages.
+ * Channels that receive messages are polled often, while the interval of
+ * channels that don't doubles after every empty poll, up to
+ * {@link #MAX_INTERVAL}. Polls are spread out so that each account, and the
+ * node as a whole, starts at most a fixed number of polls per minute.
+ *
+ * The arrival history is only kept in memory, so after a restart every
+ * channel starts out with the default interval.
+ */
+public class PollScheduler {
+	/** The shortest interval between polls of a channel */
+	static final long MIN_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+	/** The interval used for channels that have never received anything */
+	static final long DEFAULT_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+
+	/** The longest interval between polls of a channel */
+	static final long MAX_INTERVAL = TimeUnit.HOURS.toMillis(12);
+
+	/** The maximum number of polls started per minute for one account */
+	static final int MAX_ACCOUNT_POLLS_PER_MINUTE = 30;
+
+	/** The maximum number of polls started per minute by all accounts together */
+	static final int MAX_NODE_POLLS_PER_MINUTE = 120;
+
+	/** Weight of the latest time between two arrivals in the running average */
+	private static final double ARRIVAL_WEIGHT = 0.25;
+
+	private static final RateLimit nodeLimit = new RateLimit(MAX_NODE_POLLS_PER_MINUTE);
+
+	private final Freemail freemail;
+	private final RateLimit accountLimit = new RateLimit(MAX_ACCOUNT_POLLS_PER_MINUTE);
+
+	/** Guarded by {@code this} */
+	private final Map<Runnable, PollState> states = new HashMap<Runnable, PollState>();
+
+	PollScheduler(Freemail freemail) {
+		this.freemail = freemail;
+	}
+
+	/**
+	 * Polls using the given task as soon as the rate limits allow,
+	 * replacing any poll that was scheduled for later.
+	 * @param task the task that polls the channel
+	 */
+	synchronized void pollNow(Runnable task) {
+		schedule(task, getState(task), System.currentTimeMillis());
+	}
+
+	/**
+	 * Records the result of a poll and schedules the next one.
+	 * @param task the task that polled the channel
+	 * @param received the number of messages that were received
+	 */
+	synchronized void pollCompleted(Runnable task, int received) {
+		PollState state = getState(task);
+		long now = System.currentTimeMillis();
+		state.recordPoll(now, received);
+		schedule(task, state, now + state.interval);
+	}
+
+	/**
+	 * Stops polling using the given task.
+	 * @param task the task that polls the channel
+	 */
+	synchronized void remove(Runnable task) {
+		PollState state = states.remove(task);
+		if(state != null) {
+			cancel(state);
+		}
+	}
+
+	/**
+	 * Returns the polls that are scheduled, ordered by when they will run.
+	 * @return the polls that are scheduled
+	 */
+	public synchronized List<ScheduledPoll> getSchedule() {
+		List<ScheduledPoll> schedule = new ArrayList<ScheduledPoll>(states.size());
+		for(Map.Entry<Runnable, PollState> entry : states.entrySet()) {
+			PollState state = entry.getValue();
+			schedule.add(new ScheduledPoll(entry.getKey().toString(), state.nextPoll, state.interval,
+					state.emptyPolls, state.received));
+		}
+		Collections.sort(schedule, new Comparator<ScheduledPoll>() {
+			@Override
+			public int compare(ScheduledPoll a, ScheduledPoll b) {
+				return Long.compare(a.nextPoll, b.nextPoll);
+			}
+		});
+		return schedule;
+	}
+
+	private PollState getState(Runnable task) {
+		PollState state = states.get(task);
+		if(state == null) {
+			state = new PollState();
+			states.put(task, state);
+		}
+		return state;
+	}
+
+	private void schedule(final Runnable task, final PollState state, long at) {
+		cancel(state);
+
+		long now = System.currentTimeMillis();
+		synchronized(nodeLimit) {
+			//Find a time that is free in both limits
+			long time = Math.max(at, now);
+			while(true) {
+				long free = nodeLimit.findFree(accountLimit.findFree(time, now), now);
+				if(free == time) {
+					break;
+				}
+				time = free;
+			}
+			accountLimit.reserve(time);
+			nodeLimit.reserve(time);
+			state.nextPoll = time;
+		}
+
+		Logger.debug(this, "Polling " + task + " in " + (state.nextPoll - now) + "ms"
+				+ " (interval " + state.interval + "ms, " + state.emptyPolls + " empty polls)");
+		try {
+			ScheduledExecutorService executor = freemail.getExecutor(TaskType.UNSPECIFIED);
+			state.future = executor.schedule(task, state.nextPoll - now, TimeUnit.MILLISECONDS);
+		} catch(RejectedExecutionException e) {
+			// Executor is probably shutting down.
+			Logger.debug(this, "Caught RejectedExecutionException while scheduling " + task + ": Shutting down?");
+		}
+	}
+
+	private void cancel(PollState state) {
+		if(state.future != null && state.future.cancel(false)) {
+			synchronized(nodeLimit) {
+				accountLimit.release(state.nextPoll);
+				nodeLimit.release(state.nextPoll);
+			}
+		}
+		state.future = null;
+	}
+
+	/**
+	 * The poll history of a single channel.
+	 */
+	static class PollState {
+		/** The current interval between polls */
+		long interval = DEFAULT_INTERVAL;
+
+		/** The number of polls in a row that didn't receive anything */
+		int emptyPolls = 0;
+
+		/** The total number of messages received */
+		long received = 0;
+
+		/** Running average of the time between arrivals, or -1 if unknown */
+		long averageArrivalInterval = -1;
+
+		/** The time of the last poll that received something, or -1 */
+		long lastArrival = -1;
+
+		long nextPoll = 0;
+		ScheduledFuture<?> future = null;
+
+		void recordPoll(long now, int messages) {
+			if(messages > 0) {
+				if(lastArrival >= 0) {
+					long sinceLast = now - lastArrival;
+					if(averageArrivalInterval < 0) {
+						averageArrivalInterval = sinceLast;
+					} else {
+						averageArrivalInterval = (long)(averageArrivalInterval * (1 - ARRIVAL_WEIGHT)
+								+ sinceLast * ARRIVAL_WEIGHT);
+					}
+				}
+				lastArrival = now;
+				received += messages;
+				emptyPolls = 0;
+			} else {
+				emptyPolls++;
+			}
+
+			interval = nextInterval(averageArrivalInterval, lastArrival >= 0, emptyPolls);
+		}
+
+		/**
+		 * Returns the interval to the next poll. Channels that have received
+		 * something are polled a few times per expected arrival, and every
+		 * empty poll in a row doubles the interval.
+		 */
+		static long nextInterval(long averageArrivalInterval, boolean hasReceived, int emptyPolls) {
+			long base = hasReceived ? MIN_INTERVAL : DEFAULT_INTERVAL;
+			if(averageArrivalInterval > 0) {
+				base = Math.max(MIN_INTERVAL, Math.min(DEFAULT_INTERVAL, averageArrivalInterval / 4));
+			}
+
+			//Use enough of the doublings to reach the maximum, but no more
+			long interval = base;
+			for(int i = 0; i < emptyPolls && interval < MAX_INTERVAL; i++) {
+				interval *= 2;
+			}
+			return Math.min(interval, MAX_INTERVAL);
+		}
+	}
+
+	/**
+	 * Keeps the start times of polls at least a fixed time apart.
+	 */
+	static class RateLimit {
+		private final long spacing;
+		private final TreeSet<Long> reserved = new TreeSet<Long>();
+
+		RateLimit(int perMinute) {
+			this.spacing = TimeUnit.MINUTES.toMillis(1) / perMinute;
+		}
+
+		/**
+		 * Returns the first time at or after the given time that is at least
+		 * the spacing away from all reserved times.
+		 */
+		long findFree(long time, long now) {
+			//Times that have passed can't get in the way any more
+			while(!reserved.isEmpty() && reserved.first().longValue() < now - spacing) {
+				reserved.pollFirst();
+			}
+
+			while(true) {
+				Long before = reserved.floor(Long.valueOf(time));
+				if(before != null && time - before.longValue() < spacing) {
+					time = before.longValue() + spacing;
+					continue;
+				}
+
+				Long after = reserved.ceiling(Long.valueOf(time));
+				if(after != null && after.longValue() - time < spacing) {
+					time = after.longValue() + spacing;
+					continue;
+				}
+
+				return time;
+			}
+		}
+
+		void reserve(long time) {
+			reserved.add(Long.valueOf(time));
+		}
+
+		void release(long time) {
+			reserved.remove(Long.valueOf(time));
+		}
+	}
+
+	/**
+	 * A snapshot of the schedule of one channel.
+	 */
+	public static class ScheduledPoll {
+		/** The task that polls the channel, as a string */
+		public final String channel;
+
+		/** When the next poll will run, in milliseconds since the epoch */
+		public final long nextPoll;
+
+		/** The current interval between polls in milliseconds */
+		public final long interval;
+
+		/** The number of polls in a row that didn't receive anything */
+		public final int emptyPolls;
+
+		/** The number of messages received since Freemail was started */
+		public final long received;
+
+		private ScheduledPoll(String channel, long nextPoll, long interval, int emptyPolls, long received) {
+			this.channel = channel;
+			this.nextPoll = nextPoll;
+			this.interval = interval;
+			this.emptyPolls = emptyPolls;
+			this.received = received;
+		}
+
+		@Override
+		public String toString() {
+			return channel + " at " + new Date(nextPoll) + " (interval " + interval + "ms, "
+					+ emptyPolls + " empty polls, " + received + " received)";
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * SharedBodyStore.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.freenetproject.freemail.utils.Logger;
+import org.freenetproject.freemail.utils.PropsFile;
+
+/**
+ * Holds the bodies of outgoing messages that are shared by several
+ * recipients, so that a message sent to many recipients is only stored once.
+ * The index counts the recipients that still refer to each body, and a body
+ * is deleted when the last of them has received it.
+ */
+class SharedBodyStore {
+	private static final String INDEX_NAME = "index";
+	private static final String BODY_PREFIX = "body";
+
+	private final File dir;
+	private final PropsFile index;
+
+	SharedBodyStore(File dir) {
+		this.dir = dir;
+		this.index = PropsFile.createPropsFile(new File(dir, INDEX_NAME));
+
+		//A reference count must be on disk before a recipient index refers to
+		//the body, otherwise a crash would let the next start delete it
+		this.index.setSync(true);
+
+		//Bodies without references were left behind by a send that didn't finish
+		File[] files = dir.listFiles();
+		if(files == null) {
+			return;
+		}
+		synchronized(index) {
+			for(File f : files) {
+				if(f.getName().startsWith(BODY_PREFIX) && index.get(f.getName()) == null) {
+					Logger.debug(this, "Deleting unreferenced body " + f);
+					if(!f.delete()) {
+						Logger.error(this, "Couldn't delete " + f);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns a new, empty file for a body. The body is deleted the next time
+	 * the store is opened unless {@link #addReferences(File, int)} is called.
+	 */
+	File createBody() throws IOException {
+		if(!dir.exists() && !dir.mkdirs()) {
+			throw new IOException("Couldn't create directory " + dir);
+		}
+		return File.createTempFile(BODY_PREFIX, "", dir);
+	}
+
+	/**
+	 * Adds {@code count} references to the body, which is deleted when all of
+	 * them have been released. The new count is on disk when this returns.
+	 * @return {@code false} if the index couldn't be updated
+	 */
+	boolean addReferences(File body, int count) {
+		String name = body.getName();
+		synchronized(index) {
+			return index.put(name, getReferences(name) + count);
+		}
+	}
+
+	File getBody(String name) {
+		return new File(dir, name);
+	}
+
+	/**
+	 * Releases {@code count} references to the body, deleting it if there are
+	 * none left.
+	 */
+	void release(String name, int count) {
+		synchronized(index) {
+			long references = getReferences(name) - count;
+			if(references > 0) {
+				index.put(name, references);
+				return;
+			}
+
+			File body = getBody(name);
+			Logger.debug(this, "Last reference released, deleting " + body);
+			if(body.exists() && !body.delete()) {
+				Logger.error(this, "Couldn't delete " + body);
+				return;
+			}
+			index.remove(name);
+		}
+	}
+
+	private long getReferences(String name) {
+		String raw = index.get(name);
+		if(raw == null) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(raw);
+		} catch(NumberFormatException e) {
+			Logger.error(this, "Invalid reference count for " + name + ": " + raw);
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,288 @@
+/*
+ * SlotPrefetcher.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+
+import org.freenetproject.freemail.fcp.ConnectionTerminatedException;
+import org.freenetproject.freemail.fcp.FCPException;
+import org.freenetproject.freemail.fcp.FCPFetchException;
+import org.freenetproject.freemail.fcp.HighLevelFCPClient;
+import org.freenetproject.freemail.utils.Logger;
+
+import freenet.support.api.Bucket;
+
+/**
+ * Fetches the keys of a slot window concurrently, so that polling a channel
+ * takes about one Freenet round trip instead of one per slot. The results
+ * are collected with {@link #take(String)}, which lets the caller process
+ * them in slot order.
+ *
+ * At most {@code maxConcurrent} fetches are running for one prefetcher at a
+ * time, the rest are queued until one of the running fetches is taken.
+ * Fetches are started on the executor, which decides the order in which
+ * the fetches of all channels go to the node. Its threads only submit the
+ * fetch and don't wait for the node to answer, so the total number of
+ * fetches running for all prefetchers is limited by a semaphore that they
+ * share instead. A fetch holds one permit from when it is submitted until
+ * the node has answered or it has been cancelled.
+ *
+ * A prefetcher is used by a single thread and is not thread safe.
+ */
+class SlotPrefetcher {
+	private final Executor executor;
+	private final HighLevelFCPClient fcpClient;
+	private final int maxConcurrent;
+	private final Semaphore permits;
+
+	/** All the keys that have been added, and the fetch of those not yet taken */
+	private final Map<String, Fetch> fetches = new HashMap<String, Fetch>();
+
+	/** Fetches that haven't been started yet, in the order they were added */
+	private final LinkedList<Fetch> queued = new LinkedList<Fetch>();
+
+	private int running = 0;
+
+	/**
+	 * @param executor the executor the fetches are submitted on
+	 * @param fcpClient the client the fetches are submitted to
+	 * @param maxConcurrent the maximum number of fetches running for this prefetcher
+	 * @param permits the permits for running fetches, shared by all prefetchers
+	 */
+	SlotPrefetcher(Executor executor, HighLevelFCPClient fcpClient, int maxConcurrent, Semaphore permits) {
+		if(maxConcurrent < 1) {
+			throw new IllegalArgumentException("maxConcurrent must be positive, was " + maxConcurrent);
+		}
+
+		this.executor = executor;
+		this.fcpClient = fcpClient;
+		this.maxConcurrent = maxConcurrent;
+		this.permits = permits;
+	}
+
+	/**
+	 * Starts fetching the given key, or queues the fetch if too many are
+	 * running already. Keys that have been added before are ignored.
+	 * @param key the key to fetch
+	 */
+	void add(final String key) {
+		if(fetches.containsKey(key)) {
+			return;
+		}
+
+		Fetch fetch = new Fetch(key);
+		fetches.put(key, fetch);
+		queued.add(fetch);
+		startQueued();
+	}
+
+	/**
+	 * Returns {@code true} if the given key has been added to this prefetcher.
+	 * @param key the key to check
+	 * @return {@code true} if the key has been added
+	 */
+	boolean contains(String key) {
+		return fetches.containsKey(key);
+	}
+
+	/**
+	 * Waits for the fetch of the given key to finish and returns the result
+	 * like {@link HighLevelFCPClient#fetchBucket(String)} would. The key is
+	 * added first if needed. Each key can only be taken once.
+	 * @param key the key to fetch
+	 * @return the fetched data, which the caller must free
+	 */
+	Bucket take(String key) throws ConnectionTerminatedException, FCPFetchException, FCPException,
+	                             InterruptedException {
+		add(key);
+
+		Fetch fetch = fetches.put(key, null);
+		if(fetch == null) {
+			throw new IllegalStateException("Fetch of " + key + " has already been taken");
+		}
+
+		//Make sure the fetch we're waiting for will run
+		if(queued.remove(fetch)) {
+			running++;
+			execute(fetch);
+		}
+
+		try {
+			return fetch.get();
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof ConnectionTerminatedException) {
+				throw (ConnectionTerminatedException) cause;
+			} else if(cause instanceof FCPFetchException) {
+				throw (FCPFetchException) cause;
+			} else if(cause instanceof FCPException) {
+				throw (FCPException) cause;
+			} else if(cause instanceof InterruptedException) {
+				throw (InterruptedException) cause;
+			} else if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if(cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new AssertionError(cause);
+		} catch(CancellationException e) {
+			throw new InterruptedException("Fetch of " + key + " was cancelled");
+		} finally {
+			running--;
+			startQueued();
+		}
+	}
+
+	/**
+	 * Stops all fetches that haven't been taken and frees the data of
+	 * those that have completed.
+	 */
+	void cancel() {
+		queued.clear();
+		for(Fetch fetch : fetches.values()) {
+			if(fetch == null) {
+				continue;
+			}
+
+			if(!fetch.cancel(true)) {
+				try {
+					Bucket result = fetch.get();
+					if(result != null) {
+						result.free();
+					}
+				} catch(ExecutionException e) {
+					//No data to free
+				} catch(CancellationException e) {
+					//No data to free
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		fetches.clear();
+		running = 0;
+	}
+
+	private void startQueued() {
+		while(running < maxConcurrent && !queued.isEmpty()) {
+			running++;
+			execute(queued.removeFirst());
+		}
+	}
+
+	private void execute(Fetch fetch) {
+		try {
+			executor.execute(fetch);
+		} catch(RejectedExecutionException e) {
+			//Probably shutting down, so let the fetch fail with an InterruptedException
+			Logger.debug(this, "Caught RejectedExecutionException while starting fetch, shutting down?");
+			fetch.cancel(false);
+		}
+	}
+
+	/**
+	 * The result of fetching one key. Running it waits for a permit and
+	 * submits the fetch to the node, and the result is passed on when the
+	 * node answers.
+	 */
+	private class Fetch extends CompletableFuture<Bucket> implements Runnable {
+		private final String key;
+		private volatile CompletableFuture<Bucket> pending = null;
+
+		private Fetch(String key) {
+			this.key = key;
+		}
+
+		@Override
+		public void run() {
+			if(isDone()) {
+				return;
+			}
+
+			try {
+				permits.acquire();
+			} catch(InterruptedException e) {
+				completeExceptionally(e);
+				return;
+			}
+
+			//Cancelled while waiting for the permit
+			if(isDone()) {
+				permits.release();
+				return;
+			}
+
+			Logger.debug(this, "Attempting to fetch mail on key " + key);
+			CompletableFuture<Bucket> submitted;
+			try {
+				submitted = fcpClient.submitFetch(key);
+			} catch(ConnectionTerminatedException e) {
+				permits.release();
+				completeExceptionally(e);
+				return;
+			} catch(InterruptedException e) {
+				permits.release();
+				completeExceptionally(e);
+				return;
+			} catch(RuntimeException e) {
+				permits.release();
+				completeExceptionally(e);
+				return;
+			}
+
+			pending = submitted;
+			if(isCancelled()) {
+				submitted.cancel(false);
+			}
+
+			submitted.whenComplete(new BiConsumer<Bucket, Throwable>() {
+				@Override
+				public void accept(Bucket result, Throwable failure) {
+					permits.release();
+					if(failure != null) {
+						completeExceptionally(failure);
+					} else if(!complete(result) && result != null) {
+						//Cancelled while the data was on its way
+						result.free();
+					}
+				}
+			});
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			CompletableFuture<Bucket> current = pending;
+			if(current != null) {
+				current.cancel(false);
+			}
+			return cancelled;
+		}
+	}
+}
@@ -84,6 +84,18 @@ public class InboxToadlet extends WebPage {
 		String folderName = req.getParam("folder", "inbox");
 		MessageBank messageBank = getMessageBank(account, folderName);
 		HTMLNode messageList = container.addChild("div", "class", "messagelist");
+
+		//Add the search box
+		String searchString = req.getParam("search", "").trim();
+		HTMLNode searchForm = messageList.addChild("form", new String[] {"action", "method"},
+		                                                   new String[] {path(), "get"});
+		searchForm.addChild("input", new String[] {"type",   "name",   "value"},
+		                             new String[] {"hidden", "folder", folderName});
+		searchForm.addChild("input", new String[] {"type", "name",   "value"},
+		                             new String[] {"text", "search", searchString});
+		searchForm.addChild("input", new String[] {"type",   "value"},
+		                             new String[] {"submit", FreemailL10n.getString("Freemail.InboxToadlet.search")});
+
 		messageList = pluginRespirator.addFormChild(messageList, "InboxToadlet", "action");
 		messageList.addChild("input", new String[] {"type",   "name",   "value"},
 		                              new String[] {"hidden", "folder", folderName});
@@ -106,12 +118,18 @@ public class InboxToadlet extends WebPage {
 		// FIXME is there any reason for this to be a TreeMap rather than Arrays.sort()?
 		// Maybe if we want to have it on more than one page in future or something?
 		SortedMap<MailMessage, Integer> messages = new TreeMap<MailMessage, Integer>(new MailMessageComparator(getSortField(req), getSortDirection(req)));
-		for(Entry<Integer, MailMessage> messageEntry : messageBank.listMessages().entrySet()) {
+		SortedMap<Integer, MailMessage> listed;
+		if(searchString.equals("")) {
+			listed = messageBank.listMessages();
+		} else {
+			listed = messageBank.search(searchString);
+		}
+		for(Entry<Integer, MailMessage> messageEntry : listed.entrySet()) {
 			Integer messageNum = messageEntry.getKey();
 			MailMessage message = messageEntry.getValue();
 
 			//FIXME: Initialization of MailMessage should be in MailMessage
-			message.readHeaders();
+			message.readSummaryHeaders();
 
 			if(message.flags.isDeleted()) {
 				continue;
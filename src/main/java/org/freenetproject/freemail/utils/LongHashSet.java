@@ -0,0 +1,162 @@
+/*
+ * LongHashSet.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.utils;
+
+import java.util.Arrays;
+
+/**
+ * A set of longs that stores the values directly in an array, using open
+ * addressing with linear probing, instead of boxing each of them like
+ * {@code HashSet<Long>}. Not thread safe.
+ */
+public class LongHashSet {
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] values;
+	private boolean[] used;
+	private int size = 0;
+
+	public LongHashSet() {
+		this(MIN_CAPACITY);
+	}
+
+	public LongHashSet(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while(capacity < expectedSize * 2) {
+			capacity *= 2;
+		}
+		values = new long[capacity];
+		used = new boolean[capacity];
+	}
+
+	/**
+	 * Adds the value to the set.
+	 * @return {@code true} if the set didn't already contain the value
+	 */
+	public boolean add(long value) {
+		int slot = find(value);
+		if(used[slot]) {
+			return false;
+		}
+
+		values[slot] = value;
+		used[slot] = true;
+		size++;
+		if(size * 2 > values.length) {
+			resize(values.length * 2);
+		}
+		return true;
+	}
+
+	public boolean contains(long value) {
+		return used[find(value)];
+	}
+
+	/**
+	 * Removes the value from the set.
+	 * @return {@code true} if the set contained the value
+	 */
+	public boolean remove(long value) {
+		int slot = find(value);
+		if(!used[slot]) {
+			return false;
+		}
+
+		//Move later values of the same run back into the gap, so that the
+		//probe for them doesn't stop at it
+		int mask = values.length - 1;
+		int gap = slot;
+		int next = (gap + 1) & mask;
+		while(used[next]) {
+			int home = hash(values[next]);
+			//Move the value unless its home lies cyclically in (gap, next]
+			boolean between = (gap <= next) ? (gap < home && home <= next) : (gap < home || home <= next);
+			if(!between) {
+				values[gap] = values[next];
+				gap = next;
+			}
+			next = (next + 1) & mask;
+		}
+		used[gap] = false;
+		size--;
+		return true;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		Arrays.fill(used, false);
+		size = 0;
+	}
+
+	/**
+	 * Returns the values of the set in no particular order.
+	 * @return the values of the set
+	 */
+	public long[] toArray() {
+		long[] result = new long[size];
+		int i = 0;
+		for(int slot = 0; slot < values.length; slot++) {
+			if(used[slot]) {
+				result[i++] = values[slot];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the slot that holds the value, or the empty slot where it
+	 * should be added.
+	 */
+	private int find(long value) {
+		int mask = values.length - 1;
+		int slot = hash(value);
+		while(used[slot] && values[slot] != value) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private int hash(long value) {
+		//Fibonacci hashing spreads sequential ids over the whole table
+		long h = value * 0x9E3779B97F4A7C15L;
+		return (int)(h >>> (64 - Integer.numberOfTrailingZeros(values.length)));
+	}
+
+	private void resize(int capacity) {
+		long[] oldValues = values;
+		boolean[] oldUsed = used;
+		values = new long[capacity];
+		used = new boolean[capacity];
+		for(int slot = 0; slot < oldValues.length; slot++) {
+			if(oldUsed[slot]) {
+				int newSlot = find(oldValues[slot]);
+				values[newSlot] = oldValues[slot];
+				used[newSlot] = true;
+			}
+		}
+	}
+}
@@ -25,20 +25,58 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Hashtable;
-
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A file of {@code key=value} lines that is kept in memory. Files are
+ * written to a temporary file that is then renamed over the old one, so a
+ * crash never leaves a half written file behind.
+ * <p>
+ * Single changes made with {@link #put(String, String)} and
+ * {@link #remove(String)} are written behind: the first change is written
+ * at once, and further changes within {@link #WRITE_BEHIND_DELAY} ms are
+ * collected and written together when that time has passed.
+ * {@link #putAll(Map)}, {@link #removeAll(Collection)} and {@link #flush()}
+ * always write before returning, as do all changes to files that have been
+ * made durable with {@link #setSync(boolean)}.
+ */
 public class PropsFile {
 	// substitute static methods for constructor
 
 	private static final Hashtable<String, PropsFile> propsList=new Hashtable<String, PropsFile>();
 
+	/** The longest time in ms a change made with put or remove is kept in memory only */
+	static final long WRITE_BEHIND_DELAY = 100;
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private static final ScheduledThreadPoolExecutor flusher;
+	static {
+		flusher = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Freemail props writer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		flusher.setKeepAliveTime(1, TimeUnit.MINUTES);
+		flusher.allowCoreThreadTimeOut(true);
+	}
+
 	private static int reapCounter = 0;
 	/// We go through the list and remove stale entries once in this many times a PropsFile is created
 	private static final int reapEvery = 20;
@@ -76,19 +114,43 @@ public class PropsFile {
 		while(i.hasNext()) {
 			Map.Entry<String, PropsFile> entry = i.next();
 			File f = new File(entry.getKey());
-			if(!f.exists()) {
+			if(!f.exists() && !entry.getValue().isDirty()) {
 				Logger.debug(PropsFile.class, "Removing "+f.getPath());
 				i.remove();
 			}
 		}
 	}
 
+	/**
+	 * Writes all the changes that are waiting to be written, e.g. before
+	 * shutting down.
+	 */
+	public static void flushAll() {
+		List<PropsFile> files;
+		synchronized(PropsFile.class) {
+			files = new ArrayList<PropsFile>(propsList.values());
+		}
+		for(PropsFile pf : files) {
+			pf.flush();
+		}
+	}
+
 	private final File file;
 	private HashMap<String, String> data;
 	private BufferedReader bufrdr;
 	private String commentPrefix;
 	private String header;
 
+	/** If {@code true} every change is written and synced to disk before returning */
+	private boolean sync = false;
+	/** {@code true} if there are changes that haven't been written yet */
+	private volatile boolean dirty = false;
+	private boolean flushScheduled = false;
+	/** When the file was last written, from {@link System#nanoTime()} */
+	private long lastWrite = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(WRITE_BEHIND_DELAY);
+	/** {@code true} if the file has been read or written, so that if it is gone it was deleted */
+	private boolean onDisk = false;
+
 	/** Pass true into stopAtBlank to cause the reader to stop upon encountering
 	 * a blank line. It's the the caller's responsibility to get
 	 * (using the getReader() method) the stream and close it properly.
@@ -100,6 +162,7 @@ public class PropsFile {
 		if(f.exists()) {
 			try {
 				this.bufrdr = this.read(stopAtBlank);
+				this.onDisk = true;
 			} catch (IOException ioe) {
 			}
 		}
@@ -115,6 +178,83 @@ public class PropsFile {
 		this.header = hdr;
 	}
 
+	/**
+	 * Makes every change durable before the method that made it returns, by
+	 * writing it at once and syncing the file to disk. Used for files where
+	 * losing a change could break the protocol, e.g. the channel state.
+	 */
+	public synchronized void setSync(boolean sync) {
+		this.sync = sync;
+		if(sync) {
+			flush();
+		}
+	}
+
+	/**
+	 * Writes any changes that are waiting to be written. Changes to a file
+	 * that was deleted while they were waiting are dropped instead.
+	 * @return {@code false} if the file couldn't be written
+	 */
+	public synchronized boolean flush() {
+		if(!dirty) {
+			return true;
+		}
+
+		//Don't bring back a file (or its directory) that was deleted
+		//while the change was waiting
+		if(onDisk && !file.exists()) {
+			Logger.debug(this, "Dropping changes to deleted file " + file);
+			dirty = false;
+			return true;
+		}
+
+		try {
+			this.write();
+			return true;
+		} catch (IOException ioe) {
+			Logger.error(this, "Couldn't write " + file + ": " + ioe.getMessage());
+			return false;
+		}
+	}
+
+	private boolean isDirty() {
+		return dirty;
+	}
+
+	/**
+	 * Writes the file after a change, or arranges for it to be written later
+	 * if it was written recently.
+	 */
+	private synchronized boolean changed() {
+		long sinceWrite = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastWrite);
+		if(sync || (!flushScheduled && sinceWrite >= WRITE_BEHIND_DELAY)) {
+			try {
+				this.write();
+			} catch (IOException ioe) {
+				Logger.error(this, "Couldn't write " + file + ": " + ioe.getMessage());
+				return false;
+			}
+			return true;
+		}
+
+		dirty = true;
+		if(!flushScheduled) {
+			flushScheduled = true;
+			flusher.schedule(new Runnable() {
+				@Override
+				public void run() {
+					writeBehind();
+				}
+			}, Math.max(0, WRITE_BEHIND_DELAY - sinceWrite), TimeUnit.MILLISECONDS);
+		}
+		return true;
+	}
+
+	private synchronized void writeBehind() {
+		flushScheduled = false;
+		flush();
+	}
+
 	private synchronized BufferedReader read(boolean stopAtBlank) throws IOException {
 		this.data = new HashMap<String, String>();
 
@@ -158,49 +298,99 @@ public class PropsFile {
 			}
 		}
 
-		PrintWriter pw = new PrintWriter(new FileOutputStream(this.file));
+		File tmp = new File(file.getPath() + TMP_SUFFIX);
+		FileOutputStream fos = new FileOutputStream(tmp);
+		PrintWriter pw = new PrintWriter(new OutputStreamWriter(fos, "UTF-8"));
+		try {
+			if(this.header != null) pw.println(this.header);
 
-		if(this.header != null) pw.println(this.header);
+			Iterator<Map.Entry<String, String>> i = this.data.entrySet().iterator();
+			while(i.hasNext()) {
+				Map.Entry<String, String> e = i.next();
+				String key = e.getKey();
+				String val = e.getValue();
 
-		Iterator<Map.Entry<String, String>> i = this.data.entrySet().iterator();
-		while(i.hasNext()) {
-			Map.Entry<String, String> e = i.next();
-			String key = e.getKey();
-			String val = e.getValue();
+				pw.println(key+"="+val);
+			}
 
-			pw.println(key+"="+val);
+			pw.flush();
+			if(pw.checkError()) {
+				throw new IOException("Couldn't write " + tmp);
+			}
+			if(sync) {
+				fos.getFD().sync();
+			}
+		} catch (IOException ioe) {
+			pw.close();
+			tmp.delete();
+			throw ioe;
 		}
-
 		pw.close();
+
+		//Some platforms can't rename over an existing file
+		if(!tmp.renameTo(file)) {
+			file.delete();
+			if(!tmp.renameTo(file)) {
+				tmp.delete();
+				throw new IOException("Couldn't move " + tmp + " to " + file);
+			}
+		}
+
+		dirty = false;
+		onDisk = true;
+		lastWrite = System.nanoTime();
 	}
 
-	public String get(String key) {
+	public synchronized String get(String key) {
 		if(this.data == null) return null;
 
 		return this.data.get(key);
 	}
 
-	public boolean put(String key, String val) {
+	public synchronized boolean put(String key, String val) {
 		if(this.data == null) {
 			this.data = new HashMap<String, String>();
 		}
 
 		Object o = this.data.put(key, val);
 		if(o == null || !o.equals(val)) {
+			return changed();
+		}
+		return true;
+	}
+
+	public boolean put(String key, long val) {
+		return this.put(key, Long.toString(val));
+	}
+
+	/**
+	 * Stores all the given values, writing the file once.
+	 * @return {@code false} if the file couldn't be written
+	 */
+	public synchronized boolean putAll(Map<String, String> values) {
+		if(this.data == null) {
+			this.data = new HashMap<String, String>();
+		}
+
+		boolean changed = false;
+		for(Map.Entry<String, String> e : values.entrySet()) {
+			Object o = this.data.put(e.getKey(), e.getValue());
+			if(o == null || !o.equals(e.getValue())) {
+				changed = true;
+			}
+		}
+
+		if(changed || dirty) {
 			try {
 				this.write();
 			} catch (IOException ioe) {
-				ioe.printStackTrace();
+				Logger.error(this, "Couldn't write " + file + ": " + ioe.getMessage());
 				return false;
 			}
 		}
 		return true;
 	}
 
-	public boolean put(String key, long val) {
-		return this.put(key, Long.toString(val));
-	}
-
 	public boolean exists() {
 		return this.file.exists();
 	}
@@ -209,13 +399,33 @@ public class PropsFile {
 		return this.data.keySet();
 	}
 
-	public boolean remove(String key) {
-		if(this.data.containsKey(key)) {
+	public synchronized boolean remove(String key) {
+		if(this.data != null && this.data.containsKey(key)) {
 			this.data.remove(key);
+			return changed();
+		}
+		return true;
+	}
+
+	/**
+	 * Removes all the given keys, writing the file once.
+	 * @return {@code false} if the file couldn't be written
+	 */
+	public synchronized boolean removeAll(Collection<String> keys) {
+		if(this.data == null) return true;
+
+		boolean changed = false;
+		for(String key : keys) {
+			if(this.data.remove(key) != null) {
+				changed = true;
+			}
+		}
+
+		if(changed || dirty) {
 			try {
 				this.write();
 			} catch (IOException ioe) {
-				ioe.printStackTrace();
+				Logger.error(this, "Couldn't write " + file + ": " + ioe.getMessage());
 				return false;
 			}
 		}
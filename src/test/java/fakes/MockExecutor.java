@@ -135,6 +135,13 @@ public class MockExecutor implements ScheduledExecutorService {
 		throw new UnsupportedOperationException();
 	}
 
+	/**
+	 * Returns the number of tasks that are waiting to be run.
+	 */
+	public int getQueuedTaskCount() {
+		return tasks.size();
+	}
+
 	public void runNext() {
 		NullReturnFuture<?> task = tasks.remove(0);
 		Logger.debug(this, "Running task: " + task.task);
@@ -150,7 +157,7 @@ public class MockExecutor implements ScheduledExecutorService {
 
 		@Override
 		public boolean cancel(boolean mayInterruptIfRunning) {
-			throw new UnsupportedOperationException();
+			return tasks.remove(this);
 		}
 
 		@Override
@@ -158,9 +165,12 @@ public class MockExecutor implements ScheduledExecutorService {
 			throw new UnsupportedOperationException();
 		}
 
+		/**
+		 * Returns {@code true} once the task has been run or cancelled.
+		 */
 		@Override
 		public boolean isDone() {
-			throw new UnsupportedOperationException();
+			return !tasks.contains(this);
 		}
 
 		@Override
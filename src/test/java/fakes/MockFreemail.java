@@ -24,6 +24,7 @@ import java.util.concurrent.ScheduledExecutorService;
 
 import org.freenetproject.freemail.AccountManager;
 import org.freenetproject.freemail.Freemail;
+import org.freenetproject.freemail.FreemailAccount;
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.wot.WoTConnection;
 
@@ -43,12 +44,12 @@ public class MockFreemail extends Freemail {
 	}
 
 	@Override
-	public ScheduledExecutorService getExecutor(TaskType type) {
+	public ScheduledExecutorService getExecutor(TaskType type, FreemailAccount account) {
 		Logger.debug(this, "getExecutor(type=" + type + ")");
 		if (executor != null) {
 			return executor;
 		}
-		return super.getExecutor(type);
+		return super.getExecutor(type, account);
 	}
 
 	@Override
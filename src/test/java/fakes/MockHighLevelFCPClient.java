@@ -28,6 +28,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -41,6 +42,9 @@ import org.freenetproject.freemail.fcp.HighLevelFCPClient;
 import org.freenetproject.freemail.fcp.SSKKeyPair;
 import org.freenetproject.freemail.utils.Logger;
 
+import freenet.support.api.Bucket;
+import freenet.support.io.FileBucket;
+
 public class MockHighLevelFCPClient extends HighLevelFCPClient {
 	private final Map<String, File> fetchResults;
 
@@ -122,6 +126,23 @@ public class MockHighLevelFCPClient extends HighLevelFCPClient {
 		return result;
 	}
 
+	@Override
+	public Bucket fetchBucket(String key) throws ConnectionTerminatedException, FCPFetchException, FCPException, InterruptedException {
+		File result = fetch(key);
+		return (result == null) ? null : new FileBucket(result, false, false, false, true);
+	}
+
+	@Override
+	public CompletableFuture<Bucket> submitFetch(String key) throws ConnectionTerminatedException, InterruptedException {
+		CompletableFuture<Bucket> result = new CompletableFuture<Bucket>();
+		try {
+			result.complete(fetchBucket(key));
+		} catch (FCPException e) {
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
 	@Override
 	public SSKKeyPair makeSSK() throws ConnectionTerminatedException, InterruptedException {
 		Logger.debug(this, "makeSSK()");
@@ -133,9 +154,9 @@ public class MockHighLevelFCPClient extends HighLevelFCPClient {
 	}
 
 	@Override
-	public synchronized FCPPutFailedException put(InputStream data, String key) throws FCPBadFileException,
-	                                                                      ConnectionTerminatedException,
-	                                                                      FCPException, InterruptedException {
+	public synchronized FCPPutFailedException put(InputStream data, long length, String key) throws FCPBadFileException,
+	                                                                                   ConnectionTerminatedException,
+	                                                                                   FCPException, InterruptedException {
 		Logger.debug(this, "put(key=" + key + ")");
 
 		inserts.add(new Insert(key, data));
@@ -163,7 +184,7 @@ public class MockHighLevelFCPClient extends HighLevelFCPClient {
 		                            + ", minslot=" + minslot
 		                            + ", suffix=" + suffix + ")");
 		try {
-			put(new ByteArrayInputStream(data), basekey + "-" + minslot);
+			put(new ByteArrayInputStream(data), data.length, basekey + "-" + minslot);
 		} catch (FCPBadFileException e) {
 			throw new AssertionError();
 		} catch (FCPException e) {
@@ -0,0 +1,226 @@
+/*
+ * IOSchedulerTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.freenetproject.freemail.Freemail.TaskType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IOSchedulerTest {
+	private IOScheduler scheduler;
+	private CountDownLatch release;
+	private List<String> order;
+
+	@Before
+	public void before() throws InterruptedException {
+		//A single thread that is kept busy until release is counted down,
+		//so everything that is submitted before that has to queue
+		scheduler = new IOScheduler(1, Executors.defaultThreadFactory());
+		release = new CountDownLatch(1);
+		order = Collections.synchronizedList(new ArrayList<String>());
+
+		final CountDownLatch started = new CountDownLatch(1);
+		scheduler.getExecutor(TaskType.FETCHER, null).execute(new Runnable() {
+			@Override
+			public void run() {
+				started.countDown();
+				try {
+					release.await();
+				} catch(InterruptedException e) {
+					//Just finish
+				}
+			}
+		});
+		started.await();
+	}
+
+	@After
+	public void after() throws InterruptedException {
+		scheduler.shutdownNow();
+		assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void higherPriorityRunsFirst() throws InterruptedException {
+		submit(TaskType.FETCHER, "a", "fetch");
+		submit(TaskType.RTS, "a", "rts");
+		submit(TaskType.ACK, "a", "ack");
+		submit(TaskType.SENDER, "a", "send");
+
+		runAll(4);
+		assertEquals(Arrays.asList("send", "ack", "rts", "fetch"), order);
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void accountsTakeTurns() throws InterruptedException {
+		submit(TaskType.FETCHER, "a", "a1");
+		submit(TaskType.FETCHER, "a", "a2");
+		submit(TaskType.FETCHER, "a", "a3");
+		submit(TaskType.FETCHER, "b", "b1");
+		submit(TaskType.FETCHER, "b", "b2");
+
+		runAll(5);
+		assertEquals(Arrays.asList("a1", "b1", "a2", "b2", "a3"), order);
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void statisticsShowQueue() throws InterruptedException {
+		submit(TaskType.ACK, "a", "ack1");
+		submit(TaskType.ACK, "b", "ack2");
+
+		IOScheduler.QueueStatistics ack = scheduler.getStatistics().get(TaskType.ACK.ordinal());
+		assertEquals(TaskType.ACK, ack.type);
+		assertEquals(2, ack.queued);
+		assertEquals(0, ack.started);
+
+		runAll(2);
+		ack = scheduler.getStatistics().get(TaskType.ACK.ordinal());
+		assertEquals(0, ack.queued);
+		assertEquals(2, ack.started);
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void delayedAndCancelledTasks() throws InterruptedException {
+		final CountDownLatch ran = new CountDownLatch(1);
+		scheduler.getExecutor(TaskType.SENDER, "a").schedule(new Runnable() {
+			@Override
+			public void run() {
+				ran.countDown();
+			}
+		}, 50, TimeUnit.MILLISECONDS);
+
+		ScheduledFuture<?> later = scheduler.getExecutor(TaskType.SENDER, "a").schedule(new Runnable() {
+			@Override
+			public void run() {
+				order.add("cancelled");
+			}
+		}, 1, TimeUnit.HOURS);
+		assertTrue(later.cancel(false));
+
+		//Cancelling a queued task takes it out of the queue
+		ScheduledFuture<?> queued = scheduler.getExecutor(TaskType.SENDER, "a").schedule(new Runnable() {
+			@Override
+			public void run() {
+				order.add("cancelled");
+			}
+		}, 0, TimeUnit.MILLISECONDS);
+		assertEquals(1, scheduler.getStatistics().get(TaskType.SENDER.ordinal()).queued);
+		assertTrue(queued.cancel(false));
+		assertEquals(0, scheduler.getStatistics().get(TaskType.SENDER.ordinal()).queued);
+
+		release.countDown();
+		ran.await();
+		assertTrue(order.isEmpty());
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void idleThreadIsOnlyWokenForOneTask() throws InterruptedException {
+		IOScheduler two = new IOScheduler(2, Executors.defaultThreadFactory());
+		try {
+			//Leave one thread idle
+			final CountDownLatch first = new CountDownLatch(1);
+			two.getExecutor(TaskType.FETCHER, null).execute(new Runnable() {
+				@Override
+				public void run() {
+					first.countDown();
+				}
+			});
+			first.await();
+			while(two.getIdleThreads() < 1) {
+				Thread.sleep(10);
+			}
+
+			//Neither task can finish until both are running
+			final CountDownLatch running = new CountDownLatch(2);
+			final CountDownLatch bothRan = new CountDownLatch(2);
+			Runnable task = new Runnable() {
+				@Override
+				public void run() {
+					running.countDown();
+					try {
+						if(running.await(5, TimeUnit.SECONDS)) {
+							bothRan.countDown();
+						}
+					} catch(InterruptedException e) {
+						//Just finish
+					}
+				}
+			};
+			two.getExecutor(TaskType.ACK, "a").execute(task);
+			two.getExecutor(TaskType.ACK, "b").execute(task);
+			assertTrue(bothRan.await(8, TimeUnit.SECONDS));
+		} finally {
+			two.shutdownNow();
+			assertTrue(two.awaitTermination(10, TimeUnit.SECONDS));
+		}
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void periodicTaskRepeatsUntilCancelled() throws InterruptedException {
+		release.countDown();
+
+		final CountDownLatch ran = new CountDownLatch(3);
+		ScheduledFuture<?> periodic = scheduler.getExecutor(TaskType.FETCHER, "a").scheduleWithFixedDelay(
+				new Runnable() {
+					@Override
+					public void run() {
+						order.add("run");
+						ran.countDown();
+					}
+				}, 0, 10, TimeUnit.MILLISECONDS);
+		ran.await();
+		assertTrue(periodic.cancel(false));
+
+		int runs = order.size();
+		Thread.sleep(100);
+		assertEquals(runs, order.size());
+	}
+
+	private void submit(TaskType type, String account, final String name) {
+		scheduler.getExecutor(type, account).execute(new Runnable() {
+			@Override
+			public void run() {
+				order.add(name);
+			}
+		});
+	}
+
+	/**
+	 * Lets the queued tasks run and waits until the given number have.
+	 */
+	private void runAll(int count) throws InterruptedException {
+		release.countDown();
+		while(order.size() < count) {
+			Thread.sleep(10);
+		}
+	}
+}
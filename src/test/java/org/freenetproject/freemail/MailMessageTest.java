@@ -21,10 +21,13 @@ package org.freenetproject.freemail;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -198,4 +201,45 @@ public class MailMessageTest {
 		Date actual = MailMessage.parseDate(date);
 		assertEquals(null, actual);
 	}
+
+	@Test
+	public void storedWithCRLF() throws IOException {
+		File messageFile = new File(msgDir, "0");
+		messageFile.createNewFile();
+
+		MailMessage msg = new MailMessage(messageFile, 0);
+		PrintStream ps = msg.getRawStream();
+		ps.print("Subject: Test\n\nLine one\rLine two\r\nLine three");
+		ps.close();
+		msg.commit();
+
+		String expected = "Subject: Test\r\n\r\nLine one\r\nLine two\r\nLine three\r\n";
+		assertArrayEquals(expected.getBytes("UTF-8"), Files.readAllBytes(messageFile.toPath()));
+		assertEquals(expected.length(), msg.getSize());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		msg.writeTo(out, 9, 20);
+		assertEquals(expected.substring(9, 29), out.toString("UTF-8"));
+	}
+
+	@Test
+	public void writeToConvertsOldLineEndings() throws IOException {
+		File messageFile = new File(msgDir, "0");
+		PrintWriter pw = new PrintWriter(messageFile);
+		pw.print("Subject: Test\n\nLine one\nLine two");
+		pw.close();
+
+		String expected = "Subject: Test\r\n\r\nLine one\r\nLine two\r\n";
+		MailMessage msg = new MailMessage(messageFile, 0);
+		assertEquals(expected.length(), msg.getSize());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		msg.writeTo(out, 0, msg.getSize());
+		assertEquals(expected, out.toString("UTF-8"));
+
+		//Range starting in the middle of a line break
+		out = new ByteArrayOutputStream();
+		msg.writeTo(out, 14, 6);
+		assertEquals(expected.substring(14, 20), out.toString("UTF-8"));
+	}
 }
@@ -0,0 +1,144 @@
+/*
+ * MessageHeaderCacheTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import data.TestId1Data;
+
+import utils.Utils;
+
+public class MessageHeaderCacheTest {
+	private static final String ACCOUNT_DIR = "accdir";
+
+	private File accountDir;
+	private File inboxDir;
+	private MessageBank messageBank;
+
+	@Before
+	public void before() {
+		accountDir = new File(ACCOUNT_DIR);
+		if(accountDir.exists()) {
+			System.out.println("WARNING: Account directory exists, deleting");
+			Utils.delete(accountDir);
+		}
+
+		if(!accountDir.mkdir()) {
+			System.out.println("WARNING: Could not create account directory, tests will probably fail");
+		}
+
+		messageBank = new MessageBank(new FreemailAccount(TestId1Data.Identity.ID, accountDir, null, null));
+		inboxDir = new File(accountDir, "inbox");
+	}
+
+	@After
+	public void after() {
+		Utils.delete(accountDir);
+	}
+
+	@Test
+	public void summaryHeadersAreReadFromCache() throws IOException {
+		MailMessage msg = messageBank.createMessage();
+		msg.addHeader("Subject", "Original subject");
+		msg.addHeader("X-Other", "Not cached");
+		msg.writeHeadersAndGetStream();
+		msg.commit();
+
+		MailMessage listed = messageBank.listMessages().get(msg.getUID());
+		listed.readSummaryHeaders();
+		assertEquals("Original subject", listed.getFirstHeader("Subject"));
+		listed.cacheEnvelope("(envelope)");
+
+		//Change the file behind the cache's back, keeping the modification time
+		File file = new File(inboxDir, Integer.toString(msg.getUID()));
+		long modified = file.lastModified();
+		overwrite(file, "Subject: Changed subject\r\n\r\n");
+		assertTrue(file.setLastModified(modified));
+
+		MailMessage cached = messageBank.listMessages().get(msg.getUID());
+		cached.readSummaryHeaders();
+		assertEquals("Original subject", cached.getFirstHeader("Subject"));
+		assertEquals("(envelope)", cached.getCachedEnvelope());
+		assertNull(cached.getFirstHeader("X-Other"));
+
+		//Reading all the headers must go to the file
+		cached.readHeaders();
+		assertEquals("Changed subject", cached.getFirstHeader("Subject"));
+	}
+
+	@Test
+	public void entryIsIgnoredWhenFileChanges() throws IOException {
+		MailMessage msg = messageBank.createMessage();
+		msg.addHeader("Subject", "Original subject");
+		msg.writeHeadersAndGetStream();
+		msg.commit();
+
+		MailMessage listed = messageBank.listMessages().get(msg.getUID());
+		listed.readSummaryHeaders();
+		listed.cacheEnvelope("(envelope)");
+
+		File file = new File(inboxDir, Integer.toString(msg.getUID()));
+		overwrite(file, "Subject: Changed subject\r\n\r\n");
+		assertTrue(file.setLastModified(file.lastModified() + 10000));
+		assertTrue(inboxDir.setLastModified(file.lastModified() + 10000));
+
+		MailMessage changed = messageBank.listMessages().get(msg.getUID());
+		changed.readSummaryHeaders();
+		assertEquals("Changed subject", changed.getFirstHeader("Subject"));
+		assertNull(changed.getCachedEnvelope());
+	}
+
+	@Test
+	public void specialCharactersSurviveReload() throws IOException {
+		String subject = "Tab\there, backslash \\t and \\0";
+
+		MailMessage msg = messageBank.createMessage();
+		msg.addHeader("Subject", subject);
+		msg.writeHeadersAndGetStream();
+		msg.commit();
+
+		MailMessage listed = messageBank.listMessages().get(msg.getUID());
+		listed.readSummaryHeaders();
+		listed.cacheEnvelope("(\"a\tb\" NIL)");
+
+		//Force the cache to be read back from disk
+		MessageIndex.forget(inboxDir);
+
+		MailMessage reloaded = messageBank.listMessages().get(msg.getUID());
+		reloaded.readSummaryHeaders();
+		assertEquals(subject, reloaded.getFirstHeader("Subject"));
+		assertNull(reloaded.getFirstHeader("From"));
+		assertEquals("(\"a\tb\" NIL)", reloaded.getCachedEnvelope());
+	}
+
+	private static void overwrite(File file, String content) throws IOException {
+		PrintWriter pw = new PrintWriter(file, "UTF-8");
+		pw.print(content);
+		pw.close();
+	}
+}
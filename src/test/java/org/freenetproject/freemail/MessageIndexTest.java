@@ -0,0 +1,247 @@
+/*
+ * MessageIndexTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.SortedMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import data.TestId1Data;
+
+import utils.Utils;
+
+public class MessageIndexTest {
+	private static final String ACCOUNT_DIR = "accdir";
+
+	private File accountDir;
+	private File inboxDir;
+	private MessageBank messageBank;
+
+	@Before
+	public void before() {
+		accountDir = new File(ACCOUNT_DIR);
+		if(accountDir.exists()) {
+			System.out.println("WARNING: Account directory exists, deleting");
+			Utils.delete(accountDir);
+		}
+
+		if(!accountDir.mkdir()) {
+			System.out.println("WARNING: Could not create account directory, tests will probably fail");
+		}
+
+		//Don't reuse the index of the previous test
+		inboxDir = new File(accountDir, "inbox");
+		MessageIndex.forget(inboxDir);
+
+		messageBank = new MessageBank(new FreemailAccount(TestId1Data.Identity.ID, accountDir, null, null));
+	}
+
+	@After
+	public void after() {
+		Utils.delete(accountDir);
+	}
+
+	@Test
+	public void indexFollowsChanges() throws IOException {
+		addMessage("First");
+		addMessage("Second");
+		addMessage("Third");
+
+		SortedMap<Integer, MailMessage> messages = messageBank.listMessages();
+		assertEquals(3, messages.size());
+
+		MailMessage second = messages.get(2);
+		second.flags.setSeen();
+		second.storeFlags();
+		messages.get(3).delete();
+
+		messages = messageBank.listMessages();
+		assertEquals(2, messages.size());
+		assertTrue(messages.get(2).flags.isSeen());
+		assertEquals(2, messages.get(2).getSeqNum());
+		assertFalse(messages.containsKey(3));
+
+		//A new index instance reading the same file must agree
+		MessageIndex.forget(inboxDir);
+		messages = messageBank.listMessages();
+		assertEquals(2, messages.size());
+		assertTrue(messages.get(2).flags.isSeen());
+	}
+
+	@Test
+	public void rangesAreResolvedThroughIndex() throws IOException {
+		for(int i = 1; i <= 5; i++) {
+			addMessage("Message " + i);
+		}
+		messageBank.listMessages().get(2).delete();
+
+		//Left with UIDs 1, 3, 4 and 5
+		assertEquals(4, messageBank.getMessageCount());
+		assertEquals(5, messageBank.getLastUid());
+
+		SortedMap<Integer, MailMessage> bySeqNum = messageBank.listMessages(2, 3, false);
+		assertEquals(2, bySeqNum.size());
+		assertEquals(2, bySeqNum.get(3).getSeqNum());
+		assertEquals(3, bySeqNum.get(4).getSeqNum());
+
+		SortedMap<Integer, MailMessage> byUid = messageBank.listMessages(2, Integer.MAX_VALUE, true);
+		assertEquals(3, byUid.size());
+		assertEquals(2, byUid.get(3).getSeqNum());
+		assertEquals(4, byUid.get(5).getSeqNum());
+
+		assertTrue(messageBank.listMessages(6, 10, true).isEmpty());
+		assertTrue(messageBank.listMessages(5, 7, false).isEmpty());
+	}
+
+	@Test
+	public void sizeMatchesContent() throws IOException {
+		MailMessage msg = messageBank.createMessage();
+		PrintStream ps = msg.getRawStream();
+		ps.print("Subject: Test\r\n\r\nLine one\nLine two");
+		ps.close();
+		msg.commit();
+
+		MailMessage listed = messageBank.listMessages().get(msg.getUID());
+		assertEquals("Subject: Test\r\n\r\nLine one\r\nLine two\r\n".length(), listed.getSize());
+
+		MessageIndex.Entry entry = MessageIndex.scan(new File(inboxDir, Integer.toString(msg.getUID())));
+		assertEquals("Subject: Test\r\n\r\n".length(), entry.bodyOffset);
+	}
+
+	@Test
+	public void sizeIsRecordedWhenWritten() throws IOException {
+		MailMessage msg = messageBank.createMessage();
+		msg.addHeader("Subject", "Test");
+		PrintStream ps = msg.writeHeadersAndGetStream();
+		ps.print("Body\rwith odd\r\nline endings");
+		ps.close();
+		msg.commit();
+
+		long expected = "Subject: Test\r\n\r\nBody\r\nwith odd\r\nline endings\r\n".length();
+		assertEquals(expected, msg.getSize());
+
+		//Empty the file, the size must still come from the index
+		File file = new File(inboxDir, Integer.toString(msg.getUID()));
+		long modified = file.lastModified();
+		new PrintWriter(file).close();
+		assertTrue(file.setLastModified(modified));
+
+		assertEquals(expected, messageBank.listMessages().get(msg.getUID()).getSize());
+	}
+
+	@Test
+	public void rebuildWhenIndexIsMissing() throws IOException {
+		addMessage("First");
+		addMessage("Second");
+
+		assertTrue(new File(inboxDir, ".index").delete());
+
+		SortedMap<Integer, MailMessage> messages = messageBank.listMessages();
+		assertEquals(2, messages.size());
+		assertTrue(messages.containsKey(1));
+		assertTrue(messages.containsKey(2));
+	}
+
+	@Test
+	public void rebuildWhenDirectoryChanged() throws IOException {
+		addMessage("First");
+		assertEquals(1, messageBank.listMessages().size());
+
+		//Add a message behind the index' back
+		PrintWriter pw = new PrintWriter(new File(inboxDir, "10,S"));
+		pw.print("Subject: Added by hand\r\n\r\nBody\r\n");
+		pw.close();
+		assertTrue(inboxDir.setLastModified(new File(inboxDir, ".index").lastModified() + 10000));
+
+		SortedMap<Integer, MailMessage> messages = messageBank.listMessages();
+		assertEquals(2, messages.size());
+		assertTrue(messages.get(10).flags.isSeen());
+		assertEquals(2, messages.get(10).getSeqNum());
+	}
+
+	@Test
+	public void rebuildWhenIndexIsCorrupt() throws IOException {
+		addMessage("First");
+
+		PrintWriter pw = new PrintWriter(new File(inboxDir, ".index"));
+		pw.print("garbage\n");
+		pw.close();
+		MessageIndex.forget(inboxDir);
+
+		assertEquals(1, messageBank.listMessages().size());
+	}
+
+	@Test
+	public void modSeqFollowsChanges() throws IOException {
+		addMessage("First");
+		addMessage("Second");
+		addMessage("Third");
+
+		long before = messageBank.getHighestModSeq();
+		SortedMap<Integer, MailMessage> messages = messageBank.listMessages();
+		MailMessage second = messages.get(2);
+		second.flags.setSeen();
+		second.storeFlags();
+		assertEquals(before + 1, second.getModSeq());
+		messages.get(3).delete();
+		assertEquals(before + 2, messageBank.getHighestModSeq());
+
+		assertEquals(Collections.singleton(2), messageBank.getChangedSince(before));
+		assertEquals(Collections.singleton(3), messageBank.getExpungedSince(before));
+		assertTrue(messageBank.getChangedSince(before + 2).isEmpty());
+
+		//A new index instance reading the same file must agree
+		MessageIndex.forget(inboxDir);
+		messageBank = new MessageBank(new FreemailAccount(TestId1Data.Identity.ID, accountDir, null, null));
+		assertEquals(before + 2, messageBank.getHighestModSeq());
+		assertEquals(before + 1, messageBank.listMessages().get(2).getModSeq());
+		assertEquals(Collections.singleton(3), messageBank.getExpungedSince(before));
+	}
+
+	@Test
+	public void modSeqIncreasesWhenIndexIsLost() throws IOException {
+		addMessage("First");
+		long before = messageBank.getHighestModSeq();
+
+		assertTrue(new File(inboxDir, ".index").delete());
+		MessageIndex.forget(inboxDir);
+		messageBank = new MessageBank(new FreemailAccount(TestId1Data.Identity.ID, accountDir, null, null));
+
+		assertTrue(messageBank.getHighestModSeq() > before);
+		assertNull(messageBank.getExpungedSince(before));
+	}
+
+	private void addMessage(String subject) throws FileNotFoundException {
+		MailMessage m = messageBank.createMessage();
+		m.addHeader("Subject", subject);
+		m.writeHeadersAndGetStream();
+		m.commit();
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * MessageSearchIndexTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.freenetproject.freemail.MessageBank.SearchField;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import data.TestId1Data;
+
+import utils.Utils;
+
+public class MessageSearchIndexTest {
+	private static final String ACCOUNT_DIR = "accdir";
+
+	private File accountDir;
+	private File inboxDir;
+	private MessageBank messageBank;
+
+	@Before
+	public void before() {
+		accountDir = new File(ACCOUNT_DIR);
+		if(accountDir.exists()) {
+			System.out.println("WARNING: Account directory exists, deleting");
+			Utils.delete(accountDir);
+		}
+
+		if(!accountDir.mkdir()) {
+			System.out.println("WARNING: Could not create account directory, tests will probably fail");
+		}
+
+		//Don't reuse the indexes of the previous test
+		inboxDir = new File(accountDir, "inbox");
+		MessageIndex.forget(inboxDir);
+
+		messageBank = new MessageBank(new FreemailAccount(TestId1Data.Identity.ID, accountDir, null, null));
+	}
+
+	@After
+	public void after() {
+		Utils.delete(accountDir);
+	}
+
+	@Test
+	public void candidatesIncludeSubstringMatches() throws IOException {
+		addMessage("alice@example.freemail", "Meeting tomorrow", "Bring the slides");
+		addMessage("bob@example.freemail", "Lunch", "Shall we meet at noon?");
+		addMessage("carol@example.freemail", "Holiday photos", "Attached");
+
+		assertEquals(uids(1), messageBank.findSearchCandidates(SearchField.FROM, "ALICE"));
+		assertEquals(uids(1), messageBank.findSearchCandidates(SearchField.SUBJECT, "eting tom"));
+		assertEquals(uids(2), messageBank.findSearchCandidates(SearchField.BODY, "meet"));
+		assertEquals(uids(1, 2), messageBank.findSearchCandidates(SearchField.TEXT, "meet"));
+		assertEquals(uids(), messageBank.findSearchCandidates(SearchField.BODY, "nothing like this"));
+
+		//Too short to use the index
+		assertNull(messageBank.findSearchCandidates(SearchField.BODY, "at"));
+	}
+
+	@Test
+	public void indexFollowsChanges() throws IOException {
+		addMessage("alice@example.freemail", "First", "Some text");
+		assertEquals(uids(1), messageBank.findSearchCandidates(SearchField.BODY, "text"));
+
+		addMessage("bob@example.freemail", "Second", "More text");
+		assertEquals(uids(1, 2), messageBank.findSearchCandidates(SearchField.BODY, "text"));
+
+		messageBank.listMessages().get(1).delete();
+		assertEquals(uids(2), messageBank.findSearchCandidates(SearchField.BODY, "text"));
+
+		//Flag changes don't change the text
+		MailMessage second = messageBank.listMessages().get(2);
+		second.flags.setSeen();
+		second.storeFlags();
+		assertEquals(uids(2), messageBank.findSearchCandidates(SearchField.BODY, "text"));
+	}
+
+	@Test
+	public void indexSurvivesReload() throws IOException {
+		addMessage("alice@example.freemail", "Tab\there", "Backslash \\ in body");
+		addMessage("bob@example.freemail", "Second", "Other");
+		assertEquals(uids(1), messageBank.findSearchCandidates(SearchField.BODY, "sh \\ i"));
+		messageBank.listMessages().get(2).delete();
+
+		MessageIndex.forget(inboxDir);
+		messageBank = new MessageBank(new FreemailAccount(TestId1Data.Identity.ID, accountDir, null, null));
+
+		assertEquals(uids(1), messageBank.findSearchCandidates(SearchField.BODY, "sh \\ i"));
+		assertEquals(uids(1), messageBank.findSearchCandidates(SearchField.SUBJECT, "tab\th"));
+		assertEquals(uids(), messageBank.findSearchCandidates(SearchField.BODY, "other"));
+	}
+
+	@Test
+	public void unfinishedSnapshotIsRebuilt() throws IOException {
+		addMessage("alice@example.freemail", "First", "Some text");
+		assertEquals(uids(1), messageBank.findSearchCandidates(SearchField.BODY, "text"));
+
+		//Leave only the start of a snapshot that lists the message, as if
+		//writing it had been cut short before the postings
+		File indexFile = new File(inboxDir, ".search");
+		List<String> lines = Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8);
+		PrintWriter pw = new PrintWriter(indexFile, "UTF-8");
+		pw.print(lines.get(0) + "\n");
+		for(String line : lines) {
+			String[] parts = line.split("\t", -1);
+			if(parts[0].equals("A")) {
+				pw.print("V\t" + parts[1] + "\t" + parts[2] + "\t" + parts[3] + "\t" + parts[4] + "\n");
+			}
+		}
+		pw.close();
+
+		MessageIndex.forget(inboxDir);
+		messageBank = new MessageBank(new FreemailAccount(TestId1Data.Identity.ID, accountDir, null, null));
+		assertEquals(uids(1), messageBank.findSearchCandidates(SearchField.BODY, "text"));
+	}
+
+	@Test
+	public void searchChecksCandidates() throws IOException {
+		addMessage("alice@example.freemail", "Quarterly report", "Numbers are up");
+		addMessage("bob@example.freemail", "Re: report", "The numbers look good");
+		addMessage("carol@example.freemail", "Unrelated", "Nothing to see");
+
+		SortedMap<Integer, MailMessage> result = messageBank.search("NUMBERS");
+		assertEquals(Arrays.asList(1, 2), Arrays.asList(result.keySet().toArray()));
+
+		result = messageBank.search("carol@");
+		assertEquals(Arrays.asList(3), Arrays.asList(result.keySet().toArray()));
+
+		//Both mention numbers, but only message 2 has the whole string
+		result = messageBank.search("numbers look");
+		assertEquals(Arrays.asList(2), Arrays.asList(result.keySet().toArray()));
+	}
+
+	private void addMessage(String from, String subject, String body) throws IOException {
+		MailMessage m = messageBank.createMessage();
+		m.addHeader("From", from);
+		m.addHeader("Subject", subject);
+		PrintStream ps = m.writeHeadersAndGetStream();
+		ps.print(body + "\r\n");
+		m.commit();
+	}
+
+	private static SortedSet<Integer> uids(Integer ... uids) {
+		return new TreeSet<Integer>(Arrays.asList(uids));
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * ServerListenerTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import fakes.FakeSocket;
+
+public class ServerListenerTest {
+	@Test
+	public void connectionLimit() throws IOException, InterruptedException {
+		TestListener listener = new TestListener(2);
+
+		WaitingHandler first = new WaitingHandler();
+		WaitingHandler second = new WaitingHandler();
+		WaitingHandler third = new WaitingHandler();
+		assertTrue(listener.start(first));
+		assertTrue(listener.start(second));
+		assertTrue(first.awaitStart());
+		assertTrue(second.awaitStart());
+		assertEquals(2, listener.getConnectionCount());
+
+		//Over the limit, must be closed without being run
+		assertFalse(listener.start(third));
+		assertFalse(third.isAlive());
+
+		//Once a client disconnects there is room for another one
+		first.kill();
+		waitForCount(listener, 1);
+		WaitingHandler fourth = new WaitingHandler();
+		assertTrue(listener.start(fourth));
+		assertTrue(fourth.awaitStart());
+
+		listener.kill();
+		listener.joinClientThreads();
+		assertEquals(0, listener.getConnectionCount());
+		assertFalse(second.isAlive());
+		assertFalse(fourth.isAlive());
+	}
+
+	@Test
+	public void threadIsNamedAfterHandler() throws IOException, InterruptedException {
+		TestListener listener = new TestListener(10);
+
+		WaitingHandler handler = new WaitingHandler();
+		assertTrue(listener.start(handler));
+		assertTrue(handler.awaitStart());
+		assertEquals("Handler for test", handler.threadName);
+
+		listener.kill();
+		listener.joinClientThreads();
+	}
+
+	private static void waitForCount(ServerListener listener, int count) throws InterruptedException {
+		for(int i = 0; i < 100 && listener.getConnectionCount() != count; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, listener.getConnectionCount());
+	}
+
+	private static class TestListener extends ServerListener {
+		TestListener(int maxConnections) {
+			super("Test handler");
+			this.maxConnections = maxConnections;
+		}
+
+		boolean start(ServerHandler handler) {
+			return startHandler(handler, "Handler for test");
+		}
+	}
+
+	private static class WaitingHandler extends ServerHandler {
+		private final CountDownLatch started = new CountDownLatch(1);
+		private volatile String threadName;
+
+		WaitingHandler() throws IOException {
+			super(new FakeSocket());
+		}
+
+		boolean awaitStart() throws InterruptedException {
+			return started.await(10, TimeUnit.SECONDS);
+		}
+
+		@Override
+		public void run() {
+			threadName = Thread.currentThread().getName();
+			started.countDown();
+			synchronized(this) {
+				while(!stopping) {
+					try {
+						wait(10);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * FCPConnectionPoolTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.freenetproject.freemail.config.Configurator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FCPConnectionPoolTest {
+	private ServerSocket server;
+	private FCPConnectionPool pool;
+
+	/** The connections from the pool, by the name they sent in the hello */
+	private final Map<String, Socket> nodes = new HashMap<String, Socket>();
+
+	@Before
+	public void before() throws Exception {
+		server = new ServerSocket(0);
+
+		Thread acceptor = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for(int i = 0; i < 2; i++) {
+						acceptNode();
+					}
+				} catch(Exception e) {
+					throw new AssertionError(e);
+				}
+			}
+		};
+		acceptor.start();
+
+		FCPContext ctx = new FCPContext();
+		ctx.setConfigProp(Configurator.FCP_HOST, "localhost");
+		ctx.setConfigProp(Configurator.FCP_PORT, Integer.toString(server.getLocalPort()));
+		pool = new FCPConnectionPool(ctx, 2);
+		acceptor.join();
+
+		pool.start();
+	}
+
+	@After
+	public void after() throws Exception {
+		pool.kill();
+		for(Socket node : nodes.values()) {
+			node.close();
+		}
+		pool.join();
+		server.close();
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void connectionsHaveTheirOwnName() {
+		assertEquals(2, nodes.size());
+		assertTrue(nodes.containsKey(FCPConnection.CLIENT_NAME));
+		assertTrue(nodes.containsKey(FCPConnection.CLIENT_NAME + "-1"));
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void insertsUseTheirOwnConnection() throws Exception {
+		HighLevelFCPClient client = new HighLevelFCPClient(pool);
+
+		FCPMessage upload = pool.getRequestMessage("ClientPut");
+		upload.headers.put("URI", "KSK@upload");
+		upload.setData(new ByteArrayInputStream("Data".getBytes("UTF-8")), 4);
+		client.submit(upload);
+		FCPMessage control = pool.getMessage("GenerateSSK");
+		client.submit(control);
+
+		assertEquals(upload.getId(), receive(FCPConnection.CLIENT_NAME + "-1").getId());
+		assertEquals(control.getId(), receive(FCPConnection.CLIENT_NAME).getId());
+	}
+
+	@Test
+	public void identifiersAreUniqueAcrossThePool() {
+		FCPMessage first = pool.getMessage("GenerateSSK");
+		FCPMessage second = pool.getRequestMessage("ClientPut");
+		assertFalse(first.getId().equals(second.getId()));
+	}
+
+	private void acceptNode() throws IOException, FCPBadFileException {
+		Socket node = server.accept();
+
+		FCPMessage hello = new FCPMessage(node.getInputStream());
+		assertEquals("ClientHello", hello.getType());
+		new FCPMessage(0, "NodeHello").writeto(node.getOutputStream());
+		nodes.put(hello.headers.get("Name"), node);
+	}
+
+	private FCPMessage receive(String name) throws IOException {
+		InputStream fromClient = nodes.get(name).getInputStream();
+		FCPMessage msg = new FCPMessage(fromClient);
+		msg.release();
+		return msg;
+	}
+}
@@ -0,0 +1,299 @@
+/*
+ * FCPConnectionTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.freenetproject.freemail.config.Configurator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.support.api.Bucket;
+
+public class FCPConnectionTest {
+	private ServerSocket server;
+	private FCPContext ctx;
+	private FCPConnection conn;
+	private Thread reader;
+	private Socket node;
+	private InputStream fromClient;
+	private OutputStream toClient;
+
+	@Before
+	public void before() throws Exception {
+		server = new ServerSocket(0);
+
+		Thread acceptor = new Thread() {
+			@Override
+			public void run() {
+				try {
+					acceptNode();
+				} catch(Exception e) {
+					throw new AssertionError(e);
+				}
+			}
+		};
+		acceptor.start();
+
+		ctx = new FCPContext();
+		ctx.setConfigProp(Configurator.FCP_HOST, "localhost");
+		ctx.setConfigProp(Configurator.FCP_PORT, Integer.toString(server.getLocalPort()));
+		conn = new FCPConnection(ctx);
+		conn.reconnectDelay = 0;
+		acceptor.join();
+
+		reader = new Thread(conn);
+		reader.start();
+	}
+
+	@After
+	public void after() throws Exception {
+		conn.kill();
+		reader.interrupt();
+		reader.join();
+		node.close();
+		server.close();
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void repliesGoToTheirRequest() throws Exception {
+		HighLevelFCPClient client = new HighLevelFCPClient(conn);
+
+		CompletableFuture<FCPMessage> first = client.submit(conn.getMessage("GenerateSSK"));
+		CompletableFuture<FCPMessage> second = client.submit(conn.getMessage("GenerateSSK"));
+		FCPMessage firstRequest = receive();
+		FCPMessage secondRequest = receive();
+
+		//Answer in the opposite order
+		FCPMessage reply = new FCPMessage(secondRequest.getId(), "SSKKeypair");
+		reply.headers.put("InsertURI", "second");
+		reply.writeto(toClient);
+		assertEquals("second", second.get(5, TimeUnit.SECONDS).headers.get("InsertURI"));
+		assertFalse(first.isDone());
+
+		reply = new FCPMessage(firstRequest.getId(), "SSKKeypair");
+		reply.headers.put("InsertURI", "first");
+		reply.writeto(toClient);
+		assertEquals("first", first.get(5, TimeUnit.SECONDS).headers.get("InsertURI"));
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void uploadsDontHoldUpOtherRequests() throws Exception {
+		HighLevelFCPClient client = new HighLevelFCPClient(conn);
+
+		//Keep the writer busy with the first upload until we have queued the rest
+		CountDownLatch release = new CountDownLatch(1);
+		BlockingInputStream blockingData = new BlockingInputStream(release);
+		FCPMessage blocking = conn.getMessage("ClientPut");
+		blocking.setData(blockingData, 4);
+		client.submit(blocking);
+		blockingData.started.await();
+
+		FCPMessage upload = conn.getMessage("ClientPut");
+		upload.setData(new BlockingInputStream(new CountDownLatch(0)), 4);
+		client.submit(upload);
+		FCPMessage control = conn.getMessage("GenerateSSK");
+		CompletableFuture<FCPMessage> reply = client.submit(control);
+		assertFalse(reply.isDone());
+
+		release.countDown();
+		assertEquals(blocking.getId(), receive().getId());
+		assertEquals(control.getId(), receive().getId());
+		assertEquals(upload.getId(), receive().getId());
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void lostConnectionFinishesRequests() throws Exception {
+		HighLevelFCPClient client = new HighLevelFCPClient(conn);
+
+		FCPMessage request = conn.getMessage("GenerateSSK");
+		CompletableFuture<FCPMessage> reply = client.submit(request);
+		receive();
+		node.close();
+
+		FCPMessage closed = reply.get(5, TimeUnit.SECONDS);
+		assertEquals("ConnectionClosed", closed.getType());
+		assertEquals(request.getId(), closed.getId());
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void cancelledRequestIsForgotten() throws Exception {
+		HighLevelFCPClient client = new HighLevelFCPClient(conn);
+
+		FCPMessage request = conn.getMessage("GenerateSSK");
+		CompletableFuture<FCPMessage> reply = client.submit(request);
+		assertTrue(reply.cancel(false));
+
+		//A late reply is dropped, and the next request still gets its own
+		new FCPMessage(request.getId(), "SSKKeypair").writeto(toClient);
+		FCPMessage next = conn.getMessage("GenerateSSK");
+		CompletableFuture<FCPMessage> nextReply = client.submit(next);
+		new FCPMessage(next.getId(), "SSKKeypair").writeto(toClient);
+		assertEquals(next.getId(), nextReply.get(5, TimeUnit.SECONDS).getId());
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void cancelledQueuedRequestIsNeverSent() throws Exception {
+		ctx.setConfigProp(Configurator.FCP_PERSISTENCE, FCPContext.PERSISTENCE_REBOOT);
+		HighLevelFCPClient client = new HighLevelFCPClient(conn);
+
+		//Keep the writer busy so the next upload stays in the queue
+		CountDownLatch release = new CountDownLatch(1);
+		BlockingInputStream blockingData = new BlockingInputStream(release);
+		FCPMessage blocking = conn.getMessage("ClientPut");
+		blocking.setData(blockingData, 4);
+		client.submit(blocking);
+		blockingData.started.await();
+
+		FCPMessage upload = conn.getRequestMessage("ClientPut");
+		BlockingInputStream uploadData = new BlockingInputStream(new CountDownLatch(0));
+		upload.setData(uploadData, 4);
+		assertTrue(client.submit(upload).cancel(false));
+		assertTrue(uploadData.closed);
+
+		//Neither the upload nor a RemoveRequest for it reaches the node
+		release.countDown();
+		FCPMessage control = conn.getMessage("GenerateSSK");
+		client.submit(control);
+		assertEquals(blocking.getId(), receive().getId());
+		assertEquals(control.getId(), receive().getId());
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void persistentRequestSurvivesReconnect() throws Exception {
+		ctx.setConfigProp(Configurator.FCP_PERSISTENCE, FCPContext.PERSISTENCE_REBOOT);
+		HighLevelFCPClient client = new HighLevelFCPClient(conn);
+
+		CompletableFuture<FCPMessage> reply = client.submit(conn.getRequestMessage("ClientGet"));
+		FCPMessage request = receive();
+		assertEquals("reboot", request.headers.get("Persistence"));
+		assertTrue(request.getId().startsWith(FCPConnection.PERSISTENT_PREFIX));
+
+		node.close();
+		acceptNode();
+		assertEquals("ListPersistentRequests", receive().getType());
+		new FCPMessage(request.getId(), "PersistentGet").writeto(toClient);
+		new FCPMessage(0, "EndListPersistentRequests").writeto(toClient);
+
+		//The data of a persistent fetch has to be asked for
+		new FCPMessage(request.getId(), "DataFound").writeto(toClient);
+		FCPMessage status = receive();
+		assertEquals("GetRequestStatus", status.getType());
+		assertEquals(request.getId(), status.getId());
+		assertEquals("true", status.headers.get("OnlyData"));
+		assertFalse(reply.isDone());
+
+		FCPMessage allData = new FCPMessage(request.getId(), "AllData");
+		allData.setData(new ByteArrayInputStream("Data".getBytes("UTF-8")), 4);
+		allData.writeto(toClient);
+		Bucket data = reply.get(5, TimeUnit.SECONDS).getDataBucket();
+		assertEquals(4, data.size());
+
+		//Finished requests are removed from the node
+		FCPMessage remove = receive();
+		assertEquals("RemoveRequest", remove.getType());
+		assertEquals(request.getId(), remove.getId());
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void persistentRequestLostByNodeIsFinished() throws Exception {
+		ctx.setConfigProp(Configurator.FCP_PERSISTENCE, FCPContext.PERSISTENCE_REBOOT);
+		HighLevelFCPClient client = new HighLevelFCPClient(conn);
+
+		FCPMessage request = conn.getRequestMessage("ClientPut");
+		request.setData(new ByteArrayInputStream("Data".getBytes("UTF-8")), 4);
+		CompletableFuture<FCPMessage> reply = client.submit(request);
+		receive();
+
+		node.close();
+		acceptNode();
+		assertEquals("ListPersistentRequests", receive().getType());
+		new FCPMessage(FCPConnection.PERSISTENT_PREFIX + "0-1", "PersistentPut").writeto(toClient);
+		new FCPMessage(0, "EndListPersistentRequests").writeto(toClient);
+
+		assertEquals("ConnectionClosed", reply.get(5, TimeUnit.SECONDS).getType());
+
+		//Requests from earlier runs are removed
+		FCPMessage remove = receive();
+		assertEquals("RemoveRequest", remove.getType());
+		assertEquals(FCPConnection.PERSISTENT_PREFIX + "0-1", remove.getId());
+	}
+
+	private void acceptNode() throws IOException, FCPBadFileException {
+		node = server.accept();
+		fromClient = node.getInputStream();
+		toClient = node.getOutputStream();
+
+		FCPMessage hello = new FCPMessage(fromClient);
+		assertEquals("ClientHello", hello.getType());
+		new FCPMessage(0, "NodeHello").writeto(toClient);
+	}
+
+	private FCPMessage receive() throws IOException {
+		FCPMessage msg = new FCPMessage(fromClient);
+		msg.release();
+		return msg;
+	}
+
+	/**
+	 * Four bytes of data that can't be read until the latch is released.
+	 */
+	private static class BlockingInputStream extends InputStream {
+		private final CountDownLatch started = new CountDownLatch(1);
+		private final CountDownLatch release;
+		private int remaining = 4;
+		private volatile boolean closed = false;
+
+		private BlockingInputStream(CountDownLatch release) {
+			this.release = release;
+		}
+
+		@Override
+		public int read() throws IOException {
+			started.countDown();
+			try {
+				release.await();
+			} catch(InterruptedException e) {
+				throw new IOException(e);
+			}
+			if(remaining == 0) {
+				return -1;
+			}
+			remaining--;
+			return 'x';
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * FCPMessageTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.FileBucket;
+
+public class FCPMessageTest {
+	@Test
+	public void smallDataStaysInMemory() throws IOException {
+		byte[] data = "messagetype=message\r\nid=1\r\n\r\nBody".getBytes("UTF-8");
+		FCPMessage msg = parse(data);
+
+		Bucket bucket = msg.getDataBucket();
+		assertTrue(bucket instanceof ArrayBucket);
+		assertArrayEquals(data, read(bucket));
+	}
+
+	@Test
+	public void largeDataGoesToFile() throws IOException {
+		byte[] data = new byte[FCPMessage.MAX_IN_MEMORY_DATA + 1];
+		Arrays.fill(data, (byte)'x');
+		FCPMessage msg = parse(data);
+
+		Bucket bucket = msg.getDataBucket();
+		assertTrue(bucket instanceof FileBucket);
+		assertArrayEquals(data, read(bucket));
+
+		File file = ((FileBucket)bucket).getFile();
+		bucket.free();
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void smallDataCanBeReadAsFile() throws IOException {
+		byte[] data = "Small".getBytes("UTF-8");
+		FCPMessage msg = parse(data);
+
+		File file = msg.getData();
+		try {
+			assertEquals(data.length, file.length());
+			assertArrayEquals(data, read(new FileBucket(file, false, false, false, false)));
+		} finally {
+			msg.release();
+		}
+		assertFalse(file.exists());
+	}
+
+	@Test(expected = IOException.class)
+	public void truncatedDataFailsTheRead() throws IOException {
+		byte[] header = "AllData\r\nIdentifier=1\r\nDataLength=10\r\nData\r\n".getBytes("UTF-8");
+		byte[] message = Arrays.copyOf(header, header.length + 5);
+		new FCPMessage(new ByteArrayInputStream(message));
+	}
+
+	@Test(expected = IOException.class)
+	public void truncatedLargeDataFailsTheRead() throws IOException {
+		int length = FCPMessage.MAX_IN_MEMORY_DATA + 10;
+		byte[] header = ("AllData\r\nIdentifier=1\r\nDataLength=" + length + "\r\nData\r\n").getBytes("UTF-8");
+		byte[] message = Arrays.copyOf(header, header.length + length - 5);
+		new FCPMessage(new ByteArrayInputStream(message));
+	}
+
+	@Test(expected = IOException.class)
+	public void negativeDataLengthFailsTheRead() throws IOException {
+		byte[] message = "AllData\r\nIdentifier=1\r\nDataLength=-1\r\nData\r\n".getBytes("UTF-8");
+		new FCPMessage(new ByteArrayInputStream(message));
+	}
+
+	@Test
+	public void valuesMayContainEquals() throws IOException {
+		byte[] message = "ClientGet\r\nIdentifier=1\r\nURI=KSK@a=b\r\nEndMessage\r\n".getBytes("UTF-8");
+		FCPMessage msg = new FCPMessage(new ByteArrayInputStream(message));
+
+		assertEquals("KSK@a=b", msg.headers.get("URI"));
+	}
+
+	@Test
+	public void messageSurvivesRoundTrip() throws IOException {
+		FCPMessage msg = new FCPMessage(7, "PutSuccessful");
+		msg.headers.put("URI", "SSK@key,with=equals/\u00e6\u00f8\u00e5");
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		msg.writeto(baos);
+		new FCPMessage(8, "GenerateSSK").writeto(baos);
+
+		//Reading the first message must leave the second in the stream
+		InputStream is = new ByteArrayInputStream(baos.toByteArray());
+		FCPMessage first = new FCPMessage(is);
+		assertEquals(FCPMessage.Type.PUT_SUCCESSFUL, first.getMessageType());
+		assertTrue(first.isCompletionMessage());
+		assertEquals("7", first.getId());
+		assertEquals(msg.headers, first.headers);
+
+		FCPMessage second = new FCPMessage(is);
+		assertEquals("GenerateSSK", second.getType());
+		assertEquals(FCPMessage.Type.OTHER, second.getMessageType());
+		assertFalse(second.isCompletionMessage());
+		assertNull(new FCPMessage(is).getType());
+	}
+
+	@Test
+	public void dataIsSentWithItsLength() throws IOException {
+		FCPMessage msg = new FCPMessage(1, "ClientPut");
+		msg.setData(new ByteArrayInputStream("DataAndMore".getBytes("UTF-8")), 4);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		msg.writeto(baos);
+
+		FCPMessage read = new FCPMessage(new ByteArrayInputStream(baos.toByteArray()));
+		assertEquals("4", read.headers.get("DataLength"));
+		assertArrayEquals("Data".getBytes("UTF-8"), read(read.getDataBucket()));
+	}
+
+	@Test(expected = IOException.class)
+	public void shortDataFailsTheWrite() throws IOException {
+		FCPMessage msg = new FCPMessage(1, "ClientPut");
+		msg.setData(new ByteArrayInputStream("Data".getBytes("UTF-8")), 5);
+		msg.writeto(new ByteArrayOutputStream());
+	}
+
+	private static FCPMessage parse(byte[] data) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		baos.write(("AllData\r\nIdentifier=1\r\nDataLength=" + data.length + "\r\nData\r\n").getBytes("UTF-8"));
+		baos.write(data);
+		FCPMessage msg = new FCPMessage(new ByteArrayInputStream(baos.toByteArray()));
+		assertEquals("AllData", msg.getType());
+		return msg;
+	}
+
+	private static byte[] read(Bucket bucket) throws IOException {
+		InputStream is = bucket.getInputStream();
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while((read = is.read(buffer)) != -1) {
+				baos.write(buffer, 0, read);
+			}
+			return baos.toByteArray();
+		} finally {
+			is.close();
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * IMAPCondstoreTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
+
+import utils.TextProtocolTester.Command;
+
+public class IMAPCondstoreTest extends IMAPTestWithMessages {
+	/**
+	 * Returns the commands that select the inbox with CONDSTORE or QRESYNC
+	 * enabled. Selecting it clears the recent flag of the 9 messages, which
+	 * gives them the modification sequences following {@link #initialModSeq}.
+	 */
+	private List<Command> selectWithModSeq(String tag, String command, String... extraResponses) {
+		List<Command> commands = new LinkedList<Command>();
+		List<String> responses = new LinkedList<String>();
+		for(String response : extraResponses) {
+			responses.add(response);
+		}
+		responses.add("* FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)");
+		responses.add("* OK [PERMANENTFLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)] Limited");
+		responses.add("* 9 EXISTS");
+		responses.add("* 9 RECENT");
+		responses.add("* OK [UIDVALIDITY 1] Ok");
+		responses.add("* OK [HIGHESTMODSEQ " + (initialModSeq + 9) + "] Ok");
+		responses.add(tag + " OK [READ-WRITE] Done");
+		commands.add(new Command(tag + " " + command, responses.toArray(new String[0])));
+		return commands;
+	}
+
+	@Test
+	public void fetchChangedSince() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectWithModSeq("0002", "SELECT INBOX (CONDSTORE)"));
+		commands.add(new Command("0003 FETCH 1:* (UID) (CHANGEDSINCE " + (initialModSeq + 7) + ")",
+		                         "* 8 FETCH (UID 9 MODSEQ (" + (initialModSeq + 8) + "))",
+		                         "* 9 FETCH (UID 10 MODSEQ (" + (initialModSeq + 9) + "))",
+		                         "0003 OK Fetch completed"));
+		commands.add(new Command("0004 UID FETCH 2:3 (UID MODSEQ)",
+		                         "* 2 FETCH (UID 2 MODSEQ (" + (initialModSeq + 2) + "))",
+		                         "* 3 FETCH (UID 3 MODSEQ (" + (initialModSeq + 3) + "))",
+		                         "0004 OK Fetch completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void conditionalStore() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectWithModSeq("0002", "SELECT INBOX (CONDSTORE)"));
+		commands.add(new Command("0003 STORE 1:2 (UNCHANGEDSINCE " + (initialModSeq + 1) + ") +FLAGS (\\Seen)",
+		                         "* 1 FETCH (FLAGS (\\Seen) MODSEQ (" + (initialModSeq + 10) + "))",
+		                         "0003 OK [MODIFIED 2] Conditional STORE failed"));
+		commands.add(new Command("0004 UID STORE 1 (UNCHANGEDSINCE " + (initialModSeq + 10) + ") +FLAGS (\\Flagged)",
+		                         "* 1 FETCH (UID 1 FLAGS (\\Seen \\Flagged) MODSEQ (" + (initialModSeq + 11) + "))",
+		                         "0004 OK Store completed"));
+		commands.add(new Command("0005 SEARCH MODSEQ " + (initialModSeq + 9),
+		                         "* SEARCH 1 9 (MODSEQ " + (initialModSeq + 11) + ")",
+		                         "0005 OK Search completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void qresyncAfterReconnect() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.add(new Command("0002 ENABLE QRESYNC",
+		                         "* ENABLED QRESYNC",
+		                         "0002 OK Enabled"));
+		commands.addAll(selectWithModSeq("0003", "SELECT INBOX"));
+		commands.add(new Command("0004 STORE 1 +FLAGS.SILENT (\\Deleted)",
+		                         "0004 OK Store completed"));
+		commands.add(new Command("0005 STORE 2 +FLAGS.SILENT (\\Seen)",
+		                         "0005 OK Store completed"));
+		commands.add(new Command("0006 EXPUNGE",
+		                         "* VANISHED 1",
+		                         "0006 OK Expunge complete"));
+
+		//Everything before this point is what the client already knows
+		commands.add(new Command("0007 SELECT INBOX (QRESYNC (1 " + (initialModSeq + 9) + " 1:10))",
+		                         "* OK [CLOSED] Previous mailbox closed",
+		                         "* FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)",
+		                         "* OK [PERMANENTFLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)] Limited",
+		                         "* 8 EXISTS",
+		                         "* 0 RECENT",
+		                         "* OK [UIDVALIDITY 1] Ok",
+		                         "* OK [HIGHESTMODSEQ " + (initialModSeq + 12) + "] Ok",
+		                         "* VANISHED (EARLIER) 1",
+		                         "* 1 FETCH (UID 2 FLAGS (\\Seen) MODSEQ (" + (initialModSeq + 11) + "))",
+		                         "0007 OK [READ-WRITE] Done"));
+		commands.add(new Command("0008 UID FETCH 1:* (FLAGS) (CHANGEDSINCE " + (initialModSeq + 10) + " VANISHED)",
+		                         "* VANISHED (EARLIER) 1",
+		                         "* 1 FETCH (FLAGS (\\Seen) UID 2 MODSEQ (" + (initialModSeq + 11) + "))",
+		                         "0008 OK Fetch completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void qresyncMustBeEnabled() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.add(new Command("0002 SELECT INBOX (QRESYNC (1 1))",
+		                         "0002 BAD QRESYNC must be enabled first"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void illegalQresyncParametersKeepMailboxSelected() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.add(new Command("0002 ENABLE QRESYNC",
+		                         "* ENABLED QRESYNC",
+		                         "0002 OK Enabled"));
+		commands.addAll(selectWithModSeq("0003", "SELECT INBOX"));
+		commands.add(new Command("0004 SELECT INBOX (QRESYNC (1 1 0:3))",
+		                         "0004 BAD Illegal QRESYNC parameters"));
+		commands.add(new Command("0005 FETCH 1 (UID)",
+		                         "* 1 FETCH (UID 1)",
+		                         "0005 OK Fetch completed"));
+
+		runSimpleTest(commands);
+	}
+}
@@ -36,7 +36,7 @@ public class IMAPCopyTest extends IMAPTestWithMessages {
 		commands.add("0005 SEARCH ALL");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* SEARCH 1 2 3 4 5 6 7 8 9");
 		expectedResponse.add("0003 OK Search completed");
 		expectedResponse.add("0004 OK COPY completed");
@@ -54,7 +54,7 @@ public class IMAPCopyTest extends IMAPTestWithMessages {
 		commands.add("0003 COPY 0 INBOX");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 NO Invalid message ID");
 
 		runSimpleTest(commands, expectedResponse);
@@ -68,7 +68,7 @@ public class IMAPCopyTest extends IMAPTestWithMessages {
 		commands.add("0003 COPY 0:* INBOX");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 NO Invalid message ID");
 
 		runSimpleTest(commands, expectedResponse);
@@ -82,7 +82,7 @@ public class IMAPCopyTest extends IMAPTestWithMessages {
 		commands.add("0003 COPY *:0 INBOX");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 NO Invalid message ID");
 
 		runSimpleTest(commands, expectedResponse);
@@ -96,7 +96,7 @@ public class IMAPCopyTest extends IMAPTestWithMessages {
 		commands.add("0003 COPY 11:10 INBOX");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 NO Invalid message ID");
 
 		runSimpleTest(commands, expectedResponse);
@@ -110,7 +110,7 @@ public class IMAPCopyTest extends IMAPTestWithMessages {
 		commands.add("0003 COPY 10:11 INBOX");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 NO Invalid message ID");
 
 		runSimpleTest(commands, expectedResponse);
@@ -124,7 +124,7 @@ public class IMAPCopyTest extends IMAPTestWithMessages {
 		commands.add("0003 COPY 1 INBOX.abc");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 NO [TRYCREATE] No such mailbox.");
 
 		runSimpleTest(commands, expectedResponse);
@@ -139,7 +139,7 @@ public class IMAPCopyTest extends IMAPTestWithMessages {
 		commands.add("0004 FETCH * FLAGS");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 OK COPY completed");
 		expectedResponse.add("* 10 FETCH (FLAGS (\\Recent))");
 		expectedResponse.add("0004 OK Fetch completed");
@@ -156,7 +156,7 @@ public class IMAPCopyTest extends IMAPTestWithMessages {
 		commands.add("0004 SELECT INBOX.abc");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 NO [TRYCREATE] No such mailbox.");
 		expectedResponse.add("0004 NO No such mailbox");
 
@@ -174,7 +174,7 @@ public class IMAPCopyTest extends IMAPTestWithMessages {
 		commands.add("0005 FETCH 10 (UID)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* SEARCH 1 2 3 4 6 7 8 9 10");
 		expectedResponse.add("0003 OK Search completed");
 		expectedResponse.add("0004 OK COPY completed");
@@ -198,7 +198,7 @@ public class IMAPCopyTest extends IMAPTestWithMessages {
 		commands.add("0007 UID FETCH 11:* (UID FLAGS)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 1 FETCH FLAGS (\\Seen)");
 		expectedResponse.add("0003 OK Store completed");
 		expectedResponse.add("* 2 FETCH FLAGS (\\Deleted)");
@@ -222,7 +222,7 @@ public class IMAPCopyTest extends IMAPTestWithMessages {
 		commands.add("0006 COPY");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0006 BAD Not enough arguments");
 
 		runSimpleTest(commands, expectedResponse);
@@ -236,7 +236,7 @@ public class IMAPCopyTest extends IMAPTestWithMessages {
 		commands.add("0006 COPY *");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0006 BAD Not enough arguments");
 
 		runSimpleTest(commands, expectedResponse);
@@ -250,7 +250,7 @@ public class IMAPCopyTest extends IMAPTestWithMessages {
 		commands.add("0003 COPY BAD INBOX");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Illegal sequence number set");
 
 		runSimpleTest(commands, expectedResponse);
@@ -264,7 +264,7 @@ public class IMAPCopyTest extends IMAPTestWithMessages {
 		commands.add("0003 COPY BAD:* INBOX");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Illegal sequence number set");
 
 		runSimpleTest(commands, expectedResponse);
@@ -278,7 +278,7 @@ public class IMAPCopyTest extends IMAPTestWithMessages {
 		commands.add("0003 COPY 1:BAD INBOX");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Illegal sequence number set");
 
 		runSimpleTest(commands, expectedResponse);
@@ -292,7 +292,7 @@ public class IMAPCopyTest extends IMAPTestWithMessages {
 		commands.add("0003 COPY BAD,* INBOX");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Illegal sequence number set");
 
 		runSimpleTest(commands, expectedResponse);
@@ -306,7 +306,7 @@ public class IMAPCopyTest extends IMAPTestWithMessages {
 		commands.add("0003 COPY *,BAD INBOX");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Illegal sequence number set");
 
 		runSimpleTest(commands, expectedResponse);
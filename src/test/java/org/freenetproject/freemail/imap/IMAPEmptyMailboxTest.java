@@ -23,9 +23,22 @@ import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
 
+import org.freenetproject.freemail.AccountManager;
 import org.junit.Test;
 
+import fakes.ConfigurableAccountManager;
+
 public class IMAPEmptyMailboxTest extends IMAPTestBase {
+	private long highestModSeq;
+
+	@Override
+	public void before() {
+		super.before();
+
+		AccountManager temp = new ConfigurableAccountManager(accountManagerDir, false, accountDirs);
+		highestModSeq = temp.authenticate(BASE64_USERNAME, "").getMessageBank().getHighestModSeq();
+	}
+
 	@Test
 	public void fetchFromEmptyFolder() throws IOException {
 		List<String> commands = new LinkedList<String>();
@@ -34,13 +47,14 @@ public class IMAPEmptyMailboxTest extends IMAPTestBase {
 		commands.add("0003 FETCH 1:* (UID)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE ESEARCH ENABLE CONDSTORE QRESYNC] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 OK Logged in");
 		expectedResponse.add("* FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)");
 		expectedResponse.add("* OK [PERMANENTFLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)] Limited");
 		expectedResponse.add("* 0 EXISTS");
 		expectedResponse.add("* 0 RECENT");
 		expectedResponse.add("* OK [UIDVALIDITY 1] Ok");
+		expectedResponse.add("* OK [HIGHESTMODSEQ " + highestModSeq + "] Ok");
 		expectedResponse.add("0002 OK [READ-WRITE] Done");
 		expectedResponse.add("0003 OK Fetch completed");
 
@@ -55,13 +69,14 @@ public class IMAPEmptyMailboxTest extends IMAPTestBase {
 		commands.add("0003 UID FETCH 1:* (UID)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE ESEARCH ENABLE CONDSTORE QRESYNC] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 OK Logged in");
 		expectedResponse.add("* FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)");
 		expectedResponse.add("* OK [PERMANENTFLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)] Limited");
 		expectedResponse.add("* 0 EXISTS");
 		expectedResponse.add("* 0 RECENT");
 		expectedResponse.add("* OK [UIDVALIDITY 1] Ok");
+		expectedResponse.add("* OK [HIGHESTMODSEQ " + highestModSeq + "] Ok");
 		expectedResponse.add("0002 OK [READ-WRITE] Done");
 		expectedResponse.add("0003 OK Fetch completed");
 
@@ -76,13 +91,14 @@ public class IMAPEmptyMailboxTest extends IMAPTestBase {
 		commands.add("0003 UID STORE 1 FLAGS \\Seen");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE ESEARCH ENABLE CONDSTORE QRESYNC] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 OK Logged in");
 		expectedResponse.add("* FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)");
 		expectedResponse.add("* OK [PERMANENTFLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)] Limited");
 		expectedResponse.add("* 0 EXISTS");
 		expectedResponse.add("* 0 RECENT");
 		expectedResponse.add("* OK [UIDVALIDITY 1] Ok");
+		expectedResponse.add("* OK [HIGHESTMODSEQ " + highestModSeq + "] Ok");
 		expectedResponse.add("0002 OK [READ-WRITE] Done");
 		expectedResponse.add("0003 NO No such message");
 
@@ -97,13 +113,14 @@ public class IMAPEmptyMailboxTest extends IMAPTestBase {
 		commands.add("0003 UID IllegalCommand arg1 arg2 arg3");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE ESEARCH ENABLE CONDSTORE QRESYNC] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 OK Logged in");
 		expectedResponse.add("* FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)");
 		expectedResponse.add("* OK [PERMANENTFLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)] Limited");
 		expectedResponse.add("* 0 EXISTS");
 		expectedResponse.add("* 0 RECENT");
 		expectedResponse.add("* OK [UIDVALIDITY 1] Ok");
+		expectedResponse.add("* OK [HIGHESTMODSEQ " + highestModSeq + "] Ok");
 		expectedResponse.add("0002 OK [READ-WRITE] Done");
 		expectedResponse.add("0003 BAD Unknown command");
 
@@ -36,7 +36,7 @@ public class IMAPFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 FETCH 1 (BODY.PEEK[])");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 1 FETCH (BODY[] {32}");
 		expectedResponse.add("Subject: IMAP test message 0");
 		expectedResponse.add("");
@@ -86,7 +86,7 @@ public class IMAPFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 FETCH 1 (BODY.PEEK[]<0.15>)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 1 FETCH (BODY[]<0> {15}");
 		expectedResponse.add("Subject: IMAP t)");
 		expectedResponse.add("0003 OK Fetch completed");
@@ -102,7 +102,7 @@ public class IMAPFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 FETCH 1 (BODY.PEEK[]<1.15>)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 1 FETCH (BODY[]<1> {15}");
 		expectedResponse.add("ubject: IMAP te)");
 		expectedResponse.add("0003 OK Fetch completed");
@@ -118,7 +118,7 @@ public class IMAPFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 FETCH 1 (BODY.PEEK[]<15.1000>)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 1 FETCH (BODY[]<15> {17}");
 		expectedResponse.add("est message 0");
 		expectedResponse.add("");
@@ -136,7 +136,7 @@ public class IMAPFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 FETCH 9:* (UID)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 9 FETCH (UID 10)");
 		expectedResponse.add("0003 OK Fetch completed");
 
@@ -151,7 +151,7 @@ public class IMAPFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 FETCH 8:9 (UID)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 8 FETCH (UID 9)");
 		expectedResponse.add("* 9 FETCH (UID 10)");
 		expectedResponse.add("0003 OK Fetch completed");
@@ -167,7 +167,7 @@ public class IMAPFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 FETCH 9:11 (UID)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 NO Invalid message ID");
 
 		runSimpleTest(commands, expectedResponse);
@@ -181,7 +181,7 @@ public class IMAPFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 FETCH 9:BAD (UID)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Illegal sequence number set");
 
 		runSimpleTest(commands, expectedResponse);
@@ -195,7 +195,7 @@ public class IMAPFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 FETCH 9:* UID");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 9 FETCH (UID 10)");
 		expectedResponse.add("0003 OK Fetch completed");
 
@@ -210,7 +210,7 @@ public class IMAPFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 FETCH 9:* (BODY.PEEK[]");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 9 FETCH (BODY[] {32}");
 		expectedResponse.add("Subject: IMAP test message 9");
 		expectedResponse.add("");
@@ -228,7 +228,7 @@ public class IMAPFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 FETCH 9:* (UID FLAGS BODY.PEEK[]<0.1>)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 9 FETCH (UID 10 FLAGS () BODY[]<0> {1}");
 		expectedResponse.add("S)");
 		expectedResponse.add("0003 OK Fetch completed");
@@ -244,7 +244,7 @@ public class IMAPFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 FETCH 9:* BODY.PEEK[]");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 9 FETCH (BODY[] {32}");
 		expectedResponse.add("Subject: IMAP test message 9");
 		expectedResponse.add("");
@@ -268,7 +268,7 @@ public class IMAPFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 FETCH 20:* (UID FLAGS)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 NO Invalid message ID");
 
 		runSimpleTest(commands, expectedResponse);
@@ -282,7 +282,7 @@ public class IMAPFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 FETCH *:9 (UID FLAGS)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 9 FETCH (UID 10 FLAGS ())");
 		expectedResponse.add("0003 OK Fetch completed");
 
@@ -297,7 +297,7 @@ public class IMAPFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 FETCH");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Not enough arguments");
 
 		runSimpleTest(commands, expectedResponse);
@@ -311,7 +311,7 @@ public class IMAPFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 FETCH *:10");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Not enough arguments");
 
 		runSimpleTest(commands, expectedResponse);
@@ -325,7 +325,7 @@ public class IMAPFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 FETCH 0 INBOX");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 NO Invalid message ID");
 
 		runSimpleTest(commands, expectedResponse);
@@ -339,7 +339,7 @@ public class IMAPFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 FETCH 0:10 UID");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 NO Invalid message ID");
 
 		runSimpleTest(commands, expectedResponse);
@@ -353,7 +353,7 @@ public class IMAPFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 FETCH 10:0 UID");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 NO Invalid message ID");
 
 		runSimpleTest(commands, expectedResponse);
@@ -367,7 +367,7 @@ public class IMAPFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 FETCH BAD:10 UID");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Illegal sequence number set");
 
 		runSimpleTest(commands, expectedResponse);
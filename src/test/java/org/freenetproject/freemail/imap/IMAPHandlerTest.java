@@ -39,7 +39,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 	@Test
 	public void imapGreeting() throws IOException {
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE ESEARCH ENABLE CONDSTORE QRESYNC] Freemail ready - hit me with your rhythm stick.");
 
 		runSimpleTest(new LinkedList<String>(), expectedResponse);
 	}
@@ -50,7 +50,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE ESEARCH ENABLE CONDSTORE QRESYNC] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 OK Logged in");
 
 		runSimpleTest(commands, expectedResponse);
@@ -83,7 +83,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
 		commands.add("0002 SELECT INBOX");
 
-		runSimpleTest(commands, INITIAL_RESPONSES);
+		runSimpleTest(commands, initialResponses);
 	}
 
 	/*
@@ -126,7 +126,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0002 SELECT ShouldNotExist\r\n");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE ESEARCH ENABLE CONDSTORE QRESYNC] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 OK Logged in");
 		expectedResponse.add("0002 NO No such mailbox");
 
@@ -139,7 +139,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0001 NoSuchCommand");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE ESEARCH ENABLE CONDSTORE QRESYNC] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 NO Sorry - not implemented");
 
 		runSimpleTest(commands, expectedResponse);
@@ -159,7 +159,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 
 		int lineNum = 0;
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE ESEARCH ENABLE CONDSTORE QRESYNC] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("* BYE");
 		expectedResponse.add("0001 OK Bye");
 		for(String response : expectedResponse) {
@@ -193,8 +193,8 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0001 CAPABILITY");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
-		expectedResponse.add("* CAPABILITY IMAP4rev1 CHILDREN NAMESPACE");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE ESEARCH ENABLE CONDSTORE QRESYNC] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE ESEARCH ENABLE CONDSTORE QRESYNC");
 		expectedResponse.add("0001 OK Capability completed");
 
 		runSimpleTest(commands, expectedResponse);
@@ -206,7 +206,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0001 NOOP");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE ESEARCH ENABLE CONDSTORE QRESYNC] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 OK NOOP completed");
 
 		runSimpleTest(commands, expectedResponse);
@@ -218,7 +218,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0001 LOGIN");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE ESEARCH ENABLE CONDSTORE QRESYNC] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 BAD Not enough arguments");
 
 		runSimpleTest(commands, expectedResponse);
@@ -230,7 +230,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0001 LOGIN " + IMAP_USERNAME);
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE ESEARCH ENABLE CONDSTORE QRESYNC] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 BAD Not enough arguments");
 
 		runSimpleTest(commands, expectedResponse);
@@ -246,7 +246,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0005 SELECT INBOX");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 1 FETCH FLAGS (\\Deleted)");
 		expectedResponse.add("0003 OK Store completed");
 		expectedResponse.add("0004 OK Mailbox closed");
@@ -255,6 +255,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		expectedResponse.add("* 8 EXISTS");
 		expectedResponse.add("* 0 RECENT");
 		expectedResponse.add("* OK [UIDVALIDITY 1] Ok");
+		expectedResponse.add("* OK [HIGHESTMODSEQ " + (initialModSeq + 11) + "] Ok");
 		expectedResponse.add("0005 OK [READ-WRITE] Done");
 
 		runSimpleTest(commands, expectedResponse);
@@ -269,7 +270,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0004 SELECT INBOX");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 1 FETCH FLAGS (\\Deleted)");
 		expectedResponse.add("0003 OK Store completed");
 		expectedResponse.add("* FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)");
@@ -277,6 +278,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		expectedResponse.add("* 9 EXISTS");
 		expectedResponse.add("* 0 RECENT");
 		expectedResponse.add("* OK [UIDVALIDITY 1] Ok");
+		expectedResponse.add("* OK [HIGHESTMODSEQ " + (initialModSeq + 10) + "] Ok");
 		expectedResponse.add("0004 OK [READ-WRITE] Done");
 
 		runSimpleTest(commands, expectedResponse);
@@ -292,7 +294,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0005 EXPUNGE");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 1 FETCH FLAGS (\\Deleted)");
 		expectedResponse.add("* 2 FETCH FLAGS (\\Deleted)");
 		expectedResponse.add("0003 OK Store completed");
@@ -322,7 +324,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0004 ShouldNotRun");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE ESEARCH ENABLE CONDSTORE QRESYNC] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 OK Logged in");
 		expectedResponse.add("+ OK");
 		expectedResponse.add("0002 OK APPEND completed");
@@ -361,7 +363,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0004 uid SEARCH UNDELETED HEADER Message-ID 4FF2057E.8000902@b5zswai7ybkmvcrfddlz5euw3ifzn5z5m3bzdgpucb26mzqvsflq.freemail");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("+ OK");
 		expectedResponse.add("0002 OK APPEND completed");
 		expectedResponse.add("0003 OK NOOP completed");
@@ -379,7 +381,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0003 UID");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Not enough arguments for uid command");
 
 		runSimpleTest(commands, expectedResponse);
@@ -393,9 +395,50 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0003 UID NoSuchCommand 1:2 arg2 arg3");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Unknown command");
 
 		runSimpleTest(commands, expectedResponse);
 	}
+
+	@Test
+	public void pipelinedCommands() throws IOException {
+		FakeSocket sock = new FakeSocket();
+		AccountManager accManager = new ConfigurableAccountManager(accountManagerDir, false, accountDirs);
+
+		new Thread(new IMAPHandler(accManager, sock)).start();
+
+		PrintWriter toHandler = new PrintWriter(sock.getOutputStreamOtherSide());
+		BufferedReader fromHandler = new BufferedReader(new InputStreamReader(sock.getInputStreamOtherSide()));
+
+		//Send everything in one go, the responses must still come in order
+		send(toHandler, "0001 LOGIN " + IMAP_USERNAME + " test\r\n"
+		              + "0002 SELECT \"INBOX\"\r\n"
+		              + "0003 FETCH 1:2 (UID)\r\n"
+		              + "0004 NOOP\r\n");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(initialResponses);
+		expectedResponse.add("* 1 FETCH (UID 1)");
+		expectedResponse.add("* 2 FETCH (UID 2)");
+		expectedResponse.add("0003 OK Fetch completed");
+		expectedResponse.add("0004 OK NOOP completed");
+
+		for(String expected : expectedResponse) {
+			assertEquals(expected, fromHandler.readLine());
+		}
+	}
+
+	@Test
+	public void refusedClientIsToldWhy() throws IOException {
+		FakeSocket sock = new FakeSocket();
+		AccountManager accManager = new ConfigurableAccountManager(accountManagerDir, false, accountDirs);
+
+		new IMAPHandler(accManager, sock).refuse();
+
+		BufferedReader fromHandler = new BufferedReader(new InputStreamReader(sock.getInputStreamOtherSide()));
+		assertEquals("* BYE Too many connections", fromHandler.readLine());
+		assertNull(fromHandler.readLine());
+		assertTrue(sock.isClosed());
+	}
 }
@@ -0,0 +1,144 @@
+/*
+ * IMAPIdleTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.freenetproject.freemail.AccountManager;
+import org.freenetproject.freemail.MailMessage;
+import org.freenetproject.freemail.MessageBank;
+import org.junit.Test;
+
+import utils.TextProtocolTester.Command;
+
+import fakes.ConfigurableAccountManager;
+import fakes.FakeSocket;
+
+public class IMAPIdleTest extends IMAPTestWithMessages {
+	@Test
+	public void changesArePushedWhileIdling() throws IOException {
+		FakeSocket sock = new FakeSocket();
+		AccountManager accManager = new ConfigurableAccountManager(accountManagerDir, false, accountDirs);
+
+		new Thread(new IMAPHandler(accManager, sock)).start();
+
+		PrintWriter toHandler = new PrintWriter(sock.getOutputStreamOtherSide());
+		BufferedReader fromHandler = new BufferedReader(new InputStreamReader(sock.getInputStreamOtherSide()));
+
+		send(toHandler, "0001 LOGIN " + IMAP_USERNAME + " test\r\n");
+		send(toHandler, "0002 SELECT INBOX\r\n");
+		for(String expected : initialResponses) {
+			assertEquals(expected, fromHandler.readLine());
+		}
+
+		send(toHandler, "0003 IDLE\r\n");
+		assertEquals("+ idling", fromHandler.readLine());
+
+		MessageBank inbox = accManager.authenticate(BASE64_USERNAME, "").getMessageBank();
+
+		MailMessage newMessage = inbox.createMessage();
+		newMessage.addHeader("Subject", "Arrived while idling");
+		newMessage.writeHeadersAndGetStream();
+		newMessage.commit();
+		assertEquals("* 10 EXISTS", fromHandler.readLine());
+
+		MailMessage second = inbox.listMessages().get(2);
+		second.flags.setSeen();
+		second.storeFlags();
+		assertEquals("* 2 FETCH (FLAGS (\\Seen) UID 2)", fromHandler.readLine());
+
+		inbox.listMessages().get(1).delete();
+		assertEquals("* 1 EXPUNGE", fromHandler.readLine());
+
+		send(toHandler, "DONE\r\n");
+		assertEquals("0003 OK IDLE terminated", fromHandler.readLine());
+
+		//Changes made between commands are only reported on the next IDLE
+		inbox.listMessages().get(3).delete();
+		send(toHandler, "0004 NOOP\r\n");
+		assertEquals("0004 OK NOOP completed", fromHandler.readLine());
+
+		send(toHandler, "0005 IDLE\r\n");
+		assertEquals("* 2 EXPUNGE", fromHandler.readLine());
+		assertEquals("+ idling", fromHandler.readLine());
+		send(toHandler, "DONE\r\n");
+		assertEquals("0005 OK IDLE terminated", fromHandler.readLine());
+	}
+
+	@Test
+	public void handlerExitsWhenClientDisconnectsWhileIdling() throws IOException, InterruptedException {
+		FakeSocket sock = new FakeSocket();
+		AccountManager accManager = new ConfigurableAccountManager(accountManagerDir, false, accountDirs);
+
+		Thread imapThread = new Thread(new IMAPHandler(accManager, sock));
+		imapThread.start();
+
+		PrintWriter toHandler = new PrintWriter(sock.getOutputStreamOtherSide());
+		BufferedReader fromHandler = new BufferedReader(new InputStreamReader(sock.getInputStreamOtherSide()));
+
+		send(toHandler, "0001 LOGIN " + IMAP_USERNAME + " test\r\n");
+		send(toHandler, "0002 SELECT INBOX\r\n");
+		for(String expected : initialResponses) {
+			assertEquals(expected, fromHandler.readLine());
+		}
+
+		send(toHandler, "0003 IDLE\r\n");
+		assertEquals("+ idling", fromHandler.readLine());
+
+		//Drop the connection without sending DONE
+		sock.getOutputStreamOtherSide().close();
+
+		imapThread.join(5000);
+		assertFalse("Handler still running after the client disconnected", imapThread.isAlive());
+		assertTrue(sock.isClosed());
+	}
+
+	@Test
+	public void idleWithoutSelectedMailbox() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.add(new Command("0002 IDLE",
+		                         "0002 NO No mailbox selected"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void idleMustEndWithDone() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+		commands.add(new Command("0003 IDLE",
+		                         "+ idling"));
+		commands.add(new Command("0004 NOOP",
+		                         "0003 BAD Expected DONE"));
+
+		runSimpleTest(commands);
+	}
+}
@@ -106,7 +106,7 @@ public class IMAPLocaleDependentTest extends IMAPTestWithMessages {
 
 		//Read all the initial responses
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		int lineNum = 0;
 		for(String response : expectedResponse) {
 			String line = fromHandler.readLine();
@@ -142,7 +142,7 @@ public class IMAPLocaleDependentTest extends IMAPTestWithMessages {
 		commands.add("0003 UID STORE 3 +FLAGS.SILENT (\\Seen)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 OK Store completed");
 
 		runSimpleTest(commands, expectedResponse);
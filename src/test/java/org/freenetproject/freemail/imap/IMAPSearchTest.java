@@ -36,7 +36,7 @@ public class IMAPSearchTest extends IMAPTestWithMessages {
 		commands.add("0003 SEARCH UNDELETED");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* SEARCH 1 2 3 4 5 6 7 8 9");
 		expectedResponse.add("0003 OK Search completed");
 
@@ -51,7 +51,7 @@ public class IMAPSearchTest extends IMAPTestWithMessages {
 		commands.add("0003 UID SEARCH UNDELETED");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* SEARCH 1 2 3 4 6 7 8 9 10");
 		expectedResponse.add("0003 OK Search completed");
 
@@ -66,7 +66,7 @@ public class IMAPSearchTest extends IMAPTestWithMessages {
 		commands.add("0003 SEARCH DELETED UNDELETED");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* SEARCH");
 		expectedResponse.add("0003 OK Search completed");
 
@@ -113,4 +113,80 @@ public class IMAPSearchTest extends IMAPTestWithMessages {
 
 		runSimpleTest(commands);
 	}
+
+	@Test
+	public void searchSubjectWithQuotedString() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+		commands.add(new Command("0003 SEARCH SUBJECT \"message 3\"",
+		                         "* SEARCH 4",
+		                         "0003 OK Search completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void searchText() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+		commands.add(new Command("0003 UID SEARCH TEXT \"test message 7\"",
+		                         "* SEARCH 8",
+		                         "0003 OK Search completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void searchBody() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+		commands.add(new Command("0003 SEARCH BODY message",
+		                         "* SEARCH",
+		                         "0003 OK Search completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void searchSequenceSet() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+		commands.add(new Command("0003 SEARCH 2:4,7",
+		                         "* SEARCH 2 3 4 7",
+		                         "0003 OK Search completed"));
+		commands.add(new Command("0004 UID SEARCH UID 4:6",
+		                         "* SEARCH 4 6",
+		                         "0004 OK Search completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void esearchReturnOptions() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+		commands.add(new Command("0003 SEARCH RETURN (MIN MAX COUNT ALL) ALL",
+		                         "* ESEARCH (TAG \"0003\") MIN 1 MAX 9 COUNT 9 ALL 1:9",
+		                         "0003 OK Search completed"));
+		commands.add(new Command("0004 UID SEARCH RETURN () ALL",
+		                         "* ESEARCH (TAG \"0004\") UID ALL 1:4,6:10",
+		                         "0004 OK Search completed"));
+		commands.add(new Command("0005 SEARCH RETURN (MIN COUNT) BODY message",
+		                         "* ESEARCH (TAG \"0005\") COUNT 0",
+		                         "0005 OK Search completed"));
+		commands.add(new Command("0006 SEARCH RETURN (PARTIAL) ALL",
+		                         "0006 BAD Unknown search result option PARTIAL"));
+
+		runSimpleTest(commands);
+	}
 }
@@ -34,7 +34,7 @@ public class IMAPStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 STORE");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Not enough arguments");
 
 		runSimpleTest(commands, expectedResponse);
@@ -48,7 +48,7 @@ public class IMAPStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 STORE 1");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Not enough arguments");
 
 		runSimpleTest(commands, expectedResponse);
@@ -62,7 +62,7 @@ public class IMAPStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 STORE 1 FLAGS");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Not enough arguments to store flags");
 
 		runSimpleTest(commands, expectedResponse);
@@ -76,7 +76,7 @@ public class IMAPStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 STORE 1 FLAGS \\Seen");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 1 FETCH FLAGS (\\Seen)");
 		expectedResponse.add("0003 OK Store completed");
 
@@ -91,7 +91,7 @@ public class IMAPStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 STORE 1 +FLAGS (\\Seen \\Flagged \\Answered)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 1 FETCH FLAGS (\\Seen \\Answered \\Flagged)");
 		expectedResponse.add("0003 OK Store completed");
 
@@ -106,7 +106,7 @@ public class IMAPStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 STORE BAD:12 +FLAGS (\\Seen \\Flagged \\Answered)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Illegal sequence number set");
 
 		runSimpleTest(commands, expectedResponse);
@@ -120,7 +120,7 @@ public class IMAPStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 STORE 11:BAD +FLAGS (\\Seen \\Flagged \\Answered)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Illegal sequence number set");
 
 		runSimpleTest(commands, expectedResponse);
@@ -134,7 +134,7 @@ public class IMAPStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 STORE 7 Flags (\\Seen)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 7 FETCH FLAGS (\\Seen)");
 		expectedResponse.add("0003 OK Store completed");
 
@@ -153,7 +153,7 @@ public class IMAPStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 STORE 7 +FLAGS (\\Deleted)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 7 FETCH FLAGS (\\Deleted)");
 		expectedResponse.add("0003 OK Store completed");
 
@@ -168,7 +168,7 @@ public class IMAPStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 STORE *:7 FLAGS (\\Seen)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 7 FETCH FLAGS (\\Seen)");
 		expectedResponse.add("* 8 FETCH FLAGS (\\Seen)");
 		expectedResponse.add("* 9 FETCH FLAGS (\\Seen)");
@@ -185,7 +185,7 @@ public class IMAPStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 STORE 7:* FLAGS (\\Seen)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 7 FETCH FLAGS (\\Seen)");
 		expectedResponse.add("* 8 FETCH FLAGS (\\Seen)");
 		expectedResponse.add("* 9 FETCH FLAGS (\\Seen)");
@@ -202,7 +202,7 @@ public class IMAPStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 STORE 0 FLAGS \\Seen");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 NO Invalid message ID");
 
 		runSimpleTest(commands, expectedResponse);
@@ -216,7 +216,7 @@ public class IMAPStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 STORE 0:1 FLAGS (\\Seen)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 NO Invalid message ID");
 
 		runSimpleTest(commands, expectedResponse);
@@ -230,7 +230,7 @@ public class IMAPStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 STORE 1:0 FLAGS (\\Seen)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 NO Invalid message ID");
 
 		runSimpleTest(commands, expectedResponse);
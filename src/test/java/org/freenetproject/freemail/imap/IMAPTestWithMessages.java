@@ -39,23 +39,15 @@ import fakes.ConfigurableAccountManager;
  * IMAP test template that adds messages to the inbox before running tests
  */
 public abstract class IMAPTestWithMessages extends IMAPTestBase {
-	protected static final List<String> INITIAL_RESPONSES;
-	static {
-		List<String> backing = new LinkedList<String>();
-		backing.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
-		backing.add("0001 OK Logged in");
-		backing.add("* FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)");
-		backing.add("* OK [PERMANENTFLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)] Limited");
-		backing.add("* 9 EXISTS");
-		backing.add("* 9 RECENT");
-		backing.add("* OK [UIDVALIDITY 1] Ok");
-		backing.add("0002 OK [READ-WRITE] Done");
-		INITIAL_RESPONSES = Collections.unmodifiableList(backing);
-	}
+	/** The highest modification sequence before the inbox is first selected */
+	protected long initialModSeq;
+
+	/** The responses to logging in as 0001 and selecting the inbox as 0002 */
+	protected List<String> initialResponses;
 
 	protected static List<Command> connectSequence() {
 		List<Command> commands = new LinkedList<Command>();
-		commands.add(new Command(null, "* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick."));
+		commands.add(new Command(null, "* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE ESEARCH ENABLE CONDSTORE QRESYNC] Freemail ready - hit me with your rhythm stick."));
 		return commands;
 	}
 
@@ -66,7 +58,12 @@ public abstract class IMAPTestWithMessages extends IMAPTestBase {
 		return commands;
 	}
 
-	protected static List<Command> selectInboxSequence(String tag) {
+	/**
+	 * Returns the commands that select the inbox for the first time. Doing so
+	 * clears the recent flag of the 9 messages, which gives them the
+	 * modification sequences following {@link #initialModSeq}.
+	 */
+	protected List<Command> selectInboxSequence(String tag) {
 		List<Command> commands = new LinkedList<Command>();
 		commands.add(new Command(tag + "-1 SELECT INBOX",
 		                         "* FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)",
@@ -74,6 +71,7 @@ public abstract class IMAPTestWithMessages extends IMAPTestBase {
 		                         "* 9 EXISTS",
 		                         "* 9 RECENT",
 		                         "* OK [UIDVALIDITY 1] Ok",
+		                         "* OK [HIGHESTMODSEQ " + (initialModSeq + 9) + "] Ok",
 		                         tag + "-1 OK [READ-WRITE] Done"));
 		return commands;
 	}
@@ -99,5 +97,19 @@ public abstract class IMAPTestWithMessages extends IMAPTestBase {
 
 		//Delete message 5 so there will be a gap in the UIDs
 		account.getMessageBank().listMessages().get(5).delete();
+
+		initialModSeq = account.getMessageBank().getHighestModSeq();
+
+		List<String> backing = new LinkedList<String>();
+		backing.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE ESEARCH ENABLE CONDSTORE QRESYNC] Freemail ready - hit me with your rhythm stick.");
+		backing.add("0001 OK Logged in");
+		backing.add("* FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)");
+		backing.add("* OK [PERMANENTFLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)] Limited");
+		backing.add("* 9 EXISTS");
+		backing.add("* 9 RECENT");
+		backing.add("* OK [UIDVALIDITY 1] Ok");
+		backing.add("* OK [HIGHESTMODSEQ " + (initialModSeq + 9) + "] Ok");
+		backing.add("0002 OK [READ-WRITE] Done");
+		initialResponses = Collections.unmodifiableList(backing);
 	}
 }
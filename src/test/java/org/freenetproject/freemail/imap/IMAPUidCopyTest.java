@@ -36,7 +36,7 @@ public class IMAPUidCopyTest extends IMAPTestWithMessages {
 		commands.add("0005 SEARCH ALL");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* SEARCH 1 2 3 4 5 6 7 8 9");
 		expectedResponse.add("0003 OK Search completed");
 		expectedResponse.add("0004 OK COPY completed");
@@ -54,7 +54,7 @@ public class IMAPUidCopyTest extends IMAPTestWithMessages {
 		commands.add("0003 UID COPY 0 INBOX");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 NO Invalid message ID");
 
 		runSimpleTest(commands, expectedResponse);
@@ -68,7 +68,7 @@ public class IMAPUidCopyTest extends IMAPTestWithMessages {
 		commands.add("0003 UID COPY 0:* INBOX");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 NO Invalid message ID");
 
 		runSimpleTest(commands, expectedResponse);
@@ -82,7 +82,7 @@ public class IMAPUidCopyTest extends IMAPTestWithMessages {
 		commands.add("0003 UID COPY *:0 INBOX");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 NO Invalid message ID");
 
 		runSimpleTest(commands, expectedResponse);
@@ -96,7 +96,7 @@ public class IMAPUidCopyTest extends IMAPTestWithMessages {
 		commands.add("0003 UID COPY 11:10 INBOX");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 OK COPY completed");
 
 		runSimpleTest(commands, expectedResponse);
@@ -110,7 +110,7 @@ public class IMAPUidCopyTest extends IMAPTestWithMessages {
 		commands.add("0003 UID COPY 10:11 INBOX");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 OK COPY completed");
 
 		runSimpleTest(commands, expectedResponse);
@@ -124,7 +124,7 @@ public class IMAPUidCopyTest extends IMAPTestWithMessages {
 		commands.add("0003 UID COPY 1 INBOX.abc");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 NO [TRYCREATE] No such mailbox.");
 
 		runSimpleTest(commands, expectedResponse);
@@ -143,7 +143,7 @@ public class IMAPUidCopyTest extends IMAPTestWithMessages {
 		commands.add("0004 FETCH * FLAGS");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 OK COPY completed");
 		expectedResponse.add("* 10 FETCH (FLAGS (\\Recent))");
 		expectedResponse.add("0004 OK Fetch completed");
@@ -160,7 +160,7 @@ public class IMAPUidCopyTest extends IMAPTestWithMessages {
 		commands.add("0004 SELECT INBOX.abc");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 NO [TRYCREATE] No such mailbox.");
 		expectedResponse.add("0004 NO No such mailbox");
 
@@ -178,7 +178,7 @@ public class IMAPUidCopyTest extends IMAPTestWithMessages {
 		commands.add("0005 FETCH 10 (UID)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* SEARCH 1 2 3 4 6 7 8 9 10");
 		expectedResponse.add("0003 OK Search completed");
 		expectedResponse.add("0004 OK COPY completed");
@@ -202,7 +202,7 @@ public class IMAPUidCopyTest extends IMAPTestWithMessages {
 		commands.add("0007 UID FETCH 11:* (UID FLAGS)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 1 FETCH FLAGS (\\Seen)");
 		expectedResponse.add("0003 OK Store completed");
 		expectedResponse.add("* 2 FETCH FLAGS (\\Deleted)");
@@ -226,7 +226,7 @@ public class IMAPUidCopyTest extends IMAPTestWithMessages {
 		commands.add("0006 UID COPY");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0006 BAD Not enough arguments");
 
 		runSimpleTest(commands, expectedResponse);
@@ -240,7 +240,7 @@ public class IMAPUidCopyTest extends IMAPTestWithMessages {
 		commands.add("0006 UID COPY *");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0006 BAD Not enough arguments");
 
 		runSimpleTest(commands, expectedResponse);
@@ -254,7 +254,7 @@ public class IMAPUidCopyTest extends IMAPTestWithMessages {
 		commands.add("0003 UID COPY BAD INBOX");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Illegal sequence number set");
 
 		runSimpleTest(commands, expectedResponse);
@@ -268,7 +268,7 @@ public class IMAPUidCopyTest extends IMAPTestWithMessages {
 		commands.add("0003 UID COPY BAD:* INBOX");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Illegal sequence number set");
 
 		runSimpleTest(commands, expectedResponse);
@@ -282,7 +282,7 @@ public class IMAPUidCopyTest extends IMAPTestWithMessages {
 		commands.add("0003 UID COPY *:BAD INBOX");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Illegal sequence number set");
 
 		runSimpleTest(commands, expectedResponse);
@@ -296,7 +296,7 @@ public class IMAPUidCopyTest extends IMAPTestWithMessages {
 		commands.add("0003 UID COPY BAD,* INBOX");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Illegal sequence number set");
 
 		runSimpleTest(commands, expectedResponse);
@@ -310,7 +310,7 @@ public class IMAPUidCopyTest extends IMAPTestWithMessages {
 		commands.add("0003 UID COPY *,BAD INBOX");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Illegal sequence number set");
 
 		runSimpleTest(commands, expectedResponse);
@@ -36,7 +36,7 @@ public class IMAPUidFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 UID FETCH 1 (BODY.PEEK[])");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 1 FETCH (BODY[] {32}");
 		expectedResponse.add("Subject: IMAP test message 0");
 		expectedResponse.add("");
@@ -69,7 +69,7 @@ public class IMAPUidFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 UID FETCH 10:* BODY.PEEK[]");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 9 FETCH (BODY[] {32}");
 		expectedResponse.add("Subject: IMAP test message 9");
 		expectedResponse.add("");
@@ -87,7 +87,7 @@ public class IMAPUidFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 UID FETCH 10:* UID");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 9 FETCH (UID 10)");
 		expectedResponse.add("0003 OK Fetch completed");
 
@@ -107,7 +107,7 @@ public class IMAPUidFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 UID FETCH 20:* (UID FLAGS)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 9 FETCH (UID 10 FLAGS ())");
 		expectedResponse.add("0003 OK Fetch completed");
 
@@ -122,7 +122,7 @@ public class IMAPUidFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 UID FETCH *:10 (UID FLAGS)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 9 FETCH (UID 10 FLAGS ())");
 		expectedResponse.add("0003 OK Fetch completed");
 
@@ -137,7 +137,7 @@ public class IMAPUidFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 UID FETCH 1 (BODY.PEEK[]<0.15>)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 1 FETCH (BODY[]<0> {15}");
 		expectedResponse.add("Subject: IMAP t UID 1)");
 		expectedResponse.add("0003 OK Fetch completed");
@@ -153,7 +153,7 @@ public class IMAPUidFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 UID FETCH 1 (BODY.PEEK[]<1.15>)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 1 FETCH (BODY[]<1> {15}");
 		expectedResponse.add("ubject: IMAP te UID 1)");
 		expectedResponse.add("0003 OK Fetch completed");
@@ -169,7 +169,7 @@ public class IMAPUidFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 UID FETCH 1 (BODY.PEEK[]<15.1000>)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 1 FETCH (BODY[]<15> {17}");
 		expectedResponse.add("est message 0");
 		expectedResponse.add("");
@@ -187,7 +187,7 @@ public class IMAPUidFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 UID FETCH 10:* (UID)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 9 FETCH (UID 10)");
 		expectedResponse.add("0003 OK Fetch completed");
 
@@ -202,7 +202,7 @@ public class IMAPUidFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 UID FETCH 9:10 (UID)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 8 FETCH (UID 9)");
 		expectedResponse.add("* 9 FETCH (UID 10)");
 		expectedResponse.add("0003 OK Fetch completed");
@@ -218,7 +218,7 @@ public class IMAPUidFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 UID FETCH 9:11 (UID)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 8 FETCH (UID 9)");
 		expectedResponse.add("* 9 FETCH (UID 10)");
 		expectedResponse.add("0003 OK Fetch completed");
@@ -234,7 +234,7 @@ public class IMAPUidFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 UID FETCH 9:BAD (UID)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Illegal sequence number set");
 
 		runSimpleTest(commands, expectedResponse);
@@ -248,7 +248,7 @@ public class IMAPUidFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 UID FETCH 10:* (BODY.PEEK[]");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 9 FETCH (BODY[] {32}");
 		expectedResponse.add("Subject: IMAP test message 9");
 		expectedResponse.add("");
@@ -266,7 +266,7 @@ public class IMAPUidFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 UID FETCH 10:* (UID FLAGS BODY.PEEK[]<0.1>)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 9 FETCH (UID 10 FLAGS () BODY[]<0> {1}");
 		expectedResponse.add("S)");
 		expectedResponse.add("0003 OK Fetch completed");
@@ -282,7 +282,7 @@ public class IMAPUidFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 UID FETCH");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Not enough arguments");
 
 		runSimpleTest(commands, expectedResponse);
@@ -296,7 +296,7 @@ public class IMAPUidFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 UID FETCH *:10");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Not enough arguments");
 
 		runSimpleTest(commands, expectedResponse);
@@ -310,7 +310,7 @@ public class IMAPUidFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 UID FETCH BAD:10 UID");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Illegal sequence number set");
 
 		runSimpleTest(commands, expectedResponse);
@@ -324,7 +324,7 @@ public class IMAPUidFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 UID FETCH 7,8 (UID)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 6 FETCH (UID 7)");
 		expectedResponse.add("* 7 FETCH (UID 8)");
 		expectedResponse.add("0003 OK Fetch completed");
@@ -340,7 +340,7 @@ public class IMAPUidFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 UID FETCH 1 (BODY.PEEK[HEADER])");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 1 FETCH (BODY[HEADER] {32}");
 		expectedResponse.add("Subject: IMAP test message 0");
 		expectedResponse.add("");
@@ -358,7 +358,7 @@ public class IMAPUidFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 UID FETCH 0 INBOX");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 NO Invalid message ID");
 
 		runSimpleTest(commands, expectedResponse);
@@ -372,7 +372,7 @@ public class IMAPUidFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 UID FETCH 0:* INBOX");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 NO Invalid message ID");
 
 		runSimpleTest(commands, expectedResponse);
@@ -386,7 +386,7 @@ public class IMAPUidFetchTest extends IMAPTestWithMessages {
 		commands.add("0003 UID FETCH *:0 INBOX");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 NO Invalid message ID");
 
 		runSimpleTest(commands, expectedResponse);
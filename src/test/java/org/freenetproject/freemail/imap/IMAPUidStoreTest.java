@@ -34,7 +34,7 @@ public class IMAPUidStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 UID STORE");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Not enough arguments for uid command");
 
 		runSimpleTest(commands, expectedResponse);
@@ -48,7 +48,7 @@ public class IMAPUidStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 UID STORE 1");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Not enough arguments for uid command");
 
 		runSimpleTest(commands, expectedResponse);
@@ -62,7 +62,7 @@ public class IMAPUidStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 UID STORE 1 FLAGS");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Not enough arguments to store flags");
 
 		runSimpleTest(commands, expectedResponse);
@@ -76,7 +76,7 @@ public class IMAPUidStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 UID STORE 1 FLAGS \\Seen");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 1 FETCH (UID 1 FLAGS (\\Seen))");
 		expectedResponse.add("0003 OK Store completed");
 
@@ -91,7 +91,7 @@ public class IMAPUidStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 UID STORE 1 +FLAGS (\\Seen \\Flagged \\Answered)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 1 FETCH (UID 1 FLAGS (\\Seen \\Answered \\Flagged))");
 		expectedResponse.add("0003 OK Store completed");
 
@@ -106,7 +106,7 @@ public class IMAPUidStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 UID STORE 11:12 +FLAGS (\\Seen \\Flagged \\Answered)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 OK Store completed");
 
 		runSimpleTest(commands, expectedResponse);
@@ -120,7 +120,7 @@ public class IMAPUidStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 UID STORE BAD:12 +FLAGS (\\Seen \\Flagged \\Answered)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Illegal sequence number set");
 
 		runSimpleTest(commands, expectedResponse);
@@ -134,7 +134,7 @@ public class IMAPUidStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 UID STORE 11:BAD +FLAGS (\\Seen \\Flagged \\Answered)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Illegal sequence number set");
 
 		runSimpleTest(commands, expectedResponse);
@@ -148,7 +148,7 @@ public class IMAPUidStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 UID STORE 7 Flags (\\Seen)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 6 FETCH (UID 7 FLAGS (\\Seen))");
 		expectedResponse.add("0003 OK Store completed");
 
@@ -167,7 +167,7 @@ public class IMAPUidStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 UID STORE 7 +FLAGS (\\Deleted)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 6 FETCH (UID 7 FLAGS (\\Deleted))");
 		expectedResponse.add("0003 OK Store completed");
 
@@ -182,7 +182,7 @@ public class IMAPUidStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 UID STORE 3:7 +Flags (\\Seen)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 3 FETCH (UID 3 FLAGS (\\Seen))");
 		expectedResponse.add("* 4 FETCH (UID 4 FLAGS (\\Seen))");
 		expectedResponse.add("* 5 FETCH (UID 6 FLAGS (\\Seen))");
@@ -200,7 +200,7 @@ public class IMAPUidStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 UID STORE 3:7 Message");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 BAD Can't store that");
 
 		runSimpleTest(commands, expectedResponse);
@@ -215,7 +215,7 @@ public class IMAPUidStoreTest extends IMAPTestWithMessages {
 		commands.add("0004 UID STORE 3 -FLAGS (\\Seen)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 3 FETCH (UID 3 FLAGS (\\Seen))");
 		expectedResponse.add("0003 OK Store completed");
 		expectedResponse.add("* 3 FETCH (UID 3 FLAGS ())");
@@ -232,7 +232,7 @@ public class IMAPUidStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 UID STORE 3 -FLAGS (\\Seen)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("* 3 FETCH (UID 3 FLAGS ())");
 		expectedResponse.add("0003 OK Store completed");
 
@@ -247,7 +247,7 @@ public class IMAPUidStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 UID STORE 3 +FLAGS.SILENT (\\Seen)");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 OK Store completed");
 
 		runSimpleTest(commands, expectedResponse);
@@ -261,7 +261,7 @@ public class IMAPUidStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 UID STORE 0 FLAGS \\Seen");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 NO Invalid message ID");
 
 		runSimpleTest(commands, expectedResponse);
@@ -275,7 +275,7 @@ public class IMAPUidStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 UID STORE 0:* FLAGS \\Seen");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 NO Invalid message ID");
 
 		runSimpleTest(commands, expectedResponse);
@@ -289,7 +289,7 @@ public class IMAPUidStoreTest extends IMAPTestWithMessages {
 		commands.add("0003 UID STORE *:0 FLAGS \\Seen");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.addAll(initialResponses);
 		expectedResponse.add("0003 NO Invalid message ID");
 
 		runSimpleTest(commands, expectedResponse);
@@ -0,0 +1,92 @@
+/*
+ * SequenceSetTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class SequenceSetTest {
+	@Test
+	public void emptySet() {
+		SequenceSet set = new SequenceSet();
+		assertTrue(set.isEmpty());
+		assertEquals(0, set.size());
+		assertFalse(set.contains(1));
+		assertEquals("", set.toString());
+	}
+
+	@Test
+	public void ascendingNumbersAreMerged() {
+		SequenceSet set = new SequenceSet();
+		for(int i = 1; i <= 4; i++) {
+			set.add(i);
+		}
+		set.add(6);
+		set.add(8);
+		set.add(9);
+
+		assertEquals("1:4,6,8:9", set.toString());
+		assertEquals(7, set.size());
+		assertEquals(1, set.first());
+		assertEquals(9, set.last());
+		assertTrue(set.contains(3));
+		assertFalse(set.contains(5));
+		assertFalse(set.contains(10));
+	}
+
+	@Test
+	public void overlappingRanges() {
+		SequenceSet set = new SequenceSet();
+		set.add(20, 30);
+		set.add(5, 1);
+		set.add(10, 12);
+		assertEquals("1:5,10:12,20:30", set.toString());
+
+		//Bridges the gap between the last two ranges
+		set.add(13, 19);
+		assertEquals("1:5,10:30", set.toString());
+
+		set.add(0, 100);
+		assertEquals("0:100", set.toString());
+		assertEquals(101, set.size());
+	}
+
+	@Test
+	public void manyRanges() {
+		SequenceSet set = new SequenceSet();
+		for(int i = 1000; i > 0; i -= 2) {
+			set.add(i);
+		}
+		assertEquals(500, set.size());
+		assertTrue(set.contains(2));
+		assertFalse(set.contains(3));
+		assertTrue(set.contains(1000));
+	}
+
+	@Test
+	public void fullRange() {
+		SequenceSet set = new SequenceSet();
+		set.add(1, Integer.MAX_VALUE);
+		set.add(Integer.MAX_VALUE);
+		assertEquals(Integer.MAX_VALUE, set.size());
+		assertTrue(set.contains(Integer.MAX_VALUE));
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * ChannelAckTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+import static org.freenetproject.freemail.transport.ChannelTestUtils.*;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.freenetproject.freemail.utils.PropsFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fakes.MockExecutor;
+import fakes.MockHighLevelFCPClient;
+import fakes.MockHighLevelFCPClient.Insert;
+
+import utils.Utils;
+
+public class ChannelAckTest {
+	private final File testDir = new File("channelacktest");
+	private File channelDir;
+
+	@Before
+	public void before() {
+		Utils.createDir(testDir);
+	}
+
+	@After
+	public void after() {
+		Utils.delete(testDir);
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void acksDueTogetherShareAnInsert() throws Exception {
+		channelDir = createChannelDir(testDir, "together", null);
+		long now = System.currentTimeMillis();
+
+		//Two acks that are due, one due within the batch window and one after
+		PrintWriter pw = new PrintWriter(new File(channelDir, "acklog"));
+		pw.println("1, 0");
+		pw.println("2, 0");
+		pw.println("3, " + (now + TimeUnit.HOURS.toMillis(2)));
+		pw.println("4, " + (now + TimeUnit.MINUTES.toMillis(30)));
+		pw.close();
+
+		MockExecutor executor = new MockExecutor();
+		MockHighLevelFCPClient fcpClient = new MockHighLevelFCPClient(null);
+		Channel channel = createChannel(channelDir, executor, fcpClient);
+		channel.startTasks();
+		executor.runNext();
+
+		Insert insert = fcpClient.awaitInsert(INSERT_KEY, 1, TimeUnit.SECONDS);
+		assertEquals("messagetype=ack\r\nid=1,2,4\r\n\r\n", new String(insert.data, "UTF-8"));
+
+		Iterator<Long> remaining = new MessageLog(new File(channelDir, "acklog")).keyIterator();
+		assertEquals(Long.valueOf(3), remaining.next());
+		assertFalse(remaining.hasNext());
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void nothingIsInsertedBeforeFirstAckIsDue() throws Exception {
+		channelDir = createChannelDir(testDir, "notdue", null);
+		long now = System.currentTimeMillis();
+
+		PrintWriter pw = new PrintWriter(new File(channelDir, "acklog"));
+		pw.println("1, " + (now + TimeUnit.MINUTES.toMillis(10)));
+		pw.close();
+
+		MockExecutor executor = new MockExecutor();
+		MockHighLevelFCPClient fcpClient = new MockHighLevelFCPClient(null);
+		Channel channel = createChannel(channelDir, executor, fcpClient);
+		channel.startTasks();
+		executor.runNext();
+
+		//No slot has been used for the ack
+		assertTrue(new MessageLog(new File(channelDir, "acklog")).isPresent(1));
+		PropsFile props = PropsFile.createPropsFile(new File(channelDir, "props"));
+		assertEquals(SEND_SLOT, props.get("sendSlot"));
+		assertNull(props.get("ack.slot"));
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void inserterIsScheduledOnce() throws Exception {
+		channelDir = createChannelDir(testDir, "once", null);
+		long now = System.currentTimeMillis();
+
+		PrintWriter pw = new PrintWriter(new File(channelDir, "acklog"));
+		pw.println("1, " + (now + TimeUnit.MINUTES.toMillis(10)));
+		pw.close();
+
+		MockExecutor executor = new MockExecutor();
+		MockHighLevelFCPClient fcpClient = new MockHighLevelFCPClient(null);
+		Channel channel = createChannel(channelDir, executor, fcpClient);
+		channel.startTasks();
+		assertEquals(1, executor.getQueuedTaskCount());
+
+		//The run finds nothing due and schedules the next one
+		executor.runNext();
+		assertEquals(1, executor.getQueuedTaskCount());
+
+		//Asking for an earlier run replaces the later one
+		channel.startTasks();
+		assertEquals(1, executor.getQueuedTaskCount());
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * ChannelBundleTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+import static org.freenetproject.freemail.transport.ChannelTestUtils.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.freenetproject.freemail.utils.PropsFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fakes.MockExecutor;
+import fakes.MockHighLevelFCPClient;
+import fakes.MockHighLevelFCPClient.Insert;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.FileBucket;
+
+import utils.Utils;
+
+public class ChannelBundleTest {
+	private final File testDir = new File("channelbundletest");
+
+	private MockHighLevelFCPClient fcpClient;
+
+	@Before
+	public void before() {
+		Utils.createDir(testDir);
+	}
+
+	@After
+	public void after() {
+		Utils.delete(testDir);
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void messagesShareAnInsert() throws Exception {
+		Channel channel = createChannel("bundle", "bundle");
+		assertTrue(channel.canSendBundles());
+
+		SortedMap<Long, Bucket> messages = new TreeMap<Long, Bucket>();
+		messages.put(Long.valueOf(7), new ArrayBucket("Second".getBytes("UTF-8")));
+		messages.put(Long.valueOf(3), new ArrayBucket("First".getBytes("UTF-8")));
+		assertTrue(channel.sendMessages(messages, 7));
+
+		String first = "messagetype=message\r\nid=3\r\n\r\nFirst";
+		String second = "messagetype=message\r\nid=7\r\n\r\nSecond";
+		String expected = "messagetype=bundle\r\n"
+				+ "lengths=" + first.length() + "," + second.length() + "\r\n"
+				+ "\r\n"
+				+ first + second;
+
+		Insert insert = fcpClient.awaitInsert(INSERT_KEY, 1, TimeUnit.SECONDS);
+		assertEquals(expected, new String(insert.data, "UTF-8"));
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void bundleLengthsIncludeCompressedParts() throws Exception {
+		Channel channel = createChannel("deflate", "bundle,deflate");
+
+		StringBuilder body = new StringBuilder();
+		for(int i = 0; i < 100; i++) {
+			body.append("This line is repeated many times\r\n");
+		}
+		File messageFile = new File(testDir, "message");
+		PrintWriter pw = new PrintWriter(messageFile);
+		pw.print(body);
+		pw.close();
+
+		SortedMap<Long, Bucket> messages = new TreeMap<Long, Bucket>();
+		messages.put(Long.valueOf(3), new FileBucket(messageFile, false, false, false, false));
+		messages.put(Long.valueOf(7), new ArrayBucket("Hi".getBytes("UTF-8")));
+		assertTrue(channel.sendMessages(messages, 3));
+		assertTrue(messageFile.exists());
+
+		Insert insert = fcpClient.awaitInsert(INSERT_KEY, 1, TimeUnit.SECONDS);
+		String data = new String(insert.data, "ISO-8859-1");
+		String header = data.substring(0, data.indexOf("\r\n\r\n") + 4);
+		String[] lengths = header.split("\r\n")[1].substring("lengths=".length()).split(",");
+		assertEquals(2, lengths.length);
+
+		String first = data.substring(header.length(), header.length() + Integer.parseInt(lengths[0]));
+		String second = data.substring(header.length() + first.length());
+		assertTrue(first.startsWith("messagetype=message\r\nid=3\r\nencoding=deflate\r\n\r\n"));
+		assertTrue(first.length() < body.length());
+		assertEquals("messagetype=message\r\nid=7\r\n\r\nHi", second);
+		assertEquals(Integer.parseInt(lengths[1]), second.length());
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void singleMessageIsSentOnItsOwn() throws Exception {
+		Channel channel = createChannel("single", "bundle");
+
+		SortedMap<Long, Bucket> messages = new TreeMap<Long, Bucket>();
+		messages.put(Long.valueOf(3), new ArrayBucket("First".getBytes("UTF-8")));
+		assertTrue(channel.sendMessages(messages, 3));
+
+		Insert insert = fcpClient.awaitInsert(INSERT_KEY, 1, TimeUnit.SECONDS);
+		assertEquals("messagetype=message\r\nid=3\r\n\r\nFirst", new String(insert.data, "UTF-8"));
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void bundleReusesSlotOfItsMessage() throws Exception {
+		//The slot that an earlier, failed insert of message 7 was given
+		String retrySlot = "BBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBB";
+		File dir = createChannelDir(testDir, "retry", "bundle");
+		PrintWriter pw = new PrintWriter(new FileWriter(new File(dir, "props"), true));
+		pw.println("msg7.slot=" + retrySlot);
+		pw.close();
+
+		fcpClient = new MockHighLevelFCPClient(null);
+		Channel channel = ChannelTestUtils.createChannel(dir, new MockExecutor(), fcpClient);
+
+		SortedMap<Long, Bucket> messages = new TreeMap<Long, Bucket>();
+		messages.put(Long.valueOf(3), new ArrayBucket("First".getBytes("UTF-8")));
+		messages.put(Long.valueOf(7), new ArrayBucket("Second".getBytes("UTF-8")));
+		assertTrue(channel.sendMessages(messages, 7));
+
+		fcpClient.awaitInsert(PRIVATE_KEY + "i-" + retrySlot, 1, TimeUnit.SECONDS);
+		PropsFile props = PropsFile.createPropsFile(new File(dir, "props"));
+		assertNull(props.get("msg7.slot"));
+		assertEquals(SEND_SLOT, props.get("sendSlot"));
+	}
+
+	@Test
+	public void bundlesNeedRemoteSupport() throws Exception {
+		assertFalse(createChannel("none", null).canSendBundles());
+		assertFalse(createChannel("other", "compress").canSendBundles());
+		assertTrue(createChannel("both", "compress,bundle").canSendBundles());
+	}
+
+	@Test
+	public void concatenatedStreamReadsAllParts() throws Exception {
+		List<Bucket> parts = new ArrayList<Bucket>();
+		parts.add(new ArrayBucket("Header\r\n\r\n".getBytes("UTF-8")));
+		parts.add(new ArrayBucket("Body".getBytes("UTF-8")));
+
+		InputStream is = Channel.openConcatenated(parts);
+		ByteArrayOutputStream read = new ByteArrayOutputStream();
+		int b;
+		while((b = is.read()) != -1) {
+			read.write(b);
+		}
+		is.close();
+		assertEquals("Header\r\n\r\nBody", new String(read.toByteArray(), "UTF-8"));
+	}
+
+	private Channel createChannel(String name, String remoteFeatures) throws Exception {
+		fcpClient = new MockHighLevelFCPClient(null);
+		return ChannelTestUtils.createChannel(createChannelDir(testDir, name, remoteFeatures), new MockExecutor(), fcpClient);
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * ChannelCompressionTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+import static org.freenetproject.freemail.transport.ChannelTestUtils.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fakes.MockExecutor;
+import fakes.MockHighLevelFCPClient;
+import fakes.MockHighLevelFCPClient.Insert;
+import freenet.support.io.ArrayBucket;
+
+import utils.Utils;
+
+public class ChannelCompressionTest {
+	private final File testDir = new File("channelcompressiontest");
+
+	private MockHighLevelFCPClient fcpClient;
+
+	@Before
+	public void before() {
+		Utils.createDir(testDir);
+	}
+
+	@After
+	public void after() {
+		Utils.delete(testDir);
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void bodyIsCompressed() throws Exception {
+		Channel channel = createChannel("deflate", "bundle,deflate");
+
+		StringBuilder body = new StringBuilder();
+		for(int i = 0; i < 100; i++) {
+			body.append("This line is repeated many times\r\n");
+		}
+		assertTrue(channel.sendMessage(new ArrayBucket(body.toString().getBytes("UTF-8")), 3));
+
+		Insert insert = fcpClient.awaitInsert(INSERT_KEY, 1, TimeUnit.SECONDS);
+		String header = "messagetype=message\r\nid=3\r\nencoding=deflate\r\n\r\n";
+		assertEquals(header, new String(insert.data, 0, header.length(), "UTF-8"));
+		assertTrue(insert.data.length < body.length());
+
+		InputStream is = new InflaterInputStream(new ByteArrayInputStream(insert.data, header.length(), insert.data.length - header.length()));
+		ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read;
+		while((read = is.read(buffer)) != -1) {
+			inflated.write(buffer, 0, read);
+		}
+		assertEquals(body.toString(), new String(inflated.toByteArray(), "UTF-8"));
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void plaintextWithoutRemoteSupport() throws Exception {
+		Channel channel = createChannel("plain", "bundle");
+
+		StringBuilder body = new StringBuilder();
+		for(int i = 0; i < 100; i++) {
+			body.append("This line is repeated many times\r\n");
+		}
+		assertTrue(channel.sendMessage(new ArrayBucket(body.toString().getBytes("UTF-8")), 3));
+
+		Insert insert = fcpClient.awaitInsert(INSERT_KEY, 1, TimeUnit.SECONDS);
+		assertEquals("messagetype=message\r\nid=3\r\n\r\n" + body, new String(insert.data, "UTF-8"));
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void incompressibleBodyIsSentAsIs() throws Exception {
+		Channel channel = createChannel("short", "deflate");
+
+		assertTrue(channel.sendMessage(new ArrayBucket("Hi".getBytes("UTF-8")), 3));
+
+		Insert insert = fcpClient.awaitInsert(INSERT_KEY, 1, TimeUnit.SECONDS);
+		assertEquals("messagetype=message\r\nid=3\r\n\r\nHi", new String(insert.data, "UTF-8"));
+	}
+
+	@Test(timeout = 30 * 1000)
+	public void largestAcceptedBodyIsCompressed() throws Exception {
+		Channel channel = createChannel("largest", "deflate");
+
+		assertTrue(channel.sendMessage(new ArrayBucket(new byte[Channel.MAX_INFLATED_SIZE]), 3));
+
+		Insert insert = fcpClient.awaitInsert(INSERT_KEY, 1, TimeUnit.SECONDS);
+		String header = "messagetype=message\r\nid=3\r\nencoding=deflate\r\n\r\n";
+		assertEquals(header, new String(insert.data, 0, header.length(), "UTF-8"));
+	}
+
+	@Test(timeout = 30 * 1000)
+	public void tooLargeBodyIsSentAsIs() throws Exception {
+		Channel channel = createChannel("toolarge", "deflate");
+
+		assertTrue(channel.sendMessage(new ArrayBucket(new byte[Channel.MAX_INFLATED_SIZE + 1]), 3));
+
+		Insert insert = fcpClient.awaitInsert(INSERT_KEY, 1, TimeUnit.SECONDS);
+		String header = "messagetype=message\r\nid=3\r\n\r\n";
+		assertEquals(header, new String(insert.data, 0, header.length(), "UTF-8"));
+		assertEquals(header.length() + Channel.MAX_INFLATED_SIZE + 1, insert.data.length);
+	}
+
+	private Channel createChannel(String name, String remoteFeatures) throws Exception {
+		fcpClient = new MockHighLevelFCPClient(null);
+		return ChannelTestUtils.createChannel(createChannelDir(testDir, name, remoteFeatures), new MockExecutor(), fcpClient);
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * ChannelTestUtils.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+import fakes.MockExecutor;
+import fakes.MockFreemail;
+import fakes.MockHighLevelFCPClient;
+
+import utils.Utils;
+
+/**
+ * Sets up channels that are ready to send messages, for the tests of the
+ * things Channel sends.
+ */
+class ChannelTestUtils {
+	static final String PRIVATE_KEY = "SSK@Mp8ZxuCLnBkioGfhs1TuqLdng9UVZ8~n5Q0QtiUY9WI,PuO0yMON89D~5jUgwh4pmeIxTelC-p2ieTQbfHmXBUU,AQECAAE/";
+	static final String SEND_SLOT = "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA";
+	static final String REMOTE_ID = "D3MrAR-AVMqKJRjXnpKW2guW9z1mw5GZ9BB15mYVkVc";
+
+	/** The key the next message of a channel created here is inserted to */
+	static final String INSERT_KEY = PRIVATE_KEY + "i-" + SEND_SLOT;
+
+	/**
+	 * Creates the directory of a channel that has received the CTS. Each
+	 * channel needs its own directory since props files are cached.
+	 * @param parent the directory the channel directory is created in
+	 * @param name the name of the channel directory
+	 * @param remoteFeatures the features the remote side supports, or {@code null}
+	 * @return the channel directory
+	 */
+	static File createChannelDir(File parent, String name, String remoteFeatures) throws IOException {
+		File dir = Utils.createDir(parent, name);
+
+		PrintWriter pw = new PrintWriter(new File(dir, "props"));
+		pw.println("privateKey=" + PRIVATE_KEY);
+		pw.println("sendCode=i");
+		pw.println("sendSlot=" + SEND_SLOT);
+		pw.println("sender-state=cts-received");
+		pw.println("timeout=" + (System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1)));
+		if(remoteFeatures != null) {
+			pw.println("remote-features=" + remoteFeatures);
+		}
+		pw.close();
+
+		return dir;
+	}
+
+	/**
+	 * Opens the channel in the given directory. The config file of the
+	 * Freemail instance is put next to the channel directory.
+	 * @param dir the channel directory
+	 * @param executor the executor that runs the tasks of the channel
+	 * @param fcpClient the client the channel inserts and fetches with
+	 * @return the channel
+	 */
+	static Channel createChannel(File dir, MockExecutor executor, MockHighLevelFCPClient fcpClient)
+			throws IOException, ChannelTimedOutException {
+		MockFreemail freemail = new MockFreemail(dir.getParentFile().getAbsolutePath() + "/config", null);
+		freemail.setExecutor(executor);
+		return new Channel(dir, new PollScheduler(freemail), fcpClient, freemail, null, REMOTE_ID);
+	}
+}
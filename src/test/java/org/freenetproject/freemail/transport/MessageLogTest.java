@@ -0,0 +1,158 @@
+/*
+ * MessageLogTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import utils.Utils;
+
+public class MessageLogTest {
+	private final File testDir = new File("messagelogtest");
+	private final File logFile = new File(testDir, "log");
+
+	@Before
+	public void before() {
+		Utils.createDir(testDir);
+	}
+
+	@After
+	public void after() {
+		Utils.delete(testDir);
+	}
+
+	@Test
+	public void changesAreAppended() throws IOException {
+		MessageLog log = new MessageLog(logFile);
+		log.add(1, null);
+		log.add(2, "1234");
+		log.add(3, null);
+		log.remove(1);
+
+		assertEquals(Arrays.asList("1, ", "2, 1234", "3, ", "remove, 1"), readLines());
+
+		MessageLog reread = new MessageLog(logFile);
+		assertFalse(reread.isPresent(1));
+		assertTrue(reread.isPresent(2));
+		assertTrue(reread.isPresent(3));
+
+		Iterator<Entry<Long, String>> it = reread.iterator();
+		Entry<Long, String> entry = it.next();
+		assertEquals(Long.valueOf(2), entry.getKey());
+		assertEquals("1234", entry.getValue());
+		assertEquals(Long.valueOf(3), it.next().getKey());
+		assertFalse(it.hasNext());
+	}
+
+	@Test
+	public void logIsCompacted() throws IOException {
+		MessageLog log = new MessageLog(logFile);
+		for(int i = 0; i < 1000; i++) {
+			log.add(i, null);
+			log.remove(i);
+		}
+		log.add(1000, "data");
+
+		assertTrue(readLines().size() < 100);
+		MessageLog reread = new MessageLog(logFile);
+		assertTrue(reread.isPresent(1000));
+		assertFalse(reread.isPresent(999));
+	}
+
+	@Test
+	public void oldLogIsRead() throws IOException {
+		PrintWriter pw = new PrintWriter(logFile);
+		pw.print("1, \r\n2, 5000\r\n");
+		pw.close();
+
+		MessageLog log = new MessageLog(logFile);
+		assertTrue(log.isPresent(1));
+		assertTrue(log.isPresent(2));
+		assertFalse(log.isPresent(3));
+	}
+
+	@Test
+	public void partialLastLineIsDropped() throws IOException {
+		MessageLog log = new MessageLog(logFile);
+		log.add(1, null);
+		log.add(2, null);
+
+		//Simulate a crash in the middle of writing a line
+		FileWriter fw = new FileWriter(logFile, true);
+		fw.write("remo");
+		fw.close();
+
+		log = new MessageLog(logFile);
+		assertTrue(log.isPresent(1));
+		assertTrue(log.isPresent(2));
+		log.add(3, null);
+
+		log = new MessageLog(logFile);
+		assertTrue(log.isPresent(1));
+		assertTrue(log.isPresent(2));
+		assertTrue(log.isPresent(3));
+	}
+
+	@Test
+	public void partialRemoveIsNotReplayed() throws IOException {
+		MessageLog log = new MessageLog(logFile);
+		log.add(1, null);
+		log.add(12, "data");
+
+		//"remove, 12" cut short after the first digit of the id
+		FileWriter fw = new FileWriter(logFile, true);
+		fw.write("remove, 1");
+		fw.close();
+
+		log = new MessageLog(logFile);
+		assertTrue(log.isPresent(1));
+		assertTrue(log.isPresent(12));
+		assertEquals(Arrays.asList("1, ", "12, data"), readLines());
+	}
+
+	private List<String> readLines() throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader br = new BufferedReader(new FileReader(logFile));
+		try {
+			String line;
+			while((line = br.readLine()) != null) {
+				lines.add(line);
+			}
+		} finally {
+			br.close();
+		}
+		return lines;
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * PollSchedulerTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fakes.MockExecutor;
+import fakes.MockFreemail;
+
+import utils.Utils;
+
+public class PollSchedulerTest {
+	private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+	private final File testDir = new File("pollschedulertest");
+
+	@Before
+	public void before() {
+		Utils.createDir(testDir);
+	}
+
+	@After
+	public void after() {
+		Utils.delete(testDir);
+	}
+
+	@Test
+	public void quietChannelBacksOff() {
+		PollScheduler.PollState state = new PollScheduler.PollState();
+		assertEquals(PollScheduler.DEFAULT_INTERVAL, state.interval);
+
+		state.recordPoll(0, 0);
+		assertEquals(2 * PollScheduler.DEFAULT_INTERVAL, state.interval);
+		state.recordPoll(0, 0);
+		assertEquals(4 * PollScheduler.DEFAULT_INTERVAL, state.interval);
+
+		for(int i = 0; i < 100; i++) {
+			state.recordPoll(0, 0);
+		}
+		assertEquals(PollScheduler.MAX_INTERVAL, state.interval);
+
+		//Receiving something resets the backoff
+		state.recordPoll(0, 1);
+		assertEquals(0, state.emptyPolls);
+		assertEquals(PollScheduler.MIN_INTERVAL, state.interval);
+	}
+
+	@Test
+	public void busyChannelIsPolledOften() {
+		PollScheduler.PollState state = new PollScheduler.PollState();
+
+		//A message every eight minutes gives a poll every two minutes
+		for(int i = 0; i < 20; i++) {
+			state.recordPoll(i * 8 * MINUTE, 1);
+		}
+		assertEquals(8 * MINUTE, state.averageArrivalInterval);
+		assertEquals(2 * MINUTE, state.interval);
+		assertEquals(20, state.received);
+
+		//Messages a day apart are never polled for less often than the default
+		state = new PollScheduler.PollState();
+		state.recordPoll(0, 1);
+		state.recordPoll(TimeUnit.DAYS.toMillis(1), 1);
+		assertEquals(PollScheduler.DEFAULT_INTERVAL, state.interval);
+	}
+
+	@Test
+	public void rateLimitSpacesPolls() {
+		PollScheduler.RateLimit limit = new PollScheduler.RateLimit(60);
+
+		assertEquals(10000, limit.findFree(10000, 0));
+		limit.reserve(10000);
+		assertEquals(11000, limit.findFree(10000, 0));
+		assertEquals(11000, limit.findFree(10500, 0));
+		assertEquals(9000, limit.findFree(9000, 0));
+		limit.reserve(11000);
+
+		//A gap that is too small is skipped
+		limit.reserve(12500);
+		assertEquals(13500, limit.findFree(11200, 0));
+
+		//Released and old reservations don't count
+		limit.release(12500);
+		assertEquals(12000, limit.findFree(11200, 0));
+		assertEquals(20000, limit.findFree(20000, 20000));
+	}
+
+	@Test
+	public void schedulerSpreadsPollsOfAccount() throws IOException {
+		MockFreemail freemail = new MockFreemail(testDir.getAbsolutePath() + "/config", null);
+		freemail.setExecutor(new MockExecutor());
+		PollScheduler scheduler = new PollScheduler(freemail);
+		Runnable first = new NamedTask("first");
+		Runnable second = new NamedTask("second");
+
+		try {
+			scheduler.pollNow(first);
+			scheduler.pollNow(second);
+
+			List<PollScheduler.ScheduledPoll> schedule = scheduler.getSchedule();
+			assertEquals(2, schedule.size());
+			assertEquals("first", schedule.get(0).channel);
+			assertEquals("second", schedule.get(1).channel);
+			long spacing = MINUTE / PollScheduler.MAX_ACCOUNT_POLLS_PER_MINUTE;
+			assertTrue(schedule.get(1).nextPoll - schedule.get(0).nextPoll >= spacing);
+
+			//An empty poll moves the channel to the end with a longer interval
+			scheduler.pollCompleted(first, 0);
+			schedule = scheduler.getSchedule();
+			assertEquals("second", schedule.get(0).channel);
+			assertEquals("first", schedule.get(1).channel);
+			assertEquals(1, schedule.get(1).emptyPolls);
+			assertEquals(2 * PollScheduler.DEFAULT_INTERVAL, schedule.get(1).interval);
+		} finally {
+			scheduler.remove(first);
+			scheduler.remove(second);
+		}
+		assertTrue(scheduler.getSchedule().isEmpty());
+	}
+
+	private static class NamedTask implements Runnable {
+		private final String name;
+
+		private NamedTask(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public void run() {
+			//Nothing to do
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * SharedBodyStoreTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import utils.Utils;
+
+public class SharedBodyStoreTest {
+	private final File storeDir = new File("sharedbodystoretest");
+
+	@Before
+	public void before() {
+		Utils.createDir(storeDir);
+	}
+
+	@After
+	public void after() {
+		Utils.delete(storeDir);
+	}
+
+	@Test
+	public void bodyIsDeletedWithLastReference() throws Exception {
+		SharedBodyStore store = new SharedBodyStore(storeDir);
+		File body = store.createBody();
+		PrintWriter pw = new PrintWriter(body);
+		pw.print("Subject: Test\r\n\r\nBody\r\n");
+		pw.close();
+		assertTrue(store.addReferences(body, 3));
+
+		store.release(body.getName(), 1);
+		store.release(body.getName(), 1);
+		assertTrue(store.getBody(body.getName()).exists());
+
+		store.release(body.getName(), 1);
+		assertFalse(body.exists());
+	}
+
+	@Test
+	public void unreferencedBodiesAreDeletedOnOpen() throws Exception {
+		SharedBodyStore store = new SharedBodyStore(storeDir);
+		File kept = store.createBody();
+		assertTrue(store.addReferences(kept, 1));
+		File orphan = store.createBody();
+
+		new SharedBodyStore(storeDir);
+		assertTrue(kept.exists());
+		assertFalse(orphan.exists());
+	}
+
+	@Test
+	public void referencesAreOnDiskAtOnce() throws Exception {
+		SharedBodyStore store = new SharedBodyStore(storeDir);
+		File first = store.createBody();
+		File second = store.createBody();
+
+		//The second change would otherwise be written behind
+		assertTrue(store.addReferences(first, 1));
+		assertTrue(store.addReferences(second, 2));
+
+		File index = new File(storeDir, "index");
+		String contents = new String(Files.readAllBytes(index.toPath()), StandardCharsets.UTF_8);
+		assertTrue(contents.contains(first.getName() + "=1"));
+		assertTrue(contents.contains(second.getName() + "=2"));
+	}
+}
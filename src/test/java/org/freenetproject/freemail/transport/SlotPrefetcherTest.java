@@ -0,0 +1,211 @@
+/*
+ * SlotPrefetcherTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.freenetproject.freemail.fcp.FCPFetchException;
+import org.freenetproject.freemail.fcp.FCPMessage;
+import org.freenetproject.freemail.fcp.HighLevelFCPClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.support.api.Bucket;
+import freenet.support.io.FileBucket;
+
+public class SlotPrefetcherTest {
+	private ExecutorService executor;
+	private File testDir;
+
+	@Before
+	public void before() {
+		//One thread is enough since it is only used to start the fetches
+		executor = Executors.newSingleThreadExecutor();
+		testDir = new File("slotprefetchertest");
+		assertTrue(testDir.mkdir());
+	}
+
+	@After
+	public void after() {
+		executor.shutdownNow();
+		for(File f : testDir.listFiles()) {
+			f.delete();
+		}
+		testDir.delete();
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void fetchesRunConcurrently() throws Exception {
+		final FakeClient client = new FakeClient();
+
+		SlotPrefetcher prefetcher = new SlotPrefetcher(executor, client, 3, new Semaphore(10));
+		prefetcher.add("a");
+		prefetcher.add("empty");
+		prefetcher.add("b");
+		prefetcher.add("c");
+		assertTrue(prefetcher.contains("c"));
+		assertFalse(prefetcher.contains("d"));
+
+		//All three are with the node at once, without a thread each
+		client.awaitSubmitted("a").complete(createResult("a"));
+		client.awaitSubmitted("empty").completeExceptionally(new FCPFetchException(new FCPMessage(0, "GetFailed")));
+		client.awaitSubmitted("b").complete(createResult("b"));
+		assertFalse(client.submitted.containsKey("c"));
+
+		assertEquals("a", getName(prefetcher.take("a")));
+		try {
+			prefetcher.take("empty");
+			fail("Expected FCPFetchException");
+		} catch(FCPFetchException e) {
+			//Expected
+		}
+		assertEquals("b", getName(prefetcher.take("b")));
+
+		client.awaitSubmitted("c").complete(createResult("c"));
+		assertEquals("c", getName(prefetcher.take("c")));
+
+		//Keys that weren't added are fetched when taken
+		Thread answer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					client.awaitSubmitted("d").complete(createResult("d"));
+				} catch(InterruptedException e) {
+					throw new AssertionError(e);
+				}
+			}
+		};
+		answer.start();
+		assertEquals("d", getName(prefetcher.take("d")));
+		answer.join();
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void cancelFreesUntakenResults() throws Exception {
+		final AtomicInteger fetched = new AtomicInteger();
+		HighLevelFCPClient client = new HighLevelFCPClient() {
+			@Override
+			public CompletableFuture<Bucket> submitFetch(String key) {
+				Bucket result = createResult(key);
+				fetched.incrementAndGet();
+				return CompletableFuture.completedFuture(result);
+			}
+		};
+
+		SlotPrefetcher prefetcher = new SlotPrefetcher(executor, client, 2, new Semaphore(10));
+		prefetcher.add("a");
+		prefetcher.add("b");
+		prefetcher.add("c");
+		Bucket a = prefetcher.take("a");
+		while(fetched.get() < 3) {
+			Thread.sleep(10);
+		}
+
+		prefetcher.cancel();
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+		assertTrue(((FileBucket)a).getFile().exists());
+		assertFalse(new File(testDir, "b").exists());
+		assertFalse(new File(testDir, "c").exists());
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void cancelGivesUpOnRunningFetches() throws Exception {
+		FakeClient client = new FakeClient();
+
+		SlotPrefetcher prefetcher = new SlotPrefetcher(executor, client, 2, new Semaphore(10));
+		prefetcher.add("a");
+		CompletableFuture<Bucket> a = client.awaitSubmitted("a");
+
+		prefetcher.cancel();
+		assertTrue(a.isCancelled());
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void permitsLimitFetchesOfAllPrefetchers() throws Exception {
+		FakeClient client = new FakeClient();
+		Semaphore permits = new Semaphore(1);
+
+		SlotPrefetcher first = new SlotPrefetcher(executor, client, 2, permits);
+		SlotPrefetcher second = new SlotPrefetcher(executor, client, 2, permits);
+		first.add("a");
+		second.add("b");
+
+		CompletableFuture<Bucket> a = client.awaitSubmitted("a");
+		Thread.sleep(100);
+		assertFalse(client.submitted.containsKey("b"));
+
+		//The permit is handed on once the node has answered
+		a.complete(createResult("a"));
+		client.awaitSubmitted("b").complete(createResult("b"));
+		assertEquals("a", getName(first.take("a")));
+		assertEquals("b", getName(second.take("b")));
+		assertEquals(1, permits.availablePermits());
+	}
+
+	private Bucket createResult(String key) {
+		File result = new File(testDir, key);
+		try {
+			assertTrue(result.createNewFile());
+		} catch(IOException e) {
+			throw new AssertionError(e);
+		}
+		return new FileBucket(result, false, false, false, true);
+	}
+
+	private static String getName(Bucket result) {
+		return ((FileBucket)result).getFile().getName();
+	}
+
+	/**
+	 * Client that leaves the fetches for the test to answer.
+	 */
+	private static class FakeClient extends HighLevelFCPClient {
+		private final Map<String, CompletableFuture<Bucket>> submitted =
+				new ConcurrentHashMap<String, CompletableFuture<Bucket>>();
+
+		@Override
+		public CompletableFuture<Bucket> submitFetch(String key) {
+			CompletableFuture<Bucket> result = new CompletableFuture<Bucket>();
+			submitted.put(key, result);
+			return result;
+		}
+
+		private CompletableFuture<Bucket> awaitSubmitted(String key) throws InterruptedException {
+			while(!submitted.containsKey(key)) {
+				Thread.sleep(10);
+			}
+			return submitted.get(key);
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * LongHashSetTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class LongHashSetTest {
+	@Test
+	public void addContainsRemove() {
+		LongHashSet set = new LongHashSet();
+		assertTrue(set.add(5));
+		assertFalse(set.add(5));
+		assertTrue(set.add(0));
+		assertTrue(set.add(-7));
+		assertTrue(set.add(Long.MIN_VALUE));
+		assertEquals(4, set.size());
+
+		assertTrue(set.contains(0));
+		assertTrue(set.contains(Long.MIN_VALUE));
+		assertFalse(set.contains(6));
+
+		assertTrue(set.remove(5));
+		assertFalse(set.remove(5));
+		assertFalse(set.contains(5));
+		assertEquals(3, set.size());
+
+		long[] values = set.toArray();
+		Arrays.sort(values);
+		assertArrayEquals(new long[] {Long.MIN_VALUE, -7, 0}, values);
+	}
+
+	@Test
+	public void matchesHashSet() {
+		//Small range so that there are many collisions, adds and removes
+		Random rand = new Random(1234);
+		LongHashSet set = new LongHashSet();
+		Set<Long> expected = new HashSet<Long>();
+		for(int i = 0; i < 100000; i++) {
+			long value = rand.nextInt(2000) * 1024L;
+			if(rand.nextBoolean()) {
+				assertEquals(expected.add(value), set.add(value));
+			} else {
+				assertEquals(expected.remove(value), set.remove(value));
+			}
+		}
+
+		assertEquals(expected.size(), set.size());
+		for(long value = 0; value < 2000 * 1024L; value += 1024) {
+			assertEquals(expected.contains(value), set.contains(value));
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * PropsFileTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.utils;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import utils.Utils;
+
+public class PropsFileTest {
+	private final File testDir = new File("propsfiletest");
+
+	@Before
+	public void before() {
+		Utils.createDir(testDir);
+	}
+
+	@After
+	public void after() {
+		Utils.delete(testDir);
+	}
+
+	@Test
+	public void putAllWritesOnce() throws IOException {
+		File file = new File(testDir, "putall");
+		PropsFile props = PropsFile.createPropsFile(file);
+
+		Map<String, String> values = new HashMap<String, String>();
+		values.put("a", "1");
+		values.put("b", "2");
+		assertTrue(props.putAll(values));
+
+		assertEquals(new HashSet<String>(Arrays.asList("a=1", "b=2")), readLines(file));
+		assertFalse(new File(testDir, "putall.tmp").exists());
+
+		assertTrue(props.removeAll(Arrays.asList("a", "c")));
+		assertEquals(new HashSet<String>(Arrays.asList("b=2")), readLines(file));
+	}
+
+	@Test
+	public void putsAreWrittenBehind() throws Exception {
+		File file = new File(testDir, "behind");
+		PropsFile props = PropsFile.createPropsFile(file);
+
+		//The first change is written at once, the next ones are collected
+		assertTrue(props.put("a", "1"));
+		assertEquals(new HashSet<String>(Arrays.asList("a=1")), readLines(file));
+		assertTrue(props.put("b", "2"));
+		assertTrue(props.put("c", "3"));
+		assertEquals("2", props.get("b"));
+
+		long deadline = System.currentTimeMillis() + 10 * 1000;
+		while(readLines(file).size() < 3 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(new HashSet<String>(Arrays.asList("a=1", "b=2", "c=3")), readLines(file));
+	}
+
+	@Test
+	public void flushWritesPendingChanges() throws IOException {
+		File file = new File(testDir, "flush");
+		PropsFile props = PropsFile.createPropsFile(file);
+		props.put("a", "1");
+		props.put("b", "2");
+
+		assertTrue(props.flush());
+		assertEquals(new HashSet<String>(Arrays.asList("a=1", "b=2")), readLines(file));
+	}
+
+	@Test
+	public void syncedFilesAreWrittenAtOnce() throws IOException {
+		File file = new File(testDir, "sync");
+		PropsFile props = PropsFile.createPropsFile(file);
+		props.setSync(true);
+		props.put("a", "1");
+		props.put("b", "2");
+
+		assertEquals(new HashSet<String>(Arrays.asList("a=1", "b=2")), readLines(file));
+	}
+
+	@Test
+	public void deletedFileIsNotWrittenAgain() throws Exception {
+		File dir = new File(testDir, "deleted");
+		File file = new File(dir, "props");
+		PropsFile props = PropsFile.createPropsFile(file);
+		props.put("a", "1");
+		props.put("b", "2");
+
+		Utils.delete(dir);
+		Thread.sleep(PropsFile.WRITE_BEHIND_DELAY * 3);
+		assertFalse(dir.exists());
+	}
+
+	@Test
+	public void flushAllSkipsDeletedFile() throws Exception {
+		File dir = new File(testDir, "flushall");
+		File file = new File(dir, "props");
+		PropsFile props = PropsFile.createPropsFile(file);
+		props.put("a", "1");
+		props.put("b", "2");
+
+		Utils.delete(dir);
+		PropsFile.flushAll();
+		assertFalse(dir.exists());
+	}
+
+	private static Set<String> readLines(File file) throws IOException {
+		Set<String> lines = new HashSet<String>();
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while((line = br.readLine()) != null) {
+				lines.add(line);
+			}
+		} finally {
+			br.close();
+		}
+		return lines;
+	}
+}